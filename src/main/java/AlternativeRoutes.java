@@ -0,0 +1,289 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The shortest route between two vertices together with a few reasonable alternatives to it,
+ * all found from one search from each end by the via-vertex method. Dijkstra's algorithm is run
+ * from the start and from the end until each has settled everything up to MAX_STRETCH times the
+ * shortest distance, and every vertex v both have settled gives a candidate route: the shortest
+ * way from the start to v followed by the shortest way from v to the end.
+ *
+ * Most candidates are the shortest route with a pointless detour to v and back. A good
+ * alternative instead follows both shortest path trees along a stretch of road, its plateau: a
+ * route whose plateau is long has no short detour that a shorter way could cut off, so it is one
+ * a driver might actually choose. Candidates are taken in order of length less plateau, and kept
+ * if they are at most MAX_STRETCH times as long as the shortest route, their plateau is at least
+ * MIN_PLATEAU of the shortest distance, and at most MAX_SHARING of the shortest distance is on
+ * roads of routes already kept. All vertices on a plateau give the same route, so each plateau is
+ * only considered once.
+ *
+ * @variable routes: The vertices on every route, the shortest first.
+ * @variable lengths: The length of every route, in the unit of the graph's costs.
+ */
+final class AlternativeRoutes {
+    /** How many times as long as the shortest route an alternative may be. */
+    static final double MAX_STRETCH = 1.25;
+    /** How much of an alternative, as a fraction of the shortest distance, must be a plateau. */
+    static final double MIN_PLATEAU = 0.2;
+    /** How much of an alternative, as a fraction of the shortest distance, may be on roads of
+     * routes kept before it. */
+    static final double MAX_SHARING = 0.6;
+
+    private final int[][] routes;
+    private final double[] lengths;
+
+    private AlternativeRoutes(int[][] routes, double[] lengths) {
+        this.routes = routes;
+        this.lengths = lengths;
+    }
+
+    /** Returns the number of routes, 0 if the end cannot be reached. */
+    int size() {
+        return routes.length;
+    }
+
+    /** Returns the vertices on the i-th route, the shortest route being route 0. */
+    int[] route(int i) {
+        return routes[i];
+    }
+
+    /** Returns the length of the i-th route, in the unit of the graph's costs. */
+    double length(int i) {
+        return lengths[i];
+    }
+
+    /** A route through a plateau, by its vertex nearest the start. */
+    private static final class Candidate {
+        private final int via;
+        private final double length;
+        private final double plateau;
+
+        private Candidate(int via, double length, double plateau) {
+            this.via = via;
+            this.length = length;
+            this.plateau = plateau;
+        }
+    }
+
+    /**
+     * Finds the shortest route between two vertices and up to count alternatives to it.
+     * @param graph The graph to search.
+     * @param start The vertex to start from.
+     * @param end The vertex to reach.
+     * @param count The most alternatives to find.
+     * @param stats The counters to add to, or null.
+     * @return The routes, none if the end cannot be reached.
+     */
+    static AlternativeRoutes compute(CompactGraph graph, int start, int end, int count,
+                                     Router.SearchStats stats) {
+        if (start < 0 || end < 0) {
+            return new AlternativeRoutes(new int[0][], new double[0]);
+        }
+        if (start == end) {
+            return new AlternativeRoutes(new int[][]{{start}}, new double[]{0});
+        }
+        SearchWorkspace workspace = SearchWorkspace.forThread(graph.size());
+        SearchWorkspace.Side forward = workspace.forward();
+        SearchWorkspace.Side backward = workspace.backward();
+        long settled = search(graph, forward, start, end, Double.POSITIVE_INFINITY, null);
+        if (!forward.isSettled(end)) {
+            addStats(stats, settled, forward, backward);
+            return new AlternativeRoutes(new int[0][], new double[0]);
+        }
+        double shortest = forward.distance[end];
+        double bound = MAX_STRETCH * shortest;
+        //Carry on from where the search stopped, since it stopped at the end.
+        settled += search(graph, forward, -1, -1, bound, null);
+        IntList both = workspace.stack;
+        settled += search(graph, backward, end, -1, bound, both);
+        addStats(stats, settled, forward, backward);
+
+        List<Candidate> candidates = new ArrayList<>();
+        for (int i = 0; i < both.size(); i += 1) {
+            int v = both.get(i);
+            if (!forward.isSettled(v)) {
+                continue;
+            }
+            double length = forward.distance[v] + backward.distance[v];
+            int before = forward.previous[v];
+            if (length > bound || before >= 0 && onPlateau(forward, backward, before, v)) {
+                continue;
+            }
+            //v is the first vertex of its plateau, so walk along it towards the end.
+            int last = v;
+            for (int next = backward.previous[last]; next >= 0
+                    && onPlateau(forward, backward, last, next); next = backward.previous[last]) {
+                last = next;
+            }
+            candidates.add(new Candidate(v, length,
+                    backward.distance[v] - backward.distance[last]));
+        }
+        candidates.sort((a, b) -> Double.compare(a.length - a.plateau, b.length - b.plateau));
+
+        List<int[]> routes = new ArrayList<>();
+        List<Double> lengths = new ArrayList<>();
+        Set<Long> used = new HashSet<>();
+        int[] shortestRoute = viaRoute(forward, backward, end, workspace.path);
+        routes.add(shortestRoute);
+        lengths.add(shortest);
+        addEdges(shortestRoute, used);
+        for (Candidate candidate : candidates) {
+            if (routes.size() > count) {
+                break;
+            }
+            if (candidate.plateau < MIN_PLATEAU * shortest) {
+                continue;
+            }
+            int[] route = viaRoute(forward, backward, candidate.via, workspace.path);
+            if (!isSimple(route) || sharedLength(graph, route, used) > MAX_SHARING * shortest) {
+                continue;
+            }
+            routes.add(route);
+            lengths.add(candidate.length);
+            addEdges(route, used);
+        }
+        double[] lengthArray = new double[lengths.size()];
+        for (int i = 0; i < lengthArray.length; i += 1) {
+            lengthArray[i] = lengths.get(i);
+        }
+        return new AlternativeRoutes(routes.toArray(new int[0][]), lengthArray);
+    }
+
+    /**
+     * Runs Dijkstra's algorithm on one side until the end is settled or nothing closer than the
+     * bound is left.
+     * @param source The vertex to search from, or -1 to carry on with the fringe as it is.
+     * @param end The vertex to stop at, or -1 for none.
+     * @param settledList A list to add every settled vertex to, or null.
+     * @return The number of vertices settled.
+     */
+    private static long search(CompactGraph graph, SearchWorkspace.Side side, int source, int end,
+                               double bound, IntList settledList) {
+        if (source >= 0) {
+            side.reach(source, 0, -1);
+            side.fringe.push(source, 0);
+        }
+        long settled = 0;
+        while (!side.fringe.isEmpty() && side.fringe.minKey() <= bound) {
+            int current = side.fringe.poll();
+            side.settle(current);
+            settled += 1;
+            if (settledList != null) {
+                settledList.add(current);
+            }
+            if (current == end) {
+                break;
+            }
+            for (int e = graph.firstEdge(current); e < graph.endEdge(current); e += 1) {
+                int next = graph.target(e);
+                if (side.isSettled(next)) {
+                    continue;
+                }
+                double length = side.distance[current] + graph.weight(e);
+                if (length == Double.POSITIVE_INFINITY
+                        || side.isReached(next) && length >= side.distance[next]) {
+                    continue;
+                }
+                side.reach(next, length, current);
+                side.fringe.push(next, length);
+            }
+        }
+        return settled;
+    }
+
+    private static void addStats(Router.SearchStats stats, long settled, SearchWorkspace.Side forward,
+                                 SearchWorkspace.Side backward) {
+        if (stats != null) {
+            stats.settled += settled;
+            stats.heapOperations += forward.operations() + backward.operations();
+        }
+    }
+
+    /**
+     * Returns whether the road from v to w, with w the next vertex towards the end, is on the
+     * shortest way from the start to w and on the shortest way from v to the end.
+     */
+    private static boolean onPlateau(SearchWorkspace.Side forward, SearchWorkspace.Side backward,
+                                     int v, int w) {
+        return forward.isSettled(w) && forward.previous[w] == v
+                && backward.isSettled(v) && backward.previous[v] == w;
+    }
+
+    /** Returns the shortest way from the start to via followed by the shortest way to the end. */
+    private static int[] viaRoute(SearchWorkspace.Side forward, SearchWorkspace.Side backward,
+                                  int via, IntList path) {
+        path.clear();
+        for (int v = via; v >= 0; v = forward.previous[v]) {
+            path.add(v);
+        }
+        int[] route = new int[path.size() - 1 + pathLength(backward, via)];
+        for (int i = 0; i < path.size(); i += 1) {
+            route[i] = path.get(path.size() - 1 - i);
+        }
+        int i = path.size();
+        for (int v = backward.previous[via]; v >= 0; v = backward.previous[v]) {
+            route[i] = v;
+            i += 1;
+        }
+        return route;
+    }
+
+    /** Returns the number of vertices on the way from v to the root of a side's search. */
+    private static int pathLength(SearchWorkspace.Side side, int v) {
+        int count = 1;
+        for (int w = side.previous[v]; w >= 0; w = side.previous[w]) {
+            count += 1;
+        }
+        return count;
+    }
+
+    private static boolean isSimple(int[] route) {
+        int[] sorted = route.clone();
+        Arrays.sort(sorted);
+        for (int i = 1; i < sorted.length; i += 1) {
+            if (sorted[i] == sorted[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the key of the road between two vertices, the same whichever way it is used. */
+    private static long roadKey(int v, int w) {
+        return (long) Math.min(v, w) << 32 | Math.max(v, w);
+    }
+
+    private static void addEdges(int[] route, Set<Long> used) {
+        for (int i = 1; i < route.length; i += 1) {
+            used.add(roadKey(route[i - 1], route[i]));
+        }
+    }
+
+    /** Returns the length of the part of a route on the roads of the routes kept so far. */
+    private static double sharedLength(CompactGraph graph, int[] route, Set<Long> used) {
+        double shared = 0;
+        for (int i = 1; i < route.length; i += 1) {
+            if (used.contains(roadKey(route[i - 1], route[i]))) {
+                shared += stepWeight(graph, route[i - 1], route[i]);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Returns the weight of the lightest edge from v to w, the one both searches go along.
+     * findEdge would give the last one, which on parallel roads may be a different road.
+     */
+    private static double stepWeight(CompactGraph graph, int v, int w) {
+        double weight = Double.POSITIVE_INFINITY;
+        for (int e = graph.firstEdge(v); e < graph.endEdge(v); e += 1) {
+            if (graph.target(e) == w) {
+                weight = Math.min(weight, graph.weight(e));
+            }
+        }
+        return weight;
+    }
+}
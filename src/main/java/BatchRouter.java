@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the routes of many start and end points at once on a fixed pool of worker threads, for
+ * jobs that would otherwise send one route request per pair. All points are snapped to the graph
+ * in one batch, and the pairs are then routed in chunks of CHUNK_SIZE, each chunk on one worker
+ * in that worker's SearchWorkspace, so that a route costs no more than a single search. Chunks are
+ * handed back as soon as they are done, in whatever order that is, so the first results can be
+ * sent while the rest are still being found.
+ *
+ * The pool is shared by every batch, so batches running at the same time share the workers
+ * rather than each starting threads of its own. A batch keeps at most 2 * threads chunks
+ * submitted and not yet handed back, which bounds the memory a batch holds however long it is
+ * and lets the chunks of other batches in between.
+ *
+ * Routes are found on the graph as it is when each one starts, so a batch running while the
+ * weights of roads change may find some of its routes on the old weights and some on the new.
+ *
+ * @variable pool: The worker threads, which are daemons so that they never keep the server up.
+ * @variable threads: The number of worker threads.
+ */
+final class BatchRouter {
+    /** The number of routes a worker finds before handing them back. */
+    static final int CHUNK_SIZE = 32;
+
+    private final ExecutorService pool;
+    private final int threads;
+
+    /**
+     * Turns a route into the result handed back for it, in the worker that found it, so that the
+     * work of describing routes is spread over the workers as well.
+     */
+    interface Finisher<T> {
+        /**
+         * @param index The index of the pair in the batch.
+         * @param vertices The vertices on the route, none if the end cannot be reached.
+         */
+        T finish(int index, int[] vertices);
+    }
+
+    /**
+     * Receives the results of a batch a chunk at a time, always in the thread that routes the
+     * batch, so that a receiver writing them out needs no locking and can flush once per chunk.
+     */
+    interface Receiver<T> {
+        void receive(List<T> results) throws IOException;
+    }
+
+    BatchRouter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads The number of routes found at the same time.
+     */
+    BatchRouter(int threads) {
+        this.threads = Math.max(1, threads);
+        AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread thread = new Thread(r, "batch-router-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Returns the number of routes found at the same time. */
+    int threads() {
+        return threads;
+    }
+
+    /**
+     * Finds the route between every pair of start and end points, handing back the results
+     * of every chunk as soon as it is done. If the receiver throws, such as when the client has
+     * gone, the chunks not yet done are cancelled.
+     * @param g The graph to use.
+     * @param stlons The longitudes of the start points.
+     * @param stlats The latitudes of the start points.
+     * @param destlons The longitudes of the end points.
+     * @param destlats The latitudes of the end points.
+     * @param algorithm The search algorithm to use.
+     * @param weighting What the routes minimize.
+     * @param finisher Turns every route into its result, in a worker.
+     * @param receiver Receives the results of every chunk, in the calling thread.
+     * @throws IllegalArgumentException If the arrays differ in length.
+     * @throws IOException If the receiver does, or if the calling thread is interrupted.
+     */
+    <T> void route(GraphDB g, double[] stlons, double[] stlats, double[] destlons,
+                   double[] destlats, Router.Algorithm algorithm, Router.Weighting weighting,
+                   Finisher<T> finisher, Receiver<T> receiver) throws IOException {
+        if (destlons.length != stlons.length) {
+            throw new IllegalArgumentException("Expected " + stlons.length + " end points.");
+        }
+        int[] starts = g.closestVertices(stlons, stlats, null);
+        int[] ends = g.closestVertices(destlons, destlats, null);
+        int chunks = (starts.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        CompletionService<Object[]> done = new ExecutorCompletionService<>(pool);
+        Future<?>[] futures = new Future<?>[chunks];
+        int submitted = 0;
+        int received = 0;
+        try {
+            while (received < chunks) {
+                while (submitted < chunks && submitted - received < 2 * threads) {
+                    int first = submitted * CHUNK_SIZE;
+                    int last = Math.min(first + CHUNK_SIZE, starts.length);
+                    futures[submitted] = done.submit(() -> routeChunk(g, starts, ends, first,
+                            last, algorithm, weighting, finisher));
+                    submitted += 1;
+                }
+                @SuppressWarnings("unchecked")
+                List<T> results = (List<T>) Arrays.asList(take(done));
+                receiver.receive(results);
+                received += 1;
+            }
+        } finally {
+            if (received < chunks) {
+                for (int i = 0; i < submitted; i += 1) {
+                    futures[i].cancel(true);
+                }
+            }
+        }
+    }
+
+    /** Finds the routes of the pairs from first up to last, in a worker. */
+    private static <T> Object[] routeChunk(GraphDB g, int[] starts, int[] ends, int first,
+                                           int last, Router.Algorithm algorithm,
+                                           Router.Weighting weighting, Finisher<T> finisher) {
+        Object[] results = new Object[last - first];
+        for (int i = first; i < last; i += 1) {
+            int[] vertices = starts[i] < 0 || ends[i] < 0 ? new int[0]
+                    : Router.shortestPathVertices(g, starts[i], ends[i], algorithm, weighting,
+                            null);
+            results[i - first] = finisher.finish(i, vertices);
+        }
+        return results;
+    }
+
+    private static Object[] take(CompletionService<Object[]> done) throws IOException {
+        try {
+            return done.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while routing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not route", e.getCause());
+        }
+    }
+
+    /** Stops the workers once the batches running now are done. */
+    void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,388 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A frozen, read-only view of the routable graph in compressed sparse row (CSR) form. Vertices
+ * are numbered densely from 0 to size() - 1 in increasing order of their OSM identifiers, and
+ * the edges leaving vertex v are stored contiguously in targets[offsets[v]] up to (but not
+ * including) targets[offsets[v + 1]]. Every edge is stored once in each direction, since all
+ * roads are two-way for this project.
+ *
+ * Searches minimize the weights of the edges, which are either their lengths or the times it
+ * takes to drive them, as the graph's weighting says. withWeighting gives the same graph
+ * weighted the other way, sharing all of its arrays.
+ *
+ * @variable ids: The OSM identifier of every vertex, sorted so that lookups are a binary search.
+ * @variable lons: The longitude of every vertex, indexed by vertex.
+ * @variable lats: The latitude of every vertex, indexed by vertex.
+ * @variable offsets: The index of the first edge of every vertex, with one extra trailing entry.
+ * @variable targets: The vertex at the far end of every edge.
+ * @variable lengths: The length of every edge in miles, the great-circle distance between its
+ * ends. They are computed once here, so that searches read them instead of doing the
+ * trigonometry of GraphDB.distance for every edge they relax.
+ * @variable times: The time it takes to drive every edge in seconds, at its speed limit.
+ * @variable costs: What searches on this graph minimize for every edge when no weight has been
+ * changed: the same array as lengths or as times, depending on the weighting.
+ * @variable weights: The cost of every edge that searches minimize: its cost, times a factor of
+ * at least 1 for congestion, or infinity if the road is closed. It is the same array as costs
+ * until a weight is changed, which makes a new CompactGraph rather than changing this one, so
+ * a search sees the same weights throughout however weights change while it runs.
+ * @variable factors: The factor of every edge, or null if they are all 1.
+ * @variable weighting: Whether costs are lengths or times.
+ * @variable costPerMile: The least cost of any edge per mile of its length, which turns the
+ * great-circle distance between two vertices into a lower bound on the cost between them.
+ * @variable streets: The street every edge belongs to, as an index into streetNames.
+ * @variable streetNames: The dictionary of distinct street names, each stored once.
+ * @variable highways: The highway class of every edge, as an index into
+ * GraphBuildingHandler.HIGHWAY_TYPES, or -1 if unknown.
+ * @variable maxspeeds: The speed limit of every edge in miles per hour, from its maxspeed tag, or
+ * 0 if it is not tagged.
+ * @variable forbiddenTurns: The turns OSM turn restrictions forbid, sorted. A turn at vertex v is
+ * stored as back << 32 | out, where out is the edge it leaves v by and back is the edge from v
+ * back along the road it arrives by.
+ */
+final class CompactGraph {
+    static final double SECONDS_PER_HOUR = 3600;
+    private final long[] ids;
+    private final double[] lons;
+    private final double[] lats;
+    private final int[] offsets;
+    private final int[] targets;
+    private final double[] lengths;
+    private final double[] times;
+    private final double[] costs;
+    private final double[] weights;
+    private final double[] factors;
+    private final Router.Weighting weighting;
+    private final double costPerMile;
+    private final int[] streets;
+    private final String[] streetNames;
+    private final byte[] highways;
+    private final byte[] maxspeeds;
+    private final long[] forbiddenTurns;
+
+    /** Creates a graph weighted by distance. */
+    CompactGraph(long[] ids, double[] lons, double[] lats, int[] offsets, int[] targets,
+                 int[] streets, String[] streetNames, byte[] highways, byte[] maxspeeds,
+                 long[] forbiddenTurns) {
+        this.ids = ids;
+        this.lons = lons;
+        this.lats = lats;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.streets = streets;
+        this.streetNames = streetNames;
+        this.highways = highways;
+        this.maxspeeds = maxspeeds;
+        this.forbiddenTurns = forbiddenTurns;
+        lengths = new double[targets.length];
+        times = new double[targets.length];
+        for (int v = 0; v < ids.length; v += 1) {
+            for (int e = offsets[v]; e < offsets[v + 1]; e += 1) {
+                int w = targets[e];
+                lengths[e] = GraphDB.distance(lons[v], lats[v], lons[w], lats[w]);
+                times[e] = lengths[e] * SECONDS_PER_HOUR / speed(e);
+            }
+        }
+        costs = lengths;
+        weights = lengths;
+        factors = null;
+        weighting = Router.Weighting.DISTANCE;
+        costPerMile = 1;
+    }
+
+    /** Creates a graph that is the same as another but for the weights of its edges. */
+    private CompactGraph(CompactGraph graph, Router.Weighting weighting, double[] factors) {
+        ids = graph.ids;
+        lons = graph.lons;
+        lats = graph.lats;
+        offsets = graph.offsets;
+        targets = graph.targets;
+        streets = graph.streets;
+        streetNames = graph.streetNames;
+        highways = graph.highways;
+        maxspeeds = graph.maxspeeds;
+        forbiddenTurns = graph.forbiddenTurns;
+        lengths = graph.lengths;
+        times = graph.times;
+        this.weighting = weighting;
+        if (weighting == Router.Weighting.TIME) {
+            costs = times;
+            double top = 0;
+            for (int e = 0; e < targets.length; e += 1) {
+                top = Math.max(top, speed(e));
+            }
+            costPerMile = top == 0 ? 0 : SECONDS_PER_HOUR / top;
+        } else {
+            costs = lengths;
+            costPerMile = 1;
+        }
+        boolean changed = false;
+        double[] newWeights = factors == null ? costs : new double[costs.length];
+        for (int e = 0; factors != null && e < newWeights.length; e += 1) {
+            newWeights[e] = factors[e] == Double.POSITIVE_INFINITY ? Double.POSITIVE_INFINITY
+                    : costs[e] * factors[e];
+            changed |= factors[e] != 1;
+        }
+        this.factors = changed ? factors : null;
+        weights = changed ? newWeights : costs;
+    }
+
+    /**
+     * Returns a graph that is the same as this one but with the edges weighted by their cost
+     * times the given factors.
+     * @param factors The factor of every edge, at least 1, or infinity for a closed road, or null
+     *                for all 1. The array must not be changed afterwards.
+     * @return The new graph, which shares everything but its weights with this one.
+     */
+    CompactGraph withFactors(double[] factors) {
+        return new CompactGraph(this, weighting, factors);
+    }
+
+    /**
+     * Returns a graph that is the same as this one, with the same factors, but whose edges cost
+     * what the given weighting says.
+     */
+    CompactGraph withWeighting(Router.Weighting weighting) {
+        return new CompactGraph(this, weighting, factors);
+    }
+
+    /** Returns the number of vertices in the graph. */
+    int size() {
+        return ids.length;
+    }
+
+    /** Returns the number of directed edges in the graph, i.e. twice the number of roads. */
+    int edgeCount() {
+        return targets.length;
+    }
+
+    /**
+     * Returns the dense index of the vertex with the given OSM identifier.
+     * @param id The OSM identifier.
+     * @return The index of the vertex, or -1 if it is not part of the routable graph.
+     */
+    int index(long id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i < 0 ? -1 : i;
+    }
+
+    long id(int v) {
+        return ids[v];
+    }
+
+    double lon(int v) {
+        return lons[v];
+    }
+
+    double lat(int v) {
+        return lats[v];
+    }
+
+    /** Returns the index of the first edge leaving v. */
+    int firstEdge(int v) {
+        return offsets[v];
+    }
+
+    /** Returns one past the index of the last edge leaving v. */
+    int endEdge(int v) {
+        return offsets[v + 1];
+    }
+
+    int target(int e) {
+        return targets[e];
+    }
+
+    /**
+     * Returns the weight of edge e, which is its cost unless its weight has been changed, and
+     * infinity if it is closed.
+     */
+    double weight(int e) {
+        return weights[e];
+    }
+
+    /**
+     * Returns the cost of edge e before any change to its weight: its length in miles, or its
+     * time in seconds when the graph is weighted by time.
+     */
+    double cost(int e) {
+        return costs[e];
+    }
+
+    /** Returns the length of edge e in miles, whatever its weight is. */
+    double length(int e) {
+        return lengths[e];
+    }
+
+    /** Returns the time it takes to drive edge e in seconds, whatever its weight is. */
+    double time(int e) {
+        return times[e];
+    }
+
+    /** Returns what the cost of every edge is. */
+    Router.Weighting weighting() {
+        return weighting;
+    }
+
+    /**
+     * Returns the least cost of any edge per mile of its length, which is 1 when the graph is
+     * weighted by distance. Times the great-circle distance between two vertices, it is a
+     * consistent lower bound on the weight of any path between them.
+     */
+    double costPerMile() {
+        return costPerMile;
+    }
+
+    /**
+     * Returns whether the weight of any edge differs from its cost, so that structures
+     * precomputed from costs give only lower bounds.
+     */
+    boolean hasChangedWeights() {
+        return weights != costs;
+    }
+
+    /** Returns the name of the street edge e belongs to. */
+    String street(int e) {
+        return streetNames[streets[e]];
+    }
+
+    /**
+     * Returns the street edge e belongs to as an index into the street dictionary. Two edges
+     * are on the same street exactly when their street ids are equal.
+     */
+    int streetId(int e) {
+        return streets[e];
+    }
+
+    /** Returns the name of a street in the dictionary. */
+    String streetName(int street) {
+        return streetNames[street];
+    }
+
+    /** Returns the number of distinct street names. */
+    int streetCount() {
+        return streetNames.length;
+    }
+
+    /**
+     * Returns the highway class of edge e, as an index into GraphBuildingHandler.HIGHWAY_TYPES,
+     * or -1 if it is not known.
+     */
+    int highway(int e) {
+        return highways[e];
+    }
+
+    /** Returns the speed limit of edge e in miles per hour, or 0 if it is not tagged. */
+    int maxspeed(int e) {
+        return maxspeeds[e] & 0xFF;
+    }
+
+    /**
+     * Returns the speed edge e is driven at in miles per hour: its speed limit, or the usual
+     * speed on its highway class if it has none.
+     */
+    double speed(int e) {
+        int maxspeed = maxspeeds[e] & 0xFF;
+        return maxspeed > 0 ? maxspeed : GraphBuildingHandler.defaultSpeed(highways[e]);
+    }
+
+    /** Returns the number of forbidden turns. */
+    int forbiddenTurnCount() {
+        return forbiddenTurns.length;
+    }
+
+    /** Returns the i-th forbidden turn, as back << 32 | out. */
+    long forbiddenTurn(int i) {
+        return forbiddenTurns[i];
+    }
+
+    /**
+     * Returns whether a restriction forbids a turn.
+     * @param back The edge from the vertex the turn is made at back along the road it arrives by.
+     * @param out The edge the turn leaves by.
+     */
+    boolean isForbiddenTurn(int back, int out) {
+        return Arrays.binarySearch(forbiddenTurns, (long) back << 32 | out) >= 0;
+    }
+
+    /**
+     * Returns the last edge from v to w, matching the old behaviour of a per-node street map in
+     * which a later way overwrote an earlier one for the same pair of vertices.
+     * @return The edge index, or -1 if v and w are not adjacent.
+     */
+    int findEdge(int v, int w) {
+        for (int e = offsets[v + 1] - 1; e >= offsets[v]; e -= 1) {
+            if (targets[e] == w) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the edge that goes the opposite way to an edge leaving v. Parallel roads between
+     * the same two vertices are paired up in the order they were added, the order both ends
+     * store them in, so unlike findEdge this gives back the same road when there are several.
+     * @throws IllegalStateException If the edge has no reverse, which no two-way road lacks.
+     */
+    int reverse(int v, int e) {
+        int w = targets[e];
+        int rank = 0;
+        for (int f = offsets[v]; f < e; f += 1) {
+            if (targets[f] == w) {
+                rank += 1;
+            }
+        }
+        for (int f = offsets[w]; f < offsets[w + 1]; f += 1) {
+            if (targets[f] == v) {
+                if (rank == 0) {
+                    return f;
+                }
+                rank -= 1;
+            }
+        }
+        throw new IllegalStateException("Edge " + e + " has no reverse edge.");
+    }
+
+    /** Returns the OSM identifiers of all vertices, in increasing order. */
+    Iterable<Long> vertexIds() {
+        return () -> new IdIterator(0, ids.length, null);
+    }
+
+    /** Returns the OSM identifiers of the neighbors of v, in the order the edges were added. */
+    Iterable<Long> neighborIds(int v) {
+        return () -> new IdIterator(offsets[v], offsets[v + 1], targets);
+    }
+
+    /**
+     * Iterates over a range of either vertices or edges, boxing only the identifier handed out.
+     * If indirect is non-null, positions are edges and are translated through it to vertices.
+     */
+    private class IdIterator implements Iterator<Long> {
+        private int position;
+        private final int end;
+        private final int[] indirect;
+
+        private IdIterator(int start, int end, int[] indirect) {
+            this.position = start;
+            this.end = end;
+            this.indirect = indirect;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < end;
+        }
+
+        @Override
+        public Long next() {
+            if (position >= end) {
+                throw new NoSuchElementException();
+            }
+            int v = indirect == null ? position : indirect[position];
+            position += 1;
+            return ids[v];
+        }
+    }
+}
@@ -0,0 +1,1000 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * A contraction hierarchy over the routable graph, for answering shortest path queries by
+ * searching only a few hundred vertices. Vertices are contracted one at a time, least important
+ * first: contracting a vertex removes it from the remaining graph and adds a shortcut between two
+ * of its neighbors whenever the path through it is the only shortest path between them. The rank
+ * of a vertex is the order it was contracted in, and every shortest path has an equally short
+ * path in the hierarchy that first only goes up in rank and then only goes down.
+ *
+ * All roads are two-way, so the hierarchy is undirected and stores every edge once, at its lower
+ * ranked end. A query runs Dijkstra upwards from both ends and unpacks the shortcuts of the best
+ * meeting point back into the vertices of the graph.
+ *
+ * Preprocessing contracts independent sets of vertices in rounds: every remaining vertex whose
+ * priority is lower than that of all remaining vertices within two edges of it. The witness
+ * searches of the vertices in a round are run in parallel, and treat all of the round's vertices
+ * as already removed, so that no two of them rely on each other for a witness.
+ *
+ * @variable rank: The contraction order of every vertex.
+ * @variable offsets, targets: The upward edges of every vertex in CSR form, so the edges of v are
+ * targets[offsets[v]] up to (but not including) targets[offsets[v + 1]].
+ * @variable weights: The cost of every upward edge, in miles or in seconds as the graph the
+ * hierarchy was built from is weighted.
+ * @variable middles: The vertex a shortcut bypasses, or -1 for an edge of the graph.
+ * @variable fingerprint: Identifies the graph the hierarchy was built for.
+ */
+final class ContractionHierarchy {
+    /** Identifies a hierarchy file; the bytes spell "BRCH". */
+    static final int MAGIC = 0x42524348;
+    /** Bumped whenever the layout changes, so that stale files are rebuilt. */
+    static final int VERSION = 1;
+    /** Suffix appended to the OSM file path to find its hierarchy. */
+    static final String SUFFIX = ".ch";
+    private static final int HEADER_BYTES = 32;
+    /** Witness searches give up after settling this many vertices, and add the shortcut. */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+    /**
+     * The vertices the witness searches estimating a priority may settle between them, spread
+     * over the neighbors of the vertex but never fewer than PRIORITY_SETTLE_MIN each. Estimates
+     * only decide the order, so cheap ones that miss a witness now and then are worth it.
+     */
+    private static final int PRIORITY_SETTLE_BUDGET = 500;
+    private static final int PRIORITY_SETTLE_MIN = 5;
+
+    private final int[] rank;
+    private final int[] offsets;
+    private final int[] targets;
+    private final double[] weights;
+    private final int[] middles;
+    private final long fingerprint;
+
+    private ContractionHierarchy(int[] rank, int[] offsets, int[] targets, double[] weights,
+                                 int[] middles, long fingerprint) {
+        this.rank = rank;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.middles = middles;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Returns where the hierarchy of the given OSM file for a weighting lives. The hierarchy by
+     * time has ".time" before the suffix.
+     */
+    static File fileFor(String dbPath, Router.Weighting weighting) {
+        return new File(dbPath + (weighting == Router.Weighting.TIME ? ".time" : "") + SUFFIX);
+    }
+
+    /** Returns the number of upward edges, graph edges and shortcuts together. */
+    int edgeCount() {
+        return targets.length;
+    }
+
+    /** Returns the number of shortcuts added by contraction. */
+    int shortcutCount() {
+        int shortcuts = 0;
+        for (int middle : middles) {
+            if (middle >= 0) {
+                shortcuts += 1;
+            }
+        }
+        return shortcuts;
+    }
+
+    int rank(int v) {
+        return rank[v];
+    }
+
+    /**
+     * Returns a value that changes whenever the vertices, edges or edge costs of the graph do, so
+     * that a hierarchy read from a file can be checked against the graph and weighting it is used
+     * with.
+     */
+    static long fingerprint(CompactGraph graph) {
+        long hash = graph.size() * 31L + graph.edgeCount();
+        for (int v = 0; v < graph.size(); v += 1) {
+            hash = hash * 1000003 + graph.id(v);
+            hash = hash * 1000003 + Double.doubleToLongBits(graph.lon(v));
+            hash = hash * 1000003 + Double.doubleToLongBits(graph.lat(v));
+            hash = hash * 1000003 + graph.firstEdge(v);
+        }
+        for (int e = 0; e < graph.edgeCount(); e += 1) {
+            hash = hash * 1000003 + graph.target(e);
+            hash = hash * 1000003 + Double.doubleToLongBits(graph.cost(e));
+        }
+        return hash;
+    }
+
+    /**
+     * Contracts every vertex of a graph, weighting each edge by its cost: its great-circle length,
+     * or its time when the graph is weighted by time.
+     * @param graph The graph to contract.
+     * @return The hierarchy.
+     */
+    static ContractionHierarchy build(CompactGraph graph) {
+        double[] costs = new double[graph.edgeCount()];
+        for (int e = 0; e < costs.length; e += 1) {
+            costs[e] = graph.cost(e);
+        }
+        return new Builder(graph, costs).build();
+    }
+
+    /**
+     * Finds the shortest path between two vertices.
+     * @param start The vertex to start from.
+     * @param end The vertex to reach.
+     * @param stats The counters to add to, or null.
+     * @return The vertices on the shortest path from start to end, or an empty array if there is
+     * none.
+     */
+    int[] route(int start, int end, Router.SearchStats stats) {
+        SearchWorkspace workspace = SearchWorkspace.forThread(rank.length);
+        SearchWorkspace.Side up = workspace.forward();
+        SearchWorkspace.Side down = workspace.backward();
+        up.reach(start, 0, -1);
+        up.fringe.push(start, 0);
+        down.reach(end, 0, -1);
+        down.fringe.push(end, 0);
+
+        double best = Double.POSITIVE_INFINITY;
+        int meeting = -1;
+        long settled = 0;
+        while (true) {
+            //Each side stops once nothing left on it can lead to a shorter path.
+            if (!up.fringe.isEmpty() && up.fringe.minKey() >= best) {
+                up.fringe.clear();
+            }
+            if (!down.fringe.isEmpty() && down.fringe.minKey() >= best) {
+                down.fringe.clear();
+            }
+            if (up.fringe.isEmpty() && down.fringe.isEmpty()) {
+                break;
+            }
+            boolean forward = down.fringe.isEmpty()
+                    || (!up.fringe.isEmpty() && up.fringe.minKey() <= down.fringe.minKey());
+            SearchWorkspace.Side side = forward ? up : down;
+            SearchWorkspace.Side other = forward ? down : up;
+            int current = side.fringe.poll();
+            settled += 1;
+            double through = side.distance[current] + other.distance(current);
+            if (through < best) {
+                best = through;
+                meeting = current;
+            }
+            if (stalled(current, side)) {
+                continue;
+            }
+            for (int e = offsets[current]; e < offsets[current + 1]; e += 1) {
+                int next = targets[e];
+                double length = side.distance[current] + weights[e];
+                if (length < side.distance(next)) {
+                    side.reach(next, length, current);
+                    side.previousEdge[next] = e;
+                    side.fringe.push(next, length);
+                }
+            }
+        }
+
+        if (stats != null) {
+            stats.settled += settled;
+            stats.heapOperations += up.operations() + down.operations();
+        }
+        if (meeting < 0) {
+            return new int[0];
+        }
+
+        //Collect the upward edges from the start to the meeting vertex, then down to the end.
+        IntList upwards = workspace.stack;
+        for (int v = meeting; up.previous[v] >= 0; v = up.previous[v]) {
+            upwards.add(v);
+        }
+        IntList path = workspace.path;
+        path.add(start);
+        int from = start;
+        for (int i = upwards.size() - 1; i >= 0; i -= 1) {
+            int to = upwards.get(i);
+            unpack(from, to, up.previousEdge[to], path);
+            from = to;
+        }
+        for (int v = meeting; down.previous[v] >= 0; v = down.previous[v]) {
+            unpack(v, down.previous[v], down.previousEdge[v], path);
+        }
+        return path.toArray();
+    }
+
+    /**
+     * Finds the shortest path between two vertices of a graph whose roads have changed weights
+     * since the hierarchy was built, as long as no weight is below the cost the hierarchy was
+     * built with. The hierarchy itself is left as it is: its distances are exact distances on the
+     * costs, so they are lower bounds on the weighted distances, and an A* search on the
+     * weighted graph uses them as its heuristic. Like the great-circle distance the heuristic is
+     * consistent, but it is far tighter, so unless the weights differ a lot on the way the search
+     * settles little more than the vertices of the path.
+     *
+     * The heuristic of a vertex is found from an upward search from the end, which gives the
+     * distance from the end to every vertex above it, and the best way upwards from the vertex to
+     * one of those, computed only for the vertices the search reaches and remembered for the rest
+     * of the search, as in the CH-potentials of Strasser and Zeitz.
+     * @param graph The graph with the current weights, weighted the way the hierarchy was built.
+     * @param start The vertex to start from.
+     * @param end The vertex to reach.
+     * @param stats The counters to add to, or null.
+     * @return The vertices on the shortest path from start to end, or an empty array if there is
+     * none.
+     */
+    int[] routeWeighted(CompactGraph graph, int start, int end, Router.SearchStats stats) {
+        SearchWorkspace workspace = SearchWorkspace.forThread(rank.length);
+        SearchWorkspace.Side search = workspace.forward();
+        SearchWorkspace.Side toEnd = workspace.backward();
+        IntList stack = workspace.stack;
+        //The distances from the end upwards, which toEnd keeps as the distances it reached.
+        toEnd.reach(end, 0, -1);
+        toEnd.fringe.push(end, 0);
+        long settled = 0;
+        while (!toEnd.fringe.isEmpty()) {
+            int current = toEnd.fringe.poll();
+            settled += 1;
+            for (int e = offsets[current]; e < offsets[current + 1]; e += 1) {
+                int next = targets[e];
+                double length = toEnd.distance[current] + weights[e];
+                if (length < toEnd.distance(next)) {
+                    toEnd.reach(next, length, current);
+                    toEnd.fringe.push(next, length);
+                }
+            }
+        }
+
+        IndexedMinHeap fringe = search.fringe;
+        double[] distance = search.distance;
+        double[] potential = search.potential;
+        boolean found = false;
+        double startPotential = potential(start, toEnd, stack);
+        if (startPotential < Double.POSITIVE_INFINITY) {
+            search.reach(start, 0, -1);
+            potential[start] = startPotential;
+            fringe.push(start, startPotential);
+        }
+        while (!fringe.isEmpty()) {
+            int current = fringe.poll();
+            search.settle(current);
+            settled += 1;
+            if (current == end) {
+                found = true;
+                break;
+            }
+            for (int e = graph.firstEdge(current); e < graph.endEdge(current); e += 1) {
+                int next = graph.target(e);
+                if (search.isSettled(next)) {
+                    continue;
+                }
+                double length = distance[current] + graph.weight(e);
+                if (length == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                if (!search.isReached(next)) {
+                    double nextPotential = potential(next, toEnd, stack);
+                    if (nextPotential == Double.POSITIVE_INFINITY) {
+                        //The end cannot be reached from next even on the costs.
+                        continue;
+                    }
+                    potential[next] = nextPotential;
+                } else if (length >= distance[next]) {
+                    continue;
+                }
+                search.reach(next, length, current);
+                fringe.push(next, length + potential[next]);
+            }
+        }
+
+        if (stats != null) {
+            stats.settled += settled;
+            stats.heapOperations += search.operations() + toEnd.operations();
+        }
+        return found ? Router.path(search.previous, end) : new int[0];
+    }
+
+    /**
+     * Returns the length of the shortest path from v to the end of a search on the costs the
+     * hierarchy was built with: the shortest way up from v to a vertex the upward search from the
+     * end reached, plus the distance from there to the end. Every vertex whose value is known is
+     * marked settled on toEnd, with its value as its potential, so each is only computed once.
+     * @param v The vertex.
+     * @param toEnd The upward search from the end.
+     * @param stack A list to work in, which is cleared.
+     */
+    private double potential(int v, SearchWorkspace.Side toEnd, IntList stack) {
+        if (toEnd.isSettled(v)) {
+            return toEnd.potential[v];
+        }
+        //The upward edges form a DAG, so the values are computed depth first, higher vertices
+        //before lower ones.
+        stack.clear();
+        stack.add(v);
+        while (stack.size() > 0) {
+            int u = stack.get(stack.size() - 1);
+            if (toEnd.isSettled(u)) {
+                stack.removeLast();
+                continue;
+            }
+            boolean ready = true;
+            for (int e = offsets[u]; e < offsets[u + 1]; e += 1) {
+                if (!toEnd.isSettled(targets[e])) {
+                    stack.add(targets[e]);
+                    ready = false;
+                }
+            }
+            if (ready) {
+                double best = toEnd.distance(u);
+                for (int e = offsets[u]; e < offsets[u + 1]; e += 1) {
+                    best = Math.min(best, weights[e] + toEnd.potential[targets[e]]);
+                }
+                toEnd.potential[u] = best;
+                toEnd.settle(u);
+                stack.removeLast();
+            }
+        }
+        return toEnd.potential[v];
+    }
+
+    /**
+     * Finds the shortest distance from every one of a set of sources to every one of a set of
+     * targets, with the bucket algorithm of Knopp et al. An upward search from every target
+     * leaves a note in a bucket at every vertex it settles, saying which target it came from and
+     * how far away that is. An upward search from every source then meets all targets in the
+     * buckets of the vertices it settles, so each side needs only one search per point rather
+     * than one per pair. The searches on each side run in parallel.
+     * @param sources The vertices to start from.
+     * @param targets The vertices to reach.
+     * @return The distances, row by row: the distance from sources[i] to targets[j] is at
+     * [i * targets.length + j], and infinite if there is no path.
+     */
+    double[] distances(int[] sources, int[] targets) {
+        int n = rank.length;
+        //The search space of every target, as its vertices and their distances from the target.
+        int[][] spaceVertices = new int[targets.length][];
+        double[][] spaceDistances = new double[targets.length][];
+        IntStream.range(0, targets.length).parallel().forEach(j -> {
+            SearchWorkspace workspace = SearchWorkspace.forThread(n);
+            SearchWorkspace.Side side = workspace.forward();
+            IntList settled = workspace.path;
+            searchUpwards(targets[j], side, settled);
+            spaceVertices[j] = settled.toArray();
+            spaceDistances[j] = new double[settled.size()];
+            for (int k = 0; k < settled.size(); k += 1) {
+                spaceDistances[j][k] = side.distance[settled.get(k)];
+            }
+        });
+
+        //Sort the notes into buckets by vertex, in CSR form.
+        int[] bucketOffsets = new int[n + 1];
+        for (int[] space : spaceVertices) {
+            for (int v : space) {
+                bucketOffsets[v + 1] += 1;
+            }
+        }
+        for (int v = 0; v < n; v += 1) {
+            bucketOffsets[v + 1] += bucketOffsets[v];
+        }
+        int[] bucketTargets = new int[bucketOffsets[n]];
+        double[] bucketDistances = new double[bucketOffsets[n]];
+        int[] fill = Arrays.copyOf(bucketOffsets, n);
+        for (int j = 0; j < targets.length; j += 1) {
+            for (int k = 0; k < spaceVertices[j].length; k += 1) {
+                int v = spaceVertices[j][k];
+                bucketTargets[fill[v]] = j;
+                bucketDistances[fill[v]] = spaceDistances[j][k];
+                fill[v] += 1;
+            }
+        }
+
+        double[] distances = new double[sources.length * targets.length];
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        IntStream.range(0, sources.length).parallel().forEach(i -> {
+            SearchWorkspace workspace = SearchWorkspace.forThread(n);
+            SearchWorkspace.Side side = workspace.forward();
+            IntList settled = workspace.path;
+            searchUpwards(sources[i], side, settled);
+            int row = i * targets.length;
+            for (int k = 0; k < settled.size(); k += 1) {
+                int v = settled.get(k);
+                double distance = side.distance[v];
+                for (int b = bucketOffsets[v]; b < bucketOffsets[v + 1]; b += 1) {
+                    int cell = row + bucketTargets[b];
+                    distances[cell] = Math.min(distances[cell], distance + bucketDistances[b]);
+                }
+            }
+        });
+        return distances;
+    }
+
+    /**
+     * Finds the same table as distances, on a graph whose roads have changed weights since the
+     * hierarchy was built, with the CH-potentials of routeWeighted extended to many targets. The
+     * potential of a vertex is its distance on the costs to the nearest target, a lower bound on
+     * its weighted distance to every target, and each source runs an A* search with it on the
+     * weighted graph until it has settled every target. The potential is consistent, so every
+     * target is settled at its distance, and the search never enters a vertex from which no
+     * target can be reached, nor settles one from which even the nearest target is farther than
+     * the farthest target is from the source. The searches from the sources run in parallel.
+     * @param graph The graph with the current weights, weighted the way the hierarchy was built.
+     * @param sources The vertices to start from.
+     * @param targets The vertices to reach.
+     * @return The distances, laid out as those of distances are.
+     */
+    double[] distancesWeighted(CompactGraph graph, int[] sources, int[] targets) {
+        int n = rank.length;
+        double[] toTargets = distancesToNearest(targets);
+        int[] sortedTargets = Arrays.stream(targets).sorted().distinct().toArray();
+        double[] distances = new double[sources.length * targets.length];
+        IntStream.range(0, sources.length).parallel().forEach(i -> {
+            SearchWorkspace.Side search = SearchWorkspace.forThread(n).forward();
+            IndexedMinHeap fringe = search.fringe;
+            double[] distance = search.distance;
+            int left = sortedTargets.length;
+            if (toTargets[sources[i]] < Double.POSITIVE_INFINITY) {
+                search.reach(sources[i], 0, -1);
+                fringe.push(sources[i], toTargets[sources[i]]);
+            }
+            while (!fringe.isEmpty() && left > 0) {
+                int current = fringe.poll();
+                search.settle(current);
+                if (Arrays.binarySearch(sortedTargets, current) >= 0) {
+                    left -= 1;
+                }
+                for (int e = graph.firstEdge(current); e < graph.endEdge(current); e += 1) {
+                    int next = graph.target(e);
+                    double length = distance[current] + graph.weight(e);
+                    if (search.isSettled(next) || length == Double.POSITIVE_INFINITY
+                            || toTargets[next] == Double.POSITIVE_INFINITY
+                            || length >= search.distance(next)) {
+                        continue;
+                    }
+                    search.reach(next, length, current);
+                    fringe.push(next, length + toTargets[next]);
+                }
+            }
+            for (int j = 0; j < targets.length; j += 1) {
+                distances[i * targets.length + j] = search.isSettled(targets[j])
+                        ? distance[targets[j]] : Double.POSITIVE_INFINITY;
+            }
+        });
+        return distances;
+    }
+
+    /**
+     * Returns the distance on the costs from every vertex to the nearest of a set of vertices. An
+     * upward search from all of them at once finds it for the vertices above them, and
+     * the rest take the best way up to one of those, as potential does, here for every vertex in
+     * one pass from the highest ranked down.
+     */
+    private double[] distancesToNearest(int[] ends) {
+        int n = rank.length;
+        SearchWorkspace.Side up = SearchWorkspace.forThread(n).forward();
+        for (int target : ends) {
+            if (!up.isReached(target)) {
+                up.reach(target, 0, -1);
+                up.fringe.push(target, 0);
+            }
+        }
+        while (!up.fringe.isEmpty()) {
+            int current = up.fringe.poll();
+            for (int e = offsets[current]; e < offsets[current + 1]; e += 1) {
+                double length = up.distance[current] + weights[e];
+                if (length < up.distance(targets[e])) {
+                    up.reach(targets[e], length, current);
+                    up.fringe.push(targets[e], length);
+                }
+            }
+        }
+        int[] byRank = new int[n];
+        for (int v = 0; v < n; v += 1) {
+            byRank[rank[v]] = v;
+        }
+        double[] result = new double[n];
+        for (int r = n - 1; r >= 0; r -= 1) {
+            int v = byRank[r];
+            double best = up.distance(v);
+            for (int e = offsets[v]; e < offsets[v + 1]; e += 1) {
+                best = Math.min(best, weights[e] + result[targets[e]]);
+            }
+            result[v] = best;
+        }
+        return result;
+    }
+
+    /**
+     * Runs Dijkstra upwards from a vertex until the fringe is empty.
+     * @param source The vertex to start from.
+     * @param side The side of a fresh workspace to search in.
+     * @param settled Receives the vertices settled and not stalled, the only ones whose distance
+     *                may lie on a shortest path.
+     */
+    private void searchUpwards(int source, SearchWorkspace.Side side, IntList settled) {
+        side.reach(source, 0, -1);
+        side.fringe.push(source, 0);
+        while (!side.fringe.isEmpty()) {
+            int current = side.fringe.poll();
+            if (stalled(current, side)) {
+                continue;
+            }
+            settled.add(current);
+            for (int e = offsets[current]; e < offsets[current + 1]; e += 1) {
+                int next = targets[e];
+                double length = side.distance[current] + weights[e];
+                if (length < side.distance(next)) {
+                    side.reach(next, length, current);
+                    side.fringe.push(next, length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether a search can skip relaxing the edges of v, because a higher ranked neighbor
+     * it has already reached is a shorter way to v than the one it came by. Such a v is not on any
+     * shortest path that goes only upwards, and neither is anything reached through it.
+     */
+    private boolean stalled(int v, SearchWorkspace.Side side) {
+        double distance = side.distance[v];
+        for (int e = offsets[v]; e < offsets[v + 1]; e += 1) {
+            if (side.distance(targets[e]) + weights[e] < distance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appends the vertices of the graph that an edge of the hierarchy stands for, from just after
+     * a to b.
+     * @param a The vertex the edge is traversed from.
+     * @param b The vertex the edge is traversed to.
+     * @param e The edge between a and b, stored at whichever of them has the lower rank.
+     * @param path The list to append to.
+     */
+    private void unpack(int a, int b, int e, IntList path) {
+        int middle = middles[e];
+        if (middle < 0) {
+            path.add(b);
+            return;
+        }
+        unpack(a, middle, upwardEdge(middle, a), path);
+        unpack(middle, b, upwardEdge(middle, b), path);
+    }
+
+    /** Returns the upward edge from v to w, which must exist. */
+    private int upwardEdge(int v, int w) {
+        for (int e = offsets[v]; e < offsets[v + 1]; e += 1) {
+            if (targets[e] == w) {
+                return e;
+            }
+        }
+        throw new IllegalStateException("Missing edge " + v + " - " + w + " in hierarchy");
+    }
+
+    /**
+     * Writes the hierarchy to a file, with all numbers big-endian:
+     * <pre>
+     *   header    magic, version, vertex count n, edge count m, graph fingerprint, padding
+     *   edges     double[m] weights, int[n] rank, int[n + 1] offsets, int[m] targets,
+     *             int[m] middles
+     * </pre>
+     * The file is written next to its place and then moved there, as GraphSnapshot does, so
+     * that an interrupted write never leaves part of a hierarchy behind.
+     * @param file The file to write to.
+     */
+    void write(File file) throws IOException {
+        int n = rank.length;
+        int m = targets.length;
+        File temp = GraphSnapshot.tempFileFor(file);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(m);
+            out.writeLong(fingerprint);
+            out.writeLong(0);
+            for (double weight : weights) {
+                out.writeDouble(weight);
+            }
+            for (int r : rank) {
+                out.writeInt(r);
+            }
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            for (int target : targets) {
+                out.writeInt(target);
+            }
+            for (int middle : middles) {
+                out.writeInt(middle);
+            }
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+        GraphSnapshot.replace(temp, file);
+    }
+
+    /**
+     * Reads a hierarchy written by write, if it was built for the given graph.
+     * @param file The file to read.
+     * @param graph The graph the hierarchy will be used with.
+     * @return The hierarchy, or null if the file is missing, of another version, or was built
+     * for a different graph.
+     * @throws IOException If the file cannot be read, or is larger than GraphSnapshot.MAX_BYTES
+     * or shorter than its header says.
+     */
+    static ContractionHierarchy read(File file, CompactGraph graph) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > GraphSnapshot.MAX_BYTES || channel.size() < HEADER_BYTES) {
+                throw new IOException("Hierarchy file of " + channel.size() + " bytes: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        int n = buffer.getInt();
+        int m = buffer.getInt();
+        long fingerprint = buffer.getLong();
+        if (n != graph.size() || fingerprint != fingerprint(graph)) {
+            return null;
+        }
+        if (m < 0 || HEADER_BYTES + 16L * m + 8L * n + 4 > buffer.capacity()) {
+            throw new IOException("Truncated hierarchy file: " + file);
+        }
+
+        buffer.position(HEADER_BYTES);
+        double[] weights = new double[m];
+        buffer.asDoubleBuffer().get(weights);
+        buffer.position(buffer.position() + m * 8);
+        int[] rank = new int[n];
+        int[] offsets = new int[n + 1];
+        int[] targets = new int[m];
+        int[] middles = new int[m];
+        for (int[] array : new int[][]{rank, offsets, targets, middles}) {
+            buffer.asIntBuffer().get(array);
+            buffer.position(buffer.position() + array.length * 4);
+        }
+        return new ContractionHierarchy(rank, offsets, targets, weights, middles, fingerprint);
+    }
+
+    /**
+     * The state of preprocessing: the graph that remains as vertices are contracted, and the
+     * upward edges of the vertices contracted so far.
+     *
+     * @variable neighbors, lengths, bypassed: The edges of every vertex to the vertices that
+     * remain, with their lengths and the vertex a shortcut bypasses, or -1.
+     * @variable degree: The number of edges of every vertex in the remaining graph.
+     * @variable contracted: Whether every vertex has been contracted.
+     * @variable inRound: Whether every vertex is being contracted in the current round.
+     * @variable deletedNeighbors: The number of neighbors of every vertex contracted so far.
+     * @variable priority: The priority of every remaining vertex; lower is contracted first.
+     */
+    private static final class Builder {
+        private final CompactGraph graph;
+        private final int n;
+        private final int[][] neighbors;
+        private final double[][] lengths;
+        private final int[][] bypassed;
+        private final int[] degree;
+        private final boolean[] contracted;
+        private final boolean[] inRound;
+        private final int[] deletedNeighbors;
+        private final int[] priority;
+        private final int[] rank;
+        private final int[][] upTargets;
+        private final double[][] upWeights;
+        private final int[][] upMiddles;
+        private final ThreadLocal<WitnessSearch> witnesses;
+
+        private Builder(CompactGraph graph, double[] edgeLengths) {
+            this.graph = graph;
+            n = graph.size();
+            neighbors = new int[n][];
+            lengths = new double[n][];
+            bypassed = new int[n][];
+            degree = new int[n];
+            contracted = new boolean[n];
+            inRound = new boolean[n];
+            deletedNeighbors = new int[n];
+            priority = new int[n];
+            rank = new int[n];
+            upTargets = new int[n][];
+            upWeights = new double[n][];
+            upMiddles = new int[n][];
+            witnesses = ThreadLocal.withInitial(() -> new WitnessSearch(n));
+            for (int v = 0; v < n; v += 1) {
+                int size = Math.max(1, graph.endEdge(v) - graph.firstEdge(v));
+                neighbors[v] = new int[size];
+                lengths[v] = new double[size];
+                bypassed[v] = new int[size];
+            }
+            for (int v = 0; v < n; v += 1) {
+                for (int e = graph.firstEdge(v); e < graph.endEdge(v); e += 1) {
+                    if (graph.target(e) != v) {
+                        addEdge(v, graph.target(e), edgeLengths[e], -1);
+                    }
+                }
+            }
+        }
+
+        private ContractionHierarchy build() {
+            IntStream.range(0, n).parallel().forEach(v -> priority[v] = computePriority(v));
+            int next = 0;
+            List<Integer> round = new ArrayList<>();
+            while (next < n) {
+                round.clear();
+                for (int v = 0; v < n; v += 1) {
+                    if (!contracted[v] && isLocalMinimum(v)) {
+                        round.add(v);
+                        inRound[v] = true;
+                    }
+                }
+
+                int[][] shortcuts = new int[round.size()][];
+                double[][] shortcutLengths = new double[round.size()][];
+                IntStream.range(0, round.size()).parallel().forEach(i -> {
+                    WitnessSearch witness = witnesses.get();
+                    witness.findShortcuts(round.get(i), WITNESS_SETTLE_LIMIT);
+                    shortcuts[i] = witness.shortcuts.toArray();
+                    shortcutLengths[i] = Arrays.copyOf(witness.shortcutLengths,
+                            witness.shortcutCount);
+                });
+
+                boolean[] touched = new boolean[n];
+                for (int i = 0; i < round.size(); i += 1) {
+                    int v = round.get(i);
+                    rank[v] = next;
+                    next += 1;
+                    contract(v);
+                    for (int j = 0; j < degree[v]; j += 1) {
+                        touched[neighbors[v][j]] = true;
+                    }
+                    for (int j = 0; j < shortcutLengths[i].length; j += 1) {
+                        int a = shortcuts[i][2 * j];
+                        int b = shortcuts[i][2 * j + 1];
+                        addEdge(a, b, shortcutLengths[i][j], v);
+                        addEdge(b, a, shortcutLengths[i][j], v);
+                    }
+                }
+                for (int v : round) {
+                    inRound[v] = false;
+                }
+                IntStream.range(0, n).parallel().filter(v -> touched[v] && !contracted[v])
+                        .forEach(v -> priority[v] = computePriority(v));
+            }
+            return pack();
+        }
+
+        /**
+         * Returns whether v has a lower priority than every remaining vertex within two edges of
+         * it, ties going to the lower index.
+         */
+        private boolean isLocalMinimum(int v) {
+            for (int i = 0; i < degree[v]; i += 1) {
+                int w = neighbors[v][i];
+                if (before(w, v)) {
+                    return false;
+                }
+                for (int j = 0; j < degree[w]; j += 1) {
+                    int x = neighbors[w][j];
+                    if (x != v && before(x, v)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /** Returns whether v comes before w in contraction order. */
+        private boolean before(int v, int w) {
+            return priority[v] < priority[w] || (priority[v] == priority[w] && v < w);
+        }
+
+        /**
+         * Estimates how costly contracting v would be: the number of shortcuts it needs, weighted
+         * so that vertices adding few shortcuts go first, less the edges it removes, plus the
+         * number of its neighbors already contracted so that contraction spreads evenly over the
+         * graph.
+         */
+        private int computePriority(int v) {
+            WitnessSearch witness = witnesses.get();
+            witness.findShortcuts(v, Math.max(PRIORITY_SETTLE_MIN,
+                    PRIORITY_SETTLE_BUDGET / Math.max(1, degree[v])));
+            return 3 * witness.shortcutCount - degree[v] + deletedNeighbors[v];
+        }
+
+        /** Records the remaining edges of v as its upward edges and removes v from the graph. */
+        private void contract(int v) {
+            contracted[v] = true;
+            upTargets[v] = Arrays.copyOf(neighbors[v], degree[v]);
+            upWeights[v] = Arrays.copyOf(lengths[v], degree[v]);
+            upMiddles[v] = Arrays.copyOf(bypassed[v], degree[v]);
+            for (int i = 0; i < degree[v]; i += 1) {
+                int w = neighbors[v][i];
+                removeEdge(w, v);
+                deletedNeighbors[w] += 1;
+            }
+        }
+
+        /** Adds an edge from a to b, or shortens the existing one. */
+        private void addEdge(int a, int b, double length, int middle) {
+            for (int i = 0; i < degree[a]; i += 1) {
+                if (neighbors[a][i] == b) {
+                    if (length < lengths[a][i]) {
+                        lengths[a][i] = length;
+                        bypassed[a][i] = middle;
+                    }
+                    return;
+                }
+            }
+            if (degree[a] == neighbors[a].length) {
+                int capacity = degree[a] * 2;
+                neighbors[a] = Arrays.copyOf(neighbors[a], capacity);
+                lengths[a] = Arrays.copyOf(lengths[a], capacity);
+                bypassed[a] = Arrays.copyOf(bypassed[a], capacity);
+            }
+            neighbors[a][degree[a]] = b;
+            lengths[a][degree[a]] = length;
+            bypassed[a][degree[a]] = middle;
+            degree[a] += 1;
+        }
+
+        private void removeEdge(int a, int b) {
+            for (int i = 0; i < degree[a]; i += 1) {
+                if (neighbors[a][i] == b) {
+                    degree[a] -= 1;
+                    neighbors[a][i] = neighbors[a][degree[a]];
+                    lengths[a][i] = lengths[a][degree[a]];
+                    bypassed[a][i] = bypassed[a][degree[a]];
+                    return;
+                }
+            }
+        }
+
+        /** Packs the upward edges of all vertices into CSR form. */
+        private ContractionHierarchy pack() {
+            int[] offsets = new int[n + 1];
+            for (int v = 0; v < n; v += 1) {
+                offsets[v + 1] = offsets[v] + upTargets[v].length;
+            }
+            int m = offsets[n];
+            int[] targets = new int[m];
+            double[] weights = new double[m];
+            int[] middles = new int[m];
+            for (int v = 0; v < n; v += 1) {
+                System.arraycopy(upTargets[v], 0, targets, offsets[v], upTargets[v].length);
+                System.arraycopy(upWeights[v], 0, weights, offsets[v], upWeights[v].length);
+                System.arraycopy(upMiddles[v], 0, middles, offsets[v], upMiddles[v].length);
+            }
+            return new ContractionHierarchy(rank, offsets, targets, weights, middles,
+                    fingerprint(graph));
+        }
+
+        /**
+         * A bounded Dijkstra over the remaining graph, reused by one thread for all of its witness
+         * searches. Only the vertices a search reached are reset before the next one.
+         */
+        private final class WitnessSearch {
+            private final IndexedMinHeap fringe;
+            private final double[] distance;
+            private final boolean[] target;
+            private final IntList reached = new IntList();
+            private final IntList shortcuts = new IntList();
+            private double[] shortcutLengths = new double[16];
+            private int shortcutCount;
+
+            private WitnessSearch(int n) {
+                fringe = new IndexedMinHeap(n);
+                distance = new double[n];
+                target = new boolean[n];
+                Arrays.fill(distance, Double.POSITIVE_INFINITY);
+            }
+
+            /**
+             * Finds the shortcuts contracting v needs: for every pair of its neighbors u and w,
+             * one of length(u, v) + length(v, w) unless a path at most that long avoids v and
+             * the other vertices of the current round. The pairs go to shortcuts and their lengths
+             * to shortcutLengths.
+             * @param v The vertex to contract.
+             * @param settleLimit The number of vertices each search settles before giving up.
+             */
+            private void findShortcuts(int v, int settleLimit) {
+                shortcuts.clear();
+                shortcutCount = 0;
+                int[] adjacent = neighbors[v];
+                double[] adjacentLengths = lengths[v];
+                for (int i = 0; i < degree[v]; i += 1) {
+                    int u = adjacent[i];
+                    double limit = 0;
+                    for (int j = i + 1; j < degree[v]; j += 1) {
+                        limit = Math.max(limit, adjacentLengths[i] + adjacentLengths[j]);
+                        target[adjacent[j]] = true;
+                    }
+                    if (limit > 0) {
+                        search(u, v, limit, degree[v] - i - 1, settleLimit);
+                    }
+                    for (int j = i + 1; j < degree[v]; j += 1) {
+                        double through = adjacentLengths[i] + adjacentLengths[j];
+                        target[adjacent[j]] = false;
+                        if (distance[adjacent[j]] > through) {
+                            shortcuts.add(u);
+                            shortcuts.add(adjacent[j]);
+                            if (shortcutCount == shortcutLengths.length) {
+                                shortcutLengths = Arrays.copyOf(shortcutLengths, shortcutCount * 2);
+                            }
+                            shortcutLengths[shortcutCount] = through;
+                            shortcutCount += 1;
+                        }
+                    }
+                    reset();
+                }
+            }
+
+            /**
+             * Runs Dijkstra from source without passing through skip, until the given number of
+             * targets is settled, the next vertex is further than limit, or settleLimit vertices
+             * are settled.
+             */
+            private void search(int source, int skip, double limit, int targets, int settleLimit) {
+                distance[source] = 0;
+                reached.add(source);
+                fringe.push(source, 0);
+                int settled = 0;
+                while (!fringe.isEmpty() && targets > 0 && settled < settleLimit) {
+                    if (fringe.minKey() > limit) {
+                        break;
+                    }
+                    int current = fringe.poll();
+                    settled += 1;
+                    if (target[current]) {
+                        targets -= 1;
+                    }
+                    for (int i = 0; i < degree[current]; i += 1) {
+                        int next = neighbors[current][i];
+                        if (next == skip || inRound[next]) {
+                            continue;
+                        }
+                        double length = distance[current] + lengths[current][i];
+                        if (length < distance[next]) {
+                            if (distance[next] == Double.POSITIVE_INFINITY) {
+                                reached.add(next);
+                            }
+                            distance[next] = length;
+                            fringe.push(next, length);
+                        }
+                    }
+                }
+            }
+
+            private void reset() {
+                for (int i = 0; i < reached.size(); i += 1) {
+                    distance[reached.get(i)] = Double.POSITIVE_INFINITY;
+                }
+                reached.clear();
+                fringe.clear();
+            }
+        }
+    }
+}
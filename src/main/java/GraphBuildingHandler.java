@@ -14,27 +14,105 @@ public class GraphBuildingHandler extends DefaultHandler {
      * Only allow for non-service roads; this prevents going on pedestrian streets as much as
      * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
      * roads, but in practice we walk all over them with such impunity that we forget cars can
-     * actually drive on them.
+     * actually drive on them. The position of a type in HIGHWAY_TYPES is its highway class, which
+     * is what the graph stores for every edge.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
-            ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
-                    "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
-                    "secondary_link", "tertiary_link"));
+    static final String[] HIGHWAY_TYPES = {"motorway", "trunk", "primary", "secondary", "tertiary",
+        "unclassified", "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
+        "secondary_link", "tertiary_link"};
+    static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList(HIGHWAY_TYPES));
+    /**
+     * The speed roads of every highway class are driven at when they have no maxspeed tag, in
+     * miles per hour, in the order of HIGHWAY_TYPES.
+     */
+    private static final int[] DEFAULT_SPEEDS = {65, 55, 40, 35, 30, 25, 25, 10, 45, 40, 30, 30,
+        25};
+    /** The speed of roads of an unknown highway class, in miles per hour. */
+    private static final int UNKNOWN_SPEED = 25;
+    private static final double MILES_PER_KILOMETER = 0.621371;
+    private static final double MILES_PER_NAUTICAL_MILE = 1.150779;
     private String activeState = "";
-    private final GraphDB g;
+    private final OsmSink g;
     private Map<String, String> node;
     private ArrayList<String> edgeList = new ArrayList<>();
     private boolean end = false;
     private boolean name = false;
+    private String highway;
+    private String maxspeed;
+    private long wayId;
+    private boolean restriction = false;
+    private String restrictionType;
+    private long restrictionFrom;
+    private long restrictionVia;
+    private long restrictionTo;
 
     /**
      * Create a new GraphBuildingHandler.
-     * @param g The graph to populate with the XML data.
+     * @param g The graph, or other sink, to populate with the XML data.
      */
-    public GraphBuildingHandler(GraphDB g) {
+    public GraphBuildingHandler(OsmSink g) {
         this.g = g;
     }
 
+    /**
+     * Returns the highway class of a highway tag value.
+     * @param highway The value of the highway tag, possibly null.
+     * @return The index of the type in HIGHWAY_TYPES, or -1 if it is not an allowed type.
+     */
+    static int highwayClass(String highway) {
+        if (highway != null) {
+            for (int i = 0; i < HIGHWAY_TYPES.length; i += 1) {
+                if (HIGHWAY_TYPES[i].equals(highway)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the speed roads of a highway class are driven at when they have no maxspeed tag.
+     * @param highwayClass The index of the type in HIGHWAY_TYPES, or -1 if it is not known.
+     * @return The speed in miles per hour.
+     */
+    static int defaultSpeed(int highwayClass) {
+        return highwayClass < 0 ? UNKNOWN_SPEED : DEFAULT_SPEEDS[highwayClass];
+    }
+
+    /**
+     * Returns the speed limit of a maxspeed tag value, which is a number of kilometers per hour,
+     * or a number followed by mph, km/h or knots. Values that are not a single speed, such as
+     * none, walk or a list of speeds, are not understood.
+     * @param maxspeed The value of the maxspeed tag, possibly null.
+     * @return The speed limit in miles per hour, rounded and at most 255, or 0 if there is none.
+     */
+    static int maxspeedMph(String maxspeed) {
+        if (maxspeed == null) {
+            return 0;
+        }
+        String value = maxspeed.trim();
+        double perUnit = MILES_PER_KILOMETER;
+        if (value.endsWith("mph")) {
+            perUnit = 1;
+            value = value.substring(0, value.length() - 3).trim();
+        } else if (value.endsWith("km/h") || value.endsWith("kmh")) {
+            value = value.substring(0, value.lastIndexOf('k')).trim();
+        } else if (value.endsWith("knots")) {
+            perUnit = MILES_PER_NAUTICAL_MILE;
+            value = value.substring(0, value.length() - 5).trim();
+        }
+        double speed;
+        try {
+            speed = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        if (!(speed > 0)) {
+            return 0;
+        }
+        return (int) Math.max(1, Math.min(255, Math.round(speed * perUnit)));
+    }
+
     /**
      * Called at the beginning of an element. Typically, you will want to handle each element in
      * here, and you may want to track the parent element.
@@ -55,17 +133,50 @@ public class GraphBuildingHandler extends DefaultHandler {
         if (qName.equals("node")) {
             activeState = "node";
 
-            //The creation of a new node as the parser finds a new node.
+            //The creation of a new node as the parser finds a new node. It is added to the graph
+            //once all of its tags have been seen.
             node = new HashMap<>();
             node.put("id", attributes.getValue("id"));
             node.put("lon", attributes.getValue("lon"));
             node.put("lat", attributes.getValue("lat"));
-            g.addNode(node);
 
 
         } else if (qName.equals("way")) {
             //The creation of a new way, or street.
             activeState = "way";
+            String id = attributes.getValue("id");
+            wayId = id == null ? -1 : Long.parseLong(id);
+
+        } else if (qName.equals("relation")) {
+            //A relation, which matters only if it turns out to be a turn restriction.
+            activeState = "relation";
+            restriction = false;
+            restrictionType = null;
+            restrictionFrom = -1;
+            restrictionVia = -1;
+            restrictionTo = -1;
+
+        } else if (activeState.equals("relation") && qName.equals("member")) {
+            //The members of a turn restriction are the from way, the via node and the to way.
+            String role = attributes.getValue("role");
+            String type = attributes.getValue("type");
+            long ref = Long.parseLong(attributes.getValue("ref"));
+            if ("from".equals(role) && "way".equals(type)) {
+                restrictionFrom = ref;
+            } else if ("via".equals(role) && "node".equals(type)) {
+                restrictionVia = ref;
+            } else if ("to".equals(role) && "way".equals(type)) {
+                restrictionTo = ref;
+            }
+
+        } else if (activeState.equals("relation") && qName.equals("tag")) {
+            String k = attributes.getValue("k");
+            String v = attributes.getValue("v");
+            if (k.equals("type")) {
+                restriction = v.equals("restriction");
+            } else if (k.equals("restriction") || k.equals("restriction:motorcar")) {
+                restrictionType = v;
+            }
 
         } else if (activeState.equals("way") && qName.equals("nd")) {
             //Creating a list of nodes that correspond to the same street, to be added later if
@@ -79,6 +190,9 @@ public class GraphBuildingHandler extends DefaultHandler {
             if (k.equals("highway")) {
                 //Making sure the way, or highway, is on the list of allowed types.
                 if (ALLOWED_HIGHWAY_TYPES.contains(v)) { end = true; }
+                highway = v;
+            } else if (k.equals("maxspeed")) {
+                maxspeed = v;
             } else if (k.equals("name")) {
                 //If there is a name for the way, add it as well.
                 name = true;
@@ -88,9 +202,7 @@ public class GraphBuildingHandler extends DefaultHandler {
         } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
                 .equals("name")) {
             //If there is a name for the particular node, add it as well.
-            g.removeNode(node.get("id"));
             node.put("name", attributes.getValue("v"));
-            g.addNode(node);
         }
 
     }
@@ -108,24 +220,43 @@ public class GraphBuildingHandler extends DefaultHandler {
      */
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
-        if (qName.equals("way")) {
+        if (qName.equals("node")) {
+            g.addNode(Long.parseLong(node.get("id")), Double.parseDouble(node.get("lon")),
+                    Double.parseDouble(node.get("lat")), node.get("name"));
+            activeState = "";
+        } else if (qName.equals("way")) {
             //Only continue if the way is on the list of allowed ways.
             if (end) {
                 //Depending on if there is a name for the way, add the way between sequential nodes according to its
                 //name. If there is no name, label it as "unknown road".
                 if (!name) {
                     for (int i = 0; i < (edgeList.size() - 1); i += 1) {
-                        g.addEdge(edgeList.get(i), edgeList.get(i + 1), "unknown road");
+                        g.addEdge(Long.parseLong(edgeList.get(i)), Long.parseLong(edgeList.get(i + 1)),
+                                "unknown road", highway, maxspeed, wayId);
                     }
                 } else {
                     for (int i = 0; i < (edgeList.size() - 2); i += 1) {
-                        g.addEdge(edgeList.get(i), edgeList.get(i + 1), edgeList.get(edgeList.size() - 1));
+                        g.addEdge(Long.parseLong(edgeList.get(i)), Long.parseLong(edgeList.get(i + 1)),
+                                edgeList.get(edgeList.size() - 1), highway, maxspeed, wayId);
                     }
                 }
             }
             edgeList = new ArrayList<>();
             end = false;
             name = false;
+            highway = null;
+            maxspeed = null;
+        } else if (qName.equals("relation")) {
+            //Only restrictions from a way onto a way at a node are supported, not via ways.
+            if (restriction && restrictionType != null && restrictionFrom >= 0
+                    && restrictionVia >= 0 && restrictionTo >= 0) {
+                if (restrictionType.startsWith("no_")) {
+                    g.addRestriction(restrictionFrom, restrictionVia, restrictionTo, false);
+                } else if (restrictionType.startsWith("only_")) {
+                    g.addRestriction(restrictionFrom, restrictionVia, restrictionTo, true);
+                }
+            }
+            activeState = "";
         }
     }
 
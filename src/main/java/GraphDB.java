@@ -1,76 +1,136 @@
-import org.xml.sax.SAXException;
-
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
 import java.util.*;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
  */
-public class GraphDB {
-    /**
-     * The creation of a private node class, in order to store important information that accompanies every single
-     * node.
-     */
-    private class Node {
-        public long iden;
-        public double lon;
-        public double lat;
-        public String name;
-        public String actualName;
-        public ArrayList<Long> neighbors;
-        public Map<Long, String> streets;
-
-        private Node(Map<String, String> newNode) {
-            iden = Long.parseLong(newNode.get("id"));
-            lon = Double.parseDouble(newNode.get("lon"));
-            lat = Double.parseDouble(newNode.get("lat"));
-            if (newNode.containsKey("name")) {
-                actualName = newNode.get("name");
-                name = newNode.get("name").replaceAll("[^A-Za-z0-9]", "").toLowerCase();
-            } else {
-                name = null;
-            }
+public class GraphDB implements OsmSink {
+    /**
+     * Loads the graph for the given OSM file. If an up-to-date binary snapshot of the file has been built with
+     * GraphSnapshotLauncher, the graph is served from that snapshot instead of parsing the file again.
+     * @param dbPath The path to the OSM file, in any format supported by OsmImporter.
+     */
+    public GraphDB(String dbPath) {
+        this(dbPath, OsmImporter.forPath(dbPath), true);
+    }
 
-            neighbors = new ArrayList<>();
-            streets = new HashMap<>();
-        }
+    /**
+     * Loads the graph for the given OSM file with the default importer for its format.
+     * @param dbPath The path to the OSM file, in any format supported by OsmImporter.
+     * @param preferSnapshot Whether an up-to-date snapshot may be used in place of the XML.
+     */
+    GraphDB(String dbPath, boolean preferSnapshot) {
+        this(dbPath, OsmImporter.forPath(dbPath), preferSnapshot);
     }
 
-    public GraphDB(String dbPath) {
+    /**
+     * Loads the graph for the given OSM file.
+     * @param dbPath The path to the OSM file.
+     * @param importer The importer used if the file has to be parsed.
+     * @param preferSnapshot Whether an up-to-date snapshot may be used in place of the XML.
+     */
+    GraphDB(String dbPath, OsmImporter importer, boolean preferSnapshot) {
+        this.dbPath = dbPath;
+        File snapshot = GraphSnapshot.snapshotFor(dbPath);
+        if (preferSnapshot && GraphSnapshot.isUpToDate(snapshot, new File(dbPath))) {
+            try {
+                GraphSnapshot.load(snapshot, this);
+                return;
+            } catch (IOException | RuntimeException e) {
+                //A snapshot that cannot be read is no reason not to serve the map: parse it instead.
+                e.printStackTrace();
+            }
+        }
+
         try {
-            File inputFile = new File(dbPath);
-            FileInputStream inputStream = new FileInputStream(inputFile);
-            // GZIPInputStream stream = new GZIPInputStream(inputStream);
-
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
-            saxParser.parse(inputStream, gbh);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            importer.importInto(new File(dbPath), this);
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
         clean();
     }
 
+    /** Creates an empty graph, to be filled in by GraphSnapshot. */
+    GraphDB() {
+    }
+
     /**
      * The main data structures that hold important information relating different names, nodes, and locations together.
-     * @variable key: A mapping of the node identifier to the Node object, after cleaning.
-     * @variable totalKey: A mapping of all nodes to the Node object, before cleaning. This is important for searching
-     * nodes, by which all nodes should be able to be returned regardless if they are connected by ways.
+     * @variable addedIds, addedLons, addedLats: Every node added so far, before cleaning, in the order they were
+     * added. This is important for searching nodes, by which all nodes should be able to be returned regardless if
+     * they are connected by ways. They are only kept while the graph is being built.
+     * @variable edgeEnds, edgeStreets, edgeHighways, edgeMaxspeeds, edgeWays: The road segments added so far, in
+     * order: the ids of the two nodes of segment i are edgeEnds[2i] and edgeEnds[2i + 1], and its speed limit is
+     * in miles per hour, or 0 if it has none. They are only kept while the graph is being built.
+     * @variable restrictions: The turn restrictions added so far, four entries each: the from way, the via node, the
+     * to way, and 1 for an only_* restriction or 0 for a no_* one. They are only kept while the graph is being
+     * built, and are then turned into the forbidden turns of compact.
+     * @variable streetIds, streetNames: The dictionary of distinct street names, so that every segment refers to its
+     * street by an int instead of holding its own copy of the name.
      * @variable nameKey: A mapping of the cleaned name to the actual name for every node.
      * @variable locationKey: A mapping of the cleaned name to a list of possible node locations that correspond to that
      * name.
+     * @variable compact: The frozen CSR form of the routable graph, built once cleaning is done. All queries on the
+     * routable graph are answered from here. Changing the weights of roads replaces it with a graph that differs only
+     * in its weights, so a query that reads it once sees one set of weights throughout.
+     * @variable timeCompact: The same graph as compact, with the same factors, but weighted by time.
+     * @variable factors: The factor every edge's cost is multiplied by to get its weight, or null while every
+     * factor is 1. It is only used under weightLock, by the threads changing weights.
+     * @variable nodeIds, nodeLons, nodeLats: The coordinates of every node, sorted by identifier. These replace the
+     * added nodes once the graph is frozen. They live off the Java heap, in direct buffers or as views into the mapped
+     * file when loaded from a snapshot, so that the heap does not grow with the number of nodes in the map.
+     * @variable nodeNames: A mapping of every named node to its cleaned name.
+     * @variable spatialIndex: A k-d tree over the vertices of compact, used to find the closest vertex to a point.
+     * @variable segmentIndex: A grid over the roads of compact, used to find the closest point on a road to a point.
+     * @variable dbPath: The OSM file the graph was loaded for, or null for a graph filled in directly.
+     * @variable hierarchy, timeHierarchy: The contraction hierarchies of compact and timeCompact, each made the
+     * first time it is needed.
+     * @variable landmarks, timeLandmarks: The ALT landmarks of compact and timeCompact, each chosen the first time
+     * they are needed.
+     * @variable turnCosts, timeTurnCosts: The costs of the turns of compact and timeCompact, each computed the first
+     * time they are needed.
+     * @variable routeCache: The routes MapServer has found on this graph, so that they are forgotten with it.
      */
-    private Map<Long, Node> key = new HashMap<>();
-    private Map<Long, Node> totalKey = new HashMap<>();
+    private long[] addedIds = new long[1024];
+    private double[] addedLons = new double[1024];
+    private double[] addedLats = new double[1024];
+    private int addedCount = 0;
+    private long[] edgeEnds = new long[1024];
+    private int[] edgeStreets = new int[512];
+    private byte[] edgeHighways = new byte[512];
+    private byte[] edgeMaxspeeds = new byte[512];
+    private long[] edgeWays = new long[512];
+    private int edgeCount = 0;
+    private long[] restrictions = new long[64];
+    private int restrictionCount = 0;
+    private Map<String, Integer> streetIds = new HashMap<>();
+    private List<String> streetNames = new ArrayList<>();
     public Map<String, String> nameKey = new HashMap<>();
     public Map<String, List<Long>> locationKey= new HashMap<>();
+    private volatile CompactGraph compact;
+    private volatile CompactGraph timeCompact;
+    private double[] factors;
+    private final Object weightLock = new Object();
+    private LongBuffer nodeIds;
+    private DoubleBuffer nodeLons;
+    private DoubleBuffer nodeLats;
+    private Map<Long, String> nodeNames = new HashMap<>();
+    private SpatialIndex spatialIndex;
+    private SegmentIndex segmentIndex;
+    private String dbPath;
+    private volatile ContractionHierarchy hierarchy;
+    private volatile ContractionHierarchy timeHierarchy;
+    private volatile Landmarks landmarks;
+    private volatile Landmarks timeLandmarks;
+    private volatile TurnCosts turnCosts;
+    private volatile TurnCosts timeTurnCosts;
+    private final RouteCache routeCache = new RouteCache(RouteCache.CAPACITY, RouteCache.TTL_NANOS);
 
     /**
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
@@ -82,54 +142,529 @@ public class GraphDB {
     }
 
     public void addNode(Map<String, String> input) {
-        Node node = new Node(input);
-        key.put(node.iden, node);
-        totalKey.put(node.iden, node);
-
-        if (node.name != null) {
-            nameKey.put(node.name, node.actualName);
+        addNode(Long.parseLong(input.get("id")), Double.parseDouble(input.get("lon")),
+                Double.parseDouble(input.get("lat")), input.get("name"));
+    }
 
-            if (!locationKey.keySet().contains(node.name)) {
-                List<Long> locations = new ArrayList<>();
-                locations.add(node.iden);
-                locationKey.put(node.name, locations);
-            } else {
-                List<Long> locations = locationKey.get(node.name);
-                locations.add(node.iden);
-            }
+    /**
+     * Adds a node to the graph, replacing any earlier node with the same id.
+     * @param id The OSM identifier of the node.
+     * @param lon The longitude of the node.
+     * @param lat The latitude of the node.
+     * @param name The name of the node, or null if it has none.
+     */
+    @Override
+    public void addNode(long id, double lon, double lat, String name) {
+        if (addedCount == addedIds.length) {
+            addedIds = Arrays.copyOf(addedIds, addedCount * 2);
+            addedLons = Arrays.copyOf(addedLons, addedCount * 2);
+            addedLats = Arrays.copyOf(addedLats, addedCount * 2);
+        }
+        addedIds[addedCount] = id;
+        addedLons[addedCount] = lon;
+        addedLats[addedCount] = lat;
+        addedCount += 1;
+
+        if (name == null) {
+            nodeNames.remove(id);
+            return;
+        }
+        String cleaned = name.replaceAll("[^A-Za-z0-9]", "").toLowerCase();
+        nodeNames.put(id, cleaned);
+        nameKey.put(cleaned, name);
+
+        if (!locationKey.keySet().contains(cleaned)) {
+            List<Long> locations = new ArrayList<>();
+            locations.add(id);
+            locationKey.put(cleaned, locations);
+        } else {
+            List<Long> locations = locationKey.get(cleaned);
+            locations.add(id);
         }
-
     }
 
     public void addEdge(String input1, String input2, String name) {
-        long iden1 = Long.parseLong(input1);
-        long iden2 = Long.parseLong(input2);
+        addEdge(Long.parseLong(input1), Long.parseLong(input2), name, null, -1);
+    }
 
-        key.get(iden1).neighbors.add(iden2);
-        key.get(iden2).neighbors.add(iden1);
+    /**
+     * Adds a two-way road segment between two nodes, of a way that turn restrictions cannot refer to.
+     * @param iden1 The id of the first node.
+     * @param iden2 The id of the second node.
+     * @param name The name of the street the segment belongs to.
+     * @param highway The highway tag of the way the segment belongs to, or null if unknown.
+     */
+    public void addEdge(long iden1, long iden2, String name, String highway) {
+        addEdge(iden1, iden2, name, highway, null, -1);
+    }
 
-        key.get(iden1).streets.put(iden2, name);
-        key.get(iden2).streets.put(iden1, name);
+    /**
+     * Adds a two-way road segment between two nodes. Segments that reference a node missing from
+     * the input, as happens at the border of a clipped extract, are dropped when the graph is
+     * cleaned.
+     * @param iden1 The id of the first node.
+     * @param iden2 The id of the second node.
+     * @param name The name of the street the segment belongs to.
+     * @param highway The highway tag of the way the segment belongs to, or null if unknown.
+     * @param way The id of the way the segment belongs to, or -1 if unknown.
+     */
+    public void addEdge(long iden1, long iden2, String name, String highway, long way) {
+        addEdge(iden1, iden2, name, highway, null, way);
     }
 
-    public void removeNode(String v) {
-        long w = Long.parseLong(v);
-        key.remove(w);
+    /**
+     * Adds a two-way road segment between two nodes, with the speed limit of its way. Segments that reference a
+     * node missing from the input, as happens at the border of a clipped extract, are dropped when the graph is
+     * cleaned.
+     * @param iden1 The id of the first node.
+     * @param iden2 The id of the second node.
+     * @param name The name of the street the segment belongs to.
+     * @param highway The highway tag of the way the segment belongs to, or null if unknown.
+     * @param maxspeed The maxspeed tag of the way the segment belongs to, or null if it has none.
+     * @param way The id of the way the segment belongs to, or -1 if unknown.
+     */
+    @Override
+    public void addEdge(long iden1, long iden2, String name, String highway, String maxspeed, long way) {
+        if (edgeCount == edgeStreets.length) {
+            edgeEnds = Arrays.copyOf(edgeEnds, edgeEnds.length * 2);
+            edgeStreets = Arrays.copyOf(edgeStreets, edgeStreets.length * 2);
+            edgeHighways = Arrays.copyOf(edgeHighways, edgeHighways.length * 2);
+            edgeMaxspeeds = Arrays.copyOf(edgeMaxspeeds, edgeMaxspeeds.length * 2);
+            edgeWays = Arrays.copyOf(edgeWays, edgeWays.length * 2);
+        }
+        Integer street = streetIds.get(name);
+        if (street == null) {
+            street = streetNames.size();
+            streetNames.add(name);
+            streetIds.put(name, street);
+        }
+        edgeEnds[2 * edgeCount] = iden1;
+        edgeEnds[2 * edgeCount + 1] = iden2;
+        edgeStreets[edgeCount] = street;
+        edgeHighways[edgeCount] = (byte) GraphBuildingHandler.highwayClass(highway);
+        edgeMaxspeeds[edgeCount] = (byte) GraphBuildingHandler.maxspeedMph(maxspeed);
+        edgeWays[edgeCount] = way;
+        edgeCount += 1;
     }
 
+    /**
+     * Adds a turn restriction. Restrictions that refer to ways or nodes that are not part of the
+     * routable graph are ignored when the graph is cleaned.
+     */
+    @Override
+    public void addRestriction(long from, long via, long to, boolean only) {
+        if (4 * restrictionCount == restrictions.length) {
+            restrictions = Arrays.copyOf(restrictions, restrictions.length * 2);
+        }
+        restrictions[4 * restrictionCount] = from;
+        restrictions[4 * restrictionCount + 1] = via;
+        restrictions[4 * restrictionCount + 2] = to;
+        restrictions[4 * restrictionCount + 3] = only ? 1 : 0;
+        restrictionCount += 1;
+    }
 
     /**
-     *  Remove nodes with no connections from the graph.
-     *  While this does not guarantee that any two nodes in the remaining graph are connected,
+     *  Remove nodes with no connections from the graph: the vertices are exactly the nodes at the end of some road
+     *  segment. While this does not guarantee that any two nodes in the remaining graph are connected,
      *  we can reasonably assume this since typically roads are connected.
      */
     private void clean() {
-        Set<Long> keys = new HashSet<>(key.keySet());
-        for (long i : keys) {
-            if (key.get(i).neighbors.size() == 0) {
-                key.remove(i);
+        //Sort the nodes by id. A node added more than once keeps the coordinates it was last added with.
+        long[] allIds = Arrays.copyOf(addedIds, addedCount);
+        Arrays.sort(allIds);
+        int count = distinct(allIds, allIds.length);
+        allIds = Arrays.copyOf(allIds, count);
+        double[] allLons = new double[count];
+        double[] allLats = new double[count];
+        for (int i = 0; i < addedCount; i += 1) {
+            int position = Arrays.binarySearch(allIds, addedIds[i]);
+            allLons[position] = addedLons[i];
+            allLats[position] = addedLats[i];
+        }
+        addedIds = null;
+        addedLons = null;
+        addedLats = null;
+
+        //Drop the segments with an endpoint that was never added, keeping the others in order.
+        int kept = 0;
+        for (int i = 0; i < edgeCount; i += 1) {
+            if (Arrays.binarySearch(allIds, edgeEnds[2 * i]) >= 0
+                    && Arrays.binarySearch(allIds, edgeEnds[2 * i + 1]) >= 0) {
+                edgeEnds[2 * kept] = edgeEnds[2 * i];
+                edgeEnds[2 * kept + 1] = edgeEnds[2 * i + 1];
+                edgeStreets[kept] = edgeStreets[i];
+                edgeHighways[kept] = edgeHighways[i];
+                edgeMaxspeeds[kept] = edgeMaxspeeds[i];
+                edgeWays[kept] = edgeWays[i];
+                kept += 1;
             }
         }
+        edgeCount = kept;
+
+        long[] ids = Arrays.copyOf(edgeEnds, 2 * edgeCount);
+        Arrays.sort(ids);
+        freeze(Arrays.copyOf(ids, distinct(ids, ids.length)), allIds, allLons, allLats);
+    }
+
+    /**
+     * Moves the distinct values of a sorted array to its front.
+     * @return The number of distinct values.
+     */
+    private static int distinct(long[] sorted, int length) {
+        int n = 0;
+        for (int i = 0; i < length; i += 1) {
+            if (n == 0 || sorted[i] != sorted[n - 1]) {
+                sorted[n] = sorted[i];
+                n += 1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Packs the cleaned graph into its CSR form. Vertices are numbered in increasing order of their identifiers, and
+     * each vertex keeps its edges in the order they were added. The segment list is released afterwards, and the
+     * coordinates of all nodes are moved off the heap, leaving only flat arrays.
+     * @param ids The sorted ids of the vertices.
+     * @param allIds The sorted ids of all nodes.
+     * @param allLons The longitudes of all nodes, in the order of allIds.
+     * @param allLats The latitudes of all nodes, in the order of allIds.
+     */
+    private void freeze(long[] ids, long[] allIds, double[] allLons, double[] allLats) {
+        int n = ids.length;
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        for (int i = 0; i < n; i += 1) {
+            int position = Arrays.binarySearch(allIds, ids[i]);
+            lons[i] = allLons[position];
+            lats[i] = allLats[position];
+        }
+
+        int[] ends = new int[2 * edgeCount];
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < 2 * edgeCount; i += 1) {
+            ends[i] = Arrays.binarySearch(ids, edgeEnds[i]);
+            offsets[ends[i] + 1] += 1;
+        }
+        for (int v = 0; v < n; v += 1) {
+            offsets[v + 1] += offsets[v];
+        }
+
+        //Each segment is stored once from each end, appended in the order the segments were added.
+        int[] next = Arrays.copyOf(offsets, n);
+        int[] targets = new int[2 * edgeCount];
+        int[] streets = new int[2 * edgeCount];
+        byte[] highways = new byte[2 * edgeCount];
+        byte[] maxspeeds = new byte[2 * edgeCount];
+        long[] ways = new long[2 * edgeCount];
+        for (int i = 0; i < edgeCount; i += 1) {
+            int a = ends[2 * i];
+            int b = ends[2 * i + 1];
+            targets[next[a]] = b;
+            streets[next[a]] = edgeStreets[i];
+            highways[next[a]] = edgeHighways[i];
+            maxspeeds[next[a]] = edgeMaxspeeds[i];
+            ways[next[a]] = edgeWays[i];
+            next[a] += 1;
+            targets[next[b]] = a;
+            streets[next[b]] = edgeStreets[i];
+            highways[next[b]] = edgeHighways[i];
+            maxspeeds[next[b]] = edgeMaxspeeds[i];
+            ways[next[b]] = edgeWays[i];
+            next[b] += 1;
+        }
+
+        compact = new CompactGraph(ids, lons, lats, offsets, targets, streets,
+                streetNames.toArray(new String[0]), highways, maxspeeds, forbiddenTurns(ids, offsets, ways));
+        edgeEnds = null;
+        edgeStreets = null;
+        edgeHighways = null;
+        edgeMaxspeeds = null;
+        edgeWays = null;
+        restrictions = null;
+        streetIds = null;
+        streetNames = null;
+
+        int count = allIds.length;
+        LongBuffer nodeIds = ByteBuffer.allocateDirect(count * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+        DoubleBuffer nodeLons = ByteBuffer.allocateDirect(count * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        DoubleBuffer nodeLats = ByteBuffer.allocateDirect(count * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        nodeIds.put(allIds).flip();
+        nodeLons.put(allLons).flip();
+        nodeLats.put(allLats).flip();
+        restore(compact, nodeIds, nodeLons, nodeLats, nodeNames);
+    }
+
+    /**
+     * Turns the restrictions added into the turns they forbid, in the form CompactGraph keeps them. A turn at vertex
+     * v is identified by two edges leaving v: the edge back along the road the turn arrives by, and the edge the
+     * turn leaves by. Restrictions whose ways or node are not in the graph forbid nothing.
+     * @param ids The sorted ids of the vertices.
+     * @param offsets The index of the first edge of every vertex.
+     * @param ways The way every edge belongs to.
+     * @return The forbidden turns, as sorted keys back << 32 | out.
+     */
+    private long[] forbiddenTurns(long[] ids, int[] offsets, long[] ways) {
+        Set<Long> forbidden = new TreeSet<>();
+        for (int r = 0; r < restrictionCount; r += 1) {
+            long from = restrictions[4 * r];
+            int via = Arrays.binarySearch(ids, restrictions[4 * r + 1]);
+            long to = restrictions[4 * r + 2];
+            boolean only = restrictions[4 * r + 3] != 0;
+            if (via < 0) {
+                continue;
+            }
+            for (int back = offsets[via]; back < offsets[via + 1]; back += 1) {
+                if (ways[back] != from) {
+                    continue;
+                }
+                for (int out = offsets[via]; out < offsets[via + 1]; out += 1) {
+                    //A restriction from a way onto itself is about turning back, like no_u_turn, or
+                    //about carrying on along the way, like only_straight_on.
+                    boolean onto = from != to ? ways[out] == to
+                            : only ? ways[out] == to && out != back : out == back;
+                    if (onto != only) {
+                        forbidden.add((long) back << 32 | out);
+                    }
+                }
+            }
+        }
+        long[] keys = new long[forbidden.size()];
+        int i = 0;
+        for (long key : forbidden) {
+            keys[i] = key;
+            i += 1;
+        }
+        return keys;
+    }
+
+    /**
+     * Installs a frozen graph, either one just built by freeze() or one read back from a snapshot.
+     */
+    void restore(CompactGraph graph, LongBuffer ids, DoubleBuffer lons, DoubleBuffer lats,
+                 Map<Long, String> names) {
+        compact = graph;
+        timeCompact = graph.withWeighting(Router.Weighting.TIME);
+        spatialIndex = new SpatialIndex(graph);
+        segmentIndex = new SegmentIndex(graph);
+        nodeIds = ids;
+        nodeLons = lons;
+        nodeLats = lats;
+        nodeNames = names;
+    }
+
+    /**
+     * Returns the routable graph with its vertices numbered densely from 0, which is what Router
+     * and MapServer work with internally. OSM ids only appear at the edges of the public API.
+     */
+    CompactGraph compact() {
+        return compact;
+    }
+
+    /**
+     * Returns the routable graph weighted the given way, which is compact() weighted by distance.
+     */
+    CompactGraph compact(Router.Weighting weighting) {
+        return weighting == Router.Weighting.TIME ? timeCompact : compact;
+    }
+
+    /** Returns the contraction hierarchy of the routable graph weighted by distance. */
+    ContractionHierarchy hierarchy() {
+        return hierarchy(Router.Weighting.DISTANCE);
+    }
+
+    /**
+     * Returns the contraction hierarchy of the routable graph weighted the given way. The first call for a weighting
+     * reads it from the file GraphSnapshotLauncher writes next to the OSM file, or contracts the graph if that file
+     * is missing or was built for a different graph, which takes a while on a large map.
+     */
+    ContractionHierarchy hierarchy(Router.Weighting weighting) {
+        boolean time = weighting == Router.Weighting.TIME;
+        ContractionHierarchy result = time ? timeHierarchy : hierarchy;
+        if (result == null) {
+            synchronized (this) {
+                result = time ? timeHierarchy : hierarchy;
+                if (result == null) {
+                    CompactGraph graph = compact(weighting);
+                    if (dbPath != null) {
+                        try {
+                            result = ContractionHierarchy.read(ContractionHierarchy.fileFor(dbPath, weighting), graph);
+                        } catch (IOException | RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    if (result == null) {
+                        result = ContractionHierarchy.build(graph);
+                    }
+                    if (time) {
+                        timeHierarchy = result;
+                    } else {
+                        hierarchy = result;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns the ALT landmarks of the routable graph weighted by distance. */
+    Landmarks landmarks() {
+        return landmarks(Router.Weighting.DISTANCE);
+    }
+
+    /** Returns the ALT landmarks of the routable graph weighted the given way, choosing them on the first call. */
+    Landmarks landmarks(Router.Weighting weighting) {
+        boolean time = weighting == Router.Weighting.TIME;
+        Landmarks result = time ? timeLandmarks : landmarks;
+        if (result == null) {
+            synchronized (this) {
+                result = time ? timeLandmarks : landmarks;
+                if (result == null) {
+                    result = Landmarks.select(compact(weighting), Landmarks.COUNT);
+                    if (time) {
+                        timeLandmarks = result;
+                    } else {
+                        landmarks = result;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Returns the costs of the turns of the routable graph weighted by distance. */
+    TurnCosts turnCosts() {
+        return turnCosts(Router.Weighting.DISTANCE);
+    }
+
+    /** Returns the costs of the turns of the routable graph weighted the given way, computed on the first call. */
+    TurnCosts turnCosts(Router.Weighting weighting) {
+        boolean time = weighting == Router.Weighting.TIME;
+        TurnCosts result = time ? timeTurnCosts : turnCosts;
+        if (result == null) {
+            synchronized (this) {
+                result = time ? timeTurnCosts : turnCosts;
+                if (result == null) {
+                    result = TurnCosts.build(compact(weighting));
+                    if (time) {
+                        timeTurnCosts = result;
+                    } else {
+                        turnCosts = result;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Changes the weights of a batch of roads, for closures and congestion, without reloading the graph. The whole
+     * batch becomes visible to queries at once: a query that started before sees none of it, and one that starts
+     * after sees all of it. Every cached route is dropped.
+     *
+     * Factors are never below 1, so the great-circle distance, the landmark bounds and the contraction hierarchy,
+     * which are all computed from the costs of roads, stay lower bounds on weighted distances and need no
+     * rebuilding: A* and ALT search the weighted graph as they are, and hierarchy routes become an A* search with
+     * the hierarchy's distances as its heuristic (see ContractionHierarchy.routeWeighted).
+     * @param fromIds The OSM id of the node at one end of every road.
+     * @param toIds The OSM id of the node at the other end of every road.
+     * @param roadFactors The factor every road's cost is multiplied by in both directions, at least 1: 1 for
+     *                    normal traffic, more for congestion, and CLOSED for a closed road.
+     * @throws IllegalArgumentException If a factor is below 1, or two nodes are not joined by a road. Nothing is
+     * changed then.
+     */
+    void setRoadFactors(long[] fromIds, long[] toIds, double[] roadFactors) {
+        if (fromIds.length != toIds.length || fromIds.length != roadFactors.length) {
+            throw new IllegalArgumentException("Every road needs two nodes and a factor.");
+        }
+        synchronized (weightLock) {
+            CompactGraph graph = compact;
+            double[] changed = factors == null ? new double[graph.edgeCount()] : factors.clone();
+            if (factors == null) {
+                Arrays.fill(changed, 1);
+            }
+            for (int i = 0; i < fromIds.length; i += 1) {
+                double factor = roadFactors[i];
+                if (!(factor >= 1)) {
+                    throw new IllegalArgumentException("Road factors must be at least 1, not " + factor + ".");
+                }
+                int v = graph.index(fromIds[i]);
+                int w = graph.index(toIds[i]);
+                if (v < 0 || w < 0 || graph.findEdge(v, w) < 0) {
+                    throw new IllegalArgumentException("There is no road between " + fromIds[i] + " and "
+                            + toIds[i] + ".");
+                }
+                //Every road is stored as an edge in each direction, and parallel roads change together.
+                for (int e = graph.firstEdge(v); e < graph.endEdge(v); e += 1) {
+                    if (graph.target(e) == w) {
+                        changed[e] = factor;
+                    }
+                }
+                for (int e = graph.firstEdge(w); e < graph.endEdge(w); e += 1) {
+                    if (graph.target(e) == v) {
+                        changed[e] = factor;
+                    }
+                }
+            }
+            factors = changed;
+            CompactGraph changedGraph = graph.withFactors(changed);
+            timeCompact = changedGraph.withWeighting(Router.Weighting.TIME);
+            compact = changedGraph;
+        }
+        routeCache.invalidate();
+    }
+
+    /** Sets the weight of every road back to its cost, reopening closed roads. */
+    void resetRoadFactors() {
+        synchronized (weightLock) {
+            if (factors != null) {
+                CompactGraph graph = compact.withFactors(null);
+                timeCompact = graph.withWeighting(Router.Weighting.TIME);
+                compact = graph;
+                factors = null;
+            }
+        }
+        routeCache.invalidate();
+    }
+
+    /** Returns the cache of the routes found on this graph. */
+    RouteCache routeCache() {
+        return routeCache;
+    }
+
+    LongBuffer nodeIds() {
+        return nodeIds;
+    }
+
+    DoubleBuffer nodeLons() {
+        return nodeLons;
+    }
+
+    DoubleBuffer nodeLats() {
+        return nodeLats;
+    }
+
+    /**
+     * Finds the position of a node in the sorted coordinate table with a binary search.
+     * @param v The id of the node.
+     * @return The position of the node.
+     * @throws NoSuchElementException If there is no node with that id.
+     */
+    private int nodeIndex(long v) {
+        int lo = 0;
+        int hi = nodeIds.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long id = nodeIds.get(mid);
+            if (id < v) {
+                lo = mid + 1;
+            } else if (id > v) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        throw new NoSuchElementException("No node with id " + v);
     }
 
     /**
@@ -137,8 +672,7 @@ public class GraphDB {
      * @return An iterable of id's of all vertices in the graph.
      */
     Iterable<Long> vertices() {
-        //YOUR CODE HERE, this currently returns only an empty list.
-        return key.keySet();
+        return compact.vertexIds();
     }
 
     /**
@@ -147,7 +681,7 @@ public class GraphDB {
      * @return An iterable of the ids of the neighbors of v.
      */
     Iterable<Long> adjacent(long v) {
-        return key.get(v).neighbors;
+        return compact.neighborIds(compact.index(v));
     }
 
     /**
@@ -162,6 +696,11 @@ public class GraphDB {
         return distance(lon(v), lat(v), lon(w), lat(w));
     }
 
+    /** The radius of the earth in miles, the unit of all distances in the graph. */
+    static final double EARTH_RADIUS = 3963;
+    /** The road factor of a closed road, whose weight is infinite. */
+    static final double CLOSED = Double.POSITIVE_INFINITY;
+
     static double distance(double lonV, double latV, double lonW, double latW) {
         double phi1 = Math.toRadians(latV);
         double phi2 = Math.toRadians(latW);
@@ -171,7 +710,7 @@ public class GraphDB {
         double a = Math.sin(dphi / 2.0) * Math.sin(dphi / 2.0);
         a += Math.cos(phi1) * Math.cos(phi2) * Math.sin(dlambda / 2.0) * Math.sin(dlambda / 2.0);
         double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-        return 3963 * c;
+        return EARTH_RADIUS * c;
     }
 
     /**
@@ -208,24 +747,125 @@ public class GraphDB {
      * @return The id of the node in the graph closest to the target.
      */
     long closest(double lon, double lat) {
-        long closest = 0;
+        int closest = closestVertex(lon, lat);
+        return closest < 0 ? 0 : compact.id(closest);
+    }
+
+    /**
+     * Returns the dense index of the vertex closest to the given longitude and latitude.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The index of the closest vertex, or -1 if the graph is empty.
+     */
+    int closestVertex(double lon, double lat) {
+        return spatialIndex.nearest(lon, lat);
+    }
+
+    /**
+     * Returns the point on any road closest to the given longitude and latitude, which unlike the closest vertex
+     * may be part of the way along a road, for routes that should start and end where their locations are.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The closest point on a road, or null if the graph has no roads.
+     */
+    RoadPoint closestRoadPoint(double lon, double lat) {
+        return segmentIndex.nearest(lon, lat);
+    }
+
+    /**
+     * Returns the vertices closest to a batch of points, for snapping many points at once. The
+     * points are searched in parallel, in an order that keeps nearby points together.
+     * @param lons The longitudes of the points.
+     * @param lats The latitudes of the points.
+     * @param distances If not null, receives the distance in miles from every point to its vertex, so that points
+     *                  too far from any road can be rejected.
+     * @return The ids of the closest vertices, in the order of the points.
+     */
+    long[] closest(double[] lons, double[] lats, double[] distances) {
+        int[] vertices = closestVertices(lons, lats, distances);
+        long[] ids = new long[vertices.length];
+        for (int i = 0; i < vertices.length; i += 1) {
+            ids[i] = vertices[i] < 0 ? 0 : compact.id(vertices[i]);
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the dense indices of the vertices closest to a batch of points.
+     * @param lons The longitudes of the points.
+     * @param lats The latitudes of the points.
+     * @param distances If not null, receives the distance in miles from every point to its vertex.
+     * @return The indices of the closest vertices, or -1 for every point if the graph is empty.
+     * @throws IllegalArgumentException If the arrays differ in length.
+     */
+    int[] closestVertices(double[] lons, double[] lats, double[] distances) {
+        if (lats.length != lons.length || (distances != null && distances.length != lons.length)) {
+            throw new IllegalArgumentException("Expected " + lons.length + " coordinates of each kind.");
+        }
+        int[] vertices = new int[lons.length];
+        spatialIndex.nearest(lons, lats, vertices, distances);
+        return vertices;
+    }
+
+    /**
+     * Finds the closest vertex by checking every vertex in turn. This is what the spatial index
+     * replaces, kept as the reference the index is tested and benchmarked against.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The index of the closest vertex, or -1 if the graph is empty.
+     */
+    int closestVertexByScan(double lon, double lat) {
+        int closest = -1;
         double distance = Double.MAX_VALUE;
-        for (Node i : key.values()) {
-            if (distance(lon, lat, i.lon, i.lat) < distance) {
-                distance = distance(lon, lat, i.lon, i.lat);
-                closest = i.iden;
+        for (int i = 0; i < compact.size(); i += 1) {
+            double d = distance(lon, lat, compact.lon(i), compact.lat(i));
+            if (d < distance) {
+                distance = d;
+                closest = i;
             }
         }
         return closest;
     }
 
+    /**
+     * Translates a path of dense vertex indices into OSM identifiers, for callers of the public API.
+     * @param vertices The indices of the vertices.
+     * @return The ids of the same vertices, in the same order.
+     */
+    List<Long> ids(int[] vertices) {
+        List<Long> ids = new ArrayList<>(vertices.length);
+        for (int v : vertices) {
+            ids.add(compact.id(v));
+        }
+        return ids;
+    }
+
+    /**
+     * Translates OSM identifiers of routable vertices into dense vertex indices.
+     * @param ids The ids of the vertices.
+     * @return The indices of the same vertices, in the same order.
+     * @throws NoSuchElementException If one of the ids is not a vertex of the routable graph.
+     */
+    int[] vertices(List<Long> ids) {
+        int[] vertices = new int[ids.size()];
+        int i = 0;
+        for (long id : ids) {
+            vertices[i] = compact.index(id);
+            if (vertices[i] < 0) {
+                throw new NoSuchElementException("No vertex with id " + id);
+            }
+            i += 1;
+        }
+        return vertices;
+    }
+
     /**
      * Gets the longitude of a vertex.
      * @param v The id of the vertex.
      * @return The longitude of the vertex.
      */
     double lon(long v) {
-        return totalKey.get(v).lon;
+        return nodeLons.get(nodeIndex(v));
     }
 
     /**
@@ -234,18 +874,21 @@ public class GraphDB {
      * @return The latitude of the vertex.
      */
     double lat(long v) {
-        return totalKey.get(v).lat;
-    }
-
-    Map<Long, String> getStreets(long v) {
-        return key.get(v).streets;
+        return nodeLats.get(nodeIndex(v));
     }
 
-    List<Long> getNeighbors(long v) {
-        return key.get(v).neighbors;
+    /**
+     * Returns the name of the street connecting two adjacent vertices.
+     * @param v The id of the first vertex.
+     * @param w The id of the second vertex.
+     * @return The street name, or null if the vertices are not adjacent.
+     */
+    String street(long v, long w) {
+        int e = compact.findEdge(compact.index(v), compact.index(w));
+        return e < 0 ? null : compact.street(e);
     }
 
     String getName(long v) {
-        return totalKey.get(v).name;
+        return nodeNames.get(v);
     }
 }
@@ -0,0 +1,787 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class provides a main method for timing the performance-sensitive parts of GraphDB and
+ * Router on a real OSM file, in the same spirit as GraphDBLauncher. Each benchmark is selected by
+ * name on the command line:
+ * <pre>
+ *   GraphDBBenchmark import [osm file]
+ *   GraphDBBenchmark memory [osm file]
+ *   GraphDBBenchmark snap [osm file...]
+ *   GraphDBBenchmark route [osm file]
+ *   GraphDBBenchmark hierarchy [osm file]
+ *   GraphDBBenchmark table [osm file]
+ *   GraphDBBenchmark isochrone [osm file]
+ *   GraphDBBenchmark turns [osm file]
+ *   GraphDBBenchmark alternatives [osm file]
+ *   GraphDBBenchmark traffic [osm file]
+ *   GraphDBBenchmark weighting [osm file]
+ *   GraphDBBenchmark batch [osm file]
+ * </pre>
+ * Timing benchmarks run a few warm-up rounds first so that the JIT has compiled the code measured.
+ */
+public class GraphDBBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final int QUERIES = 100000;
+    private static final int SCAN_QUERIES = 1000;
+    private static final long SEED = 2018;
+    private static final String PARAMS_FILE = "path_params.txt";
+    private static final int RANDOM_ROUTES = 100;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+    private static final int TABLE_SIZE = 500;
+    private static final int TABLE_CHECKS = 200;
+    private static final int ISOCHRONE_STEPS = 200;
+    private static final double[] ISOCHRONE_DISTANCES = {0.25, 1, 3};
+    private static final int ALTERNATIVES = 3;
+    private static final int TRAFFIC_ROADS = 100;
+    private static final double CONGESTION = 2;
+    private static final int BATCH_PAIRS = 5000;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: GraphDBBenchmark (import | memory | snap | route | hierarchy | table"
+                    + " | isochrone | turns | alternatives | traffic | weighting | batch)"
+                    + " [osm file...]");
+            return;
+        }
+        String dbPath = args.length > 1 ? args[1] : OSM_DB_PATH;
+        if (args[0].equals("import")) {
+            benchmarkImport(new File(dbPath));
+        } else if (args[0].equals("memory")) {
+            benchmarkMemory(dbPath);
+        } else if (args[0].equals("snap")) {
+            String[] dbPaths = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length)
+                    : new String[]{OSM_DB_PATH_SMALL, OSM_DB_PATH};
+            for (String path : dbPaths) {
+                benchmarkSnap(path);
+            }
+        } else if (args[0].equals("route")) {
+            benchmarkRoute(dbPath);
+        } else if (args[0].equals("hierarchy")) {
+            benchmarkHierarchy(dbPath);
+        } else if (args[0].equals("table")) {
+            benchmarkTable(dbPath);
+        } else if (args[0].equals("isochrone")) {
+            benchmarkIsochrone(dbPath);
+        } else if (args[0].equals("turns")) {
+            benchmarkTurns(dbPath);
+        } else if (args[0].equals("alternatives")) {
+            benchmarkAlternatives(dbPath);
+        } else if (args[0].equals("traffic")) {
+            benchmarkTraffic(dbPath);
+        } else if (args[0].equals("weighting")) {
+            benchmarkWeighting(dbPath);
+        } else if (args[0].equals("batch")) {
+            benchmarkBatch(dbPath);
+        } else {
+            System.out.println("Unknown benchmark " + args[0]);
+        }
+    }
+
+    /**
+     * Compares the SAX based GraphBuildingHandler with OsmXmlScanner on an XML file, reporting
+     * elements parsed per second and bytes allocated per element. The allocation figures include
+     * what GraphDB itself allocates to store the nodes, which is the same for both importers, so
+     * the difference between them is the parser's own garbage.
+     */
+    private static void benchmarkImport(File input) throws IOException {
+        OsmXmlScanner scanner = new OsmXmlScanner();
+        scanner.importInto(input, new GraphDB());
+        long elements = scanner.elementCount();
+        System.out.println(input + ": " + input.length() + " bytes, " + elements + " elements.");
+
+        OsmImporter[] importers = {new XmlOsmImporter(), scanner};
+        String[] names = {"SAX GraphBuildingHandler", "OsmXmlScanner"};
+        for (int i = 0; i < importers.length; i += 1) {
+            for (int round = 0; round < WARMUP_ROUNDS; round += 1) {
+                importers[i].importInto(input, new GraphDB());
+            }
+            long bytes = 0;
+            long nanos = 0;
+            for (int round = 0; round < ROUNDS; round += 1) {
+                GraphDB g = new GraphDB();
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                importers[i].importInto(input, g);
+                nanos += System.nanoTime() - start;
+                bytes += allocatedBytes() - allocated;
+            }
+            System.out.println(String.format("%-26s %8.1f ms %12.0f elements/s %8.1f bytes/element",
+                    names[i], nanos / 1e6 / ROUNDS, elements * 1e9 * ROUNDS / nanos,
+                    (double) bytes / ROUNDS / elements));
+        }
+    }
+
+    /**
+     * Compares the heap retained by a graph imported in one pass with one imported by
+     * RoutableOnlyImporter, along with the peak heap use while importing and the memory held in
+     * direct and mapped buffers outside the heap afterwards.
+     */
+    private static void benchmarkMemory(String dbPath) {
+        OsmImporter[] importers = {OsmImporter.forPath(dbPath),
+            OsmImporter.routableOnly(OsmImporter.forPath(dbPath))};
+        String[] names = {"Single pass", "Routable nodes only"};
+        for (int i = 0; i < importers.length; i += 1) {
+            long before = usedHeap();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            long start = System.nanoTime();
+            GraphDB g = new GraphDB(dbPath, importers[i], false);
+            long nanos = System.nanoTime() - start;
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            long retained = usedHeap() - before;
+            long offHeap = 0;
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                offHeap += pool.getMemoryUsed();
+            }
+            System.out.println(String.format("%-20s %8.1f ms %8.1f MB retained %8.1f MB peak"
+                    + " %8.1f MB off-heap %9d nodes kept", names[i], nanos / 1e6, retained / 1e6,
+                    peak / 1e6, offHeap / 1e6, g.nodeIds().limit()));
+        }
+    }
+
+    /**
+     * Compares the time to snap random points within the bounds of a graph with the spatial index
+     * against a linear scan of all vertices, and against snapping all the points as one batch with
+     * the parallel batch API, and checks that all three find the same vertices. Run it on graphs of different sizes to see how
+     * each scales. It then times snapping the same points to the nearest point on a road with the segment index, and
+     * reports how many bytes each of those queries allocates, which should be no more than the point it returns.
+     */
+    private static void benchmarkSnap(String dbPath) {
+        GraphDB g = new GraphDB(dbPath);
+        CompactGraph graph = g.compact();
+        double minLon = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE;
+        double minLat = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        for (int v = 0; v < graph.size(); v += 1) {
+            minLon = Math.min(minLon, graph.lon(v));
+            maxLon = Math.max(maxLon, graph.lon(v));
+            minLat = Math.min(minLat, graph.lat(v));
+            maxLat = Math.max(maxLat, graph.lat(v));
+        }
+        Random random = new Random(SEED);
+        double[] lons = new double[QUERIES];
+        double[] lats = new double[QUERIES];
+        for (int i = 0; i < QUERIES; i += 1) {
+            lons[i] = minLon + random.nextDouble() * (maxLon - minLon);
+            lats[i] = minLat + random.nextDouble() * (maxLat - minLat);
+        }
+
+        long start = System.nanoTime();
+        new SpatialIndex(graph);
+        long buildNanos = System.nanoTime() - start;
+
+        //The scan is only timed on the first points, as it is orders of magnitude slower.
+        String[] names = {"Linear scan", "Spatial index", "Batch"};
+        int[] counts = {SCAN_QUERIES, QUERIES, QUERIES};
+        int[][] results = new int[3][QUERIES];
+        long[] nanos = new long[3];
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+            for (int method = 0; method < 3; method += 1) {
+                start = System.nanoTime();
+                if (method == 0) {
+                    for (int i = 0; i < SCAN_QUERIES; i += 1) {
+                        results[0][i] = g.closestVertexByScan(lons[i], lats[i]);
+                    }
+                } else if (method == 1) {
+                    for (int i = 0; i < QUERIES; i += 1) {
+                        results[1][i] = g.closestVertex(lons[i], lats[i]);
+                    }
+                } else {
+                    results[2] = g.closestVertices(lons, lats, null);
+                }
+                if (round >= WARMUP_ROUNDS) {
+                    nanos[method] += System.nanoTime() - start;
+                }
+            }
+        }
+        boolean identical = Arrays.equals(results[1], results[2]);
+        for (int i = 0; i < SCAN_QUERIES; i += 1) {
+            identical &= results[0][i] == results[1][i];
+        }
+        System.out.println(String.format("%s: %d vertices, index built in %.1f ms, results %s",
+                dbPath, graph.size(), buildNanos / 1e6, identical ? "identical" : "DIFFERENT"));
+        for (int method = 0; method < 3; method += 1) {
+            System.out.println(String.format("  %-14s %10.2f us/query", names[method],
+                    nanos[method] / 1e3 / ROUNDS / counts[method]));
+        }
+
+        start = System.nanoTime();
+        SegmentIndex segments = new SegmentIndex(graph);
+        buildNanos = System.nanoTime() - start;
+        long roadNanos = 0;
+        long bytes = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+            long allocated = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i += 1) {
+                segments.nearest(lons[i], lats[i]);
+            }
+            if (round >= WARMUP_ROUNDS) {
+                roadNanos += System.nanoTime() - start;
+                bytes += allocatedBytes() - allocated;
+            }
+        }
+        System.out.println(String.format("  %-14s %10.2f us/query %8.1f bytes/query,"
+                + " %d roads indexed in %.1f ms", "Road points", roadNanos / 1e3 / ROUNDS / QUERIES,
+                (double) bytes / ROUNDS / QUERIES, segments.size(), buildNanos / 1e6));
+    }
+
+    /**
+     * Times the routes of the path_params.txt workload, plus routes between random vertices, with
+     * every search algorithm, and reports how many vertices each settled, how many heap
+     * operations it made for them and how many bytes a route allocated, including the returned
+     * path. It also checks that all algorithms find the same routes.
+     */
+    private static void benchmarkRoute(String dbPath) throws IOException {
+        GraphDB g = new GraphDB(dbPath);
+        double[][] routes = routeParams();
+        //Add routes between random vertices, which are mostly longer than the fixed ones.
+        CompactGraph graph = g.compact();
+        Random random = new Random(SEED);
+        int fixed = routes.length;
+        routes = Arrays.copyOf(routes, fixed + RANDOM_ROUTES);
+        for (int i = fixed; i < routes.length; i += 1) {
+            int from = random.nextInt(graph.size());
+            int to = random.nextInt(graph.size());
+            routes[i] = new double[]{graph.lon(from), graph.lat(from), graph.lon(to), graph.lat(to)};
+        }
+        System.out.println(String.format("%s: %d routes (%d from %s), %d vertices", dbPath,
+                routes.length, fixed, PARAMS_FILE, graph.size()));
+        int[][] expected = new int[routes.length][];
+        for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+            boolean identical = true;
+            for (int round = 0; round < WARMUP_ROUNDS; round += 1) {
+                for (int i = 0; i < routes.length; i += 1) {
+                    double[] route = routes[i];
+                    int[] path = Router.shortestPathVertices(g, route[0], route[1], route[2],
+                            route[3], algorithm, null);
+                    if (expected[i] == null) {
+                        expected[i] = path;
+                    }
+                    identical &= Arrays.equals(expected[i], path);
+                }
+            }
+            Router.SearchStats stats = new Router.SearchStats();
+            long nanos = 0;
+            long allocated = allocatedBytes();
+            for (int round = 0; round < ROUNDS; round += 1) {
+                for (double[] route : routes) {
+                    long start = System.nanoTime();
+                    Router.shortestPathVertices(g, route[0], route[1], route[2], route[3],
+                            algorithm, round == 0 ? stats : null);
+                    nanos += System.nanoTime() - start;
+                }
+            }
+            allocated = allocatedBytes() - allocated;
+            System.out.println(String.format("  %-14s %8.3f ms/route %10.1f settled/route"
+                    + " %10.1f heap operations/route %10.1f bytes/route%s", algorithm,
+                    nanos / 1e6 / ROUNDS / routes.length, (double) stats.settled / routes.length,
+                    (double) stats.heapOperations / routes.length,
+                    (double) allocated / ROUNDS / routes.length,
+                    identical ? "" : ", ROUTES DIFFER"));
+        }
+    }
+
+    /**
+     * Reports how long contracting the graph takes, how many shortcuts it adds and how big the
+     * hierarchy is on disk, and how long reading it back takes. Query times are reported by the
+     * route benchmark, next to those of the other algorithms.
+     */
+    private static void benchmarkHierarchy(String dbPath) throws IOException {
+        GraphDB g = new GraphDB(dbPath);
+        CompactGraph graph = g.compact();
+        long start = System.nanoTime();
+        ContractionHierarchy hierarchy = ContractionHierarchy.build(graph);
+        long built = System.nanoTime();
+        File file = File.createTempFile("hierarchy", ContractionHierarchy.SUFFIX);
+        file.deleteOnExit();
+        hierarchy.write(file);
+        long readStart = System.nanoTime();
+        ContractionHierarchy read = ContractionHierarchy.read(file, graph);
+        long readEnd = System.nanoTime();
+        int edges = hierarchy.edgeCount() - hierarchy.shortcutCount();
+        System.out.println(String.format("%s: %d vertices, %d edges", dbPath, graph.size(), edges));
+        System.out.println(String.format("  Contracted in %.1f s with %d processors",
+                (built - start) / 1e9, Runtime.getRuntime().availableProcessors()));
+        System.out.println(String.format("  %d shortcuts (%.2f per edge), %d upward edges",
+                hierarchy.shortcutCount(), (double) hierarchy.shortcutCount() / edges,
+                hierarchy.edgeCount()));
+        System.out.println(String.format("  %d bytes on disk, read back in %.1f ms%s",
+                file.length(), (readEnd - readStart) / 1e6, read == null ? ", READ FAILED" : ""));
+    }
+
+    /**
+     * Times a TABLE_SIZE x TABLE_SIZE distance table between random vertices, against what the
+     * same table would take as one CH route per cell, and checks a sample of its cells against
+     * the length of the route A* finds. Then times the table again with TRAFFIC_ROADS changed.
+     */
+    private static void benchmarkTable(String dbPath) {
+        GraphDB g = new GraphDB(dbPath);
+        CompactGraph graph = g.compact();
+        g.hierarchy();
+        Random random = new Random(SEED);
+        double[][] points = new double[4][TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i += 1) {
+            for (int side = 0; side < 2; side += 1) {
+                int v = random.nextInt(graph.size());
+                points[2 * side][i] = graph.lon(v);
+                points[2 * side + 1][i] = graph.lat(v);
+            }
+        }
+        double[] distances = null;
+        long nanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+            long start = System.nanoTime();
+            distances = Router.distanceTable(g, points[0], points[1], points[2], points[3]);
+            if (round >= WARMUP_ROUNDS) {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        long routeNanos = 0;
+        double maxError = 0;
+        for (int k = 0; k < TABLE_CHECKS; k += 1) {
+            int i = random.nextInt(TABLE_SIZE);
+            int j = random.nextInt(TABLE_SIZE);
+            long start = System.nanoTime();
+            Router.shortestPathVertices(g, points[0][i], points[1][i], points[2][j], points[3][j],
+                    Router.Algorithm.CH, null);
+            routeNanos += System.nanoTime() - start;
+            int[] path = Router.shortestPathVertices(g, points[0][i], points[1][i],
+                    points[2][j], points[3][j]);
+            double length = 0;
+            for (int p = 1; p < path.length; p += 1) {
+                length += GraphDB.distance(graph.lon(path[p - 1]), graph.lat(path[p - 1]),
+                        graph.lon(path[p]), graph.lat(path[p]));
+            }
+            double expected = path.length == 0 ? Double.POSITIVE_INFINITY : length;
+            double error = expected == distances[i * TABLE_SIZE + j] ? 0
+                    : Math.abs(expected - distances[i * TABLE_SIZE + j]);
+            maxError = Math.max(maxError, error);
+        }
+        System.out.println(String.format("%s: %d x %d table, %d processors", dbPath, TABLE_SIZE,
+                TABLE_SIZE, Runtime.getRuntime().availableProcessors()));
+        System.out.println(String.format("  %-22s %10.1f ms", "Table", nanos / 1e6 / ROUNDS));
+        System.out.println(String.format("  %-22s %10.1f ms, estimated from %d routes",
+                "One CH route per cell", routeNanos / 1e6 / TABLE_CHECKS * TABLE_SIZE * TABLE_SIZE,
+                TABLE_CHECKS));
+        System.out.println(String.format("  Largest difference from A* in %d cells: %.2e miles",
+                TABLE_CHECKS, maxError));
+
+        //The hierarchy only gives lower bounds once roads change, so the table is searched.
+        long[] from = new long[TRAFFIC_ROADS];
+        long[] to = new long[TRAFFIC_ROADS];
+        g.setRoadFactors(from, to, randomRoadFactors(graph, random, from, to));
+        long weightedNanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+            long start = System.nanoTime();
+            Router.distanceTable(g, points[0], points[1], points[2], points[3]);
+            if (round >= WARMUP_ROUNDS) {
+                weightedNanos += System.nanoTime() - start;
+            }
+        }
+        g.resetRoadFactors();
+        System.out.println(String.format("  %-22s %10.1f ms, with %d roads changed",
+                "Table", weightedNanos / 1e6 / ROUNDS, TRAFFIC_ROADS));
+    }
+
+    /**
+     * Times isochrones from an origin dragged in ISOCHRONE_STEPS steps between two random
+     * vertices, as a user would drag it across the map, for a few distances, and reports how
+     * many vertices they reach, how many corners their boundaries have and how many bytes each
+     * allocates.
+     */
+    private static void benchmarkIsochrone(String dbPath) {
+        GraphDB g = new GraphDB(dbPath);
+        CompactGraph graph = g.compact();
+        Random random = new Random(SEED);
+        int from = random.nextInt(graph.size());
+        int to = random.nextInt(graph.size());
+        System.out.println(String.format("%s: %d vertices, origin dragged over %.2f miles", dbPath,
+                graph.size(), GraphDB.distance(graph.lon(from), graph.lat(from), graph.lon(to),
+                        graph.lat(to))));
+        for (double miles : ISOCHRONE_DISTANCES) {
+            long reached = 0;
+            long corners = 0;
+            long nanos = 0;
+            long allocated = 0;
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+                long before = allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < ISOCHRONE_STEPS; i += 1) {
+                    double t = (double) i / ISOCHRONE_STEPS;
+                    Isochrone isochrone = Router.isochrone(g,
+                            graph.lon(from) + (graph.lon(to) - graph.lon(from)) * t,
+                            graph.lat(from) + (graph.lat(to) - graph.lat(from)) * t, miles);
+                    if (round == 0) {
+                        reached += isochrone.size();
+                        corners += isochrone.boundarySize();
+                    }
+                }
+                if (round >= WARMUP_ROUNDS) {
+                    nanos += System.nanoTime() - start;
+                    allocated += allocatedBytes() - before;
+                }
+            }
+            System.out.println(String.format("  %5.2f miles %8.3f ms/isochrone %10.1f vertices"
+                    + " %8.1f corners %10.1f bytes/isochrone", miles,
+                    nanos / 1e6 / ROUNDS / ISOCHRONE_STEPS, (double) reached / ISOCHRONE_STEPS,
+                    (double) corners / ISOCHRONE_STEPS,
+                    (double) allocated / ROUNDS / ISOCHRONE_STEPS));
+        }
+    }
+
+    /**
+     * Compares routes found by plain A* with those found counting turns, between random vertices:
+     * how long they take, how much of the graph they search, how long the routes are and how many
+     * left turns the directions for them have.
+     */
+    private static void benchmarkTurns(String dbPath) {
+        GraphDB g = new GraphDB(dbPath);
+        CompactGraph graph = g.compact();
+        long start = System.nanoTime();
+        g.turnCosts();
+        System.out.println(String.format("%s: %d vertices, %d edges, %d forbidden turns, turn costs"
+                + " computed in %.1f ms", dbPath, graph.size(), graph.edgeCount(),
+                graph.forbiddenTurnCount(), (System.nanoTime() - start) / 1e6));
+        Random random = new Random(SEED);
+        int[][] routes = new int[RANDOM_ROUTES][];
+        for (int i = 0; i < routes.length; i += 1) {
+            routes[i] = new int[]{random.nextInt(graph.size()), random.nextInt(graph.size())};
+        }
+        for (boolean turns : new boolean[]{false, true}) {
+            Router.SearchStats stats = new Router.SearchStats();
+            double miles = 0;
+            long leftTurns = 0;
+            long nanos = 0;
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+                for (int[] route : routes) {
+                    long before = System.nanoTime();
+                    int[] path = turns
+                            ? Router.turnAwarePathVertices(g, route[0], route[1], round == 0 ? stats : null)
+                            : Router.shortestPathVertices(g, route[0], route[1], Router.Algorithm.ASTAR,
+                                    round == 0 ? stats : null);
+                    if (round >= WARMUP_ROUNDS) {
+                        nanos += System.nanoTime() - before;
+                    }
+                    if (round == 0) {
+                        for (int i = 1; i < path.length; i += 1) {
+                            miles += graph.weight(graph.findEdge(path[i - 1], path[i]));
+                        }
+                        for (Router.NavigationDirection direction : Router.routeDirections(g, path)) {
+                            if (direction.direction == Router.NavigationDirection.LEFT
+                                    || direction.direction == Router.NavigationDirection.SHARP_LEFT) {
+                                leftTurns += 1;
+                            }
+                        }
+                    }
+                }
+            }
+            System.out.println(String.format("  %-14s %8.3f ms/route %10.1f settled/route"
+                    + " %8.3f miles/route %6.2f left turns/route", turns ? "TURNS" : "ASTAR",
+                    nanos / 1e6 / ROUNDS / routes.length, (double) stats.settled / routes.length,
+                    miles / routes.length, (double) leftTurns / routes.length));
+        }
+    }
+
+    /**
+     * Times finding ALTERNATIVES alternatives between random vertices, against one A* route, and
+     * reports how many are found and how much longer than the shortest route they are.
+     */
+    private static void benchmarkAlternatives(String dbPath) {
+        GraphDB g = new GraphDB(dbPath);
+        CompactGraph graph = g.compact();
+        Random random = new Random(SEED);
+        int[][] routes = new int[RANDOM_ROUTES][];
+        for (int i = 0; i < routes.length; i += 1) {
+            routes[i] = new int[]{random.nextInt(graph.size()), random.nextInt(graph.size())};
+        }
+        System.out.println(String.format("%s: %d vertices, %d routes with up to %d alternatives",
+                dbPath, graph.size(), routes.length, ALTERNATIVES));
+        Router.SearchStats astarStats = new Router.SearchStats();
+        Router.SearchStats stats = new Router.SearchStats();
+        long astarNanos = 0;
+        long nanos = 0;
+        long found = 0;
+        double stretch = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+            for (int[] route : routes) {
+                long before = System.nanoTime();
+                Router.shortestPathVertices(g, route[0], route[1], Router.Algorithm.ASTAR,
+                        round == 0 ? astarStats : null);
+                long between = System.nanoTime();
+                AlternativeRoutes alternatives = Router.alternativeRoutes(g, route[0], route[1],
+                        ALTERNATIVES, round == 0 ? stats : null);
+                if (round >= WARMUP_ROUNDS) {
+                    astarNanos += between - before;
+                    nanos += System.nanoTime() - between;
+                }
+                if (round == 0) {
+                    for (int i = 1; i < alternatives.size(); i += 1) {
+                        found += 1;
+                        stretch += alternatives.length(i) / alternatives.length(0);
+                    }
+                }
+            }
+        }
+        System.out.println(String.format("  %-14s %8.3f ms/route %10.1f settled/route", "ASTAR",
+                astarNanos / 1e6 / ROUNDS / routes.length,
+                (double) astarStats.settled / routes.length));
+        System.out.println(String.format("  %-14s %8.3f ms/route %10.1f settled/route"
+                + " %6.2f alternatives/route %6.3f mean stretch", "ALTERNATIVES",
+                nanos / 1e6 / ROUNDS / routes.length, (double) stats.settled / routes.length,
+                (double) found / routes.length, found == 0 ? 0 : stretch / found));
+    }
+
+    /**
+     * Compares every algorithm finding the shortest routes with finding the quickest ones between
+     * the same random vertices, and reports how much time the quickest routes save over the
+     * shortest and how much longer they are.
+     */
+    private static void benchmarkWeighting(String dbPath) {
+        GraphDB g = new GraphDB(dbPath);
+        CompactGraph graph = g.compact();
+        CompactGraph timeGraph = g.compact(Router.Weighting.TIME);
+        Random random = new Random(SEED);
+        int[][] routes = new int[RANDOM_ROUTES][];
+        for (int i = 0; i < routes.length; i += 1) {
+            routes[i] = new int[]{random.nextInt(graph.size()), random.nextInt(graph.size())};
+        }
+        System.out.println(String.format("%s: %d vertices, %d routes", dbPath, graph.size(),
+                routes.length));
+        for (Router.Weighting weighting : Router.Weighting.values()) {
+            g.hierarchy(weighting);
+            g.landmarks(weighting);
+            for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+                Router.SearchStats stats = new Router.SearchStats();
+                long nanos = 0;
+                for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+                    for (int[] route : routes) {
+                        long start = System.nanoTime();
+                        Router.shortestPathVertices(g, route[0], route[1], algorithm, weighting,
+                                round == 0 ? stats : null);
+                        if (round >= WARMUP_ROUNDS) {
+                            nanos += System.nanoTime() - start;
+                        }
+                    }
+                }
+                System.out.println(String.format("  %-8s %-14s %8.3f ms/route"
+                        + " %10.1f settled/route", weighting, algorithm,
+                        nanos / 1e6 / ROUNDS / routes.length,
+                        (double) stats.settled / routes.length));
+            }
+        }
+        double shortestMiles = 0;
+        double shortestSeconds = 0;
+        double quickestMiles = 0;
+        double quickestSeconds = 0;
+        for (int[] route : routes) {
+            int[] shortest = Router.shortestPathVertices(g, route[0], route[1],
+                    Router.Algorithm.CH, Router.Weighting.DISTANCE, null);
+            int[] quickest = Router.shortestPathVertices(g, route[0], route[1],
+                    Router.Algorithm.CH, Router.Weighting.TIME, null);
+            shortestMiles += Router.routeCost(graph, shortest);
+            shortestSeconds += Router.routeCost(timeGraph, shortest);
+            quickestMiles += Router.routeCost(graph, quickest);
+            quickestSeconds += Router.routeCost(timeGraph, quickest);
+        }
+        System.out.println(String.format("  Shortest routes %8.3f miles %8.1f s/route",
+                shortestMiles / routes.length, shortestSeconds / routes.length));
+        System.out.println(String.format("  Quickest routes %8.3f miles %8.1f s/route",
+                quickestMiles / routes.length, quickestSeconds / routes.length));
+    }
+
+    /**
+     * Routes BATCH_PAIRS random pairs of points one after another, as separate route requests
+     * would, and then as one batch on BatchRouter with every number of threads up to the number
+     * of processors, reporting routes per second and the speedup over routing one after another.
+     */
+    private static void benchmarkBatch(String dbPath) throws IOException {
+        GraphDB g = new GraphDB(dbPath);
+        CompactGraph graph = g.compact();
+        g.hierarchy();
+        Random random = new Random(SEED);
+        double[][] pairs = new double[4][BATCH_PAIRS];
+        for (int i = 0; i < BATCH_PAIRS; i += 1) {
+            int start = random.nextInt(graph.size());
+            int end = random.nextInt(graph.size());
+            pairs[0][i] = graph.lon(start);
+            pairs[1][i] = graph.lat(start);
+            pairs[2][i] = graph.lon(end);
+            pairs[3][i] = graph.lat(end);
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        System.out.println(String.format("%s: %d vertices, %d pairs, %d processors", dbPath,
+                graph.size(), BATCH_PAIRS, processors));
+        long nanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+            long start = System.nanoTime();
+            for (int i = 0; i < BATCH_PAIRS; i += 1) {
+                Router.shortestPathVertices(g, pairs[0][i], pairs[1][i], pairs[2][i],
+                        pairs[3][i], Router.Algorithm.CH, null);
+            }
+            if (round >= WARMUP_ROUNDS) {
+                nanos += System.nanoTime() - start;
+            }
+        }
+        double sequential = BATCH_PAIRS * ROUNDS / (nanos / 1e9);
+        System.out.println(String.format("  %-12s %10.0f routes/s", "One by one", sequential));
+        for (int threads = 1; threads <= processors; threads *= 2) {
+            BatchRouter batchRouter = new BatchRouter(threads);
+            nanos = 0;
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+                long start = System.nanoTime();
+                batchRouter.route(g, pairs[0], pairs[1], pairs[2], pairs[3], Router.Algorithm.CH,
+                        Router.Weighting.DISTANCE, (index, vertices) -> vertices,
+                        results -> { });
+                if (round >= WARMUP_ROUNDS) {
+                    nanos += System.nanoTime() - start;
+                }
+            }
+            batchRouter.shutdown();
+            double perSecond = BATCH_PAIRS * ROUNDS / (nanos / 1e9);
+            System.out.println(String.format("  %2d threads   %10.0f routes/s %6.2fx", threads,
+                    perSecond, perSecond / sequential));
+            if (threads < processors && threads * 2 > processors) {
+                threads = processors / 2;
+            }
+        }
+    }
+
+    /**
+     * Times how long it takes to close half of TRAFFIC_ROADS random roads and slow the others
+     * down by CONGESTION, and compares every algorithm on random routes before and after, when
+     * the contraction hierarchy and landmarks only give lower bounds for the changed weights.
+     */
+    private static void benchmarkTraffic(String dbPath) {
+        GraphDB g = new GraphDB(dbPath);
+        CompactGraph graph = g.compact();
+        g.hierarchy();
+        g.landmarks();
+        Random random = new Random(SEED);
+        int[][] routes = new int[RANDOM_ROUTES][];
+        for (int i = 0; i < routes.length; i += 1) {
+            routes[i] = new int[]{random.nextInt(graph.size()), random.nextInt(graph.size())};
+        }
+        long[] from = new long[TRAFFIC_ROADS];
+        long[] to = new long[TRAFFIC_ROADS];
+        double[] factors = randomRoadFactors(graph, random, from, to);
+        System.out.println(String.format("%s: %d vertices, %d routes, %d roads changed", dbPath,
+                graph.size(), routes.length, TRAFFIC_ROADS));
+        long nanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+            long start = System.nanoTime();
+            g.setRoadFactors(from, to, factors);
+            if (round >= WARMUP_ROUNDS) {
+                nanos += System.nanoTime() - start;
+            }
+            g.resetRoadFactors();
+        }
+        System.out.println(String.format("  %-14s %8.3f ms", "Update",
+                nanos / 1e6 / ROUNDS));
+        String[] names = {"free", "traffic"};
+        for (int i = 0; i < names.length; i += 1) {
+            if (i == 1) {
+                g.setRoadFactors(from, to, factors);
+            }
+            for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+                Router.SearchStats stats = new Router.SearchStats();
+                long routeNanos = 0;
+                for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round += 1) {
+                    for (int[] route : routes) {
+                        long start = System.nanoTime();
+                        Router.shortestPathVertices(g, route[0], route[1], algorithm,
+                                round == 0 ? stats : null);
+                        if (round >= WARMUP_ROUNDS) {
+                            routeNanos += System.nanoTime() - start;
+                        }
+                    }
+                }
+                System.out.println(String.format("  %-7s %-14s %8.3f ms/route"
+                        + " %10.1f settled/route", names[i], algorithm,
+                        routeNanos / 1e6 / ROUNDS / routes.length,
+                        (double) stats.settled / routes.length));
+            }
+        }
+    }
+
+    /**
+     * Picks TRAFFIC_ROADS random roads, half of them to close and the others to slow down by
+     * CONGESTION.
+     * @param from Receives the id of the node every road starts at.
+     * @param to Receives the id of the node every road ends at.
+     * @return The factor of every road.
+     */
+    private static double[] randomRoadFactors(CompactGraph graph, Random random, long[] from,
+                                              long[] to) {
+        double[] factors = new double[TRAFFIC_ROADS];
+        for (int i = 0; i < TRAFFIC_ROADS; i += 1) {
+            int e = random.nextInt(graph.edgeCount());
+            int v = 0;
+            while (graph.endEdge(v) <= e) {
+                v += 1;
+            }
+            from[i] = graph.id(v);
+            to[i] = graph.id(graph.target(e));
+            factors[i] = i % 2 == 0 ? GraphDB.CLOSED : CONGESTION;
+        }
+        return factors;
+    }
+
+    /**
+     * Reads the start and end points of the routes in path_params.txt, in the same format as
+     * TestRouter reads them.
+     * @return The longitude and latitude of the start and end of every route.
+     */
+    static double[][] routeParams() throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
+        List<double[]> routes = new ArrayList<>();
+        //Skip the two comment lines.
+        for (int i = 2; i + 3 < lines.size(); i += 4) {
+            double[] route = new double[4];
+            for (int j = 0; j < 4; j += 1) {
+                route[j] = Double.parseDouble(lines.get(i + j));
+            }
+            routes.add(route);
+        }
+        return routes.toArray(new double[0][]);
+    }
+
+    /** Returns the heap in use after a full garbage collection. */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i += 1) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Returns the number of bytes allocated so far by the current thread. */
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
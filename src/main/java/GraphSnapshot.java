@@ -0,0 +1,376 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes a compiled binary snapshot of a GraphDB, so that the OSM XML only has to be
+ * parsed once. The snapshot is opened through a memory-mapped FileChannel: the coordinates of all
+ * nodes are served straight from the mapping, and the CSR arrays of the routable graph are filled
+ * with bulk copies, so loading does no per-element parsing apart from the string tables.
+ *
+ * The layout is, in order, with all numbers big-endian:
+ * <pre>
+ *   header      magic, version, source length, source modification time, vertex count n,
+ *               edge count m, node count N, street count, name count, forbidden turn count t
+ *               (48 bytes)
+ *   vertices    long[n] ids, double[n] lons, double[n] lats
+ *   nodes       long[N] ids, double[N] lons, double[N] lats
+ *   adjacency   int[n + 1] offsets, int[m] targets, int[m] street id of every edge
+ *   highways    byte[m] highway class of every edge, padded with zeros to a multiple of 8
+ *   maxspeeds   byte[m] speed limit of every edge in miles per hour, padded the same way
+ *   turns       long[t] forbidden turns, as CompactGraph keeps them
+ *   streets     the street dictionary, each name as an int byte length and UTF-8 bytes
+ *   names       for every cleaned name: the cleaned name, the actual name, and its locations
+ * </pre>
+ *
+ * A snapshot is written to a temporary file next to it and then moved into place, so that a
+ * build that is interrupted leaves the old snapshot or none, never part of one. The file is
+ * mapped as a single buffer, so snapshots over 2 GB are not supported: write refuses to leave
+ * one behind, and a graph that large is parsed from its OSM file every time.
+ */
+final class GraphSnapshot {
+    /** Identifies a snapshot file; the bytes spell "BRGS". */
+    static final int MAGIC = 0x42524753;
+    /** Bumped whenever the layout changes, so that stale snapshots are ignored. */
+    static final int VERSION = 4;
+    /** Suffix appended to the OSM file path to find its snapshot. */
+    static final String SUFFIX = ".snapshot";
+    private static final int HEADER_BYTES = 48;
+    /** The largest file that can be mapped as one buffer. */
+    static final long MAX_BYTES = Integer.MAX_VALUE;
+
+    private GraphSnapshot() {
+    }
+
+    /** Returns where the snapshot of the given OSM file lives. */
+    static File snapshotFor(String dbPath) {
+        return new File(dbPath + SUFFIX);
+    }
+
+    /**
+     * Checks whether a snapshot exists and was built from the current version of its source. A
+     * snapshot whose source file is missing is still considered usable.
+     * @param snapshot The snapshot file.
+     * @param source The OSM file the snapshot should have been built from.
+     * @return True if the snapshot can be loaded in place of the source.
+     */
+    static boolean isUpToDate(File snapshot, File source) {
+        if (!snapshot.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(snapshot))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            long length = in.readLong();
+            long modified = in.readLong();
+            return !source.exists()
+                    || (source.length() == length && source.lastModified() == modified);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the snapshot of a fully built graph, replacing any snapshot already there only once
+     * the new one is complete.
+     * @param g The graph to write.
+     * @param source The OSM file the graph was built from, recorded for staleness checks.
+     * @param snapshot The file to write to.
+     * @throws IOException If the file cannot be written, or would be larger than MAX_BYTES.
+     */
+    static void write(GraphDB g, File source, File snapshot) throws IOException {
+        CompactGraph graph = g.compact();
+        LongBuffer nodeIds = g.nodeIds();
+        DoubleBuffer nodeLons = g.nodeLons();
+        DoubleBuffer nodeLats = g.nodeLats();
+        int n = graph.size();
+        int m = graph.edgeCount();
+        int nodeCount = nodeIds.limit();
+
+        File temp = tempFileFor(snapshot);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeInt(n);
+            out.writeInt(m);
+            out.writeInt(nodeCount);
+            out.writeInt(graph.streetCount());
+            out.writeInt(g.locationKey.size());
+            out.writeInt(graph.forbiddenTurnCount());
+
+            for (int v = 0; v < n; v += 1) {
+                out.writeLong(graph.id(v));
+            }
+            for (int v = 0; v < n; v += 1) {
+                out.writeDouble(graph.lon(v));
+            }
+            for (int v = 0; v < n; v += 1) {
+                out.writeDouble(graph.lat(v));
+            }
+            for (int i = 0; i < nodeCount; i += 1) {
+                out.writeLong(nodeIds.get(i));
+            }
+            for (int i = 0; i < nodeCount; i += 1) {
+                out.writeDouble(nodeLons.get(i));
+            }
+            for (int i = 0; i < nodeCount; i += 1) {
+                out.writeDouble(nodeLats.get(i));
+            }
+            for (int v = 0; v <= n; v += 1) {
+                out.writeInt(v == n ? m : graph.firstEdge(v));
+            }
+            for (int e = 0; e < m; e += 1) {
+                out.writeInt(graph.target(e));
+            }
+            for (int e = 0; e < m; e += 1) {
+                out.writeInt(graph.streetId(e));
+            }
+            for (int e = 0; e < m; e += 1) {
+                out.writeByte(graph.highway(e));
+            }
+            for (int i = m; i < padded(m); i += 1) {
+                out.writeByte(0);
+            }
+            for (int e = 0; e < m; e += 1) {
+                out.writeByte(graph.maxspeed(e));
+            }
+            for (int i = m; i < padded(m); i += 1) {
+                out.writeByte(0);
+            }
+            for (int i = 0; i < graph.forbiddenTurnCount(); i += 1) {
+                out.writeLong(graph.forbiddenTurn(i));
+            }
+
+            for (int street = 0; street < graph.streetCount(); street += 1) {
+                writeString(out, graph.streetName(street));
+            }
+            for (Map.Entry<String, List<Long>> entry : g.locationKey.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, g.nameKey.get(entry.getKey()));
+                out.writeInt(entry.getValue().size());
+                for (long id : entry.getValue()) {
+                    out.writeLong(id);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+        if (temp.length() > MAX_BYTES) {
+            temp.delete();
+            throw new IOException("Snapshot of " + source + " would be " + temp.length()
+                    + " bytes; snapshots over " + MAX_BYTES + " bytes are not supported");
+        }
+        replace(temp, snapshot);
+    }
+
+    /**
+     * Returns a new empty file in the directory of target, to be written in full and then moved
+     * over target with replace.
+     */
+    static File tempFileFor(File target) throws IOException {
+        return File.createTempFile(target.getName(), ".tmp",
+                target.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Moves a fully written file over target in one step where the file system allows it, so
+     * that a reader of target sees either the old file or the new one.
+     * @param written The file to move, which is gone afterwards.
+     * @param target The file to replace.
+     */
+    static void replace(File written, File target) throws IOException {
+        try {
+            Files.move(written.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(written.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            written.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a snapshot as a new graph.
+     * @param snapshot The snapshot file.
+     * @return The graph stored in the snapshot.
+     */
+    static GraphDB open(File snapshot) throws IOException {
+        GraphDB g = new GraphDB();
+        load(snapshot, g);
+        return g;
+    }
+
+    /**
+     * Maps a snapshot into memory and installs it into an empty graph.
+     * @param snapshot The snapshot file.
+     * @param g The graph to populate. It is left untouched if the snapshot cannot be read.
+     * @throws IOException If the file cannot be read, is not a snapshot of this version, is
+     * larger than MAX_BYTES, or is shorter than its header says.
+     */
+    static void load(File snapshot, GraphDB g) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > MAX_BYTES) {
+                throw new IOException("Snapshots over " + MAX_BYTES + " bytes are not supported: "
+                        + snapshot);
+            }
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException("Truncated graph snapshot: " + snapshot);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a graph snapshot of version " + VERSION + ": " + snapshot);
+        }
+        buffer.getLong();
+        buffer.getLong();
+        int n = buffer.getInt();
+        int m = buffer.getInt();
+        int nodeCount = buffer.getInt();
+        int streetCount = buffer.getInt();
+        int nameCount = buffer.getInt();
+        int turnCount = buffer.getInt();
+        //Every fixed-size section must fit in the file before any of it is read; once it does,
+        //all of the int positions below are within the file and cannot overflow.
+        long fixedBytes = HEADER_BYTES + 24L * n + 24L * nodeCount + 4L * (n + 1) + 8L * m
+                + 2L * padded(m) + 8L * turnCount;
+        if (n < 0 || m < 0 || nodeCount < 0 || streetCount < 0 || nameCount < 0 || turnCount < 0
+                || fixedBytes > buffer.capacity()) {
+            throw new IOException("Truncated graph snapshot: " + snapshot);
+        }
+
+        int position = HEADER_BYTES;
+        long[] ids = new long[n];
+        slice(buffer, position, n * 8).asLongBuffer().get(ids);
+        position += n * 8;
+        double[] lons = new double[n];
+        slice(buffer, position, n * 8).asDoubleBuffer().get(lons);
+        position += n * 8;
+        double[] lats = new double[n];
+        slice(buffer, position, n * 8).asDoubleBuffer().get(lats);
+        position += n * 8;
+
+        LongBuffer nodeIds = slice(buffer, position, nodeCount * 8).asLongBuffer();
+        position += nodeCount * 8;
+        DoubleBuffer nodeLons = slice(buffer, position, nodeCount * 8).asDoubleBuffer();
+        position += nodeCount * 8;
+        DoubleBuffer nodeLats = slice(buffer, position, nodeCount * 8).asDoubleBuffer();
+        position += nodeCount * 8;
+
+        int[] offsets = new int[n + 1];
+        slice(buffer, position, (n + 1) * 4).asIntBuffer().get(offsets);
+        position += (n + 1) * 4;
+        int[] targets = new int[m];
+        slice(buffer, position, m * 4).asIntBuffer().get(targets);
+        position += m * 4;
+        int[] streets = new int[m];
+        slice(buffer, position, m * 4).asIntBuffer().get(streets);
+        position += m * 4;
+        byte[] highways = new byte[m];
+        slice(buffer, position, m).get(highways);
+        position += padded(m);
+        byte[] maxspeeds = new byte[m];
+        slice(buffer, position, m).get(maxspeeds);
+        position += padded(m);
+        long[] forbiddenTurns = new long[turnCount];
+        slice(buffer, position, turnCount * 8).asLongBuffer().get(forbiddenTurns);
+        position += turnCount * 8;
+
+        buffer.position(position);
+        String[] streetNames = new String[streetCount];
+        Map<String, String> nameKey = new HashMap<>();
+        Map<String, List<Long>> locationKey = new HashMap<>();
+        Map<Long, String> nodeNames = new HashMap<>();
+        try {
+            for (int i = 0; i < streetCount; i += 1) {
+                streetNames[i] = readString(buffer);
+            }
+            for (int i = 0; i < nameCount; i += 1) {
+                String cleaned = readString(buffer);
+                nameKey.put(cleaned, readString(buffer));
+                int count = buffer.getInt();
+                if (count > buffer.remaining() / 8) {
+                    throw new BufferUnderflowException();
+                }
+                List<Long> locations = new ArrayList<>(count);
+                for (int j = 0; j < count; j += 1) {
+                    long id = buffer.getLong();
+                    locations.add(id);
+                    nodeNames.put(id, cleaned);
+                }
+                locationKey.put(cleaned, locations);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            //The string tables have no fixed size, so a cut in them only shows up here.
+            throw new IOException("Truncated graph snapshot: " + snapshot, e);
+        }
+
+        g.restore(new CompactGraph(ids, lons, lats, offsets, targets, streets, streetNames, highways,
+                maxspeeds, forbiddenTurns),
+                nodeIds, nodeLons, nodeLats, nodeNames);
+        g.nameKey = nameKey;
+        g.locationKey = locationKey;
+    }
+
+    /** Rounds a byte count up to a multiple of 8, keeping later sections aligned. */
+    private static int padded(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    /** Returns an independent view of length bytes of the buffer, starting at position. */
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.limit(position + length);
+        return view.slice();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
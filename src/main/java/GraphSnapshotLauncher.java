@@ -0,0 +1,119 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class provides a main method for compiling an OSM XML file into the binary snapshot that
+ * GraphDB prefers at startup, and for checking that a snapshot matches the XML it came from.
+ * Usage:
+ * <pre>
+ *   GraphSnapshotLauncher build [osm file] [routable-only]
+ *   GraphSnapshotLauncher validate [osm file] [routable-only]
+ *   GraphSnapshotLauncher hierarchy [osm file] [routable-only]
+ * </pre>
+ * The snapshot is written next to the OSM file, with GraphSnapshot.SUFFIX appended to its name.
+ * The hierarchy command contracts the graph, loaded from its snapshot if there is one, and writes
+ * the contraction hierarchies used by Router.Algorithm.CH next to it with ContractionHierarchy.SUFFIX
+ * appended to its name, one for each Router.Weighting.
+ * With routable-only, the file is imported with RoutableOnlyImporter, which gives a much smaller
+ * snapshot without the nodes that are neither on a road nor named; validate must then be given
+ * the same option.
+ */
+public class GraphSnapshotLauncher {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: GraphSnapshotLauncher (build | validate | hierarchy) [osm file]"
+                    + " [routable-only]");
+            return;
+        }
+        String dbPath = args.length > 1 ? args[1] : OSM_DB_PATH;
+        File snapshot = GraphSnapshot.snapshotFor(dbPath);
+        OsmImporter importer = OsmImporter.forPath(dbPath);
+        if (args.length > 2 && args[2].equals("routable-only")) {
+            importer = OsmImporter.routableOnly(importer);
+        }
+
+        if (args[0].equals("build")) {
+            long start = System.currentTimeMillis();
+            GraphDB g = new GraphDB(dbPath, importer, false);
+            long parsed = System.currentTimeMillis();
+            GraphSnapshot.write(g, new File(dbPath), snapshot);
+            System.out.println("Parsed " + dbPath + " in " + (parsed - start) + " ms and wrote "
+                    + snapshot + " (" + snapshot.length() + " bytes) in "
+                    + (System.currentTimeMillis() - parsed) + " ms.");
+        } else if (args[0].equals("validate")) {
+            if (!GraphSnapshot.isUpToDate(snapshot, new File(dbPath))) {
+                System.out.println(snapshot + " is missing or out of date.");
+                System.exit(1);
+            }
+            GraphDB expected = new GraphDB(dbPath, importer, false);
+            long start = System.currentTimeMillis();
+            GraphDB actual = GraphSnapshot.open(snapshot);
+            System.out.println("Opened " + snapshot + " in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+
+            List<String> problems = compare(expected, actual);
+            for (String problem : problems) {
+                System.out.println(problem);
+            }
+            System.out.println(problems.isEmpty() ? "Snapshot is valid." : "Snapshot is INVALID.");
+            if (!problems.isEmpty()) {
+                System.exit(1);
+            }
+        } else if (args[0].equals("hierarchy")) {
+            GraphDB g = new GraphDB(dbPath, importer, true);
+            for (Router.Weighting weighting : Router.Weighting.values()) {
+                long start = System.currentTimeMillis();
+                ContractionHierarchy hierarchy = ContractionHierarchy.build(g.compact(weighting));
+                long built = System.currentTimeMillis();
+                File file = ContractionHierarchy.fileFor(dbPath, weighting);
+                hierarchy.write(file);
+                System.out.println("Contracted " + g.compact().size() + " vertices by " + weighting
+                        + " in " + (built - start) + " ms, adding " + hierarchy.shortcutCount()
+                        + " shortcuts, and wrote " + file + " (" + file.length() + " bytes).");
+            }
+        } else {
+            System.out.println("Unknown command " + args[0]);
+        }
+    }
+
+    /**
+     * Compares every vertex, edge, coordinate and name of two graphs.
+     * @return A description of each difference found, stopping after the first few.
+     */
+    private static List<String> compare(GraphDB expected, GraphDB actual) {
+        List<String> problems = new ArrayList<>();
+        CompactGraph a = expected.compact();
+        CompactGraph b = actual.compact();
+        if (a.size() != b.size() || a.edgeCount() != b.edgeCount()) {
+            problems.add("Graph sizes differ: " + a.size() + "/" + a.edgeCount() + " vertices/edges"
+                    + " expected, " + b.size() + "/" + b.edgeCount() + " found.");
+            return problems;
+        }
+        for (int v = 0; v < a.size() && problems.size() < 10; v += 1) {
+            if (a.id(v) != b.id(v) || a.lon(v) != b.lon(v) || a.lat(v) != b.lat(v)
+                    || a.firstEdge(v) != b.firstEdge(v)) {
+                problems.add("Vertex " + a.id(v) + " differs.");
+            }
+        }
+        for (int e = 0; e < a.edgeCount() && problems.size() < 10; e += 1) {
+            if (a.target(e) != b.target(e) || !a.street(e).equals(b.street(e))
+                    || a.highway(e) != b.highway(e) || a.maxspeed(e) != b.maxspeed(e)) {
+                problems.add("Edge " + e + " differs.");
+            }
+        }
+        if (!expected.nodeIds().equals(actual.nodeIds())
+                || !expected.nodeLons().equals(actual.nodeLons())
+                || !expected.nodeLats().equals(actual.nodeLats())) {
+            problems.add("Node coordinates differ.");
+        }
+        if (!expected.nameKey.equals(actual.nameKey)
+                || !expected.locationKey.equals(actual.locationKey)) {
+            problems.add("Names or locations differ.");
+        }
+        return problems;
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of vertices keyed by double priorities, stored in primitive arrays. Every
+ * vertex knows its slot in the heap, so the heap supports a true decrease-key instead of the
+ * remove-and-add a java.util.PriorityQueue needs, and a vertex is only ever in the heap once.
+ *
+ * @variable heap: The vertex in every slot of the heap, in heap order.
+ * @variable keys: The priority of the vertex in every slot, kept alongside heap so that sifting
+ * does not jump around a vertex-indexed array.
+ * @variable slots: The slot of every vertex, or -1 if it is not in the heap.
+ * @variable operations: The number of inserts, decrease-keys and polls since the heap was made.
+ */
+final class IndexedMinHeap {
+    private final int[] heap;
+    private final double[] keys;
+    private final int[] slots;
+    private int size = 0;
+    private long operations = 0;
+
+    /**
+     * Creates an empty heap for vertices 0 to capacity - 1.
+     * @param capacity The number of vertices.
+     */
+    IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        keys = new double[capacity];
+        slots = new int[capacity];
+        Arrays.fill(slots, -1);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Returns whether vertex v is in the heap. */
+    boolean contains(int v) {
+        return slots[v] >= 0;
+    }
+
+    /** Returns the smallest priority in the heap, which must not be empty. */
+    double minKey() {
+        return keys[0];
+    }
+
+    /** Returns the number of inserts, decrease-keys and polls so far. */
+    long operations() {
+        return operations;
+    }
+
+    /**
+     * Inserts vertex v with the given priority, or lowers its priority if it is already in the
+     * heap with a higher one.
+     * @param v The vertex.
+     * @param key Its priority.
+     */
+    void push(int v, double key) {
+        int slot = slots[v];
+        if (slot < 0) {
+            slot = size;
+            size += 1;
+        } else if (key >= keys[slot]) {
+            return;
+        }
+        operations += 1;
+        siftUp(slot, v, key);
+    }
+
+    /**
+     * Removes the vertex with the smallest priority.
+     * @return The vertex removed.
+     */
+    int poll() {
+        operations += 1;
+        int min = heap[0];
+        slots[min] = -1;
+        size -= 1;
+        if (size > 0) {
+            siftDown(0, heap[size], keys[size]);
+        }
+        return min;
+    }
+
+    /** Empties the heap, in time proportional to the number of vertices left in it. */
+    void clear() {
+        for (int i = 0; i < size; i += 1) {
+            slots[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    /** Moves the hole at slot up until v with priority key can be put in it. */
+    private void siftUp(int slot, int v, double key) {
+        while (slot > 0) {
+            int parent = (slot - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            place(slot, heap[parent], keys[parent]);
+            slot = parent;
+        }
+        place(slot, v, key);
+    }
+
+    /** Moves the hole at slot down until v with priority key can be put in it. */
+    private void siftDown(int slot, int v, double key) {
+        while (true) {
+            int child = 2 * slot + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child += 1;
+            }
+            if (keys[child] >= key) {
+                break;
+            }
+            place(slot, heap[child], keys[child]);
+            slot = child;
+        }
+        place(slot, v, key);
+    }
+
+    private void place(int slot, int v, double key) {
+        heap[slot] = v;
+        keys[slot] = key;
+        slots[v] = slot;
+    }
+}
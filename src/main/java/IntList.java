@@ -0,0 +1,37 @@
+import java.util.Arrays;
+
+/** A growable list of ints, for paths and shortcut lists, that can be cleared and refilled. */
+final class IntList {
+    private int[] values = new int[16];
+    private int size = 0;
+
+    void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = value;
+        size += 1;
+    }
+
+    int get(int i) {
+        return values[i];
+    }
+
+    /** Removes the last value and returns it. */
+    int removeLast() {
+        size -= 1;
+        return values[size];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,312 @@
+/**
+ * The part of the map reachable within a distance budget from one vertex, for service area
+ * displays. It is found by Dijkstra's algorithm from the origin, stopped as soon as the next
+ * vertex is farther than the budget, in the calling thread's SearchWorkspace.
+ *
+ * The boundary is traced on a grid laid over the reached roads: every cell that a reachable
+ * stretch of road passes through is marked, including the part of a road leading out of the
+ * area up to where the budget runs out, and cells enclosed by marked ones, such as the inside of
+ * a block with reachable roads all around it, are filled in. The outline of the marked cells is
+ * a polygon that follows the roads, so unlike a convex hull it leaves out the parts of the map
+ * the roads do not get to, such as the hills beyond a dead end.
+ *
+ * @variable vertices: The reached vertices, in the order their distances were fixed.
+ * @variable distances: The distance in miles from the origin to every reached vertex.
+ * @variable boundaryLons, boundaryLats: The corners of the boundary, counterclockwise. The last
+ * corner connects back to the first.
+ */
+final class Isochrone {
+    /** The boundary grid has this many cells across the budget, or cells of MIN_CELL miles. */
+    private static final int CELLS_PER_BUDGET = 40;
+    /** The smallest cell, about five meters, so that tiny budgets do not trace single roads. */
+    private static final double MIN_CELL = 0.003;
+    /** The directions a boundary is traced in: east, north, west and south. */
+    private static final int[] DX = {1, 0, -1, 0};
+    private static final int[] DY = {0, 1, 0, -1};
+    /** The cell ahead and to the left of a corner when leaving it in every direction. */
+    private static final int[] LEFT_DX = {0, -1, -1, 0};
+    private static final int[] LEFT_DY = {0, 0, -1, -1};
+    private static final int SOUTH = 3;
+
+    private final int[] vertices;
+    private final double[] distances;
+    private final double[] boundaryLons;
+    private final double[] boundaryLats;
+
+    private Isochrone(int[] vertices, double[] distances, double[] boundaryLons,
+                      double[] boundaryLats) {
+        this.vertices = vertices;
+        this.distances = distances;
+        this.boundaryLons = boundaryLons;
+        this.boundaryLats = boundaryLats;
+    }
+
+    /** Returns the number of reached vertices. */
+    int size() {
+        return vertices.length;
+    }
+
+    /** Returns the i-th reached vertex. */
+    int vertex(int i) {
+        return vertices[i];
+    }
+
+    /** Returns the distance in miles from the origin to the i-th reached vertex. */
+    double distance(int i) {
+        return distances[i];
+    }
+
+    /** Returns the number of corners of the boundary. */
+    int boundarySize() {
+        return boundaryLons.length;
+    }
+
+    double boundaryLon(int i) {
+        return boundaryLons[i];
+    }
+
+    double boundaryLat(int i) {
+        return boundaryLats[i];
+    }
+
+    /**
+     * Finds everything reachable from a vertex within a distance.
+     * @param graph The graph to search.
+     * @param origin The vertex to start from, or -1 for none, which reaches nothing.
+     * @param budget The distance in miles.
+     * @return The reached vertices and their boundary.
+     */
+    static Isochrone compute(CompactGraph graph, int origin, double budget) {
+        if (origin < 0 || !(budget >= 0)) {
+            return new Isochrone(new int[0], new double[0], new double[0], new double[0]);
+        }
+        SearchWorkspace workspace = SearchWorkspace.forThread(graph.size());
+        SearchWorkspace.Side search = workspace.forward();
+        IntList settled = workspace.path;
+        search.reach(origin, 0, -1);
+        search.fringe.push(origin, 0);
+        while (!search.fringe.isEmpty()) {
+            //Without a heuristic the fringe is ordered by distance, so nothing else is in budget.
+            if (search.fringe.minKey() > budget) {
+                break;
+            }
+            int current = search.fringe.poll();
+            search.settle(current);
+            settled.add(current);
+            for (int e = graph.firstEdge(current); e < graph.endEdge(current); e += 1) {
+                int next = graph.target(e);
+                if (search.isSettled(next)) {
+                    continue;
+                }
+                double length = search.distance[current]
+                        + graph.weight(e);
+                if (search.isReached(next) && length >= search.distance[next]) {
+                    continue;
+                }
+                search.reach(next, length, current);
+                search.fringe.push(next, length);
+            }
+        }
+
+        int[] vertices = settled.toArray();
+        double[] distances = new double[vertices.length];
+        for (int i = 0; i < vertices.length; i += 1) {
+            distances[i] = search.distance[vertices[i]];
+        }
+        double[][] boundary = new Grid(graph, search, vertices, budget).trace(workspace.stack);
+        return new Isochrone(vertices, distances, boundary[0], boundary[1]);
+    }
+
+    /**
+     * The cells of the boundary grid, with a margin of empty cells all around. Cell (x, y) covers
+     * longitudes from minLon + x * cellLon to minLon + (x + 1) * cellLon, and the same for
+     * latitudes, so corner (x, y) is at the lower left of cell (x, y).
+     *
+     * @variable marked: Whether every cell is inside the area, by y * width + x.
+     */
+    private static final class Grid {
+        private final CompactGraph graph;
+        private final SearchWorkspace.Side search;
+        private final int[] vertices;
+        private final double budget;
+        private final double cellLon;
+        private final double cellLat;
+        private final double minLon;
+        private final double minLat;
+        private final int width;
+        private final int height;
+        private final boolean[] marked;
+
+        private Grid(CompactGraph graph, SearchWorkspace.Side search, int[] vertices,
+                     double budget) {
+            this.graph = graph;
+            this.search = search;
+            this.vertices = vertices;
+            this.budget = budget;
+            double originLat = graph.lat(vertices[0]);
+            double cell = Math.max(budget / CELLS_PER_BUDGET, MIN_CELL);
+            cellLat = Math.toDegrees(cell / GraphDB.EARTH_RADIUS);
+            cellLon = cellLat / Math.cos(Math.toRadians(originLat));
+
+            double[] box = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            for (int v : vertices) {
+                include(box, graph.lon(v), graph.lat(v));
+                for (int e = graph.firstEdge(v); e < graph.endEdge(v); e += 1) {
+                    int w = graph.target(e);
+                    double fraction = reachable(v, e);
+                    include(box, lerp(graph.lon(v), graph.lon(w), fraction),
+                            lerp(graph.lat(v), graph.lat(w), fraction));
+                }
+            }
+            //Leave a margin of a cell and a half, so that the extreme points are in the middle of
+            //their cells rather than on the boundary.
+            minLon = box[0] - 1.5 * cellLon;
+            minLat = box[1] - 1.5 * cellLat;
+            width = (int) ((box[2] - minLon) / cellLon) + 2;
+            height = (int) ((box[3] - minLat) / cellLat) + 2;
+            marked = new boolean[width * height];
+        }
+
+        /** Returns how far along edge e from settled vertex v the budget reaches. */
+        private double reachable(int v, int e) {
+            double length = graph.weight(e);
+            double left = budget - search.distance[v];
+            return length <= left ? 1 : left / length;
+        }
+
+        private static void include(double[] box, double lon, double lat) {
+            box[0] = Math.min(box[0], lon);
+            box[1] = Math.min(box[1], lat);
+            box[2] = Math.max(box[2], lon);
+            box[3] = Math.max(box[3], lat);
+        }
+
+        private static double lerp(double from, double to, double fraction) {
+            return from + (to - from) * fraction;
+        }
+
+        /**
+         * Marks the area and returns its outline.
+         * @param stack A list to work in, which is cleared.
+         * @return The longitudes and latitudes of the corners of the outline.
+         */
+        private double[][] trace(IntList stack) {
+            for (int v : vertices) {
+                double x = (graph.lon(v) - minLon) / cellLon;
+                double y = (graph.lat(v) - minLat) / cellLat;
+                for (int e = graph.firstEdge(v); e < graph.endEdge(v); e += 1) {
+                    int w = graph.target(e);
+                    double fraction = reachable(v, e);
+                    markSegment(x, y, lerp(x, (graph.lon(w) - minLon) / cellLon, fraction),
+                            lerp(y, (graph.lat(w) - minLat) / cellLat, fraction));
+                }
+                markSegment(x, y, x, y);
+            }
+            fillEnclosed(stack);
+
+            //Start at the lower left corner of the lowest, leftmost cell, as if arriving from the
+            //north, and walk with the area on the left until back there.
+            int start = 0;
+            while (!marked[start]) {
+                start += 1;
+            }
+            int startX = start % width;
+            int startY = start / width;
+            stack.clear();
+            int x = startX;
+            int y = startY;
+            int d = SOUTH;
+            do {
+                int turn;
+                if (!isMarked(x + LEFT_DX[d], y + LEFT_DY[d])) {
+                    turn = (d + 1) % 4;
+                } else {
+                    int right = (d + 3) % 4;
+                    turn = isMarked(x + LEFT_DX[right], y + LEFT_DY[right]) ? right : d;
+                }
+                if (turn != d) {
+                    stack.add(x);
+                    stack.add(y);
+                }
+                d = turn;
+                x += DX[d];
+                y += DY[d];
+            } while (x != startX || y != startY);
+
+            double[][] corners = new double[2][stack.size() / 2];
+            for (int i = 0; i < corners[0].length; i += 1) {
+                corners[0][i] = minLon + stack.get(2 * i) * cellLon;
+                corners[1][i] = minLat + stack.get(2 * i + 1) * cellLat;
+            }
+            return corners;
+        }
+
+        private boolean isMarked(int x, int y) {
+            return x >= 0 && y >= 0 && x < width && y < height && marked[y * width + x];
+        }
+
+        /**
+         * Marks every cell a straight segment passes through, stepping from cell to cell across
+         * whichever cell border the segment crosses next, so consecutive cells share a side.
+         */
+        private void markSegment(double x0, double y0, double x1, double y1) {
+            int x = (int) x0;
+            int y = (int) y0;
+            int endX = (int) x1;
+            int endY = (int) y1;
+            double dx = x1 - x0;
+            double dy = y1 - y0;
+            int stepX = dx > 0 ? 1 : -1;
+            int stepY = dy > 0 ? 1 : -1;
+            double nextX = dx == 0 ? Double.POSITIVE_INFINITY
+                    : ((dx > 0 ? x + 1 : x) - x0) / dx;
+            double nextY = dy == 0 ? Double.POSITIVE_INFINITY
+                    : ((dy > 0 ? y + 1 : y) - y0) / dy;
+            double deltaX = dx == 0 ? Double.POSITIVE_INFINITY : Math.abs(1 / dx);
+            double deltaY = dy == 0 ? Double.POSITIVE_INFINITY : Math.abs(1 / dy);
+            //Rounding may make the crossings miss the last cell, so stop after the right count.
+            int steps = Math.abs(endX - x) + Math.abs(endY - y);
+            marked[y * width + x] = true;
+            for (int i = 0; i < steps; i += 1) {
+                if (nextX < nextY) {
+                    x += stepX;
+                    nextX += deltaX;
+                } else {
+                    y += stepY;
+                    nextY += deltaY;
+                }
+                marked[y * width + x] = true;
+            }
+        }
+
+        /**
+         * Marks every cell that is not connected to the margin through unmarked cells, so the
+         * area has no holes.
+         */
+        private void fillEnclosed(IntList stack) {
+            boolean[] outside = new boolean[marked.length];
+            stack.clear();
+            stack.add(0);
+            outside[0] = true;
+            while (stack.size() > 0) {
+                int cell = stack.removeLast();
+                int x = cell % width;
+                int y = cell / width;
+                for (int d = 0; d < 4; d += 1) {
+                    int nx = x + DX[d];
+                    int ny = y + DY[d];
+                    int next = ny * width + nx;
+                    if (nx >= 0 && ny >= 0 && nx < width && ny < height && !marked[next]
+                            && !outside[next]) {
+                        outside[next] = true;
+                        stack.add(next);
+                    }
+                }
+            }
+            for (int cell = 0; cell < marked.length; cell += 1) {
+                marked[cell] = !outside[cell];
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Landmarks for the ALT (A*, landmarks and triangle inequality) heuristic. The distance from a
+ * few landmark vertices to every vertex is precomputed, and for any landmark L the triangle
+ * inequality gives |d(L, v) - d(L, t)| as a lower bound on the distance from v to t. Unlike the
+ * great-circle distance, these bounds know about the detours the roads force, such as around
+ * the campus or to the bridges over the freeway.
+ *
+ * Landmarks are chosen with the avoid strategy of Goldberg and Werneck: the first is the vertex
+ * farthest from a random root, and every further one is found by growing a shortest path tree
+ * from a random root, weighting every vertex by how far the current landmarks underestimate its
+ * distance from the root, and walking down to a leaf through the heaviest subtrees that contain
+ * no landmark yet. The new landmark thus covers the part of the map the others bound worst.
+ *
+ * Distances are computed on the costs of the graph's edges, so they are in miles or in seconds
+ * as the graph is weighted, and are stored as ints in units of 1 / SCALE of that, rounded down,
+ * with the distances of a vertex to all landmarks next to each other so that a bound reads a
+ * single cache line. Rounding is accounted for when computing bounds, so that they stay lower
+ * bounds. Weights are never below costs, so the bounds also hold, if less tightly, while the
+ * weights of some roads are changed.
+ *
+ * @variable vertices: The vertex of every landmark.
+ * @variable distances: The distance from every landmark to every vertex, so the distance from
+ * landmark i to v is distances[v * count + i], or UNREACHABLE.
+ */
+final class Landmarks {
+    /** The number of landmarks chosen by default. */
+    static final int COUNT = 16;
+    /** The number of landmarks a single search uses, the ones that bound it best. */
+    static final int ACTIVE = 4;
+    /** Stored distances are in units of 1 / SCALE miles, about a centimeter, or seconds. */
+    private static final double SCALE = 1 << 17;
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+    private static final long SEED = 2018;
+
+    private final int count;
+    private final int[] vertices;
+    private final int[] distances;
+
+    private Landmarks(int[] vertices, int[] distances) {
+        this.count = vertices.length;
+        this.vertices = vertices;
+        this.distances = distances;
+    }
+
+    /** Returns the number of landmarks. */
+    int count() {
+        return count;
+    }
+
+    /** Returns the vertex of landmark i. */
+    int vertex(int i) {
+        return vertices[i];
+    }
+
+    /**
+     * Chooses landmarks on a graph and computes their distances to every vertex.
+     * @param graph The graph.
+     * @param landmarks The number of landmarks, at most the number of vertices.
+     * @return The landmarks.
+     */
+    static Landmarks select(CompactGraph graph, int landmarks) {
+        int n = graph.size();
+        int count = Math.min(landmarks, n);
+        int[] vertices = new int[count];
+        int[] distances = new int[n * count];
+        Random random = new Random(SEED);
+        if (count == 0) {
+            return new Landmarks(vertices, distances);
+        }
+
+        ShortestPathTree tree = new ShortestPathTree(n);
+        ShortestPathTree table = new ShortestPathTree(n);
+        boolean[] isLandmark = new boolean[n];
+        tree.grow(graph, random.nextInt(n));
+        vertices[0] = tree.farthest();
+        isLandmark[vertices[0]] = true;
+        for (int i = 1; i <= count; i += 1) {
+            //The tree the next landmark is chosen from does not depend on the newest landmark, so
+            //it is grown while that landmark's distances are computed.
+            int landmark = i - 1;
+            int root = random.nextInt(n);
+            IntStream.range(0, i < count ? 2 : 1).parallel().forEach(task -> {
+                if (task == 0) {
+                    table.grow(graph, vertices[landmark]);
+                    store(table, distances, landmark, count);
+                } else {
+                    tree.grow(graph, root);
+                }
+            });
+            if (i < count) {
+                vertices[i] = avoid(tree, distances, isLandmark, i, count);
+                isLandmark[vertices[i]] = true;
+            }
+        }
+        return new Landmarks(vertices, distances);
+    }
+
+    /** Stores the distances of a tree grown from landmark i as its column of the table. */
+    private static void store(ShortestPathTree table, int[] distances, int i, int count) {
+        for (int v = 0; v < table.distance.length; v += 1) {
+            double distance = table.distance[v];
+            distances[v * count + i] = distance == Double.POSITIVE_INFINITY ? UNREACHABLE
+                    : (int) Math.min(UNREACHABLE - 1, Math.floor(distance * SCALE));
+        }
+    }
+
+    /**
+     * Chooses the next landmark from a shortest path tree, as described in the class comment.
+     * @param tree A tree grown from a random root.
+     * @param distances The distance table, filled in for the first chosen landmarks.
+     * @param isLandmark Whether every vertex is one of the landmarks chosen so far.
+     * @param chosen The number of landmarks chosen so far.
+     * @param count The number of columns in the table.
+     * @return The new landmark.
+     */
+    private static int avoid(ShortestPathTree tree, int[] distances, boolean[] isLandmark,
+                             int chosen, int count) {
+        int n = tree.distance.length;
+        int root = tree.order[0];
+        double[] size = new double[n];
+        int[] heaviest = new int[n];
+        boolean[] covered = new boolean[n];
+        Arrays.fill(heaviest, -1);
+        //Children are settled after their parents, so going backwards finishes every subtree
+        //before the vertex it hangs from.
+        for (int k = tree.settled - 1; k >= 0; k -= 1) {
+            int v = tree.order[k];
+            covered[v] |= isLandmark[v];
+            if (!covered[v]) {
+                size[v] += tree.distance[v] - lowerBound(distances, root, v, chosen, count);
+            }
+            int parent = tree.parent[v];
+            if (parent < 0) {
+                continue;
+            }
+            if (covered[v]) {
+                covered[parent] = true;
+            } else {
+                size[parent] += size[v];
+                if (heaviest[parent] < 0 || size[v] > size[heaviest[parent]]) {
+                    heaviest[parent] = v;
+                }
+            }
+        }
+        if (covered[root]) {
+            //Every branch leads to a landmark, so settle for the vertex bounded worst.
+            int worst = root;
+            double worstGap = -1;
+            for (int k = 0; k < tree.settled; k += 1) {
+                int w = tree.order[k];
+                double gap = tree.distance[w] - lowerBound(distances, root, w, chosen, count);
+                if (!isLandmark[w] && gap > worstGap) {
+                    worst = w;
+                    worstGap = gap;
+                }
+            }
+            return worst;
+        }
+        int v = root;
+        while (heaviest[v] >= 0) {
+            v = heaviest[v];
+        }
+        return v;
+    }
+
+    /** Returns the best lower bound the first chosen landmarks give on the distance from v to w. */
+    private static double lowerBound(int[] distances, int v, int w, int chosen, int count) {
+        int best = 0;
+        for (int i = 0; i < chosen; i += 1) {
+            best = Math.max(best, bound(distances[v * count + i], distances[w * count + i]));
+        }
+        return best / SCALE;
+    }
+
+    /**
+     * Returns the lower bound, in stored units, one landmark gives from its stored distances to
+     * two vertices. Both were rounded down by less than a unit, so their difference may be one
+     * unit more than the true one.
+     */
+    private static int bound(int a, int b) {
+        if (a == UNREACHABLE || b == UNREACHABLE) {
+            return 0;
+        }
+        return Math.max(0, Math.abs(a - b) - 1);
+    }
+
+    /**
+     * Finds the landmarks that give the best lower bounds on the distance from start to end,
+     * which are then used for the whole search between them.
+     * @param start The vertex a search starts from.
+     * @param end The vertex it goes to.
+     * @param active Receives the indices of the best landmarks, as many as it has room for. If
+     *               there are fewer landmarks than that, the last one is repeated.
+     */
+    void active(int start, int end, int[] active) {
+        int startBase = start * count;
+        int endBase = end * count;
+        for (int k = 0; k < active.length; k += 1) {
+            int best = -1;
+            int bestBound = -1;
+            for (int i = 0; i < count; i += 1) {
+                int bound = bound(distances[startBase + i], distances[endBase + i]);
+                if (bound > bestBound && !contains(active, k, i)) {
+                    best = i;
+                    bestBound = bound;
+                }
+            }
+            active[k] = best >= 0 ? best : active[k - 1];
+        }
+    }
+
+    /** Returns whether the first k elements of an array contain value. */
+    private static boolean contains(int[] array, int k, int value) {
+        for (int i = 0; i < k; i += 1) {
+            if (array[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a lower bound on the distance from v to end.
+     * @param v The vertex.
+     * @param end The vertex the search goes to.
+     * @param active The landmarks to use, as found by active.
+     * @return The bound, in the units of the costs.
+     */
+    double lowerBound(int v, int end, int[] active) {
+        int best = 0;
+        int vBase = v * count;
+        int endBase = end * count;
+        for (int i : active) {
+            best = Math.max(best, bound(distances[vBase + i], distances[endBase + i]));
+        }
+        return best / SCALE;
+    }
+
+    /**
+     * Dijkstra's algorithm over the whole graph from a single root, reused for every tree grown
+     * during selection.
+     * @variable distance, parent: The distance from the root to every vertex, and the vertex
+     * before it on the way, or infinity and -1.
+     * @variable order: The vertices in the order they were settled, so parents come first.
+     * @variable settled: The number of vertices in order.
+     */
+    private static final class ShortestPathTree {
+        private final IndexedMinHeap fringe;
+        private final double[] distance;
+        private final int[] parent;
+        private final int[] order;
+        private int settled;
+
+        private ShortestPathTree(int n) {
+            fringe = new IndexedMinHeap(n);
+            distance = new double[n];
+            parent = new int[n];
+            order = new int[n];
+        }
+
+        private void grow(CompactGraph graph, int root) {
+            Arrays.fill(distance, Double.POSITIVE_INFINITY);
+            settled = 0;
+            distance[root] = 0;
+            parent[root] = -1;
+            fringe.push(root, 0);
+            while (!fringe.isEmpty()) {
+                int current = fringe.poll();
+                order[settled] = current;
+                settled += 1;
+                for (int e = graph.firstEdge(current); e < graph.endEdge(current); e += 1) {
+                    int next = graph.target(e);
+                    double length = distance[current]
+                            + graph.cost(e);
+                    if (length < distance[next]) {
+                        distance[next] = length;
+                        parent[next] = current;
+                        fringe.push(next, length);
+                    }
+                }
+            }
+        }
+
+        /** Returns the vertex settled last, the one farthest from the root. */
+        private int farthest() {
+            return order[settled - 1];
+        }
+    }
+}
@@ -2,8 +2,12 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
@@ -12,6 +16,9 @@ import java.io.IOException;
 
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 
 import static spark.Spark.*;
 
@@ -39,6 +46,8 @@ public class MapServer {
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
+    /** Alternative route stroke information: grey with half transparency, under the route. */
+    public static final Color ALTERNATIVE_STROKE_COLOR = new Color(120, 120, 120, 170);
     /** The tile images are in the IMG_ROOT folder. */
     private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
     /**
@@ -46,6 +55,12 @@ public class MapServer {
      * using custom region selection.
      **/
     private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    /**
+     * Whether to keep only the nodes on routable ways and the named nodes when parsing the OSM
+     * file. This reads the file twice but needs far less memory for large extracts; see
+     * RoutableOnlyImporter.
+     */
+    private static final boolean IMPORT_ROUTABLE_NODES_ONLY = false;
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -60,10 +75,82 @@ public class MapServer {
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
      * start_lat : start point latitude,<br> start_lon : start point longitude,<br>
-     * end_lat : end point latitude, <br>end_lon : end point longitude.
+     * end_lat : end point latitude, <br>end_lon : end point longitude.<br>
+     * A route request may also name the search algorithm to use, as algorithm=astar,
+     * algorithm=bidirectional, algorithm=ch or algorithm=alt, or ask for turns=true to have the
+     * cost of every turn counted and turn restrictions obeyed, which searches the edges of the
+     * graph whatever the algorithm. Routes are cached by the vertices their points snap to and
+     * whether turns were counted, and /route_cache reports how often the cache is hit.
+     * A request may also ask for up to MAX_ALTERNATIVES alternative routes with alternatives=N,
+     * which are drawn under the route and returned as alternatives, each with its directions
+     * and distance in miles. The route and its alternatives then all come from one search from
+     * each end, whatever the algorithm, and that route replaces any cached one. Alternatives are
+     * not found for routes with turns counted.
+     * A request may ask for the quickest route rather than the shortest with weighting=time,
+     * for routes and their alternatives alike, and for routes with turns counted, whose turns
+     * then cost seconds rather than miles. Every step of the directions says about how long it
+     * takes, and the result has the distance of the route in miles and its duration in seconds,
+     * as does every alternative.
+     * With snap=road the points are snapped to the nearest point on a road rather than to the
+     * nearest vertex, and the route starts and ends there, with start and end in the result
+     * giving the [lon, lat] of the snapped points. Such routes are found with A* whatever the
+     * algorithm and are not cached. A request with snap=road and turns=true or alternatives
+     * above 0 is rejected, as neither is supported between points on roads.
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    private static final int MAX_ALTERNATIVES = 3;
+    /** The route cache option of routes found with turns counted. */
+    private static final int ROUTE_TURNS = 1;
+    /** The route cache option of the quickest routes rather than the shortest. */
+    private static final int ROUTE_TIME = 2;
+    /**
+     * Each table request to the server will have the following parameters, each a list of points
+     * written as lon,lat;lon,lat;... <br>
+     * sources : the points to measure from, <br> destinations : the points to measure to. <br>
+     * The result has table_success and distances, a row of distances in miles for every source
+     * with one entry per destination, null where the destination cannot be reached, and
+     * durations, the driving times in seconds laid out the same way. Distances are along the
+     * shortest routes and durations along the quickest. Each list may hold at most this many
+     * points. While /traffic has changed any road, tables are found with one search per source
+     * rather than from the contraction hierarchy's buckets, which is several times slower: about
+     * ten times for 500 x 500 points spread over Berkeley, less when the destinations are close
+     * together.
+     **/
+    private static final int MAX_TABLE_POINTS = 1000;
+    /**
+     * Each isochrone request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * lon : origin longitude,<br> lat : origin latitude,<br>
+     * distance : how far to go from the origin, in miles.<br>
+     * The result has isochrone_success, vertices, the ids of the nodes reachable within the
+     * distance, and boundary, the [lon, lat] corners of a polygon around them.
+     **/
+    private static final String[] REQUIRED_ISOCHRONE_REQUEST_PARAMS = {"lon", "lat", "distance"};
+    /** The longest distance an isochrone request may ask for, in miles. */
+    private static final double MAX_ISOCHRONE_DISTANCE = 10;
+    /**
+     * Each traffic request to the server is a POST that changes the weights of roads for every
+     * user, for closures and congestion, with the parameter <br>
+     * roads : the roads to change, written as from,to,factor;from,to,factor;... with the OSM ids
+     * of the two nodes at the ends of a road and the factor its length is multiplied by, at
+     * least 1, or closed to close it. A factor of 1 puts a road back to normal. <br>
+     * or with reset=true to put every road back to normal. The changes apply to every route
+     * found after the request returns. The result has traffic_success and roads, the number of
+     * roads changed. A request may change at most this many roads.
+     **/
+    private static final int MAX_TRAFFIC_ROADS = 10000;
+    /**
+     * Each batch route request to the server is a POST whose body is a JSON array of pairs of
+     * points, each an object with the parameters of a route request: start_lat, start_lon,
+     * end_lat and end_lon. It may ask for an algorithm and a weighting as a route request does.
+     * The pairs are routed on a pool of worker threads shared by all batch requests, and the
+     * result is streamed back as newline-delimited JSON, one line per pair in the order the
+     * routes are found, with index, the position of the pair in the request, routing_success,
+     * route, the ids of the nodes on the route, distance and duration. Batch routes are not
+     * cached, drawn on the map or given directions. A request may hold at most this many pairs.
+     **/
+    private static final int MAX_BATCH_PAIRS = 10000;
 
     /**
      * The result of rastering must be a map containing all of the
@@ -74,7 +161,11 @@ public class MapServer {
 
     private static Rasterer rasterer;
     private static GraphDB graph;
+    private static BatchRouter batchRouter;
     private static List<Long> route = new LinkedList<>();
+    private static int[] routeVertices = new int[0];
+    private static int[][] alternativeVertices = new int[0][];
+    private static SnappedRoute snappedRoute = null;
     private static Router.searchNode masterName = new Router.searchNode('a');
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
@@ -85,8 +176,14 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
+        if (IMPORT_ROUTABLE_NODES_ONLY) {
+            graph = new GraphDB(OSM_DB_PATH,
+                    OsmImporter.routableOnly(OsmImporter.forPath(OSM_DB_PATH)), true);
+        } else {
+            graph = new GraphDB(OSM_DB_PATH);
+        }
         rasterer = new Rasterer();
+        batchRouter = new BatchRouter();
 
 
         for (String i : graph.nameKey.keySet()) {
@@ -137,17 +234,180 @@ public class MapServer {
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
+            Router.Algorithm algorithm = getRouteAlgorithm(req);
+            boolean turns = "true".equals(req.queryParams("turns"));
+            Router.Weighting weighting = getRouteWeighting(req);
+            int alternatives = turns ? 0 : getAlternativeCount(req);
+            if ("road".equals(req.queryParams("snap"))) {
+                if (turns || alternatives > 0) {
+                    halt(HALT_RESPONSE, "Incorrect parameters - snap=road cannot be combined"
+                            + " with turns or alternatives.");
+                }
+                Gson gson = new Gson();
+                return gson.toJson(getSnappedRouteParams(params, weighting));
+            }
+            /* Every algorithm finds the same routes, so a route is cached for any of them. */
+            int options = (turns ? ROUTE_TURNS : 0)
+                    | (weighting == Router.Weighting.TIME ? ROUTE_TIME : 0);
+            int start = graph.closestVertex(params.get("start_lon"), params.get("start_lat"));
+            int end = graph.closestVertex(params.get("end_lon"), params.get("end_lat"));
+            RouteCache cache = graph.routeCache();
+            RouteCache.Route cached;
+            AlternativeRoutes found = null;
+            if (alternatives > 0) {
+                /* The search for alternatives finds the best route too, so it is the route drawn
+                 * and cached, and the alternatives are checked against the route returned. */
+                long generation = cache.generation();
+                found = Router.alternativeRoutes(graph, start, end, alternatives, weighting,
+                        null);
+                int[] vertices = found.size() > 0 ? found.route(0) : new int[0];
+                cached = cache.put(start, end, options, generation, vertices,
+                        getDirectionsText(vertices));
+            } else {
+                cached = cache.get(start, end, options);
+                if (cached == null) {
+                    long generation = cache.generation();
+                    int[] vertices = turns
+                            ? Router.turnAwarePathVertices(graph, start, end, weighting, null)
+                            : Router.shortestPathVertices(graph, start, end, algorithm,
+                                    weighting, null);
+                    cached = cache.put(start, end, options, generation, vertices,
+                            getDirectionsText(vertices));
+                }
+            }
             Map<String, Object> routeParams = new HashMap<>();
+            int[][] alternativeRoutes = new int[0][];
+            if (found != null) {
+                alternativeRoutes = new int[Math.max(found.size() - 1, 0)][];
+                List<Map<String, Object>> alternativeParams = new ArrayList<>();
+                for (int i = 0; i < alternativeRoutes.length; i += 1) {
+                    alternativeRoutes[i] = found.route(i + 1);
+                    Map<String, Object> alternative = new HashMap<>();
+                    alternative.put("directions", getDirectionsText(alternativeRoutes[i]));
+                    alternative.put("distance", routeCost(alternativeRoutes[i],
+                            Router.Weighting.DISTANCE));
+                    alternative.put("duration", routeCost(alternativeRoutes[i],
+                            Router.Weighting.TIME));
+                    alternativeParams.add(alternative);
+                }
+                routeParams.put("alternatives", alternativeParams);
+            }
+            alternativeVertices = alternativeRoutes;
+            routeVertices = cached.vertices;
+            snappedRoute = null;
+            route = graph.ids(routeVertices);
+            String directions = cached.directions;
             routeParams.put("routing_success", !route.isEmpty());
             routeParams.put("directions_success", directions.length() > 0);
             routeParams.put("directions", directions);
+            routeParams.put("distance", routeCost(routeVertices, Router.Weighting.DISTANCE));
+            routeParams.put("duration", routeCost(routeVertices, Router.Weighting.TIME));
             Gson gson = new Gson();
             return gson.toJson(routeParams);
         });
 
+        /* Define the batch routing endpoint for HTTP POST requests. */
+        post("/route_batch", (req, res) -> {
+            double[][] pairs = getBatchPairs(req);
+            Router.Algorithm algorithm = getRouteAlgorithm(req);
+            Router.Weighting weighting = getRouteWeighting(req);
+            Gson gson = new Gson();
+            res.type("application/x-ndjson");
+            Writer out = new BufferedWriter(new OutputStreamWriter(res.raw().getOutputStream(),
+                    StandardCharsets.UTF_8));
+            batchRouter.<String>route(graph, pairs[1], pairs[0], pairs[3], pairs[2], algorithm,
+                    weighting, (index, vertices) -> {
+                        Map<String, Object> routeParams = new HashMap<>();
+                        routeParams.put("index", index);
+                        routeParams.put("routing_success", vertices.length > 0);
+                        routeParams.put("route", graph.ids(vertices));
+                        routeParams.put("distance", routeCost(vertices,
+                                Router.Weighting.DISTANCE));
+                        routeParams.put("duration", routeCost(vertices, Router.Weighting.TIME));
+                        return gson.toJson(routeParams);
+                    }, lines -> {
+                        for (String line : lines) {
+                            out.write(line);
+                            out.write('\n');
+                        }
+                        out.flush();
+                    });
+            return "";
+        });
+
+        /* Define the distance table endpoint for HTTP GET requests. */
+        get("/table", (req, res) -> {
+            double[][] sources = getRequestPoints(req, "sources");
+            double[][] destinations = getRequestPoints(req, "destinations");
+            double[] distances = Router.distanceTable(graph, sources[0], sources[1],
+                    destinations[0], destinations[1]);
+            double[] durations = Router.durationTable(graph, sources[0], sources[1],
+                    destinations[0], destinations[1]);
+            Map<String, Object> tableParams = new HashMap<>();
+            tableParams.put("table_success", true);
+            tableParams.put("distances", getTableRows(distances, destinations[0].length));
+            tableParams.put("durations", getTableRows(durations, destinations[0].length));
+            Gson gson = new Gson();
+            return gson.toJson(tableParams);
+        });
+
+        /* Define the isochrone endpoint for HTTP GET requests. */
+        get("/isochrone", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            double distance = params.get("distance");
+            if (!(distance >= 0 && distance <= MAX_ISOCHRONE_DISTANCE)) {
+                halt(HALT_RESPONSE, "Incorrect parameters - distance must be between 0 and "
+                        + MAX_ISOCHRONE_DISTANCE + " miles.");
+            }
+            Isochrone isochrone = Router.isochrone(graph, params.get("lon"), params.get("lat"),
+                    distance);
+            CompactGraph compact = graph.compact();
+            long[] vertices = new long[isochrone.size()];
+            for (int i = 0; i < vertices.length; i += 1) {
+                vertices[i] = compact.id(isochrone.vertex(i));
+            }
+            double[][] boundary = new double[isochrone.boundarySize()][];
+            for (int i = 0; i < boundary.length; i += 1) {
+                boundary[i] = new double[]{isochrone.boundaryLon(i), isochrone.boundaryLat(i)};
+            }
+            Map<String, Object> isochroneParams = new HashMap<>();
+            isochroneParams.put("isochrone_success", vertices.length > 0);
+            isochroneParams.put("vertices", vertices);
+            isochroneParams.put("boundary", boundary);
+            Gson gson = new Gson();
+            return gson.toJson(isochroneParams);
+        });
+
+        /* Define the traffic endpoint for HTTP POST requests, as it changes every route. */
+        post("/traffic", (req, res) -> {
+            int roads = 0;
+            if ("true".equals(req.queryParams("reset"))) {
+                graph.resetRoadFactors();
+            } else {
+                roads = setRequestRoadFactors(req);
+            }
+            Map<String, Object> trafficParams = new HashMap<>();
+            trafficParams.put("traffic_success", true);
+            trafficParams.put("roads", roads);
+            Gson gson = new Gson();
+            return gson.toJson(trafficParams);
+        });
+
+        /* Define the API endpoint for the route cache's counters. */
+        get("/route_cache", (req, res) -> {
+            RouteCache cache = graph.routeCache();
+            Map<String, Object> cacheParams = new HashMap<>();
+            cacheParams.put("size", cache.size());
+            cacheParams.put("hits", cache.hits());
+            cacheParams.put("misses", cache.misses());
+            cacheParams.put("hit_rate", cache.hitRate());
+            cacheParams.put("evictions", cache.evictions());
+            cacheParams.put("expirations", cache.expirations());
+            Gson gson = new Gson();
+            return gson.toJson(cacheParams);
+        });
+
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
             clearRoute();
@@ -203,6 +463,241 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Splits a table found by Router into rows, with null where a destination cannot be reached.
+     * @param table The table, row by row.
+     * @param columns The number of entries in every row.
+     * @return The rows.
+     */
+    private static Double[][] getTableRows(double[] table, int columns) {
+        Double[][] rows = new Double[columns == 0 ? 0 : table.length / columns][columns];
+        for (int i = 0; i < rows.length; i += 1) {
+            for (int j = 0; j < columns; j += 1) {
+                double value = table[i * columns + j];
+                rows[i][j] = value == Double.POSITIVE_INFINITY ? null : value;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Validate & return the points in a request parameter of the form lon,lat;lon,lat;... as used
+     * by the table endpoint.
+     * @param req HTTP Request.
+     * @param param The name of the parameter.
+     * @return The longitudes of the points in the first array and their latitudes in the second.
+     */
+    private static double[][] getRequestPoints(spark.Request req, String param) {
+        String value = req.queryParams(param);
+        if (value == null || value.isEmpty()) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        String[] points = value.split(";");
+        if (points.length > MAX_TABLE_POINTS) {
+            halt(HALT_RESPONSE, "Too many points - at most " + MAX_TABLE_POINTS + " allowed.");
+        }
+        double[][] result = new double[2][points.length];
+        for (int i = 0; i < points.length; i += 1) {
+            String[] coordinates = points[i].split(",");
+            try {
+                if (coordinates.length != 2) {
+                    throw new NumberFormatException(points[i]);
+                }
+                result[0][i] = Double.parseDouble(coordinates[0]);
+                result[1][i] = Double.parseDouble(coordinates[1]);
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                halt(HALT_RESPONSE, "Incorrect parameters - provide points as lon,lat;lon,lat.");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Validate & return the pairs of points in the JSON body of a batch route request.
+     * @param req HTTP Request.
+     * @return The values of every pair for each of REQUIRED_ROUTE_REQUEST_PARAMS in turn, so
+     * that the start latitudes are in the first array, the start longitudes in the second and so
+     * on.
+     */
+    private static double[][] getBatchPairs(spark.Request req) {
+        JsonArray pairs = null;
+        try {
+            pairs = new Gson().fromJson(req.body(), JsonArray.class);
+        } catch (JsonParseException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide a JSON array of pairs.");
+        }
+        if (pairs == null || pairs.size() == 0) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        if (pairs.size() > MAX_BATCH_PAIRS) {
+            halt(HALT_RESPONSE, "Too many pairs - at most " + MAX_BATCH_PAIRS + " allowed.");
+        }
+        double[][] result = new double[REQUIRED_ROUTE_REQUEST_PARAMS.length][pairs.size()];
+        for (int i = 0; i < pairs.size(); i += 1) {
+            try {
+                JsonObject pair = pairs.get(i).getAsJsonObject();
+                for (int j = 0; j < REQUIRED_ROUTE_REQUEST_PARAMS.length; j += 1) {
+                    if (!pair.has(REQUIRED_ROUTE_REQUEST_PARAMS[j])) {
+                        halt(HALT_RESPONSE, "Request failed - parameters missing.");
+                    }
+                    result[j][i] = pair.get(REQUIRED_ROUTE_REQUEST_PARAMS[j]).getAsDouble();
+                }
+            } catch (IllegalStateException | UnsupportedOperationException
+                    | NumberFormatException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Changes the weights of the roads given by the roads parameter of a traffic request.
+     * @param req HTTP Request.
+     * @return The number of roads changed.
+     */
+    private static int setRequestRoadFactors(spark.Request req) {
+        String value = req.queryParams("roads");
+        if (value == null || value.isEmpty()) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        String[] roads = value.split(";");
+        if (roads.length > MAX_TRAFFIC_ROADS) {
+            halt(HALT_RESPONSE, "Too many roads - at most " + MAX_TRAFFIC_ROADS + " allowed.");
+        }
+        long[] from = new long[roads.length];
+        long[] to = new long[roads.length];
+        double[] factors = new double[roads.length];
+        for (int i = 0; i < roads.length; i += 1) {
+            String[] fields = roads[i].split(",");
+            try {
+                if (fields.length != 3) {
+                    throw new NumberFormatException(roads[i]);
+                }
+                from[i] = Long.parseLong(fields[0]);
+                to[i] = Long.parseLong(fields[1]);
+                factors[i] = fields[2].equals("closed") ? GraphDB.CLOSED
+                        : Double.parseDouble(fields[2]);
+            } catch (NumberFormatException e) {
+                halt(HALT_RESPONSE,
+                        "Incorrect parameters - provide roads as from,to,factor;from,to,factor.");
+            }
+        }
+        try {
+            graph.setRoadFactors(from, to, factors);
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - " + e.getMessage());
+        }
+        return roads.length;
+    }
+
+    /**
+     * Returns the search algorithm requested by the optional "algorithm" parameter of a route
+     * request, such as algorithm=bidirectional. Requests without it use A*.
+     * @param req HTTP Request.
+     * @return The algorithm to find the route with.
+     */
+    private static Router.Algorithm getRouteAlgorithm(spark.Request req) {
+        String algorithm = req.queryParams("algorithm");
+        if (algorithm == null) {
+            return Router.Algorithm.ASTAR;
+        }
+        try {
+            return Router.Algorithm.valueOf(algorithm.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Unknown routing algorithm " + algorithm + ".");
+            return null;
+        }
+    }
+
+    /**
+     * Returns what a route should minimize, as asked for by the optional "weighting" parameter of
+     * a route request, weighting=distance or weighting=time. Requests without it get the
+     * shortest route.
+     * @param req HTTP Request.
+     * @return The weighting to find the route with.
+     */
+    private static Router.Weighting getRouteWeighting(spark.Request req) {
+        String weighting = req.queryParams("weighting");
+        if (weighting == null) {
+            return Router.Weighting.DISTANCE;
+        }
+        try {
+            return Router.Weighting.valueOf(weighting.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Unknown route weighting " + weighting + ".");
+            return null;
+        }
+    }
+
+    /**
+     * Returns the length of a route in miles, or the time it takes in seconds.
+     * @param vertices The vertices on the route.
+     * @param weighting DISTANCE for the length, TIME for the time.
+     */
+    private static double routeCost(int[] vertices, Router.Weighting weighting) {
+        return Router.routeCost(graph.compact(weighting), vertices);
+    }
+
+    /**
+     * Finds the route of a route request with snap=road, between the points on roads nearest to
+     * its start and end, and makes it the route drawn on the map.
+     * @param params The parameters of the request.
+     * @param weighting What the route minimizes.
+     * @return The result of the request.
+     */
+    private static Map<String, Object> getSnappedRouteParams(HashMap<String, Double> params,
+                                                             Router.Weighting weighting) {
+        RoadPoint start = graph.closestRoadPoint(params.get("start_lon"), params.get("start_lat"));
+        RoadPoint end = graph.closestRoadPoint(params.get("end_lon"), params.get("end_lat"));
+        SnappedRoute found = start == null || end == null ? null
+                : Router.roadPointRoute(graph, start, end, weighting, null);
+        boolean success = found != null && found.found();
+        alternativeVertices = new int[0][];
+        snappedRoute = success ? found : null;
+        routeVertices = success ? found.vertices : new int[0];
+        route = graph.ids(routeVertices);
+        String directions = success ? getDirectionsText(Router.routeDirections(graph, found))
+                : "";
+        Map<String, Object> routeParams = new HashMap<>();
+        routeParams.put("routing_success", success);
+        routeParams.put("directions_success", directions.length() > 0);
+        routeParams.put("directions", directions);
+        routeParams.put("distance", success
+                ? found.cost(graph.compact(Router.Weighting.DISTANCE)) : 0);
+        routeParams.put("duration", success
+                ? found.cost(graph.compact(Router.Weighting.TIME)) : 0);
+        if (success) {
+            routeParams.put("start", new double[]{start.lon, start.lat});
+            routeParams.put("end", new double[]{end.lon, end.lat});
+        }
+        return routeParams;
+    }
+
+    /**
+     * Returns the number of alternative routes requested by the optional "alternatives" parameter
+     * of a route request, 0 without it.
+     * @param req HTTP Request.
+     * @return The number of alternatives to find, at most MAX_ALTERNATIVES.
+     */
+    private static int getAlternativeCount(spark.Request req) {
+        String alternatives = req.queryParams("alternatives");
+        if (alternatives == null) {
+            return 0;
+        }
+        try {
+            int count = Integer.parseInt(alternatives);
+            if (count >= 0 && count <= MAX_ALTERNATIVES) {
+                return count;
+            }
+        } catch (NumberFormatException e) {
+            //Reported below, like a count out of range.
+        }
+        halt(HALT_RESPONSE, "Incorrect parameters - alternatives must be between 0 and "
+                + MAX_ALTERNATIVES + ".");
+        return 0;
+    }
+
     /**
      * Writes the images corresponding to rasteredImgParams to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
@@ -238,18 +733,19 @@ public class MapServer {
 
         final double wdpp = (lrlon - ullon) / img.getWidth();
         final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
-            Graphics2D g2d = (Graphics2D) graphic;
-            g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
-            g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
-                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+        Graphics2D g2d = (Graphics2D) graphic;
+        g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
+                BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        /* Draw the alternatives first, so that the route is drawn over the roads they share. */
+        g2d.setColor(MapServer.ALTERNATIVE_STROKE_COLOR);
+        for (int[] alternative : alternativeVertices) {
+            drawRoute(g2d, alternative, ullon, ullat, wdpp, hdpp);
+        }
+        g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
+        drawRoute(g2d, routeVertices, ullon, ullat, wdpp, hdpp);
+        SnappedRoute snapped = snappedRoute;
+        if (snapped != null) {
+            drawSnappedEnds(g2d, snapped, ullon, ullat, wdpp, hdpp);
         }
 
         rasteredImageParams.put("raster_width", img.getWidth());
@@ -263,6 +759,44 @@ public class MapServer {
 
     }
 
+    /** Draws the roads of a route with the current color and stroke, if it has any. */
+    private static void drawRoute(Graphics2D g2d, int[] vertices, double ullon, double ullat,
+                                  double wdpp, double hdpp) {
+        CompactGraph compact = graph.compact();
+        for (int i = 1; i < vertices.length; i += 1) {
+            int v = vertices[i - 1];
+            int w = vertices[i];
+            g2d.drawLine((int) ((compact.lon(v) - ullon) * (1 / wdpp)),
+                         (int) ((ullat - compact.lat(v)) * (1 / hdpp)),
+                         (int) ((compact.lon(w) - ullon) * (1 / wdpp)),
+                         (int) ((ullat - compact.lat(w)) * (1 / hdpp)));
+        }
+    }
+
+    /**
+     * Draws the parts of the roads a route between points on roads starts and ends on, or the
+     * whole route if it stays on one road.
+     */
+    private static void drawSnappedEnds(Graphics2D g2d, SnappedRoute snapped, double ullon,
+                                        double ullat, double wdpp, double hdpp) {
+        CompactGraph compact = graph.compact();
+        int[] vertices = snapped.vertices;
+        double[][] lines = snapped.direct()
+                ? new double[][]{{snapped.start.lon, snapped.start.lat, snapped.end.lon,
+                    snapped.end.lat}}
+                : new double[][]{{snapped.start.lon, snapped.start.lat,
+                    compact.lon(vertices[0]), compact.lat(vertices[0])},
+                    {compact.lon(vertices[vertices.length - 1]),
+                        compact.lat(vertices[vertices.length - 1]), snapped.end.lon,
+                        snapped.end.lat}};
+        for (double[] line : lines) {
+            g2d.drawLine((int) ((line[0] - ullon) * (1 / wdpp)),
+                         (int) ((ullat - line[1]) * (1 / hdpp)),
+                         (int) ((line[2] - ullon) * (1 / wdpp)),
+                         (int) ((ullat - line[3]) * (1 / hdpp)));
+        }
+    }
+
     private static BufferedImage getImage(String imgPath) {
         BufferedImage tileImg = null;
         if (tileImg == null) {
@@ -281,6 +815,9 @@ public class MapServer {
      */
     public static void clearRoute() {
         route = new LinkedList<Long>();
+        routeVertices = new int[0];
+        alternativeVertices = new int[0][];
+        snappedRoute = null;
     }
 
     /**
@@ -371,20 +908,37 @@ public class MapServer {
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
+     * Takes a route and converts its directions into an HTML friendly
      * String to be passed to the frontend.
+     * @param vertices The vertices on the route.
+     */
+    private static String getDirectionsText(int[] vertices) {
+        return getDirectionsText(Router.routeDirections(graph, vertices));
+    }
+
+    /**
+     * Converts a list of directions into an HTML friendly String to be passed to the frontend.
+     * @param directions The directions of a route.
      */
-    private static String getDirectionsText() {
-        List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
+    private static String getDirectionsText(List<Router.NavigationDirection> directions) {
         if (directions == null || directions.isEmpty()) {
           return "";
         }
         StringBuilder sb = new StringBuilder();
         int step = 1;
         for (Router.NavigationDirection d: directions) {
-            sb.append(String.format("%d. %s <br>", step, d));
+            sb.append(String.format("%d. %s About %s. <br>", step, d,
+                    getDurationText(d.duration)));
             step += 1;
         }
         return sb.toString();
     }
+
+    /** Returns a duration in seconds as text, in whole minutes unless it is under a minute. */
+    private static String getDurationText(double seconds) {
+        if (seconds < 60) {
+            return Math.max(1, Math.round(seconds)) + " s";
+        }
+        return Math.round(seconds / 60) + " min";
+    }
 }
@@ -0,0 +1,39 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads an OSM extract and feeds its nodes and routable ways into an OsmSink, normally a GraphDB,
+ * through addNode and addEdge. Implementations differ only in the file format they understand;
+ * which one is used is decided from the file name by forPath.
+ */
+interface OsmImporter {
+    /**
+     * Reads the whole of the input into the sink. A graph is not cleaned afterwards.
+     * @param input The OSM file to read.
+     * @param g The sink to populate.
+     * @throws IOException If the file cannot be read or is malformed.
+     */
+    void importInto(File input, OsmSink g) throws IOException;
+
+    /**
+     * Picks the importer for a file from its extension: ".pbf" files are read as OSM PBF, and
+     * everything else as OSM XML by OsmXmlScanner, decompressed on the fly if it ends in ".gz" or
+     * ".bz2".
+     * @param path The path of the OSM file.
+     * @return An importer able to read the file.
+     */
+    static OsmImporter forPath(String path) {
+        if (path.endsWith(".pbf")) {
+            return new PbfOsmImporter();
+        }
+        return new OsmXmlScanner();
+    }
+
+    /**
+     * Wraps an importer so that it only keeps the nodes the graph can use: those on routable ways
+     * and those with a name. See RoutableOnlyImporter.
+     */
+    static OsmImporter routableOnly(OsmImporter importer) {
+        return new RoutableOnlyImporter(importer);
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Receives the nodes and road segments read by an OsmImporter. GraphDB is the sink that builds
+ * the graph; other sinks sit in front of it to filter what it is given.
+ */
+interface OsmSink {
+    /**
+     * Receives a node. Each node is delivered once, with its name if it has one.
+     * @param id The OSM identifier of the node.
+     * @param lon The longitude of the node.
+     * @param lat The latitude of the node.
+     * @param name The name of the node, or null if it has none.
+     */
+    void addNode(long id, double lon, double lat, String name);
+
+    /**
+     * Receives a two-way segment of a routable way, after both of its nodes.
+     * @param iden1 The id of the first node.
+     * @param iden2 The id of the second node.
+     * @param name The name of the street the segment belongs to.
+     * @param highway The highway tag of the way, or null if it is not known.
+     * @param maxspeed The maxspeed tag of the way, or null if it has none.
+     * @param way The OSM identifier of the way, or -1 if it is not known.
+     */
+    void addEdge(long iden1, long iden2, String name, String highway, String maxspeed, long way);
+
+    /**
+     * Receives a turn restriction relation, after all ways. It restricts the turns at the via
+     * node from the from way onto other ways: a no_* restriction, such as no_left_turn, forbids
+     * turning onto the to way, and an only_* restriction, such as only_straight_on, forbids
+     * turning onto anything else.
+     * @param from The id of the way the turn comes from.
+     * @param via The id of the node the turn is made at.
+     * @param to The id of the way the turn goes to.
+     * @param only Whether this is an only_* restriction rather than a no_* one.
+     */
+    void addRestriction(long from, long via, long to, boolean only);
+}
@@ -0,0 +1,520 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Imports OSM XML with a hand-rolled byte scanner instead of a SAX parser. OSM XML only uses a
+ * handful of flat elements, so rather than building attribute maps the scanner finds each
+ * element in a reusable byte buffer, records where the attributes it cares about start and end,
+ * and parses ids and coordinates straight into primitives. The only objects allocated per element
+ * are the strings for names, which the graph keeps anyway, and for the rare maxspeed tags.
+ *
+ * Unlike GraphBuildingHandler, a node is added to the graph once, when its closing tag is seen,
+ * so a name tag never causes the node to be removed and built again.
+ */
+class OsmXmlScanner implements OsmImporter {
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+    private static final byte[] NODE = bytes("node");
+    private static final byte[] WAY = bytes("way");
+    private static final byte[] ND = bytes("nd");
+    private static final byte[] TAG = bytes("tag");
+    private static final byte[] RELATION = bytes("relation");
+    private static final byte[] MEMBER = bytes("member");
+    private static final byte[] ID = bytes("id");
+    private static final byte[] LAT = bytes("lat");
+    private static final byte[] LON = bytes("lon");
+    private static final byte[] REF = bytes("ref");
+    private static final byte[] K = bytes("k");
+    private static final byte[] V = bytes("v");
+    private static final byte[] NAME = bytes("name");
+    private static final byte[] HIGHWAY = bytes("highway");
+    private static final byte[] MAXSPEED = bytes("maxspeed");
+    private static final byte[] TYPE = bytes("type");
+    private static final byte[] ROLE = bytes("role");
+    private static final byte[] RESTRICTION = bytes("restriction");
+    private static final byte[] RESTRICTION_MOTORCAR = bytes("restriction:motorcar");
+    private static final byte[] FROM = bytes("from");
+    private static final byte[] VIA = bytes("via");
+    private static final byte[] TO = bytes("to");
+    private static final byte[] NO = bytes("no_");
+    private static final byte[] ONLY = bytes("only_");
+    private static final byte[][] HIGHWAY_TYPES = new byte[GraphBuildingHandler
+            .HIGHWAY_TYPES.length][];
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        for (int i = 0; i < HIGHWAY_TYPES.length; i += 1) {
+            HIGHWAY_TYPES[i] = bytes(GraphBuildingHandler.HIGHWAY_TYPES[i]);
+        }
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i += 1) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Scratch state, reused for every element.
+     * @variable buffer: The bytes read but not yet consumed live in buffer[position, end).
+     * @variable valueStart, valueEnd: Where the value of each attribute of interest lies in the
+     * buffer for the current element, indexed by the ATTRIBUTE constants; -1 if it is absent.
+     * @variable refs: The node references of the current way.
+     */
+    private InputStream in;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int position;
+    private int end;
+    private final int[] valueStart = new int[8];
+    private final int[] valueEnd = new int[8];
+    private long[] refs = new long[256];
+    private int refCount;
+    private long elements;
+
+    private static final int ATTRIBUTE_ID = 0;
+    private static final int ATTRIBUTE_LAT = 1;
+    private static final int ATTRIBUTE_LON = 2;
+    private static final int ATTRIBUTE_REF = 3;
+    private static final int ATTRIBUTE_K = 4;
+    private static final int ATTRIBUTE_V = 5;
+    private static final int ATTRIBUTE_TYPE = 6;
+    private static final int ATTRIBUTE_ROLE = 7;
+
+    /** Returns the number of elements seen by the last import. */
+    long elementCount() {
+        return elements;
+    }
+
+    @Override
+    public void importInto(File input, OsmSink g) throws IOException {
+        try (InputStream stream = XmlOsmImporter.open(input)) {
+            in = stream;
+            position = 0;
+            end = 0;
+            elements = 0;
+            scan(g);
+        } finally {
+            in = null;
+        }
+    }
+
+    private void scan(OsmSink g) throws IOException {
+        boolean inNode = false;
+        boolean inWay = false;
+        long nodeId = 0;
+        double nodeLon = 0;
+        double nodeLat = 0;
+        String nodeName = null;
+        int highway = -1;
+        String wayName = null;
+        String wayMaxspeed = null;
+        long wayId = -1;
+        boolean inRelation = false;
+        boolean restriction = false;
+        int restrictionKind = 0;
+        long restrictionFrom = -1;
+        long restrictionVia = -1;
+        long restrictionTo = -1;
+
+        while (true) {
+            //Skip character data up to the next element.
+            int open = indexOf((byte) '<', position);
+            while (open < 0) {
+                position = end;
+                if (!fill()) {
+                    return;
+                }
+                open = indexOf((byte) '<', position);
+            }
+            position = open;
+            int close = elementEnd();
+            if (close < 0) {
+                return;
+            }
+            int start = position + 1;
+            position = close + 1;
+
+            byte first = buffer[start];
+            if (first == '?' || first == '!') {
+                //Processing instructions, comments and doctypes carry nothing we need.
+                continue;
+            }
+            boolean closing = first == '/';
+            if (closing) {
+                start += 1;
+            }
+            int nameEnd = start;
+            while (nameEnd < close && !isSpace(buffer[nameEnd]) && buffer[nameEnd] != '/'
+                    && buffer[nameEnd] != '>') {
+                nameEnd += 1;
+            }
+            boolean selfClosing = buffer[close - 1] == '/';
+
+            if (closing) {
+                if (inNode && matches(start, nameEnd, NODE)) {
+                    g.addNode(nodeId, nodeLon, nodeLat, nodeName);
+                    inNode = false;
+                } else if (inWay && matches(start, nameEnd, WAY)) {
+                    if (highway >= 0) {
+                        String name = wayName == null ? Router.NavigationDirection.UNKNOWN_ROAD
+                                : wayName;
+                        String type = GraphBuildingHandler.HIGHWAY_TYPES[highway];
+                        for (int i = 0; i < refCount - 1; i += 1) {
+                            g.addEdge(refs[i], refs[i + 1], name, type, wayMaxspeed, wayId);
+                        }
+                    }
+                    inWay = false;
+                } else if (inRelation && matches(start, nameEnd, RELATION)) {
+                    if (restriction && restrictionKind != 0 && restrictionFrom >= 0
+                            && restrictionVia >= 0 && restrictionTo >= 0) {
+                        g.addRestriction(restrictionFrom, restrictionVia, restrictionTo,
+                                restrictionKind > 0);
+                    }
+                    inRelation = false;
+                }
+                continue;
+            }
+
+            elements += 1;
+            readAttributes(nameEnd, selfClosing ? close - 1 : close);
+            if (matches(start, nameEnd, NODE)) {
+                nodeId = parseLong(ATTRIBUTE_ID);
+                nodeLon = parseDouble(ATTRIBUTE_LON);
+                nodeLat = parseDouble(ATTRIBUTE_LAT);
+                nodeName = null;
+                if (selfClosing) {
+                    g.addNode(nodeId, nodeLon, nodeLat, null);
+                } else {
+                    inNode = true;
+                }
+            } else if (matches(start, nameEnd, WAY)) {
+                inWay = !selfClosing;
+                refCount = 0;
+                highway = -1;
+                wayName = null;
+                wayMaxspeed = null;
+                wayId = valueStart[ATTRIBUTE_ID] >= 0 ? parseLong(ATTRIBUTE_ID) : -1;
+            } else if (matches(start, nameEnd, RELATION)) {
+                inRelation = !selfClosing;
+                restriction = false;
+                restrictionKind = 0;
+                restrictionFrom = -1;
+                restrictionVia = -1;
+                restrictionTo = -1;
+            } else if (inRelation && matches(start, nameEnd, MEMBER)) {
+                //A restriction goes from a way, through a node, to a way.
+                int role = valueStart[ATTRIBUTE_ROLE];
+                int roleEnd = valueEnd[ATTRIBUTE_ROLE];
+                int type = valueStart[ATTRIBUTE_TYPE];
+                int typeEnd = valueEnd[ATTRIBUTE_TYPE];
+                if (role >= 0 && type >= 0) {
+                    if (matches(role, roleEnd, FROM) && matches(type, typeEnd, WAY)) {
+                        restrictionFrom = parseLong(ATTRIBUTE_REF);
+                    } else if (matches(role, roleEnd, VIA) && matches(type, typeEnd, NODE)) {
+                        restrictionVia = parseLong(ATTRIBUTE_REF);
+                    } else if (matches(role, roleEnd, TO) && matches(type, typeEnd, WAY)) {
+                        restrictionTo = parseLong(ATTRIBUTE_REF);
+                    }
+                }
+            } else if (inWay && matches(start, nameEnd, ND)) {
+                if (refCount == refs.length) {
+                    refs = Arrays.copyOf(refs, refCount * 2);
+                }
+                refs[refCount] = parseLong(ATTRIBUTE_REF);
+                refCount += 1;
+            } else if (matches(start, nameEnd, TAG) && valueStart[ATTRIBUTE_K] >= 0) {
+                int k = valueStart[ATTRIBUTE_K];
+                int kEnd = valueEnd[ATTRIBUTE_K];
+                if (inNode && matches(k, kEnd, NAME)) {
+                    nodeName = decode(ATTRIBUTE_V);
+                } else if (inWay && matches(k, kEnd, HIGHWAY)) {
+                    highway = highwayClass();
+                } else if (inWay && matches(k, kEnd, NAME)) {
+                    wayName = decode(ATTRIBUTE_V);
+                } else if (inWay && matches(k, kEnd, MAXSPEED)) {
+                    wayMaxspeed = decode(ATTRIBUTE_V);
+                } else if (inRelation && matches(k, kEnd, TYPE)) {
+                    restriction = valueStart[ATTRIBUTE_V] >= 0
+                            && matches(valueStart[ATTRIBUTE_V], valueEnd[ATTRIBUTE_V], RESTRICTION);
+                } else if (inRelation && (matches(k, kEnd, RESTRICTION)
+                        || matches(k, kEnd, RESTRICTION_MOTORCAR))) {
+                    restrictionKind = restrictionKind();
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the '>' closing the element starting at position, reading more input as needed.
+     * Quoted attribute values may contain '>', so quotes are skipped over.
+     * @return The index of the '>', or -1 if the input ends first.
+     */
+    private int elementEnd() throws IOException {
+        int i = position + 1;
+        byte quote = 0;
+        while (true) {
+            if (i >= end) {
+                int consumed = position;
+                if (!fill()) {
+                    return -1;
+                }
+                i -= consumed;
+                continue;
+            }
+            byte b = buffer[i];
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return i;
+            }
+            i += 1;
+        }
+    }
+
+    /**
+     * Moves the unconsumed bytes to the front of the buffer and reads more after them, growing
+     * the buffer if a single element does not fit.
+     * @return False if there is no more input.
+     */
+    private boolean fill() throws IOException {
+        int remaining = end - position;
+        if (remaining == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        } else if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+        }
+        position = 0;
+        end = remaining;
+        int n = in.read(buffer, end, buffer.length - end);
+        if (n <= 0) {
+            return false;
+        }
+        end += n;
+        return true;
+    }
+
+    /** Records the value bounds of the attributes of interest between from and to. */
+    private void readAttributes(int from, int to) {
+        Arrays.fill(valueStart, -1);
+        int i = from;
+        while (i < to) {
+            while (i < to && isSpace(buffer[i])) {
+                i += 1;
+            }
+            int nameStart = i;
+            while (i < to && buffer[i] != '=' && !isSpace(buffer[i])) {
+                i += 1;
+            }
+            int nameEnd = i;
+            while (i < to && buffer[i] != '"' && buffer[i] != '\'') {
+                i += 1;
+            }
+            if (i >= to) {
+                return;
+            }
+            byte quote = buffer[i];
+            int start = i + 1;
+            i = start;
+            while (i < to && buffer[i] != quote) {
+                i += 1;
+            }
+            int attribute = attribute(nameStart, nameEnd);
+            if (attribute >= 0) {
+                valueStart[attribute] = start;
+                valueEnd[attribute] = i;
+            }
+            i += 1;
+        }
+    }
+
+    private int attribute(int start, int end) {
+        switch (end - start) {
+            case 1:
+                return matches(start, end, K) ? ATTRIBUTE_K : matches(start, end, V) ? ATTRIBUTE_V : -1;
+            case 2:
+                return matches(start, end, ID) ? ATTRIBUTE_ID : -1;
+            case 3:
+                return matches(start, end, LAT) ? ATTRIBUTE_LAT : matches(start, end, LON)
+                        ? ATTRIBUTE_LON : matches(start, end, REF) ? ATTRIBUTE_REF : -1;
+            case 4:
+                return matches(start, end, TYPE) ? ATTRIBUTE_TYPE : matches(start, end, ROLE)
+                        ? ATTRIBUTE_ROLE : -1;
+            default:
+                return -1;
+        }
+    }
+
+    private int highwayClass() {
+        int start = valueStart[ATTRIBUTE_V];
+        if (start < 0) {
+            return -1;
+        }
+        for (int i = 0; i < HIGHWAY_TYPES.length; i += 1) {
+            if (matches(start, valueEnd[ATTRIBUTE_V], HIGHWAY_TYPES[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the kind of the turn restriction in the value of the current tag: 1 for only_*,
+     * -1 for no_* and 0 for anything else.
+     */
+    private int restrictionKind() {
+        int start = valueStart[ATTRIBUTE_V];
+        int stop = valueEnd[ATTRIBUTE_V];
+        if (start < 0) {
+            return 0;
+        }
+        if (stop - start >= ONLY.length && matches(start, start + ONLY.length, ONLY)) {
+            return 1;
+        }
+        if (stop - start >= NO.length && matches(start, start + NO.length, NO)) {
+            return -1;
+        }
+        return 0;
+    }
+
+    private long parseLong(int attribute) throws IOException {
+        int i = valueStart[attribute];
+        int to = valueEnd[attribute];
+        if (i < 0 || i == to) {
+            throw new IOException("Missing numeric attribute");
+        }
+        boolean negative = buffer[i] == '-';
+        if (negative) {
+            i += 1;
+        }
+        long value = 0;
+        for (; i < to; i += 1) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Malformed number " + string(attribute));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a decimal coordinate. With at most 15 digits, both the digits as an integer and the
+     * power of ten are exact doubles, so a single division is correctly rounded and matches
+     * Double.parseDouble; anything longer or more unusual is handed to Double.parseDouble.
+     */
+    private double parseDouble(int attribute) throws IOException {
+        int i = valueStart[attribute];
+        int to = valueEnd[attribute];
+        if (i < 0 || i == to) {
+            throw new IOException("Missing numeric attribute");
+        }
+        boolean negative = buffer[i] == '-';
+        if (negative) {
+            i += 1;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (; i < to; i += 1) {
+            byte b = buffer[i];
+            if (b == '.' && fraction < 0) {
+                fraction = 0;
+            } else if (b >= '0' && b <= '9' && digits < 15) {
+                mantissa = mantissa * 10 + (b - '0');
+                digits += 1;
+                if (fraction >= 0) {
+                    fraction += 1;
+                }
+            } else {
+                try {
+                    return Double.parseDouble(string(attribute));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed number " + string(attribute), e);
+                }
+            }
+        }
+        double value = mantissa / POWERS_OF_TEN[Math.max(fraction, 0)];
+        return negative ? -value : value;
+    }
+
+    private String string(int attribute) {
+        int start = valueStart[attribute];
+        return new String(buffer, start, valueEnd[attribute] - start, StandardCharsets.UTF_8);
+    }
+
+    /** Returns the value of an attribute as a string, with XML entities replaced. */
+    private String decode(int attribute) {
+        if (valueStart[attribute] < 0) {
+            return null;
+        }
+        String s = string(attribute);
+        return s.indexOf('&') < 0 ? s : unescape(s);
+    }
+
+    static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            int semicolon = c == '&' ? s.indexOf(';', i) : -1;
+            if (semicolon < 0) {
+                sb.append(c);
+                i += 1;
+                continue;
+            }
+            String entity = s.substring(i + 1, semicolon);
+            if (entity.equals("amp")) {
+                sb.append('&');
+            } else if (entity.equals("lt")) {
+                sb.append('<');
+            } else if (entity.equals("gt")) {
+                sb.append('>');
+            } else if (entity.equals("quot")) {
+                sb.append('"');
+            } else if (entity.equals("apos")) {
+                sb.append('\'');
+            } else if (entity.startsWith("#x")) {
+                sb.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+            } else if (entity.startsWith("#")) {
+                sb.appendCodePoint(Integer.parseInt(entity.substring(1)));
+            } else {
+                sb.append(s, i, semicolon + 1);
+            }
+            i = semicolon + 1;
+        }
+        return sb.toString();
+    }
+
+    private int indexOf(byte b, int from) {
+        for (int i = from; i < end; i += 1) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int start, int stop, byte[] expected) {
+        if (stop - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i += 1) {
+            if (buffer[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,615 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Imports the OSM PBF binary format (<a href="https://wiki.openstreetmap.org/wiki/PBF_Format">
+ * spec</a>). A PBF file is a sequence of independently compressed blocks of a few thousand
+ * elements each. The blocks are read sequentially, inflated and decoded in parallel on a worker
+ * pool, and then handed to the graph one at a time in file order, since GraphDB is not safe for
+ * concurrent modification and ways must come after the nodes they reference.
+ *
+ * Only the parts of the format the graph needs are decoded: plain and dense nodes with their
+ * names, ways whose highway tag is in GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES, and turn
+ * restriction relations from a way through a node to a way.
+ */
+class PbfOsmImporter implements OsmImporter {
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    private static final Set<String> SUPPORTED_FEATURES = new HashSet<>(Arrays.asList(
+            "OsmSchema-V0.6", "DenseNodes"));
+    private final int threads;
+
+    PbfOsmImporter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads The number of blocks decoded at the same time.
+     */
+    PbfOsmImporter(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    @Override
+    public void importInto(File input, OsmSink g) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<Future<Block>> pending = new ArrayDeque<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(input), 1 << 16))) {
+            while (true) {
+                int headerLength;
+                try {
+                    headerLength = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (headerLength < 0 || headerLength > MAX_HEADER_SIZE) {
+                    throw new IOException("Corrupt blob header in " + input);
+                }
+                byte[] header = new byte[headerLength];
+                in.readFully(header);
+
+                String type = null;
+                int dataSize = 0;
+                ProtobufReader h = new ProtobufReader(header, 0, headerLength);
+                while (h.hasMore()) {
+                    int tag = h.readTag();
+                    if (tag >>> 3 == 1) {
+                        type = h.readString();
+                    } else if (tag >>> 3 == 3) {
+                        dataSize = (int) h.readVarint();
+                    } else {
+                        h.skip(tag);
+                    }
+                }
+                if (dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+                    throw new IOException("Corrupt blob size in " + input);
+                }
+                byte[] blob = new byte[dataSize];
+                in.readFully(blob);
+
+                if ("OSMHeader".equals(type)) {
+                    checkFeatures(inflate(blob));
+                } else if ("OSMData".equals(type)) {
+                    pending.add(pool.submit(() -> decode(inflate(blob))));
+                    //Bounding the number of decoded blocks waiting to be applied bounds memory.
+                    while (pending.size() > 2 * threads) {
+                        apply(pending.poll(), g);
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                apply(pending.poll(), g);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void apply(Future<Block> future, OsmSink g) throws IOException {
+        try {
+            future.get().apply(g);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not decode block", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the uncompressed contents of a Blob message.
+     */
+    static byte[] inflate(byte[] blob) throws IOException {
+        ProtobufReader r = new ProtobufReader(blob, 0, blob.length);
+        byte[] raw = null;
+        byte[] zlib = null;
+        int rawSize = 0;
+        while (r.hasMore()) {
+            int tag = r.readTag();
+            switch (tag >>> 3) {
+                case 1:
+                    raw = r.readBytes();
+                    break;
+                case 2:
+                    rawSize = (int) r.readVarint();
+                    break;
+                case 3:
+                    zlib = r.readBytes();
+                    break;
+                case 4: case 5: case 6: case 7:
+                    throw new IOException("Unsupported blob compression " + (tag >>> 3));
+                default:
+                    r.skip(tag);
+            }
+        }
+        if (raw != null) {
+            return raw;
+        }
+        if (zlib == null) {
+            throw new IOException("Empty blob");
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(zlib);
+            byte[] out = new byte[rawSize];
+            int n = 0;
+            while (n < rawSize) {
+                int k = inflater.inflate(out, n, rawSize - n);
+                if (k == 0 && (inflater.finished() || inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    throw new IOException("Truncated blob");
+                }
+                n += k;
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt blob", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Rejects files that need features beyond plain and dense nodes, ways and relations. */
+    private static void checkFeatures(byte[] headerBlock) throws IOException {
+        ProtobufReader r = new ProtobufReader(headerBlock, 0, headerBlock.length);
+        while (r.hasMore()) {
+            int tag = r.readTag();
+            if (tag >>> 3 == 4) {
+                String feature = r.readString();
+                if (!SUPPORTED_FEATURES.contains(feature)) {
+                    throw new IOException("Unsupported PBF feature " + feature);
+                }
+            } else {
+                r.skip(tag);
+            }
+        }
+    }
+
+    /**
+     * Decodes a PrimitiveBlock into the nodes and routable ways it contains.
+     */
+    static Block decode(byte[] data) throws IOException {
+        try {
+            ProtobufReader r = new ProtobufReader(data, 0, data.length);
+            String[] strings = new String[0];
+            List<ProtobufReader> groups = new ArrayList<>();
+            long granularity = 100;
+            long latOffset = 0;
+            long lonOffset = 0;
+            while (r.hasMore()) {
+                int tag = r.readTag();
+                switch (tag >>> 3) {
+                    case 1:
+                        strings = readStringTable(r.readMessage());
+                        break;
+                    case 2:
+                        groups.add(r.readMessage());
+                        break;
+                    case 17:
+                        granularity = r.readVarint();
+                        break;
+                    case 19:
+                        latOffset = r.readVarint();
+                        break;
+                    case 20:
+                        lonOffset = r.readVarint();
+                        break;
+                    default:
+                        r.skip(tag);
+                }
+            }
+
+            Block block = new Block(strings, granularity, latOffset, lonOffset);
+            for (ProtobufReader group : groups) {
+                while (group.hasMore()) {
+                    int tag = group.readTag();
+                    switch (tag >>> 3) {
+                        case 1:
+                            block.readNode(group.readMessage());
+                            break;
+                        case 2:
+                            block.readDenseNodes(group.readMessage());
+                            break;
+                        case 3:
+                            block.readWay(group.readMessage());
+                            break;
+                        case 4:
+                            block.readRelation(group.readMessage());
+                            break;
+                        default:
+                            group.skip(tag);
+                    }
+                }
+            }
+            return block;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt primitive block", e);
+        }
+    }
+
+    private static String[] readStringTable(ProtobufReader r) {
+        List<String> strings = new ArrayList<>();
+        while (r.hasMore()) {
+            int tag = r.readTag();
+            if (tag >>> 3 == 1) {
+                strings.add(r.readString());
+            } else {
+                r.skip(tag);
+            }
+        }
+        return strings.toArray(new String[0]);
+    }
+
+    /**
+     * The decoded contents of one PrimitiveBlock, kept in primitive arrays until it is applied.
+     */
+    static class Block {
+        private final String[] strings;
+        private final long granularity;
+        private final long latOffset;
+        private final long lonOffset;
+        private long[] nodeIds = new long[64];
+        private double[] lons = new double[64];
+        private double[] lats = new double[64];
+        private String[] names = new String[64];
+        private int nodeCount = 0;
+        private final List<long[]> wayRefs = new ArrayList<>();
+        private final List<String> wayNames = new ArrayList<>();
+        private final List<String> wayHighways = new ArrayList<>();
+        private final List<String> wayMaxspeeds = new ArrayList<>();
+        private final List<Long> wayIds = new ArrayList<>();
+        private final List<long[]> restrictions = new ArrayList<>();
+
+        private Block(String[] strings, long granularity, long latOffset, long lonOffset) {
+            this.strings = strings;
+            this.granularity = granularity;
+            this.latOffset = latOffset;
+            this.lonOffset = lonOffset;
+        }
+
+        /** Adds this block's nodes, the road segments of its ways and its restrictions to the sink. */
+        void apply(OsmSink g) {
+            for (int i = 0; i < nodeCount; i += 1) {
+                g.addNode(nodeIds[i], lons[i], lats[i], names[i]);
+            }
+            for (int i = 0; i < wayRefs.size(); i += 1) {
+                long[] refs = wayRefs.get(i);
+                String name = wayNames.get(i);
+                String highway = wayHighways.get(i);
+                String maxspeed = wayMaxspeeds.get(i);
+                long way = wayIds.get(i);
+                for (int j = 0; j < refs.length - 1; j += 1) {
+                    g.addEdge(refs[j], refs[j + 1], name, highway, maxspeed, way);
+                }
+            }
+            for (long[] restriction : restrictions) {
+                g.addRestriction(restriction[0], restriction[1], restriction[2], restriction[3] != 0);
+            }
+        }
+
+        private void addNode(long id, long rawLat, long rawLon, String name) {
+            if (nodeCount == nodeIds.length) {
+                int capacity = nodeCount * 2;
+                nodeIds = Arrays.copyOf(nodeIds, capacity);
+                lons = Arrays.copyOf(lons, capacity);
+                lats = Arrays.copyOf(lats, capacity);
+                names = Arrays.copyOf(names, capacity);
+            }
+            nodeIds[nodeCount] = id;
+            lats[nodeCount] = 1e-9 * (latOffset + granularity * rawLat);
+            lons[nodeCount] = 1e-9 * (lonOffset + granularity * rawLon);
+            names[nodeCount] = name;
+            nodeCount += 1;
+        }
+
+        private void readNode(ProtobufReader r) {
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            long[] keys = new long[0];
+            long[] vals = new long[0];
+            while (r.hasMore()) {
+                int tag = r.readTag();
+                switch (tag >>> 3) {
+                    case 1:
+                        id = r.readSignedVarint();
+                        break;
+                    case 2:
+                        keys = r.readMessage().readPackedVarints(false);
+                        break;
+                    case 3:
+                        vals = r.readMessage().readPackedVarints(false);
+                        break;
+                    case 8:
+                        lat = r.readSignedVarint();
+                        break;
+                    case 9:
+                        lon = r.readSignedVarint();
+                        break;
+                    default:
+                        r.skip(tag);
+                }
+            }
+            addNode(id, lat, lon, tagValue(keys, vals, "name"));
+        }
+
+        private void readDenseNodes(ProtobufReader r) {
+            long[] ids = new long[0];
+            long[] rawLats = new long[0];
+            long[] rawLons = new long[0];
+            long[] keysVals = new long[0];
+            while (r.hasMore()) {
+                int tag = r.readTag();
+                switch (tag >>> 3) {
+                    case 1:
+                        ids = r.readMessage().readPackedVarints(true);
+                        break;
+                    case 8:
+                        rawLats = r.readMessage().readPackedVarints(true);
+                        break;
+                    case 9:
+                        rawLons = r.readMessage().readPackedVarints(true);
+                        break;
+                    case 10:
+                        keysVals = r.readMessage().readPackedVarints(false);
+                        break;
+                    default:
+                        r.skip(tag);
+                }
+            }
+
+            //Ids and coordinates are delta coded; tags are (key, value) pairs ending in a 0.
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            int kv = 0;
+            for (int i = 0; i < ids.length; i += 1) {
+                id += ids[i];
+                lat += rawLats[i];
+                lon += rawLons[i];
+                String name = null;
+                while (kv < keysVals.length && keysVals[kv] != 0) {
+                    if (strings[(int) keysVals[kv]].equals("name")) {
+                        name = strings[(int) keysVals[kv + 1]];
+                    }
+                    kv += 2;
+                }
+                kv += 1;
+                addNode(id, lat, lon, name);
+            }
+        }
+
+        private void readWay(ProtobufReader r) {
+            long id = -1;
+            long[] keys = new long[0];
+            long[] vals = new long[0];
+            long[] refs = new long[0];
+            while (r.hasMore()) {
+                int tag = r.readTag();
+                switch (tag >>> 3) {
+                    case 1:
+                        id = r.readVarint();
+                        break;
+                    case 2:
+                        keys = r.readMessage().readPackedVarints(false);
+                        break;
+                    case 3:
+                        vals = r.readMessage().readPackedVarints(false);
+                        break;
+                    case 8:
+                        refs = r.readMessage().readPackedVarints(true);
+                        break;
+                    default:
+                        r.skip(tag);
+                }
+            }
+
+            String highway = tagValue(keys, vals, "highway");
+            if (highway == null || !GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(highway)) {
+                return;
+            }
+            for (int i = 1; i < refs.length; i += 1) {
+                refs[i] += refs[i - 1];
+            }
+            String name = tagValue(keys, vals, "name");
+            wayRefs.add(refs);
+            wayNames.add(name == null ? Router.NavigationDirection.UNKNOWN_ROAD : name);
+            wayHighways.add(highway);
+            wayMaxspeeds.add(tagValue(keys, vals, "maxspeed"));
+            wayIds.add(id);
+        }
+
+        private void readRelation(ProtobufReader r) {
+            long[] keys = new long[0];
+            long[] vals = new long[0];
+            long[] roles = new long[0];
+            long[] memberIds = new long[0];
+            long[] types = new long[0];
+            while (r.hasMore()) {
+                int tag = r.readTag();
+                switch (tag >>> 3) {
+                    case 2:
+                        keys = r.readMessage().readPackedVarints(false);
+                        break;
+                    case 3:
+                        vals = r.readMessage().readPackedVarints(false);
+                        break;
+                    case 8:
+                        roles = r.readMessage().readPackedVarints(false);
+                        break;
+                    case 9:
+                        memberIds = r.readMessage().readPackedVarints(true);
+                        break;
+                    case 10:
+                        types = r.readMessage().readPackedVarints(false);
+                        break;
+                    default:
+                        r.skip(tag);
+                }
+            }
+
+            if (!"restriction".equals(tagValue(keys, vals, "type"))) {
+                return;
+            }
+            String restriction = tagValue(keys, vals, "restriction");
+            if (restriction == null) {
+                restriction = tagValue(keys, vals, "restriction:motorcar");
+            }
+            boolean only = restriction != null && restriction.startsWith("only_");
+            if (restriction == null || !(only || restriction.startsWith("no_"))) {
+                return;
+            }
+            //Member ids are delta coded; member types are 0 for nodes and 1 for ways.
+            long from = -1;
+            long via = -1;
+            long to = -1;
+            long id = 0;
+            for (int i = 0; i < memberIds.length; i += 1) {
+                id += memberIds[i];
+                String role = strings[(int) roles[i]];
+                if (role.equals("from") && types[i] == 1) {
+                    from = id;
+                } else if (role.equals("via") && types[i] == 0) {
+                    via = id;
+                } else if (role.equals("to") && types[i] == 1) {
+                    to = id;
+                }
+            }
+            if (from >= 0 && via >= 0 && to >= 0) {
+                restrictions.add(new long[]{from, via, to, only ? 1 : 0});
+            }
+        }
+
+        private String tagValue(long[] keys, long[] vals, String key) {
+            for (int i = 0; i < keys.length; i += 1) {
+                if (strings[(int) keys[i]].equals(key)) {
+                    return strings[(int) vals[i]];
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A minimal reader for the protocol buffer wire format over a range of a byte array.
+     */
+    static final class ProtobufReader {
+        private final byte[] buffer;
+        private int position;
+        private final int limit;
+
+        ProtobufReader(byte[] buffer, int position, int limit) {
+            this.buffer = buffer;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        boolean hasMore() {
+            return position < limit;
+        }
+
+        int readTag() {
+            return (int) readVarint();
+        }
+
+        long readVarint() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer[position];
+                position += 1;
+                result |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            throw new IllegalStateException("Malformed varint");
+        }
+
+        /** Reads a zigzag encoded sint64. */
+        long readSignedVarint() {
+            long v = readVarint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        /** Reads a length delimited field as a reader over its contents. */
+        ProtobufReader readMessage() {
+            int length = (int) readVarint();
+            ProtobufReader message = new ProtobufReader(buffer, position, position + length);
+            position += length;
+            return message;
+        }
+
+        byte[] readBytes() {
+            int length = (int) readVarint();
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        String readString() {
+            int length = (int) readVarint();
+            String s = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return s;
+        }
+
+        /**
+         * Reads the rest of this reader as a packed run of varints.
+         * @param signed Whether the values are zigzag encoded.
+         */
+        long[] readPackedVarints(boolean signed) {
+            //Every varint ends in exactly one byte without the continuation bit.
+            int count = 0;
+            for (int i = position; i < limit; i += 1) {
+                if (buffer[i] >= 0) {
+                    count += 1;
+                }
+            }
+            long[] values = new long[count];
+            for (int i = 0; i < count; i += 1) {
+                values[i] = signed ? readSignedVarint() : readVarint();
+            }
+            return values;
+        }
+
+        /** Skips over the value of a field with the given tag. */
+        void skip(int tag) {
+            switch (tag & 7) {
+                case 0:
+                    readVarint();
+                    break;
+                case 1:
+                    position += 8;
+                    break;
+                case 2:
+                    position += (int) readVarint();
+                    break;
+                case 5:
+                    position += 4;
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported wire type " + (tag & 7));
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * A point part of the way along a road, where a location snapped to the nearest road lies. A
+ * route from it starts by driving the rest of the road either way, and a route to it ends by
+ * driving part of the road from either end, so it acts as a vertex of its own joined to the two
+ * ends of its road by parts of the road's edges.
+ *
+ * @variable from, to: The ends of the road, from having the lower index.
+ * @variable edge: The edge from from to to.
+ * @variable backEdge: The edge from to back to from.
+ * @variable fraction: How far along the road from from the point is, from 0 at from to 1 at to.
+ * @variable lon, lat: Where the point is.
+ * @variable distance: The distance in miles from the snapped location to the point.
+ */
+final class RoadPoint {
+    final int from;
+    final int to;
+    final int edge;
+    final int backEdge;
+    final double fraction;
+    final double lon;
+    final double lat;
+    final double distance;
+
+    RoadPoint(int from, int to, int edge, int backEdge, double fraction, double lon, double lat,
+              double distance) {
+        this.from = from;
+        this.to = to;
+        this.edge = edge;
+        this.backEdge = backEdge;
+        this.fraction = fraction;
+        this.lon = lon;
+        this.lat = lat;
+        this.distance = distance;
+    }
+
+    /** Returns the weight on a graph of getting from the point to from along the road. */
+    double weightToFrom(CompactGraph graph) {
+        return part(fraction, graph.weight(backEdge));
+    }
+
+    /** Returns the weight on a graph of getting from the point to to along the road. */
+    double weightToTo(CompactGraph graph) {
+        return part(1 - fraction, graph.weight(edge));
+    }
+
+    /** Returns the weight on a graph of getting from from to the point along the road. */
+    double weightFromFrom(CompactGraph graph) {
+        return part(fraction, graph.weight(edge));
+    }
+
+    /** Returns the weight on a graph of getting from to to the point along the road. */
+    double weightFromTo(CompactGraph graph) {
+        return part(1 - fraction, graph.weight(backEdge));
+    }
+
+    /** Returns whether another point is on the same road. */
+    boolean sameRoad(RoadPoint other) {
+        return edge == other.edge;
+    }
+
+    /**
+     * Returns part of the weight of an edge. No part of a road is nothing, even if it is closed,
+     * so that a point at the very end of a closed road can still be left by the other roads there.
+     */
+    static double part(double fraction, double weight) {
+        return fraction == 0 ? 0 : fraction * weight;
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Imports an OSM file in two passes so that the graph never holds nodes it cannot use. Most nodes
+ * in an extract are neither on a routable road nor named (building outlines, footpaths, land
+ * use), yet a single pass has to keep all of them until the ways have been read. The first pass
+ * only collects the ids of the nodes on ways whose highway tag is in
+ * GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES, into a sorted array of longs; the second pass
+ * delivers only those nodes, plus every named node so that search keeps working.
+ *
+ * The price is reading the input twice, and that lon() and lat() no longer know about the
+ * dropped nodes.
+ */
+class RoutableOnlyImporter implements OsmImporter {
+    private final OsmImporter importer;
+
+    /**
+     * @param importer The importer that reads the file in each pass.
+     */
+    RoutableOnlyImporter(OsmImporter importer) {
+        this.importer = importer;
+    }
+
+    @Override
+    public void importInto(File input, OsmSink g) throws IOException {
+        WayNodeCollector collector = new WayNodeCollector();
+        importer.importInto(input, collector);
+        importer.importInto(input, new NodeFilter(collector.sortedIds(), g));
+    }
+
+    /**
+     * Records the endpoints of every road segment and ignores nodes.
+     */
+    private static class WayNodeCollector implements OsmSink {
+        private long[] ids = new long[1024];
+        private int size = 0;
+
+        @Override
+        public void addNode(long id, double lon, double lat, String name) {
+        }
+
+        @Override
+        public void addEdge(long iden1, long iden2, String name, String highway, String maxspeed,
+                            long way) {
+            if (size + 2 > ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+            ids[size] = iden1;
+            ids[size + 1] = iden2;
+            size += 2;
+        }
+
+        /** Returns the distinct ids recorded, in increasing order. */
+        long[] sortedIds() {
+            Arrays.sort(ids, 0, size);
+            int distinct = 0;
+            for (int i = 0; i < size; i += 1) {
+                if (distinct == 0 || ids[i] != ids[distinct - 1]) {
+                    ids[distinct] = ids[i];
+                    distinct += 1;
+                }
+            }
+            return Arrays.copyOf(ids, distinct);
+        }
+
+        @Override
+        public void addRestriction(long from, long via, long to, boolean only) {
+        }
+    }
+
+    /**
+     * Passes on named nodes and nodes in a sorted set of ids, and every road segment and turn
+     * restriction.
+     */
+    private static class NodeFilter implements OsmSink {
+        private final long[] retained;
+        private final OsmSink g;
+
+        private NodeFilter(long[] retained, OsmSink g) {
+            this.retained = retained;
+            this.g = g;
+        }
+
+        @Override
+        public void addNode(long id, double lon, double lat, String name) {
+            if (name != null || Arrays.binarySearch(retained, id) >= 0) {
+                g.addNode(id, lon, lat, name);
+            }
+        }
+
+        @Override
+        public void addEdge(long iden1, long iden2, String name, String highway, String maxspeed,
+                            long way) {
+            g.addEdge(iden1, iden2, name, highway, maxspeed, way);
+        }
+
+        @Override
+        public void addRestriction(long from, long via, long to, boolean only) {
+            g.addRestriction(from, via, to, only);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded cache of the routes MapServer has found, keyed by the vertices their start and end
+ * points snapped to and the options they were found with, so that the many requests between the
+ * same places, such as from campus gates or transit stops, are only routed once. Every graph has
+ * its own cache, so loading a new graph starts with an empty one.
+ *
+ * The routes are spread over segments by key, each an access-ordered LinkedHashMap under its own
+ * lock, so that requests for different routes rarely wait for each other. A segment drops its
+ * least recently used route once it is full, and a route older than the time to live is dropped
+ * when it is next asked for.
+ *
+ * @variable segments: The segments, of which the route from start to end is in
+ * segments[key.hash & (segments.length - 1)].
+ * @variable generation: The number of times the cache has been invalidated. A route found before
+ * an invalidation is never served after it, even if it is only put into the cache afterwards.
+ * @variable hits, misses, evictions, expirations: Counters of the lookups that found a route, the
+ * lookups that did not, the routes dropped to make room and the routes dropped for being too old.
+ */
+final class RouteCache {
+    /** The number of routes a graph's cache holds. */
+    static final int CAPACITY = 10000;
+    /** How long a route may be served from a graph's cache, in nanoseconds. */
+    static final long TTL_NANOS = 10 * 60 * 1000000000L;
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    private volatile long generation = 0;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * Creates an empty cache.
+     * @param capacity The most routes it holds, at least 1.
+     * @param ttlNanos How long a route may be served, in nanoseconds.
+     */
+    RouteCache(int capacity, long ttlNanos) {
+        this(capacity, ttlNanos, System::nanoTime);
+    }
+
+    /**
+     * Creates an empty cache that tells time with the given clock, so that tests can make routes
+     * expire without waiting.
+     */
+    RouteCache(int capacity, long ttlNanos, LongSupplier clock) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("A route cache must hold at least one route.");
+        }
+        //Use fewer segments than SEGMENTS for tiny caches, so that the capacity is still exact.
+        int count = Integer.highestOneBit(Math.min(SEGMENTS, capacity));
+        segments = new Segment[count];
+        for (int i = 0; i < count; i += 1) {
+            segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+        }
+        this.ttlNanos = ttlNanos;
+        this.clock = clock;
+    }
+
+    /**
+     * A route as MapServer serves it.
+     * @variable vertices: The vertices on the route.
+     * @variable directions: The directions for the route, as MapServer shows them.
+     */
+    static final class Route {
+        final int[] vertices;
+        final String directions;
+        private final long created;
+        private final long generation;
+
+        private Route(int[] vertices, String directions, long created, long generation) {
+            this.vertices = vertices;
+            this.directions = directions;
+            this.created = created;
+            this.generation = generation;
+        }
+    }
+
+    /** Returns the cached route between two vertices found with no options. */
+    Route get(int start, int end) {
+        return get(start, end, 0);
+    }
+
+    /**
+     * Returns the cached route between two vertices.
+     * @param start The vertex the start point snapped to.
+     * @param end The vertex the end point snapped to.
+     * @param options The options the route was found with, such as whether turns were counted,
+     * as bits chosen by the caller. Routes found with different options are cached separately.
+     * @return The route, or null if it is not cached or has expired.
+     */
+    Route get(int start, int end, int options) {
+        Key key = new Key(start, end, options);
+        Segment segment = segmentFor(key);
+        Route route;
+        synchronized (segment) {
+            route = segment.get(key);
+            if (route != null && route.generation != generation) {
+                segment.remove(key);
+                route = null;
+            } else if (route != null && clock.getAsLong() - route.created > ttlNanos) {
+                segment.remove(key);
+                expirations.increment();
+                route = null;
+            }
+        }
+        if (route == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return route;
+    }
+
+    /** Caches the route between two vertices found with no options, just now. */
+    Route put(int start, int end, int[] vertices, String directions) {
+        return put(start, end, 0, generation, vertices, directions);
+    }
+
+    /**
+     * Caches the route between two vertices, replacing any route cached for them before.
+     * @param start The vertex the start point snapped to.
+     * @param end The vertex the end point snapped to.
+     * @param options The options the route was found with.
+     * @param generation The generation of the cache when the route search started, so that a
+     *                   route found on roads that changed during the search is not served.
+     * @param vertices The vertices on the route.
+     * @param directions The directions for the route.
+     * @return The cached route.
+     */
+    Route put(int start, int end, int options, long generation, int[] vertices,
+              String directions) {
+        Key key = new Key(start, end, options);
+        Route route = new Route(vertices, directions, clock.getAsLong(), generation);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, route);
+        }
+        return route;
+    }
+
+    /**
+     * Drops every cached route, for when the routes of the graph may have changed. Routes being
+     * found as this is called are dropped too when they are put into the cache.
+     */
+    void invalidate() {
+        synchronized (this) {
+            generation += 1;
+        }
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of routes cached, including any that have expired but not been asked
+     * for.
+     */
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /** Returns the current generation, to be passed to put for a route about to be found. */
+    long generation() {
+        return generation;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long expirations() {
+        return expirations.sum();
+    }
+
+    /** Returns the fraction of lookups that found a route, or 0 before the first lookup. */
+    double hitRate() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        return lookups == 0 ? 0 : (double) hitCount / lookups;
+    }
+
+    private Segment segmentFor(Key key) {
+        return segments[key.hash & (segments.length - 1)];
+    }
+
+    /** The vertices and options a route was found for. */
+    private static final class Key {
+        private final int start;
+        private final int end;
+        private final int options;
+        private final int hash;
+
+        private Key(int start, int end, int options) {
+            this.start = start;
+            this.end = end;
+            this.options = options;
+            //Mix the bits, since nearby vertices differ only in their low bits.
+            long mixed = (((long) start << 32) | (end & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L
+                    + options * 0xC2B2AE3D27D4EB4FL;
+            hash = (int) (mixed >>> 32);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return start == other.start && end == other.end && options == other.options;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** The routes of one segment, from least to most recently used. It is never serialized. */
+    @SuppressWarnings("serial")
+    private final class Segment extends LinkedHashMap<Key, Route> {
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Route> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
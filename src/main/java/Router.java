@@ -12,33 +12,41 @@ import java.util.regex.Pattern;
 
 public class Router {
     /**
-     * The creation of a new Node class that is used for the A* search algorithm. All necessary information about
-     * a particular node/vertex has been packaged into this Node class, so that the A* search does not have to
-     * rely on many different lists and maps to keep track of shortest distances, representations, and children.
+     * The search algorithms a route can be found with. They all find a shortest path, and differ only in how much
+     * of the graph they explore to find it.
      */
-    private static class Node implements Comparable<Node>{
-        public long iden;
-        public Node previous;
-        public double distance;
-        public double circleDist;
+    enum Algorithm {
+        /** A* from the start towards the end. */
+        ASTAR,
+        /** A* from both ends at once, meeting in the middle. */
+        BIDIRECTIONAL,
+        /** Dijkstra upwards from both ends in the graph's contraction hierarchy. */
+        CH,
+        /** A* from the start towards the end, with lower bounds from the graph's landmarks as the heuristic. */
+        ALT
+    }
 
-        private Node(long a, Node b, double c, double d) {
-            iden = a;
-            previous = b;
-            distance = c;
-            circleDist = d;
-        }
+    /** What a route minimizes. */
+    enum Weighting {
+        /** The length of the route in miles. */
+        DISTANCE,
+        /** The time it takes to drive the route in seconds, at the speed limit of every road on it. */
+        TIME
+    }
+
+    /**
+     * Counters describing how much work a search did, for comparing search algorithms on the same
+     * routes. A search adds to the counters, so one object can total a whole workload.
+     * @variable settled: The number of vertices whose shortest distance was fixed.
+     * @variable heapOperations: The number of inserts, decrease-keys and polls on the fringe.
+     */
+    static class SearchStats {
+        long settled;
+        long heapOperations;
 
         @Override
-        //Implementing a comparable method in order for comparison in the Priority Queue, according to the
-        //shortest computed distance travelled + circleDistance to the end.
-        public int compareTo(Node x) {
-            if ((distance + circleDist) - (x.distance + x.circleDist) > 0) {
-                return 1;
-            } else if ((distance + circleDist) - (x.distance + x.circleDist) < 0) {
-                return -1;
-            } else
-                return 0;
+        public String toString() {
+            return settled + " settled, " + heapOperations + " heap operations";
         }
     }
 
@@ -49,58 +57,671 @@ public class Router {
      * @param stlat The latitude of the start location.
      * @param destlon The longitude of the destination location.
      * @param destlat The latitude of the destination location.
-     *
-     * @variable fringe: The priority queue that sorts Nodes by minimum distance travelled + circleDistance. All
-     * Nodes are added into the fringe from the beginning, and initialized with a traveled distance of infinity.
-     * @variable key: A key to map Node identifiers with Nodes.
-     *
      * @return A list of node id's in the order visited on the shortest path.
      */
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
-        Queue<Node> fringe = new PriorityQueue<>();
-        Map<Long, Node> key = new HashMap<>();
-        long start = g.closest(stlon, stlat);
-        long end = g.closest(destlon, destlat);
-        Node place = new Node(start, null, 0, 0);
-        fringe.add(place);
-        key.put(start, place);
-
-        //Adding all Nodes into the fringe.
-        for (long i : g.vertices()) {
-            if (i != start) {
-                place = new Node(i, null, Double.POSITIVE_INFINITY, g.distance(i, end));
-                fringe.add(place);
-                key.put(i, place);
-            }
+        return g.ids(shortestPathVertices(g, stlon, stlat, destlon, destlat));
+    }
+
+    /**
+     * Finds the best possible route to a particular target with the given search algorithm.
+     * @param algorithm The search algorithm to use.
+     * @return A list of node id's in the order visited on the shortest path.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, Algorithm algorithm) {
+        return g.ids(shortestPathVertices(g, stlon, stlat, destlon, destlat, algorithm, null));
+    }
+
+    /**
+     * Finds the best possible route to a particular target with the given search algorithm, either the shortest or
+     * the quickest one.
+     * @param algorithm The search algorithm to use.
+     * @param weighting What the route minimizes.
+     * @return A list of node id's in the order visited on the route.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat, double destlon, double destlat,
+                                          Algorithm algorithm, Weighting weighting) {
+        return g.ids(shortestPathVertices(g, g.closestVertex(stlon, stlat), g.closestVertex(destlon, destlat),
+                algorithm, weighting, null));
+    }
+
+    /**
+     * Finds the road distance from every one of a set of start locations to every one of a set of destinations,
+     * such as from depots to stops. All locations are snapped to the graph in one batch, and the distances come from
+     * the graph's contraction hierarchy with one search per location rather than one per pair.
+     * @param g The graph to use.
+     * @param stlons The longitudes of the start locations.
+     * @param stlats The latitudes of the start locations.
+     * @param destlons The longitudes of the destinations.
+     * @param destlats The latitudes of the destinations.
+     * While the weights of some roads are changed, the hierarchy's distances would be too short, so the table is
+     * found with one A* search per start location instead, guided by the hierarchy's distances to the nearest
+     * destination (see ContractionHierarchy.distancesWeighted). That is exact but several times slower than the
+     * buckets, and slowest when the destinations are spread over the whole map.
+     * @return The distances in miles, row by row: the distance from start location i to destination j is at
+     * [i * destlons.length + j], and infinite if the destination cannot be reached.
+     */
+    static double[] distanceTable(GraphDB g, double[] stlons, double[] stlats,
+                                  double[] destlons, double[] destlats) {
+        return table(g, stlons, stlats, destlons, destlats, Weighting.DISTANCE);
+    }
+
+    /**
+     * Finds the driving time from every one of a set of start locations to every one of a set of destinations, along
+     * the quickest route rather than the shortest, in the same way as distanceTable but on the hierarchy of the graph
+     * weighted by time.
+     * @return The durations in seconds, laid out as the distances of distanceTable are.
+     */
+    static double[] durationTable(GraphDB g, double[] stlons, double[] stlats,
+                                  double[] destlons, double[] destlats) {
+        return table(g, stlons, stlats, destlons, destlats, Weighting.TIME);
+    }
+
+    /** Finds the table of distanceTable or durationTable, on the graph weighted the given way. */
+    private static double[] table(GraphDB g, double[] stlons, double[] stlats, double[] destlons,
+                                  double[] destlats, Weighting weighting) {
+        int[] sources = g.closestVertices(stlons, stlats, null);
+        int[] targets = g.closestVertices(destlons, destlats, null);
+        CompactGraph graph = g.compact(weighting);
+        if (graph.size() == 0) {
+            double[] distances = new double[sources.length * targets.length];
+            Arrays.fill(distances, Double.POSITIVE_INFINITY);
+            return distances;
+        }
+        if (graph.hasChangedWeights()) {
+            return g.hierarchy(weighting).distancesWeighted(graph, sources, targets);
         }
+        return g.hierarchy(weighting).distances(sources, targets);
+    }
 
-        Node currentNode = fringe.poll();
-        //Continue while the minimum Node from the PQ is not yet
-        while (currentNode.iden != end) {
-            //Getting the neighbors of the currentNode
-            for (long i : g.adjacent(currentNode.iden)) {
-                place = key.get(i);
-                //Updating the current distance and previous Node if the new computed distance is
+    /**
+     * Finds everything reachable by road from a location within a distance, such as for showing the area a service
+     * covers. The location is snapped to the graph first.
+     * @param g The graph to use.
+     * @param lon The longitude of the location.
+     * @param lat The latitude of the location.
+     * @param miles The distance.
+     * @return The reached vertices, their distances and the boundary around them, which is empty if the graph is.
+     */
+    static Isochrone isochrone(GraphDB g, double lon, double lat, double miles) {
+        return Isochrone.compute(g.compact(), g.closestVertex(lon, lat), miles);
+    }
+
+    /**
+     * Finds the shortest route between two vertices together with up to count reasonably different alternatives
+     * to it, from one search from each end. See AlternativeRoutes for what makes an alternative reasonable. The
+     * directions for every route come from routeDirections, as for any other route.
+     * @param start The vertex to start from.
+     * @param end The vertex to reach.
+     * @param count The most alternatives to find.
+     * @param stats The counters to add to, or null.
+     * @return The routes, the shortest first, or none if the destination cannot be reached.
+     */
+    static AlternativeRoutes alternativeRoutes(GraphDB g, int start, int end, int count, SearchStats stats) {
+        return alternativeRoutes(g, start, end, count, Weighting.DISTANCE, stats);
+    }
+
+    /**
+     * Finds the best route between two vertices by the given weighting together with up to count reasonably
+     * different alternatives to it.
+     * @param weighting What the routes minimize, and what their lengths are measured in.
+     * @return The routes, the best first, or none if the destination cannot be reached.
+     */
+    static AlternativeRoutes alternativeRoutes(GraphDB g, int start, int end, int count, Weighting weighting,
+                                               SearchStats stats) {
+        return AlternativeRoutes.compute(g.compact(weighting), start, end, count, stats);
+    }
+
+    /**
+     * The A* search behind shortestPath, working entirely on the dense vertex indices of the graph's CSR form so
+     * that nothing on the search path is boxed or hashed.
+     * @param g The graph to use.
+     * @param stlon The longitude of the start location.
+     * @param stlat The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
+     * @return The indices of the vertices in the order visited on the shortest path, or an empty array if the
+     * destination cannot be reached.
+     */
+    static int[] shortestPathVertices(GraphDB g, double stlon, double stlat,
+                                      double destlon, double destlat) {
+        return shortestPathVertices(g, stlon, stlat, destlon, destlat, Algorithm.ASTAR, null);
+    }
+
+    /**
+     * Finds the shortest path between two locations with the given algorithm, counting the work done.
+     * @param algorithm The search algorithm to use.
+     * @param stats The counters to add to, or null.
+     * @return The indices of the vertices in the order visited on the shortest path, or an empty array if the
+     * destination cannot be reached.
+     */
+    static int[] shortestPathVertices(GraphDB g, double stlon, double stlat, double destlon, double destlat,
+                                      Algorithm algorithm, SearchStats stats) {
+        return shortestPathVertices(g, g.closestVertex(stlon, stlat), g.closestVertex(destlon, destlat),
+                algorithm, stats);
+    }
+
+    /**
+     * Finds the shortest path between two vertices with the given algorithm, for callers that have already snapped
+     * the locations to the graph.
+     * @param start The vertex to start from.
+     * @param end The vertex to reach.
+     * @param algorithm The search algorithm to use.
+     * @param stats The counters to add to, or null.
+     * @return The indices of the vertices in the order visited on the shortest path, or an empty array if the
+     * destination cannot be reached.
+     */
+    static int[] shortestPathVertices(GraphDB g, int start, int end, Algorithm algorithm, SearchStats stats) {
+        return shortestPathVertices(g, start, end, algorithm, Weighting.DISTANCE, stats);
+    }
+
+    /**
+     * Finds the shortest or the quickest path between two vertices with the given algorithm. Every algorithm works
+     * the same way on either weighting: the heuristics of A* and bidirectional A* turn great-circle distances into
+     * times at the top speed of the graph, and the contraction hierarchy and landmarks of the weighting are used.
+     * @param start The vertex to start from.
+     * @param end The vertex to reach.
+     * @param algorithm The search algorithm to use.
+     * @param weighting What the path minimizes.
+     * @param stats The counters to add to, or null.
+     * @return The indices of the vertices in the order visited on the path, or an empty array if the destination
+     * cannot be reached.
+     */
+    static int[] shortestPathVertices(GraphDB g, int start, int end, Algorithm algorithm, Weighting weighting,
+                                      SearchStats stats) {
+        CompactGraph graph = g.compact(weighting);
+        switch (algorithm) {
+            case BIDIRECTIONAL:
+                return bidirectionalAStar(graph, start, end, stats);
+            case CH:
+                //The hierarchy is built on costs, so changed weights need the weighted search.
+                ContractionHierarchy hierarchy = g.hierarchy(weighting);
+                return graph.hasChangedWeights() ? hierarchy.routeWeighted(graph, start, end, stats)
+                        : hierarchy.route(start, end, stats);
+            case ALT:
+                return altAStar(graph, g.landmarks(weighting), start, end, stats);
+            default:
+                return aStar(graph, start, end, stats);
+        }
+    }
+
+    /**
+     * A* search between two vertices, with the great-circle distance to the end as the heuristic, turned into a
+     * lower bound on the cost of getting there by the graph's cost per mile. Vertices are only
+     * put into the fringe once they are reached, their priority is lowered in place when a shorter way to them is
+     * found, and the search stops as soon as the end is taken off the fringe. Since the great-circle distance is
+     * consistent, no vertex is ever settled twice. The search works in the calling thread's SearchWorkspace, like all
+     * of the searches here, so it allocates nothing but the path it returns.
+     * @param graph The graph to search.
+     * @param start The vertex to start from.
+     * @param end The vertex to reach.
+     * @param stats The counters to add to, or null.
+     *
+     * @variable search: The calling thread's search arrays, which only hold values for the vertices this search
+     * has reached.
+     * @variable fringe: The reached but unsettled vertices, by distance travelled + circleDistance to the end.
+     * @variable distance: The shortest distance travelled to every reached vertex.
+     * @variable circleDist: The great-circle distance from every reached vertex to the end, times perMile.
+     *
+     * @return The vertices on the shortest path from start to end, or an empty array if there is none.
+     */
+    static int[] aStar(CompactGraph graph, int start, int end, SearchStats stats) {
+        SearchWorkspace.Side search = SearchWorkspace.forThread(graph.size()).forward();
+        IndexedMinHeap fringe = search.fringe;
+        double[] distance = search.distance;
+        double[] circleDist = search.potential;
+        double endLon = graph.lon(end);
+        double endLat = graph.lat(end);
+
+        search.reach(start, 0, -1);
+        double perMile = graph.costPerMile();
+        circleDist[start] = GraphDB.distance(graph.lon(start), graph.lat(start), endLon, endLat) * perMile;
+        fringe.push(start, circleDist[start]);
+        long settledCount = 0;
+        boolean found = false;
+        while (!fringe.isEmpty()) {
+            int current = fringe.poll();
+            search.settle(current);
+            settledCount += 1;
+            if (current == end) {
+                found = true;
+                break;
+            }
+            for (int e = graph.firstEdge(current); e < graph.endEdge(current); e += 1) {
+                int next = graph.target(e);
+                if (search.isSettled(next)) {
+                    continue;
+                }
+                double length = distance[current]
+                        + graph.weight(e);
+                if (length == Double.POSITIVE_INFINITY) {
+                    //The road is closed.
+                    continue;
+                }
+                //Updating the current distance and previous vertex if the new computed distance is
                 //less than the current distance.
-                if (currentNode.distance + g.distance(currentNode.iden, place.iden) < place.distance) {
-                    fringe.remove(place);
-                    place.distance = currentNode.distance + g.distance(currentNode.iden, place.iden);
-                    place.previous = currentNode;
-                    fringe.add(place);
+                if (!search.isReached(next)) {
+                    circleDist[next] = GraphDB.distance(graph.lon(next), graph.lat(next), endLon, endLat) * perMile;
+                } else if (length >= distance[next]) {
+                    continue;
+                }
+                search.reach(next, length, current);
+                fringe.push(next, length + circleDist[next]);
+            }
+        }
+
+        if (stats != null) {
+            stats.settled += settledCount;
+            stats.heapOperations += search.operations();
+        }
+        return found ? path(search.previous, end) : new int[0];
+    }
+
+    /**
+     * Finds the shortest or the quickest route between two points on roads, such as locations snapped with
+     * GraphDB.closestRoadPoint, rather than between the vertices nearest to them.
+     * @param start The point to start from.
+     * @param end The point to reach.
+     * @param weighting What the route minimizes.
+     * @param stats The counters to add to, or null.
+     * @return The route, which has not been found if the end cannot be reached.
+     */
+    static SnappedRoute roadPointRoute(GraphDB g, RoadPoint start, RoadPoint end, Weighting weighting,
+                                       SearchStats stats) {
+        return roadPointAStar(g.compact(weighting), start, end, stats);
+    }
+
+    /**
+     * A* search between two points on roads. Each point acts as a vertex joined to the two ends of its road by the
+     * parts of the road either side of it: the search starts from both ends of the start's road, at the weights of
+     * getting to them from the start, and ends at whichever end of the end's road gives the lightest route once the
+     * rest of the way to the end is added. If both points are on the same road, driving straight from one to the
+     * other is a route too, and the best found before the search begins.
+     *
+     * The heuristic of a vertex is the lower of the great-circle bounds to the two ends of the end's road, each plus
+     * the weight from that end to the end point. Both are consistent, so the lower of them is too, and the search
+     * stops once nothing on the fringe can lead to a lighter route than the best one found.
+     * @param graph The graph to search.
+     * @param start The point to start from.
+     * @param end The point to reach.
+     * @param stats The counters to add to, or null.
+     *
+     * @variable bound: The lower bound on the weight from every reached vertex to the end point.
+     * @variable fromFrom, fromTo: The weights from end.from and end.to to the end point.
+     * @variable last: The vertex the best route leaves the graph at for the end's road, or -1 if it is direct.
+     *
+     * @return The lightest route from start to end.
+     */
+    static SnappedRoute roadPointAStar(CompactGraph graph, RoadPoint start, RoadPoint end, SearchStats stats) {
+        SearchWorkspace.Side search = SearchWorkspace.forThread(graph.size()).forward();
+        IndexedMinHeap fringe = search.fringe;
+        double[] distance = search.distance;
+        double[] bound = search.potential;
+        double fromFrom = end.weightFromFrom(graph);
+        double fromTo = end.weightFromTo(graph);
+        double best = Double.POSITIVE_INFINITY;
+        int last = -1;
+        if (start.sameRoad(end)) {
+            best = end.fraction >= start.fraction
+                    ? RoadPoint.part(end.fraction - start.fraction, graph.weight(start.edge))
+                    : RoadPoint.part(start.fraction - end.fraction, graph.weight(start.backEdge));
+        }
+        for (int i = 0; i < 2; i += 1) {
+            int v = i == 0 ? start.from : start.to;
+            double weight = i == 0 ? start.weightToFrom(graph) : start.weightToTo(graph);
+            if (weight == Double.POSITIVE_INFINITY) {
+                //The road is closed that way.
+                continue;
+            }
+            search.reach(v, weight, -1);
+            bound[v] = roadPointBound(graph, v, end, fromFrom, fromTo);
+            fringe.push(v, weight + bound[v]);
+        }
+        long settledCount = 0;
+        while (!fringe.isEmpty() && fringe.minKey() < best) {
+            int current = fringe.poll();
+            search.settle(current);
+            settledCount += 1;
+            double through = current == end.from ? distance[current] + fromFrom
+                    : current == end.to ? distance[current] + fromTo : Double.POSITIVE_INFINITY;
+            if (through < best) {
+                best = through;
+                last = current;
+            }
+            for (int e = graph.firstEdge(current); e < graph.endEdge(current); e += 1) {
+                int next = graph.target(e);
+                if (search.isSettled(next)) {
+                    continue;
+                }
+                double length = distance[current] + graph.weight(e);
+                if (length == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                if (!search.isReached(next)) {
+                    bound[next] = roadPointBound(graph, next, end, fromFrom, fromTo);
+                } else if (length >= distance[next]) {
+                    continue;
+                }
+                search.reach(next, length, current);
+                fringe.push(next, length + bound[next]);
+            }
+        }
+
+        if (stats != null) {
+            stats.settled += settledCount;
+            stats.heapOperations += search.operations();
+        }
+        return new SnappedRoute(start, end, last < 0 ? new int[0] : path(search.previous, last), best);
+    }
+
+    /** Returns the heuristic of roadPointAStar for a vertex. */
+    private static double roadPointBound(CompactGraph graph, int v, RoadPoint end, double fromFrom, double fromTo) {
+        double lon = graph.lon(v);
+        double lat = graph.lat(v);
+        double perMile = graph.costPerMile();
+        return Math.min(
+                GraphDB.distance(lon, lat, graph.lon(end.from), graph.lat(end.from)) * perMile + fromFrom,
+                GraphDB.distance(lon, lat, graph.lon(end.to), graph.lat(end.to)) * perMile + fromTo);
+    }
+
+    /**
+     * A* search between two vertices, with the best lower bound the active landmarks give on the distance to the end
+     * as the heuristic. Landmark bounds are stored rounded, so unlike the great-circle distance they are admissible
+     * but not quite consistent: a vertex may be found a shorter way after it was taken off the fringe, and is then
+     * put back on it. The search still stops as soon as the end is taken off the fringe.
+     * @param graph The graph to search.
+     * @param landmarks The landmarks of the graph.
+     * @param start The vertex to start from.
+     * @param end The vertex to reach.
+     * @param stats The counters to add to, or null.
+     *
+     * @variable active: The landmarks bounding the distance from start to end best, the only ones used.
+     * @variable bound: The lower bound on the distance from every reached vertex to the end.
+     *
+     * @return The vertices on the shortest path from start to end, or an empty array if there is none.
+     */
+    static int[] altAStar(CompactGraph graph, Landmarks landmarks, int start, int end, SearchStats stats) {
+        SearchWorkspace workspace = SearchWorkspace.forThread(graph.size());
+        SearchWorkspace.Side search = workspace.forward();
+        IndexedMinHeap fringe = search.fringe;
+        double[] distance = search.distance;
+        double[] bound = search.potential;
+        int[] active = workspace.landmarks;
+        landmarks.active(start, end, active);
+
+        search.reach(start, 0, -1);
+        bound[start] = landmarks.lowerBound(start, end, active);
+        fringe.push(start, bound[start]);
+        long settledCount = 0;
+        boolean found = false;
+        while (!fringe.isEmpty()) {
+            int current = fringe.poll();
+            settledCount += 1;
+            if (current == end) {
+                found = true;
+                break;
+            }
+            for (int e = graph.firstEdge(current); e < graph.endEdge(current); e += 1) {
+                int next = graph.target(e);
+                double length = distance[current]
+                        + graph.weight(e);
+                if (length == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                if (!search.isReached(next)) {
+                    bound[next] = landmarks.lowerBound(next, end, active);
+                } else if (length >= distance[next]) {
+                    continue;
                 }
+                search.reach(next, length, current);
+                fringe.push(next, length + bound[next]);
             }
+        }
 
-            currentNode = fringe.poll();
+        if (stats != null) {
+            stats.settled += settledCount;
+            stats.heapOperations += search.operations();
         }
+        return found ? path(search.previous, end) : new int[0];
+    }
+
+    /**
+     * Bidirectional A* between two vertices. A forward search from the start and a backward search from the end
+     * take turns, each expanding the side whose fringe has the smaller minimum. Both use the average of the two
+     * great-circle heuristics as their potential: (circleDist to the end - circleDist to the start) / 2 forwards
+     * and its negation backwards. Averaging keeps both potentials consistent and makes them agree, so the search
+     * can stop as soon as the two fringe minimums add up to at least the shortest path found through a vertex
+     * reached from both sides.
+     * @param graph The graph to search.
+     * @param start The vertex to start from.
+     * @param end The vertex to reach.
+     * @param stats The counters to add to, or null.
+     *
+     * @variable potential: The forward potential of every vertex a side has reached, computed when it reaches it.
+     * @variable best: The length of the shortest path found so far through a vertex reached from both sides.
+     * @variable meeting: The vertex that path goes through, or -1.
+     *
+     * @return The vertices on the shortest path from start to end, or an empty array if there is none.
+     */
+    static int[] bidirectionalAStar(CompactGraph graph, int start, int end, SearchStats stats) {
+        SearchWorkspace workspace = SearchWorkspace.forThread(graph.size());
+        SearchWorkspace.Side forwardSearch = workspace.forward();
+        SearchWorkspace.Side backwardSearch = workspace.backward();
 
-        List<Long> solution = new ArrayList<>();
-        solution.add(currentNode.iden);
-        while (currentNode.previous != null) {
-            currentNode = currentNode.previous;
-            solution.add(0, currentNode.iden);
+        forwardSearch.reach(start, 0, -1);
+        forwardSearch.potential[start] = potential(graph, start, start, end);
+        forwardSearch.fringe.push(start, forwardSearch.potential[start]);
+        backwardSearch.reach(end, 0, -1);
+        backwardSearch.potential[end] = potential(graph, end, start, end);
+        backwardSearch.fringe.push(end, -backwardSearch.potential[end]);
+        double best = start == end ? 0 : Double.POSITIVE_INFINITY;
+        int meeting = start == end ? start : -1;
+        long settledCount = 0;
+
+        while (!forwardSearch.fringe.isEmpty() && !backwardSearch.fringe.isEmpty()
+                && forwardSearch.fringe.minKey() + backwardSearch.fringe.minKey() < best) {
+            boolean forward = forwardSearch.fringe.minKey() <= backwardSearch.fringe.minKey();
+            SearchWorkspace.Side search = forward ? forwardSearch : backwardSearch;
+            SearchWorkspace.Side other = forward ? backwardSearch : forwardSearch;
+            double[] distance = search.distance;
+            double[] potential = search.potential;
+            double sign = forward ? 1 : -1;
+
+            int current = search.fringe.poll();
+            search.settle(current);
+            settledCount += 1;
+            for (int e = graph.firstEdge(current); e < graph.endEdge(current); e += 1) {
+                int next = graph.target(e);
+                if (search.isSettled(next)) {
+                    continue;
+                }
+                double length = distance[current]
+                        + graph.weight(e);
+                if (length == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                if (!search.isReached(next)) {
+                    potential[next] = potential(graph, next, start, end);
+                } else if (length >= distance[next]) {
+                    continue;
+                }
+                search.reach(next, length, current);
+                search.fringe.push(next, length + sign * potential[next]);
+                if (length + other.distance(next) < best) {
+                    best = length + other.distance(next);
+                    meeting = next;
+                }
+            }
         }
 
+        if (stats != null) {
+            stats.settled += settledCount;
+            stats.heapOperations += forwardSearch.operations() + backwardSearch.operations();
+        }
+        if (meeting < 0) {
+            return new int[0];
+        }
+        //The forward search leads from the start to the meeting vertex, the backward search from there to the end.
+        IntList first = workspace.stack;
+        for (int v = meeting; v >= 0; v = forwardSearch.previous[v]) {
+            first.add(v);
+        }
+        IntList solution = workspace.path;
+        for (int i = first.size() - 1; i >= 0; i -= 1) {
+            solution.add(first.get(i));
+        }
+        for (int v = backwardSearch.previous[meeting]; v >= 0; v = backwardSearch.previous[v]) {
+            solution.add(v);
+        }
+        return solution.toArray();
+    }
+
+    /**
+     * Finds the shortest path between two vertices counting the cost of every turn on it, and never making a turn
+     * that a turn restriction of the map forbids.
+     * @param start The vertex to start from.
+     * @param end The vertex to reach.
+     * @param stats The counters to add to, or null.
+     * @return The indices of the vertices in the order visited on the path, or an empty array if the destination
+     * cannot be reached.
+     */
+    static int[] turnAwarePathVertices(GraphDB g, int start, int end, SearchStats stats) {
+        return turnAwarePathVertices(g, start, end, Weighting.DISTANCE, stats);
+    }
+
+    /**
+     * Finds the best path between two vertices by the given weighting counting the cost of every turn on it, with
+     * turn penalties in the unit of the weighting (see TurnCosts), and never making a forbidden turn.
+     * @param weighting What the path minimizes.
+     * @return The indices of the vertices in the order visited on the path, or an empty array if the destination
+     * cannot be reached.
+     */
+    static int[] turnAwarePathVertices(GraphDB g, int start, int end, Weighting weighting, SearchStats stats) {
+        return turnAwareAStar(g.compact(weighting), g.turnCosts(weighting), start, end, stats);
+    }
+
+    /**
+     * A* search over the edges of the graph rather than its vertices, so that the cost of going on from a vertex can
+     * depend on the edge it was arrived by. The state of the search is the edge last travelled, its distance is the
+     * length of the way to the end of that edge plus the penalties of the turns on it, and going on along edge f
+     * after edge e costs the turn from e to f plus the length of f. Forbidden turns cost infinity and are never
+     * made. The heuristic is the great-circle distance from the end of the edge to the end times the least cost per
+     * mile of the graph, which is still consistent since penalties are never negative, and the search stops as soon
+     * as an edge into the end is taken off the fringe.
+     * @param graph The graph to search.
+     * @param turns The turn costs of the graph.
+     * @param start The vertex to start from.
+     * @param end The vertex to reach.
+     * @param stats The counters to add to, or null.
+     *
+     * @variable search: The calling thread's search arrays, indexed by edge rather than by vertex.
+     * @variable previous: The edge before every reached edge on the best way to it, or -1 for the edges leaving start.
+     *
+     * @return The vertices on the path from start to end, or an empty array if there is none.
+     */
+    static int[] turnAwareAStar(CompactGraph graph, TurnCosts turns, int start, int end, SearchStats stats) {
+        if (start < 0 || end < 0) {
+            return new int[0];
+        }
+        if (start == end) {
+            return new int[]{start};
+        }
+        SearchWorkspace workspace = SearchWorkspace.forThread(graph.edgeCount());
+        SearchWorkspace.Side search = workspace.forward();
+        IndexedMinHeap fringe = search.fringe;
+        double[] distance = search.distance;
+        double[] circleDist = search.potential;
+        double endLon = graph.lon(end);
+        double endLat = graph.lat(end);
+        double perMile = graph.costPerMile();
+
+        for (int e = graph.firstEdge(start); e < graph.endEdge(start); e += 1) {
+            int next = graph.target(e);
+            if (graph.weight(e) == Double.POSITIVE_INFINITY) {
+                continue;
+            }
+            search.reach(e, graph.weight(e), -1);
+            circleDist[e] = GraphDB.distance(graph.lon(next), graph.lat(next), endLon, endLat) * perMile;
+            fringe.push(e, distance[e] + circleDist[e]);
+        }
+        long settledCount = 0;
+        int last = -1;
+        while (!fringe.isEmpty()) {
+            int current = fringe.poll();
+            search.settle(current);
+            settledCount += 1;
+            int at = graph.target(current);
+            if (at == end) {
+                last = current;
+                break;
+            }
+            int row = turns.row(current);
+            for (int e = graph.firstEdge(at); e < graph.endEdge(at); e += 1) {
+                if (search.isSettled(e)) {
+                    continue;
+                }
+                double length = distance[current] + turns.cost(row, e) + graph.weight(e);
+                if (length == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                if (!search.isReached(e)) {
+                    int next = graph.target(e);
+                    circleDist[e] = GraphDB.distance(graph.lon(next), graph.lat(next), endLon, endLat)
+                            * perMile;
+                } else if (length >= distance[e]) {
+                    continue;
+                }
+                search.reach(e, length, current);
+                fringe.push(e, length + circleDist[e]);
+            }
+        }
+
+        if (stats != null) {
+            stats.settled += settledCount;
+            stats.heapOperations += search.operations();
+        }
+        if (last < 0) {
+            return new int[0];
+        }
+        IntList edges = workspace.path;
+        for (int e = last; e >= 0; e = search.previous[e]) {
+            edges.add(e);
+        }
+        int[] solution = new int[edges.size() + 1];
+        solution[0] = start;
+        for (int i = 1; i < solution.length; i += 1) {
+            solution[i] = graph.target(edges.get(edges.size() - i));
+        }
+        return solution;
+    }
+
+    /** Returns the forward potential of v for a search from start to end. */
+    private static double potential(CompactGraph graph, int v, int start, int end) {
+        double lon = graph.lon(v);
+        double lat = graph.lat(v);
+        return (GraphDB.distance(lon, lat, graph.lon(end), graph.lat(end))
+                - GraphDB.distance(lon, lat, graph.lon(start), graph.lat(start))) / 2 * graph.costPerMile();
+    }
+
+    /**
+     * Follows the previous pointers back from the end of a search to its start.
+     * @param previous The vertex before every vertex on the way from the start, or -1 at the start.
+     * @param end The last vertex of the path.
+     * @return The vertices from the start to the end.
+     */
+    static int[] path(int[] previous, int end) {
+        int size = 1;
+        for (int v = end; previous[v] >= 0; v = previous[v]) {
+            size += 1;
+        }
+        int[] solution = new int[size];
+        int v = end;
+        for (int i = size - 1; i >= 0; i -= 1) {
+            solution[i] = v;
+            v = previous[v];
+        }
         return solution;
     }
 
@@ -120,39 +741,136 @@ public class Router {
      * route.
      */
     public static List<NavigationDirection> routeDirections(GraphDB g, List<Long> route) {
+        return routeDirections(g, g.vertices(route));
+    }
+
+    /**
+     * Create the list of directions corresponding to a route given as dense vertex indices.
+     * @param g The graph to use.
+     * @param route The indices of the vertices on the route.
+     * @return A list of NavigationDirection objects corresponding to the input route.
+     */
+    static List<NavigationDirection> routeDirections(GraphDB g, int[] route) {
+        CompactGraph graph = g.compact();
+        double[] lons = new double[route.length];
+        double[] lats = new double[route.length];
+        int[] edges = new int[Math.max(route.length - 1, 0)];
+        double[] fractions = new double[edges.length];
+        for (int i = 0; i < route.length; i += 1) {
+            lons[i] = graph.lon(route[i]);
+            lats[i] = graph.lat(route[i]);
+            if (i > 0) {
+                edges[i - 1] = graph.findEdge(route[i - 1], route[i]);
+                fractions[i - 1] = 1;
+            }
+        }
+        return legDirections(graph, lons, lats, edges, fractions, edges.length);
+    }
+
+    /**
+     * Create the list of directions corresponding to a route between two points on roads, including the parts of
+     * the roads the points are on, so that the directions start on the start's road in the direction the route
+     * leaves along it.
+     * @param g The graph to use.
+     * @param route The route, which must have been found.
+     * @return A list of NavigationDirection objects corresponding to the input route.
+     */
+    static List<NavigationDirection> routeDirections(GraphDB g, SnappedRoute route) {
+        CompactGraph graph = g.compact();
+        int points = route.vertices.length + 2;
+        double[] lons = new double[points];
+        double[] lats = new double[points];
+        int[] edges = new int[points - 1];
+        double[] fractions = new double[points - 1];
+        int legs = 0;
+        lons[0] = route.start.lon;
+        lats[0] = route.start.lat;
+        //Parts of roads of no length have no bearing, so they are left out.
+        if (route.startFraction() > 0) {
+            edges[legs] = route.startEdge();
+            fractions[legs] = route.startFraction();
+            legs += 1;
+        }
+        for (int i = 0; i < route.vertices.length; i += 1) {
+            int v = route.vertices[i];
+            lons[legs] = graph.lon(v);
+            lats[legs] = graph.lat(v);
+            if (i + 1 < route.vertices.length) {
+                edges[legs] = graph.findEdge(v, route.vertices[i + 1]);
+                fractions[legs] = 1;
+                legs += 1;
+            }
+        }
+        if (!route.direct() && route.endFraction() > 0) {
+            edges[legs] = route.endEdge();
+            fractions[legs] = route.endFraction();
+            legs += 1;
+        }
+        lons[legs] = route.end.lon;
+        lats[legs] = route.end.lat;
+        return legDirections(graph, lons, lats, edges, fractions, legs);
+    }
+
+    /**
+     * Create the list of directions corresponding to a route given as a line through points, each leg of which is
+     * along all or part of an edge.
+     * @param graph The graph to use.
+     * @param lons The longitudes of the points on the route.
+     * @param lats The latitudes of the points on the route.
+     * @param edges The edge every leg from one point to the next is along, or -1 if the points are not adjacent.
+     * @param fractions How much of its edge every leg is, from 0 to 1.
+     * @param legs The number of legs.
+     *
+     * @variable gps: The list of NavigationDirections to be shown.
+     * @variable current_bearing: The bearing of the current leg.
+     * @variable previous_bearing: The bearing of the previous leg.
+     * @variable direction: The direction corresponding to which way to turn.
+     * @variable change: A boolean corresponding to if there was a change in street between two legs.
+     *
+     * @return A list of NavigationDirection objects corresponding to the route.
+     */
+    private static List<NavigationDirection> legDirections(CompactGraph graph, double[] lons, double[] lats,
+                                                           int[] edges, double[] fractions, int legs) {
         List<NavigationDirection> gps = new ArrayList<>();
+        if (legs < 1) {
+            return gps;
+        }
         double current_bearing;
-        double previous_bearing = g.bearing(route.get(0), route.get(1));
+        double previous_bearing = GraphDB.bearing(lons[0], lats[0], lons[1], lats[1]);
         int direction = 0;
         boolean change = true;
 
-        String currentWay = getWay(g, route.get(0), route.get(1));
-
-        for (int i = 1; i < route.size(); i++) {
-            long current = route.get(i);
-            long previous = route.get(i - 1);
+        int currentWay = edges[0] < 0 ? -1 : graph.streetId(edges[0]);
 
-            String currentStreet = getWay(g, previous, current);
-            boolean sameStreet = currentWay.equals(currentStreet);
-            current_bearing = g.bearing(previous, current);
+        for (int i = 1; i <= legs; i++) {
+            int edge = edges[i - 1];
+            int currentStreet = edge < 0 ? -1 : graph.streetId(edge);
+            boolean sameStreet = currentStreet >= 0 && currentWay == currentStreet;
+            current_bearing = GraphDB.bearing(lons[i - 1], lats[i - 1], lons[i], lats[i]);
             double bearing_diff = current_bearing - previous_bearing;
+            double length = edge < 0 ? GraphDB.distance(lons[i], lats[i], lons[i - 1], lats[i - 1])
+                    : fractions[i - 1] * graph.length(edge);
+            double duration = edge < 0 ? length * CompactGraph.SECONDS_PER_HOUR / GraphBuildingHandler.defaultSpeed(-1)
+                    : fractions[i - 1] * graph.time(edge);
 
             if (gps.isEmpty()) {
                 direction = 0;
             } else if (sameStreet) {
-                    gps.get(gps.size() - 1).distance += g.distance(current, previous);
+                    gps.get(gps.size() - 1).distance += length;
+                    gps.get(gps.size() - 1).duration += duration;
             } else {
                 direction = getDirections(bearing_diff);
                 change = true;
             }
 
             if (change) {
-                currentWay = getWay(g, previous, current);
+                currentWay = currentStreet;
 
                 NavigationDirection newDirection = new NavigationDirection();
                 newDirection.direction = direction;
-                newDirection.distance = g.distance(current, previous);
-                newDirection.way = currentWay;
+                newDirection.distance = length;
+                newDirection.duration = duration;
+                newDirection.way = currentWay < 0 ? null : graph.streetName(currentWay);
                 gps.add(newDirection);
 
                 change = false;
@@ -161,24 +879,25 @@ public class Router {
             previous_bearing = current_bearing;
         }
 
-        return gps; // FIXME
+        return gps;
     }
 
-    private static String getWay(GraphDB g, long node1, long node2) {
-        Map<Long, String> streets1 = g.getStreets(node1);
-        List<Long> neighbors1 = new ArrayList<>(g.getNeighbors(node1));
-        List<Long> neighbors2 = new ArrayList<>(g.getNeighbors(node2));
-
-        for (int i = 0; i < neighbors1.size(); i++) {
-            if (node2 == neighbors1.get(i)) {
-                return streets1.get(neighbors1.get(i));
-            }
+    /**
+     * Returns the cost of a route on a graph: its length in miles, or the time it takes to drive in seconds when the
+     * graph is weighted by time. Changed weights are not counted.
+     * @param graph The graph to use.
+     * @param route The indices of the vertices on the route, each adjacent to the next.
+     */
+    static double routeCost(CompactGraph graph, int[] route) {
+        double cost = 0;
+        for (int i = 1; i < route.length; i += 1) {
+            cost += graph.cost(graph.findEdge(route[i - 1], route[i]));
         }
-        return null;
+        return cost;
     }
 
     //Getting the directions corresponding to the relative bearing of two sequential vertices.
-    private static int getDirections(double bearing) {
+    static int getDirections(double bearing) {
         double absBearing = Math.abs(bearing);
 
         if (absBearing > 180) {
@@ -203,7 +922,9 @@ public class Router {
 
     /**
      * Class to represent a navigation direction, which consists of 3 attributes:
-     * a direction to go, a way, and the distance to travel for.
+     * a direction to go, a way, and the distance to travel for, along with an estimate of
+     * how long that takes. The estimate is left out of the string form and of equality, so
+     * that directions read back with fromString still compare equal.
      */
     public static class NavigationDirection {
 
@@ -244,6 +965,8 @@ public class Router {
         String way;
         /** The distance along this way I represent. */
         double distance;
+        /** The time it takes to drive along this way at its speed limit, in seconds. */
+        double duration;
 
         /**
          * Create a default, anonymous NavigationDirection.
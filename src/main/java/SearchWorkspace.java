@@ -0,0 +1,142 @@
+import java.util.Arrays;
+
+/**
+ * The arrays a route search works in, kept by every thread and reused for all of its searches so
+ * that routing allocates nothing but the path it returns. Every side of a search stamps the
+ * vertices it reaches and settles with its current generation instead of clearing its arrays,
+ * so starting a new search costs O(1) rather than O(n): a vertex whose stamp is from an older
+ * generation simply has not been reached yet.
+ *
+ * A workspace fits any graph with at most as many vertices as its capacity, and a thread's
+ * workspace is only replaced when it routes on a bigger graph than before. Getting the workspace
+ * starts a new search in it, so a thread must be done with one search before it starts another.
+ *
+ * @variable forward: The side searching from the start, used by every search.
+ * @variable backward: The side searching from the end, made the first time a bidirectional
+ * search needs it.
+ * @variable path, stack: Lists for assembling paths.
+ * @variable landmarks: The active landmarks of an ALT search.
+ */
+final class SearchWorkspace {
+    private static final ThreadLocal<SearchWorkspace> WORKSPACES = new ThreadLocal<>();
+
+    private final int capacity;
+    private final Side forward;
+    private Side backward;
+    final IntList path = new IntList();
+    final IntList stack = new IntList();
+    final int[] landmarks = new int[Landmarks.ACTIVE];
+
+    private SearchWorkspace(int capacity) {
+        this.capacity = capacity;
+        forward = new Side(capacity);
+    }
+
+    /**
+     * Returns the calling thread's workspace, ready for a new search.
+     * @param n The number of vertices of the graph to search.
+     */
+    static SearchWorkspace forThread(int n) {
+        SearchWorkspace workspace = WORKSPACES.get();
+        if (workspace == null || workspace.capacity < n) {
+            workspace = new SearchWorkspace(n);
+            WORKSPACES.set(workspace);
+        }
+        workspace.forward.reset();
+        if (workspace.backward != null) {
+            workspace.backward.reset();
+        }
+        workspace.path.clear();
+        workspace.stack.clear();
+        return workspace;
+    }
+
+    /** Returns the side searching from the start. */
+    Side forward() {
+        return forward;
+    }
+
+    /** Returns the side searching from the end. */
+    Side backward() {
+        if (backward == null) {
+            backward = new Side(capacity);
+        }
+        return backward;
+    }
+
+    /**
+     * The state of one direction of a search. The per-vertex arrays hold values only for the
+     * vertices reached in the current generation; the rest are left over from earlier searches.
+     *
+     * @variable fringe: The reached but unsettled vertices. It is emptied when the side is reset.
+     * @variable distance: The shortest distance found so far to every reached vertex.
+     * @variable potential: A heuristic value of every reached vertex, for searches that have one.
+     * @variable previous: The vertex before every reached vertex on the shortest way to it.
+     * @variable previousEdge: The edge that way arrives by, for searches that need it.
+     * @variable reachedIn, settledIn: The generation in which every vertex was last reached and
+     * settled.
+     */
+    static final class Side {
+        final IndexedMinHeap fringe;
+        final double[] distance;
+        final double[] potential;
+        final int[] previous;
+        final int[] previousEdge;
+        private final int[] reachedIn;
+        private final int[] settledIn;
+        private int generation = 1;
+        private long operationsBefore = 0;
+
+        private Side(int capacity) {
+            fringe = new IndexedMinHeap(capacity);
+            distance = new double[capacity];
+            potential = new double[capacity];
+            previous = new int[capacity];
+            previousEdge = new int[capacity];
+            reachedIn = new int[capacity];
+            settledIn = new int[capacity];
+        }
+
+        /** Forgets every vertex reached or settled, by moving on to the next generation. */
+        private void reset() {
+            fringe.clear();
+            operationsBefore = fringe.operations();
+            generation += 1;
+            if (generation == Integer.MAX_VALUE) {
+                //Stamps from two billion searches ago would otherwise look current again.
+                Arrays.fill(reachedIn, 0);
+                Arrays.fill(settledIn, 0);
+                generation = 1;
+            }
+        }
+
+        boolean isReached(int v) {
+            return reachedIn[v] == generation;
+        }
+
+        /** Returns the distance found to v, or infinity if it has not been reached. */
+        double distance(int v) {
+            return reachedIn[v] == generation ? distance[v] : Double.POSITIVE_INFINITY;
+        }
+
+        /** Marks v reached and records the way it was reached by. */
+        void reach(int v, double length, int from) {
+            reachedIn[v] = generation;
+            distance[v] = length;
+            previous[v] = from;
+        }
+
+        boolean isSettled(int v) {
+            return settledIn[v] == generation;
+        }
+
+        void settle(int v) {
+            settledIn[v] = generation;
+        }
+
+        /** Returns the number of heap operations since the side was reset. */
+        long operations() {
+            return fringe.operations() - operationsBefore;
+        }
+    }
+}
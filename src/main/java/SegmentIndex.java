@@ -0,0 +1,221 @@
+import java.util.function.IntConsumer;
+
+/**
+ * A static grid over the road segments of a CompactGraph, answering which point on any road is
+ * nearest to a given point. Snapping to the nearest vertex instead puts the start of a route at
+ * an intersection, which on a long block can be far from where the route should start and on the
+ * wrong side of it, so that the route begins with a detour and its first direction is wrong.
+ *
+ * Every road is one segment, by its edge from the lower vertex to the higher one. Points are
+ * compared in an equirectangular projection about the middle latitude of the graph, with
+ * longitudes scaled by the cosine of that latitude, which over the extent of a city ranks
+ * distances as the great-circle distance does. The projection is linear in longitude and
+ * latitude, so the nearest point on a segment in the projection is at the same fraction of the
+ * way along it on the map.
+ *
+ * The grid has about as many square cells as there are segments, and every segment is listed in
+ * every cell its bounding box overlaps. A query looks at the cells in rings of growing size
+ * around the cell of the point, and stops at the first ring that cannot hold anything nearer
+ * than the best segment so far. It works in local variables only, so the RoadPoint it returns is
+ * all it allocates. Ties go to the lowest segment.
+ *
+ * @variable edges: The edge of every segment, from its lower vertex to its higher one.
+ * @variable sources: The lower vertex of every segment.
+ * @variable xs, ys: The projected coordinates of every vertex.
+ * @variable minX, minY: The projected coordinates of the corner of the grid.
+ * @variable cellSize: The width and height of every cell, in projected units.
+ * @variable columns, rows: The number of cells across and down the grid.
+ * @variable cellStarts: The index in cellSegments of the first segment of every cell, row by row,
+ * with one extra trailing entry.
+ * @variable cellSegments: The segments overlapping every cell.
+ */
+final class SegmentIndex {
+    private final CompactGraph graph;
+    private final int[] edges;
+    private final int[] sources;
+    private final double cosLat;
+    private final double[] xs;
+    private final double[] ys;
+    private final double minX;
+    private final double minY;
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    private final int[] cellStarts;
+    private final int[] cellSegments;
+
+    /**
+     * Builds the index over all roads of a graph, in time linear in the number of roads and the
+     * cells they cover.
+     * @param graph The graph whose roads to index.
+     */
+    SegmentIndex(CompactGraph graph) {
+        this.graph = graph;
+        int n = graph.size();
+        double minLat = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        for (int v = 0; v < n; v += 1) {
+            minLat = Math.min(minLat, graph.lat(v));
+            maxLat = Math.max(maxLat, graph.lat(v));
+        }
+        cosLat = n == 0 ? 1 : Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        xs = new double[n];
+        ys = new double[n];
+        double lowX = Double.MAX_VALUE;
+        double lowY = Double.MAX_VALUE;
+        double highX = -Double.MAX_VALUE;
+        double highY = -Double.MAX_VALUE;
+        for (int v = 0; v < n; v += 1) {
+            xs[v] = graph.lon(v) * cosLat;
+            ys[v] = graph.lat(v);
+            lowX = Math.min(lowX, xs[v]);
+            lowY = Math.min(lowY, ys[v]);
+            highX = Math.max(highX, xs[v]);
+            highY = Math.max(highY, ys[v]);
+        }
+
+        int count = 0;
+        for (int v = 0; v < n; v += 1) {
+            for (int e = graph.firstEdge(v); e < graph.endEdge(v); e += 1) {
+                if (v < graph.target(e)) {
+                    count += 1;
+                }
+            }
+        }
+        edges = new int[count];
+        sources = new int[count];
+        count = 0;
+        for (int v = 0; v < n; v += 1) {
+            for (int e = graph.firstEdge(v); e < graph.endEdge(v); e += 1) {
+                if (v < graph.target(e)) {
+                    edges[count] = e;
+                    sources[count] = v;
+                    count += 1;
+                }
+            }
+        }
+
+        minX = count == 0 ? 0 : lowX;
+        minY = count == 0 ? 0 : lowY;
+        double width = count == 0 ? 0 : highX - lowX;
+        double height = count == 0 ? 0 : highY - lowY;
+        //Cells are never narrower than a count-th of the longer side, which keeps the number of
+        //cells near the number of segments even for a graph that is long and thin.
+        double size = Math.max(Math.sqrt(width * height / Math.max(count, 1)),
+                Math.max(width, height) / Math.max(count, 1));
+        cellSize = size > 0 ? size : 1;
+        columns = (int) (width / cellSize) + 1;
+        rows = (int) (height / cellSize) + 1;
+
+        //Count the segments of every cell, then fill them in, as the CSR form of the graph is.
+        cellStarts = new int[columns * rows + 1];
+        for (int s = 0; s < count; s += 1) {
+            forEachCell(s, cell -> cellStarts[cell + 1] += 1);
+        }
+        for (int cell = 0; cell < columns * rows; cell += 1) {
+            cellStarts[cell + 1] += cellStarts[cell];
+        }
+        cellSegments = new int[cellStarts[columns * rows]];
+        int[] filled = new int[columns * rows];
+        for (int s = 0; s < count; s += 1) {
+            int segment = s;
+            forEachCell(s, cell -> {
+                cellSegments[cellStarts[cell] + filled[cell]] = segment;
+                filled[cell] += 1;
+            });
+        }
+    }
+
+    /** Returns the number of segments in the index. */
+    int size() {
+        return edges.length;
+    }
+
+    /** Calls action with every cell the bounding box of a segment overlaps, in order. */
+    private void forEachCell(int segment, IntConsumer action) {
+        int v = sources[segment];
+        int w = graph.target(edges[segment]);
+        int left = column(Math.min(xs[v], xs[w]));
+        int right = column(Math.max(xs[v], xs[w]));
+        int bottom = row(Math.min(ys[v], ys[w]));
+        int top = row(Math.max(ys[v], ys[w]));
+        for (int r = bottom; r <= top; r += 1) {
+            for (int c = left; c <= right; c += 1) {
+                action.accept(r * columns + c);
+            }
+        }
+    }
+
+    /** Returns the column of the cell a projected x falls in, clamped to the grid. */
+    private int column(double x) {
+        return (int) Math.max(0, Math.min(columns - 1, Math.floor((x - minX) / cellSize)));
+    }
+
+    /** Returns the row of the cell a projected y falls in, clamped to the grid. */
+    private int row(double y) {
+        return (int) Math.max(0, Math.min(rows - 1, Math.floor((y - minY) / cellSize)));
+    }
+
+    /**
+     * Returns the point on any road nearest to the given longitude and latitude.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The nearest point, or null if the graph has no roads.
+     */
+    RoadPoint nearest(double lon, double lat) {
+        if (edges.length == 0) {
+            return null;
+        }
+        double x = lon * cosLat;
+        double y = lat;
+        int column = column(x);
+        int row = row(y);
+        int best = -1;
+        double bestFraction = 0;
+        double bestSquared = Double.MAX_VALUE;
+        int rings = Math.max(columns, rows);
+        for (int ring = 0; ring < rings; ring += 1) {
+            //Every cell of this ring is at least ring - 1 whole cells away from the point.
+            double gap = (ring - 1) * cellSize;
+            if (ring > 1 && gap * gap > bestSquared) {
+                break;
+            }
+            for (int r = Math.max(0, row - ring); r <= Math.min(rows - 1, row + ring); r += 1) {
+                boolean edgeRow = r == row - ring || r == row + ring;
+                int step = edgeRow ? 1 : 2 * ring;
+                for (int c = column - ring; c <= column + ring; c += step) {
+                    if (c < 0 || c >= columns) {
+                        continue;
+                    }
+                    int cell = r * columns + c;
+                    for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i += 1) {
+                        int s = cellSegments[i];
+                        int v = sources[s];
+                        int w = graph.target(edges[s]);
+                        double dx = xs[w] - xs[v];
+                        double dy = ys[w] - ys[v];
+                        double squaredLength = dx * dx + dy * dy;
+                        double fraction = squaredLength == 0 ? 0
+                                : ((x - xs[v]) * dx + (y - ys[v]) * dy) / squaredLength;
+                        fraction = Math.max(0, Math.min(1, fraction));
+                        double ex = xs[v] + fraction * dx - x;
+                        double ey = ys[v] + fraction * dy - y;
+                        double squared = ex * ex + ey * ey;
+                        if (squared < bestSquared || (squared == bestSquared && s < best)) {
+                            best = s;
+                            bestFraction = fraction;
+                            bestSquared = squared;
+                        }
+                    }
+                }
+            }
+        }
+        int v = sources[best];
+        int e = edges[best];
+        int w = graph.target(e);
+        double pointLon = graph.lon(v) + bestFraction * (graph.lon(w) - graph.lon(v));
+        double pointLat = graph.lat(v) + bestFraction * (graph.lat(w) - graph.lat(v));
+        return new RoadPoint(v, w, e, graph.reverse(v, e), bestFraction, pointLon, pointLat,
+                GraphDB.distance(lon, lat, pointLon, pointLat));
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * A route between two points on roads: part of the start's road, then the roads between the
+ * vertices of the route, then part of the end's road. When both points are on the same road the
+ * route may instead simply drive along it from one to the other, and then passes through no
+ * vertex at all.
+ *
+ * @variable start, end: The points the route goes between.
+ * @variable vertices: The vertices the route passes through, from the end of the start's road it
+ * leaves by to the end of the end's road it arrives by. It is empty if the route stays on the one
+ * road both points are on, or if the end cannot be reached.
+ * @variable weight: The weight of the route on the graph it was found on, infinite if the end
+ * cannot be reached.
+ */
+final class SnappedRoute {
+    final RoadPoint start;
+    final RoadPoint end;
+    final int[] vertices;
+    final double weight;
+
+    SnappedRoute(RoadPoint start, RoadPoint end, int[] vertices, double weight) {
+        this.start = start;
+        this.end = end;
+        this.vertices = vertices;
+        this.weight = weight;
+    }
+
+    /** Returns whether the end can be reached. */
+    boolean found() {
+        return weight != Double.POSITIVE_INFINITY;
+    }
+
+    /** Returns whether the route stays on the road both points are on. */
+    boolean direct() {
+        return found() && vertices.length == 0;
+    }
+
+    /**
+     * Returns the edge the route starts along: the edge of the start's road towards the first
+     * vertex, or towards the end if the route is direct.
+     */
+    int startEdge() {
+        if (direct()) {
+            return end.fraction >= start.fraction ? start.edge : start.backEdge;
+        }
+        return vertices[0] == start.from ? start.backEdge : start.edge;
+    }
+
+    /** Returns how much of its start edge the route drives, from 0 to 1. */
+    double startFraction() {
+        if (direct()) {
+            return Math.abs(end.fraction - start.fraction);
+        }
+        return vertices[0] == start.from ? start.fraction : 1 - start.fraction;
+    }
+
+    /** Returns the edge the route ends along: the edge of the end's road from the last vertex. */
+    int endEdge() {
+        return vertices[vertices.length - 1] == end.from ? end.edge : end.backEdge;
+    }
+
+    /** Returns how much of its end edge the route drives, from 0 to 1. */
+    double endFraction() {
+        return vertices[vertices.length - 1] == end.from ? end.fraction : 1 - end.fraction;
+    }
+
+    /**
+     * Returns the cost of the route on a graph: its length in miles, or the time it takes to drive
+     * in seconds when the graph is weighted by time. Changed weights are not counted.
+     * @param graph The graph to use.
+     * @return The cost, infinite if the end cannot be reached.
+     */
+    double cost(CompactGraph graph) {
+        if (!found()) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double cost = startFraction() * graph.cost(startEdge());
+        if (!direct()) {
+            cost += Router.routeCost(graph, vertices) + endFraction() * graph.cost(endEdge());
+        }
+        return cost;
+    }
+}
@@ -0,0 +1,331 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A static k-d tree over the vertices of a CompactGraph, answering nearest-vertex queries with
+ * exactly the result of a linear scan using GraphDB.distance.
+ *
+ * Vertices are placed on the unit sphere as 3D points, because the straight-line (chord)
+ * distance between two such points grows monotonically with their great-circle distance. The
+ * tree can therefore prune on plain coordinate differences while the candidates that survive are
+ * still compared with the haversine formula, so rounding cannot change which vertex wins. Ties
+ * go to the lowest vertex index, which is the vertex a scan in index order keeps.
+ *
+ * The tree is implicit: the points of a subtree occupy a contiguous range of the arrays, with
+ * the splitting point in the middle of the range and the smaller and larger halves on either
+ * side of it.
+ *
+ * @variable vertices: The vertex stored at every position of the tree.
+ * @variable xs, ys, zs: The point on the unit sphere of the vertex at every position.
+ * @variable axes: The axis the range whose middle is at a position is split on.
+ * @variable queries: The search state of every thread, reused so that queries allocate nothing.
+ */
+final class SpatialIndex {
+    /** Ranges this short are scanned rather than split further. */
+    private static final int LEAF_SIZE = 8;
+    /**
+     * Slack, in units of the sphere's radius, added to the pruning bound so that rounding in the
+     * 3D coordinates can never prune the true nearest vertex. It is far below the spacing of map
+     * coordinates.
+     */
+    private static final double SLACK = 1e-9;
+    /** The number of consecutive points of a batch query resolved by one task. */
+    private static final int BATCH_SIZE = 256;
+
+    private final CompactGraph graph;
+    private final int[] vertices;
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] zs;
+    private final byte[] axes;
+    private final ThreadLocal<Query> queries = ThreadLocal.withInitial(Query::new);
+
+    /**
+     * Builds the index over all vertices of a graph, in O(n log n) time.
+     * @param graph The graph whose vertices to index.
+     */
+    SpatialIndex(CompactGraph graph) {
+        this.graph = graph;
+        int n = graph.size();
+        vertices = new int[n];
+        xs = new double[n];
+        ys = new double[n];
+        zs = new double[n];
+        axes = new byte[n];
+        double[] point = new double[3];
+        for (int v = 0; v < n; v += 1) {
+            toPoint(graph.lon(v), graph.lat(v), point);
+            vertices[v] = v;
+            xs[v] = point[0];
+            ys[v] = point[1];
+            zs[v] = point[2];
+        }
+        build(0, n);
+    }
+
+    /** Returns the number of vertices in the index. */
+    int size() {
+        return vertices.length;
+    }
+
+    /**
+     * Returns the vertex closest to the given longitude and latitude.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The index of the closest vertex, or -1 if the graph is empty.
+     */
+    int nearest(double lon, double lat) {
+        Query query = queries.get().start(lon, lat);
+        query.search(0, vertices.length);
+        return query.best;
+    }
+
+    /**
+     * Returns the vertex closest to the given longitude and latitude, and its distance.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param distance Receives the distance to the vertex in its first element, in the units of
+     *                 GraphDB.distance, or Double.MAX_VALUE if the graph is empty.
+     * @return The index of the closest vertex, or -1 if the graph is empty.
+     */
+    int nearest(double lon, double lat, double[] distance) {
+        Query query = queries.get().start(lon, lat);
+        query.search(0, vertices.length);
+        distance[0] = query.bestDistance;
+        return query.best;
+    }
+
+    /**
+     * Finds the closest vertex to each of a batch of points. The points are visited in Z-order,
+     * so that consecutive searches walk through the same parts of the tree, and runs of them are
+     * resolved in parallel.
+     * @param lons The longitudes of the points.
+     * @param lats The latitudes of the points.
+     * @param closest Receives the index of the closest vertex to every point, or -1 if the graph
+     *                is empty.
+     * @param distances Receives the distance from every point to its vertex, if not null.
+     */
+    void nearest(double[] lons, double[] lats, int[] closest, double[] distances) {
+        int[] order = zOrder(lons, lats);
+        int batches = (order.length + BATCH_SIZE - 1) / BATCH_SIZE;
+        IntStream.range(0, batches).parallel().forEach(batch -> {
+            int end = Math.min(order.length, (batch + 1) * BATCH_SIZE);
+            Query query = queries.get();
+            for (int i = batch * BATCH_SIZE; i < end; i += 1) {
+                int point = order[i];
+                query.start(lons[point], lats[point]);
+                query.search(0, vertices.length);
+                closest[point] = query.best;
+                if (distances != null) {
+                    distances[point] = query.bestDistance;
+                }
+            }
+        });
+    }
+
+    /**
+     * Sorts points along a Z-order (Morton) curve over their bounding box, which keeps points
+     * that are close on the map mostly close in the order.
+     * @param lons The longitudes of the points.
+     * @param lats The latitudes of the points.
+     * @return The indices of the points, in Z-order.
+     */
+    static int[] zOrder(double[] lons, double[] lats) {
+        int n = lons.length;
+        double minLon = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE;
+        double minLat = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        for (int i = 0; i < n; i += 1) {
+            minLon = Math.min(minLon, lons[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+        }
+        double lonScale = maxLon > minLon ? 0xFFFF / (maxLon - minLon) : 0;
+        double latScale = maxLat > minLat ? 0xFFFF / (maxLat - minLat) : 0;
+
+        //The Morton code goes in the high bits and the index of the point in the low bits.
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i += 1) {
+            long x = spread((int) ((lons[i] - minLon) * lonScale));
+            long y = spread((int) ((lats[i] - minLat) * latScale));
+            keys[i] = ((x | (y << 1)) << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    /** Spreads the low 16 bits of x out to the even bits of the result. */
+    private static long spread(int x) {
+        long v = x & 0xFFFF;
+        v = (v | (v << 8)) & 0x00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0FL;
+        v = (v | (v << 2)) & 0x33333333L;
+        v = (v | (v << 1)) & 0x55555555L;
+        return v;
+    }
+
+    /** Places a longitude and latitude on the unit sphere. */
+    private static void toPoint(double lon, double lat, double[] point) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon);
+        point[0] = Math.cos(phi) * Math.cos(lambda);
+        point[1] = Math.cos(phi) * Math.sin(lambda);
+        point[2] = Math.sin(phi);
+    }
+
+    private double coordinate(int position, int axis) {
+        return axis == 0 ? xs[position] : axis == 1 ? ys[position] : zs[position];
+    }
+
+    /** Arranges the range [lo, hi) into a subtree, splitting on its widest axis. */
+    private void build(int lo, int hi) {
+        if (hi - lo <= LEAF_SIZE) {
+            return;
+        }
+        int axis = 0;
+        double widest = -1;
+        for (int a = 0; a < 3; a += 1) {
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (int i = lo; i < hi; i += 1) {
+                double c = coordinate(i, a);
+                min = Math.min(min, c);
+                max = Math.max(max, c);
+            }
+            if (max - min > widest) {
+                widest = max - min;
+                axis = a;
+            }
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, axis);
+        axes[mid] = (byte) axis;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    /**
+     * Rearranges positions left to right so that the one at k holds the point that would be there
+     * if they were sorted on the axis, with smaller points before it and larger ones after it.
+     */
+    private void select(int left, int right, int k, int axis) {
+        while (right > left) {
+            double pivot = coordinate((left + right) >>> 1, axis);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (coordinate(i, axis) < pivot) {
+                    i += 1;
+                }
+                while (coordinate(j, axis) > pivot) {
+                    j -= 1;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i += 1;
+                    j -= 1;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        int v = vertices[i];
+        vertices[i] = vertices[j];
+        vertices[j] = v;
+        double t = xs[i];
+        xs[i] = xs[j];
+        xs[j] = t;
+        t = ys[i];
+        ys[i] = ys[j];
+        ys[j] = t;
+        t = zs[i];
+        zs[i] = zs[j];
+        zs[j] = t;
+    }
+
+    /**
+     * The state of a nearest-vertex search, started afresh for every point a thread looks up.
+     * The chord bound is kept alongside the haversine distance of the best vertex so that most
+     * points are rejected without trigonometry.
+     */
+    private class Query {
+        private final double[] point = new double[3];
+        private double lon;
+        private double lat;
+        private double x;
+        private double y;
+        private double z;
+        private int best;
+        private double bestDistance;
+        private double bound;
+
+        /** Starts a search for the vertex closest to the given point. */
+        private Query start(double lon, double lat) {
+            this.lon = lon;
+            this.lat = lat;
+            toPoint(lon, lat, point);
+            x = point[0];
+            y = point[1];
+            z = point[2];
+            best = -1;
+            bestDistance = Double.MAX_VALUE;
+            bound = Double.MAX_VALUE;
+            return this;
+        }
+
+        private void search(int lo, int hi) {
+            if (hi - lo <= LEAF_SIZE) {
+                for (int i = lo; i < hi; i += 1) {
+                    consider(i);
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            int axis = axes[mid];
+            double diff = (axis == 0 ? x : axis == 1 ? y : z) - coordinate(mid, axis);
+            consider(mid);
+            if (diff < 0) {
+                search(lo, mid);
+                if (-diff <= bound) {
+                    search(mid + 1, hi);
+                }
+            } else {
+                search(mid + 1, hi);
+                if (diff <= bound) {
+                    search(lo, mid);
+                }
+            }
+        }
+
+        private void consider(int position) {
+            double dx = x - xs[position];
+            double dy = y - ys[position];
+            double dz = z - zs[position];
+            if (dx * dx + dy * dy + dz * dz > bound * bound) {
+                return;
+            }
+            int v = vertices[position];
+            double d = GraphDB.distance(lon, lat, graph.lon(v), graph.lat(v));
+            if (d < bestDistance || (d == bestDistance && v < best)) {
+                best = v;
+                bestDistance = d;
+                //The chord subtending the best distance, on the unit sphere.
+                bound = 2 * Math.sin(Math.min(d / GraphDB.EARTH_RADIUS, Math.PI) / 2) + SLACK;
+            }
+        }
+    }
+}
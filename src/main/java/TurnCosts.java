@@ -0,0 +1,119 @@
+/**
+ * The cost of every turn in a graph, for routing on its edges rather than its vertices. A route
+ * that arrives at a vertex by one edge and leaves it by another pays a penalty for the turn on
+ * top of the length of the edges, found from the change in bearing the same way routeDirections
+ * classifies it, and cannot make the turn at all if an OSM turn restriction forbids it. Bends
+ * at vertices with only two roads are part of the road and cost nothing; turning back the way
+ * one came costs U_TURN everywhere.
+ *
+ * The costs of all turns at a vertex are precomputed into a table with a row for every edge the
+ * vertex can be arrived by and a column for every edge it can be left by, so that a search looks
+ * a turn up instead of computing bearings. Penalties are in the unit of the costs of the graph's
+ * edges. On a graph weighted by distance they are in miles: roughly the distance one could have
+ * driven in the time the turn takes. On a graph weighted by time they are that time in seconds,
+ * the same distance driven at TURN_SPEED.
+ *
+ * @variable rowStart: The index in costs of the row of the first edge leaving every vertex,
+ * with degree(v) rows of degree(v) entries each for vertex v.
+ * @variable backSlot: For every edge, the position among the edges leaving its target of the
+ * edge going back along it, which is the row of the turns made after arriving by it.
+ * @variable costs: The penalty of every turn, or infinity if it is forbidden.
+ */
+final class TurnCosts {
+    /** The penalties of the turns of every direction of Router.NavigationDirection, in miles. */
+    private static final double[] PENALTIES = new double[Router.NavigationDirection.NUM_DIRECTIONS];
+    /** The penalty for turning around to go back along the same road, in miles. */
+    static final double U_TURN = 0.2;
+    /** The speed in miles per hour that turns penalties into seconds on a graph weighted by time. */
+    static final double TURN_SPEED = 20;
+
+    static {
+        PENALTIES[Router.NavigationDirection.STRAIGHT] = 0;
+        PENALTIES[Router.NavigationDirection.SLIGHT_LEFT] = 0.01;
+        PENALTIES[Router.NavigationDirection.SLIGHT_RIGHT] = 0.005;
+        PENALTIES[Router.NavigationDirection.RIGHT] = 0.02;
+        PENALTIES[Router.NavigationDirection.LEFT] = 0.05;
+        PENALTIES[Router.NavigationDirection.SHARP_RIGHT] = 0.04;
+        PENALTIES[Router.NavigationDirection.SHARP_LEFT] = 0.08;
+    }
+
+    private final CompactGraph graph;
+    private final int[] rowStart;
+    private final int[] backSlot;
+    private final double[] costs;
+
+    private TurnCosts(CompactGraph graph, int[] rowStart, int[] backSlot, double[] costs) {
+        this.graph = graph;
+        this.rowStart = rowStart;
+        this.backSlot = backSlot;
+        this.costs = costs;
+    }
+
+    /**
+     * Computes the costs of all turns of a graph, in the unit of its costs.
+     * @param graph The graph, with its forbidden turns.
+     * @return The turn costs.
+     */
+    static TurnCosts build(CompactGraph graph) {
+        double scale = graph.weighting() == Router.Weighting.TIME
+                ? CompactGraph.SECONDS_PER_HOUR / TURN_SPEED : 1;
+        int n = graph.size();
+        int[] rowStart = new int[n + 1];
+        for (int v = 0; v < n; v += 1) {
+            int degree = graph.endEdge(v) - graph.firstEdge(v);
+            rowStart[v + 1] = Math.addExact(rowStart[v], degree * degree);
+        }
+        int[] backSlot = new int[graph.edgeCount()];
+        double[] costs = new double[rowStart[n]];
+        for (int v = 0; v < n; v += 1) {
+            int first = graph.firstEdge(v);
+            int degree = graph.endEdge(v) - first;
+            for (int back = first; back < first + degree; back += 1) {
+                int u = graph.target(back);
+                backSlot[graph.reverse(v, back)] = back - first;
+                //Arriving from u and leaving along out, which is a turn back if out goes to u.
+                double arriving = GraphDB.bearing(graph.lon(u), graph.lat(u), graph.lon(v),
+                        graph.lat(v));
+                for (int out = first; out < first + degree; out += 1) {
+                    double cost;
+                    if (out == back) {
+                        cost = U_TURN * scale;
+                    } else if (degree <= 2) {
+                        cost = 0;
+                    } else {
+                        int w = graph.target(out);
+                        double leaving = GraphDB.bearing(graph.lon(v), graph.lat(v),
+                                graph.lon(w), graph.lat(w));
+                        cost = PENALTIES[Router.getDirections(leaving - arriving)] * scale;
+                    }
+                    if (graph.isForbiddenTurn(back, out)) {
+                        cost = Double.POSITIVE_INFINITY;
+                    }
+                    costs[rowStart[v] + (back - first) * degree + (out - first)] = cost;
+                }
+            }
+        }
+        return new TurnCosts(graph, rowStart, backSlot, costs);
+    }
+
+    /**
+     * Returns where the costs of the turns made after arriving by an edge start, to be passed
+     * to cost for every edge leaving its target.
+     * @param in The edge arrived by.
+     */
+    int row(int in) {
+        int v = graph.target(in);
+        int first = graph.firstEdge(v);
+        return rowStart[v] + backSlot[in] * (graph.endEdge(v) - first) - first;
+    }
+
+    /**
+     * Returns the cost of a turn.
+     * @param row The row of the edge arrived by, as returned by row.
+     * @param out The edge left by, which must leave the vertex arrived at.
+     * @return The penalty in the unit of the graph's costs, or infinity if the turn is forbidden.
+     */
+    double cost(int row, int out) {
+        return costs[row + out];
+    }
+}
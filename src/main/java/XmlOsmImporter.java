@@ -0,0 +1,47 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.xml.sax.SAXException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Imports OSM XML through GraphBuildingHandler. Files ending in ".gz" or ".bz2" are decompressed
+ * while they are streamed in, so compressed extracts never have to be unpacked on disk.
+ */
+class XmlOsmImporter implements OsmImporter {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    @Override
+    public void importInto(File input, OsmSink g) throws IOException {
+        try (InputStream in = open(input)) {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            SAXParser saxParser = factory.newSAXParser();
+            saxParser.parse(in, new GraphBuildingHandler(g));
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Could not parse " + input, e);
+        }
+    }
+
+    /**
+     * Opens a possibly compressed OSM XML file as a stream of uncompressed XML.
+     * @param input The file to open.
+     * @return A buffered stream of the XML.
+     */
+    static InputStream open(File input) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(input), BUFFER_SIZE);
+        String name = input.getName();
+        if (name.endsWith(".gz")) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        } else if (name.endsWith(".bz2")) {
+            return new BufferedInputStream(new BZip2CompressorInputStream(in, true), BUFFER_SIZE);
+        }
+        return in;
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reference computations on a CompactGraph that tests check the routers against, kept as plain
+ * and as far from the code under test as possible.
+ */
+final class GraphTestUtils {
+    private GraphTestUtils() {
+    }
+
+    /**
+     * Returns the weight of a route on the current weights of a graph, which is infinite if it
+     * uses a closed road. Every step of the route must be along an edge.
+     */
+    static double weight(CompactGraph graph, int[] route) {
+        double weight = 0;
+        for (int i = 1; i < route.length; i += 1) {
+            int e = graph.findEdge(route[i - 1], route[i]);
+            assertTrue(e >= 0);
+            weight += graph.weight(e);
+        }
+        return weight;
+    }
+
+    /** The weight of the lightest path from start to end, by Dijkstra's algorithm. */
+    static double dijkstra(CompactGraph graph, int start, int end) {
+        return dijkstra(graph, start)[end];
+    }
+
+    /** The weight of the lightest path from start to every vertex, by Dijkstra's algorithm. */
+    static double[] dijkstra(CompactGraph graph, int start) {
+        double[] distance = new double[graph.size()];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        distance[start] = 0;
+        PriorityQueue<double[]> fringe = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        fringe.add(new double[]{0, start});
+        while (!fringe.isEmpty()) {
+            double[] entry = fringe.poll();
+            int v = (int) entry[1];
+            if (entry[0] > distance[v]) {
+                continue;
+            }
+            for (int e = graph.firstEdge(v); e < graph.endEdge(v); e += 1) {
+                double length = distance[v] + graph.weight(e);
+                if (length < distance[graph.target(e)]) {
+                    distance[graph.target(e)] = length;
+                    fringe.add(new double[]{length, graph.target(e)});
+                }
+            }
+        }
+        return distance;
+    }
+
+    /** Returns the vertex of the node with the given OSM id. */
+    static int vertex(CompactGraph graph, long id) {
+        for (int v = 0; v < graph.size(); v += 1) {
+            if (graph.id(v) == id) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("No vertex " + id);
+    }
+
+    /** Returns the vertices of the nodes with the given OSM ids, in order. */
+    static int[] vertices(CompactGraph graph, long... ids) {
+        int[] result = new int[ids.length];
+        for (int i = 0; i < ids.length; i += 1) {
+            result[i] = vertex(graph, ids[i]);
+        }
+        return result;
+    }
+}
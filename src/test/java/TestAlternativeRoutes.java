@@ -0,0 +1,94 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks alternative routes on the small Berkeley graph: the first route is a shortest one, and
+ * every alternative is a connected simple route, not too long, and different enough from the
+ * routes before it.
+ */
+public class TestAlternativeRoutes {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final long SEED = 2018;
+    private static final int ROUTES = 50;
+    private static final int ALTERNATIVES = 3;
+    private static GraphDB graphSmall;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphSmall = new GraphDB(OSM_DB_PATH_SMALL);
+        initialized = true;
+    }
+
+    @Test
+    public void testAlternatives() {
+        CompactGraph graph = graphSmall.compact();
+        Random random = new Random(SEED);
+        int alternativesFound = 0;
+        for (int i = 0; i < ROUTES; i += 1) {
+            int start = random.nextInt(graph.size());
+            int end = random.nextInt(graph.size());
+            double shortest = graphSmall.hierarchy().distances(new int[]{start},
+                    new int[]{end})[0];
+            AlternativeRoutes routes = Router.alternativeRoutes(graphSmall, start, end,
+                    ALTERNATIVES, null);
+            if (shortest == Double.POSITIVE_INFINITY) {
+                assertEquals(0, routes.size());
+                continue;
+            }
+            assertTrue(routes.size() >= 1 && routes.size() <= ALTERNATIVES + 1);
+            assertEquals(shortest, routes.length(0), 1e-9);
+            Set<Long> used = new HashSet<>();
+            for (int k = 0; k < routes.size(); k += 1) {
+                int[] route = routes.route(k);
+                assertEquals(start, route[0]);
+                assertEquals(end, route[route.length - 1]);
+                assertEquals(routes.length(k), GraphTestUtils.weight(graph, route), 1e-9);
+                assertTrue(routes.length(k)
+                        <= AlternativeRoutes.MAX_STRETCH * shortest + 1e-9);
+                Set<Integer> visited = new HashSet<>();
+                double shared = 0;
+                for (int j = 0; j < route.length; j += 1) {
+                    assertTrue(visited.add(route[j]));
+                    if (j > 0 && used.contains(road(route[j - 1], route[j]))) {
+                        shared += graph.weight(graph.findEdge(route[j - 1], route[j]));
+                    }
+                }
+                if (k > 0) {
+                    assertTrue(shared <= AlternativeRoutes.MAX_SHARING * shortest + 1e-9);
+                    assertFalse(Router.routeDirections(graphSmall, route).isEmpty());
+                    alternativesFound += 1;
+                }
+                for (int j = 1; j < route.length; j += 1) {
+                    used.add(road(route[j - 1], route[j]));
+                }
+            }
+        }
+        assertTrue(alternativesFound > 0);
+    }
+
+    @Test
+    public void testSameStartAndEnd() {
+        AlternativeRoutes routes = Router.alternativeRoutes(graphSmall, 7, 7, ALTERNATIVES, null);
+        assertEquals(1, routes.size());
+        assertArrayEquals(new int[]{7}, routes.route(0));
+        assertEquals(0, Router.alternativeRoutes(graphSmall, -1, 7, ALTERNATIVES, null).size());
+    }
+
+    private static long road(int v, int w) {
+        return (long) Math.min(v, w) << 32 | Math.max(v, w);
+    }
+}
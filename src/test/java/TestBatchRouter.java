@@ -0,0 +1,125 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a batch finds every route exactly once and the same route as routing its pairs
+ * one at a time does, whatever the number of threads, and that a batch stops early when its
+ * results can no longer be received.
+ */
+public class TestBatchRouter {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final long SEED = 2018;
+    /** Not a multiple of the chunk size, so that the last chunk is a short one. */
+    private static final int PAIRS = 10 * BatchRouter.CHUNK_SIZE + 7;
+    private static GraphDB graphSmall;
+    private static double[][] pairs;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphSmall = new GraphDB(OSM_DB_PATH_SMALL);
+        CompactGraph graph = graphSmall.compact();
+        Random random = new Random(SEED);
+        pairs = new double[4][PAIRS];
+        for (int i = 0; i < PAIRS; i += 1) {
+            pairs[0][i] = graph.lon(random.nextInt(graph.size())) + random.nextDouble() * 1e-4;
+            pairs[1][i] = graph.lat(random.nextInt(graph.size())) + random.nextDouble() * 1e-4;
+            pairs[2][i] = graph.lon(random.nextInt(graph.size())) + random.nextDouble() * 1e-4;
+            pairs[3][i] = graph.lat(random.nextInt(graph.size())) + random.nextDouble() * 1e-4;
+        }
+        initialized = true;
+    }
+
+    @Test
+    public void testSameRoutesAsOneByOne() throws IOException {
+        for (Router.Weighting weighting : Router.Weighting.values()) {
+            int[][] expected = new int[PAIRS][];
+            for (int i = 0; i < PAIRS; i += 1) {
+                expected[i] = Router.shortestPathVertices(graphSmall,
+                        graphSmall.closestVertex(pairs[0][i], pairs[1][i]),
+                        graphSmall.closestVertex(pairs[2][i], pairs[3][i]), Router.Algorithm.CH,
+                        weighting, null);
+            }
+            for (int threads = 1; threads <= 4; threads += 1) {
+                BatchRouter batchRouter = new BatchRouter(threads);
+                int[][] found = new int[PAIRS][];
+                int[] chunks = new int[1];
+                batchRouter.<Object[]>route(graphSmall, pairs[0], pairs[1], pairs[2], pairs[3],
+                        Router.Algorithm.CH, weighting,
+                        (index, vertices) -> new Object[]{index, vertices}, results -> {
+                        assertTrue(results.size() <= BatchRouter.CHUNK_SIZE);
+                        for (Object[] result : results) {
+                            int index = (Integer) result[0];
+                            assertNull(found[index]);
+                            found[index] = (int[]) result[1];
+                        }
+                        chunks[0] += 1;
+                    });
+                batchRouter.shutdown();
+                assertEquals((PAIRS + BatchRouter.CHUNK_SIZE - 1) / BatchRouter.CHUNK_SIZE,
+                        chunks[0]);
+                for (int i = 0; i < PAIRS; i += 1) {
+                    assertArrayEquals(expected[i], found[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyBatch() throws IOException {
+        BatchRouter batchRouter = new BatchRouter(2);
+        int[] received = new int[1];
+        batchRouter.route(graphSmall, new double[0], new double[0], new double[0], new double[0],
+                Router.Algorithm.ASTAR, Router.Weighting.DISTANCE, (index, vertices) -> vertices,
+                results -> received[0] += 1);
+        batchRouter.shutdown();
+        assertEquals(0, received[0]);
+    }
+
+    @Test
+    public void testReceiverFailureStopsBatch() {
+        BatchRouter batchRouter = new BatchRouter(2);
+        int[] received = new int[1];
+        boolean failed = false;
+        try {
+            batchRouter.route(graphSmall, pairs[0], pairs[1], pairs[2], pairs[3],
+                    Router.Algorithm.ASTAR, Router.Weighting.DISTANCE,
+                    (index, vertices) -> vertices, results -> {
+                        received[0] += 1;
+                        throw new IOException("Gone");
+                    });
+        } catch (IOException e) {
+            failed = true;
+        }
+        batchRouter.shutdown();
+        assertTrue(failed);
+        assertEquals(1, received[0]);
+    }
+
+    @Test
+    public void testMismatchedPointsRejected() throws IOException {
+        BatchRouter batchRouter = new BatchRouter(1);
+        boolean rejected = false;
+        try {
+            batchRouter.route(graphSmall, new double[2], new double[2], new double[1],
+                    new double[1], Router.Algorithm.ASTAR, Router.Weighting.DISTANCE,
+                    (index, vertices) -> vertices, results -> { });
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        batchRouter.shutdown();
+        assertTrue(rejected);
+    }
+}
@@ -0,0 +1,102 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that routes through the contraction hierarchy of the small Berkeley graph are exactly the
+ * routes A* finds, both for a freshly contracted hierarchy and for one read back from a file, and
+ * that a hierarchy file cut short is contracted again instead of being used.
+ */
+public class TestContractionHierarchy {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static final long SEED = 2018;
+    private static GraphDB graphSmall;
+    private static ContractionHierarchy hierarchy;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphSmall = new GraphDB(OSM_DB_PATH_SMALL);
+        hierarchy = ContractionHierarchy.build(graphSmall.compact());
+        initialized = true;
+    }
+
+    @Test
+    public void testRandomRoutes() {
+        assertSameRoutes(hierarchy);
+    }
+
+    @Test
+    public void testReadBack() throws Exception {
+        File file = File.createTempFile("hierarchy", ContractionHierarchy.SUFFIX);
+        file.deleteOnExit();
+        hierarchy.write(file);
+        ContractionHierarchy read = ContractionHierarchy.read(file, graphSmall.compact());
+        assertNotNull(read);
+        assertEquals(hierarchy.edgeCount(), read.edgeCount());
+        assertEquals(hierarchy.shortcutCount(), read.shortcutCount());
+        assertSameRoutes(read);
+
+        //A hierarchy must not be used with a graph it was not built for.
+        GraphDB tiny = new GraphDB(OSM_DB_PATH_TINY);
+        assertNull(ContractionHierarchy.read(file, tiny.compact()));
+    }
+
+    @Test
+    public void testTruncatedFileIsRebuilt() throws IOException {
+        File dir = Files.createTempDirectory("hierarchy").toFile();
+        File source = new File(dir, "tiny-clean.osm.xml");
+        Files.copy(new File(OSM_DB_PATH_TINY).toPath(), source.toPath());
+        GraphDB tiny = new GraphDB(source.getPath(), false);
+        File file = ContractionHierarchy.fileFor(source.getPath(), Router.Weighting.DISTANCE);
+        ContractionHierarchy.build(tiny.compact()).write(file);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(file.length() - 5);
+        }
+        boolean rejected = false;
+        try {
+            ContractionHierarchy.read(file, tiny.compact());
+        } catch (IOException e) {
+            rejected = true;
+        }
+        assertTrue(rejected);
+
+        ContractionHierarchy rebuilt = tiny.hierarchy();
+        CompactGraph graph = tiny.compact();
+        for (int start = 0; start < graph.size(); start += 1) {
+            for (int end = 0; end < graph.size(); end += 1) {
+                assertArrayEquals(Router.aStar(graph, start, end, null),
+                        rebuilt.route(start, end, null));
+            }
+        }
+        file.delete();
+        source.delete();
+        dir.delete();
+    }
+
+    private void assertSameRoutes(ContractionHierarchy ch) {
+        CompactGraph graph = graphSmall.compact();
+        Random random = new Random(SEED);
+        for (int i = 0; i < 500; i += 1) {
+            int start = random.nextInt(graph.size());
+            int end = i % 10 == 0 ? start : random.nextInt(graph.size());
+            assertArrayEquals(Router.aStar(graph, start, end, null), ch.route(start, end, null));
+        }
+    }
+}
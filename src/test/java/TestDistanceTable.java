@@ -0,0 +1,84 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that every cell of a distance table on the small Berkeley graph is the length of the
+ * route A* finds between the same points, and every cell of a duration table the driving time of
+ * the quickest route A* finds.
+ */
+public class TestDistanceTable {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final long SEED = 2018;
+    private static GraphDB graphSmall;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphSmall = new GraphDB(OSM_DB_PATH_SMALL);
+        initialized = true;
+    }
+
+    @Test
+    public void testAgainstRoutes() {
+        CompactGraph graph = graphSmall.compact();
+        double[][] points = randomPoints(graph);
+        double[] distances = Router.distanceTable(graphSmall, points[0], points[1], points[2],
+                points[3]);
+        assertEquals(20 * 30, distances.length);
+        for (int i = 0; i < 20; i += 1) {
+            for (int j = 0; j < 30; j += 1) {
+                int[] path = Router.shortestPathVertices(graphSmall, points[0][i], points[1][i],
+                        points[2][j], points[3][j]);
+                double expected = path.length == 0 ? Double.POSITIVE_INFINITY : 0;
+                for (int p = 1; p < path.length; p += 1) {
+                    expected += GraphDB.distance(graph.lon(path[p - 1]), graph.lat(path[p - 1]),
+                            graph.lon(path[p]), graph.lat(path[p]));
+                }
+                assertEquals(expected, distances[i * 30 + j], 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testDurationsAgainstRoutes() {
+        CompactGraph graph = graphSmall.compact(Router.Weighting.TIME);
+        double[][] points = randomPoints(graph);
+        double[] durations = Router.durationTable(graphSmall, points[0], points[1], points[2],
+                points[3]);
+        assertEquals(20 * 30, durations.length);
+        for (int i = 0; i < 20; i += 1) {
+            for (int j = 0; j < 30; j += 1) {
+                int[] path = Router.shortestPathVertices(graphSmall,
+                        graphSmall.closestVertex(points[0][i], points[1][i]),
+                        graphSmall.closestVertex(points[2][j], points[3][j]),
+                        Router.Algorithm.ASTAR, Router.Weighting.TIME, null);
+                double expected = path.length == 0 ? Double.POSITIVE_INFINITY
+                        : Router.routeCost(graph, path);
+                assertEquals(expected, durations[i * 30 + j], 1e-6);
+            }
+        }
+    }
+
+    /** Returns 20 random start points and 30 random destinations, at vertices of a graph. */
+    private static double[][] randomPoints(CompactGraph graph) {
+        Random random = new Random(SEED);
+        double[][] points = new double[4][];
+        int[] sizes = {20, 20, 30, 30};
+        for (int k = 0; k < 4; k += 1) {
+            points[k] = new double[sizes[k]];
+            for (int i = 0; i < sizes[k]; i += 1) {
+                int v = random.nextInt(graph.size());
+                points[k][i] = k % 2 == 0 ? graph.lon(v) : graph.lat(v);
+            }
+        }
+        return points;
+    }
+}
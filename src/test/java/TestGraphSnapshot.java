@@ -0,0 +1,126 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a graph read back from a binary snapshot answers queries exactly like the graph
+ * parsed from the tiny OSM file it was written from, and that a snapshot cut short falls back to
+ * parsing the OSM file.
+ */
+public class TestGraphSnapshot {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static GraphDB snapshotTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY, false);
+        File snapshot = File.createTempFile("tiny-clean", GraphSnapshot.SUFFIX);
+        snapshot.deleteOnExit();
+        GraphSnapshot.write(graphTiny, new File(OSM_DB_PATH_TINY), snapshot);
+        snapshotTiny = GraphSnapshot.open(snapshot);
+        initialized = true;
+    }
+
+    @Test
+    public void testVertices() {
+        HashSet<Long> expected = new HashSet<>();
+        HashSet<Long> actual = new HashSet<>();
+        for (long v : graphTiny.vertices()) {
+            expected.add(v);
+        }
+        for (long v : snapshotTiny.vertices()) {
+            actual.add(v);
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testAdjacentAndStreets() {
+        for (long v : graphTiny.vertices()) {
+            HashSet<Long> expected = new HashSet<>();
+            HashSet<Long> actual = new HashSet<>();
+            for (long w : graphTiny.adjacent(v)) {
+                expected.add(w);
+                assertEquals(graphTiny.street(v, w), snapshotTiny.street(v, w));
+            }
+            for (long w : snapshotTiny.adjacent(v)) {
+                actual.add(w);
+            }
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testLonAndLat() {
+        for (long v : graphTiny.vertices()) {
+            assertEquals(graphTiny.lon(v), snapshotTiny.lon(v), 0.0);
+            assertEquals(graphTiny.lat(v), snapshotTiny.lat(v), 0.0);
+        }
+        assertEquals(0.6, snapshotTiny.lon(63L), 0.00001);
+        assertEquals(38.3, snapshotTiny.lat(63L), 0.00001);
+    }
+
+    @Test
+    public void testClosest() {
+        assertEquals(55L, snapshotTiny.closest(0.4, 38.51));
+    }
+
+    @Test
+    public void testNames() {
+        assertEquals(graphTiny.nameKey, snapshotTiny.nameKey);
+        assertEquals(graphTiny.locationKey, snapshotTiny.locationKey);
+    }
+
+    @Test
+    public void testTruncatedSnapshotFallsBack() throws IOException {
+        File dir = Files.createTempDirectory("snapshot").toFile();
+        File source = new File(dir, "tiny-clean.osm.xml");
+        Files.copy(new File(OSM_DB_PATH_TINY).toPath(), source.toPath());
+        File snapshot = GraphSnapshot.snapshotFor(source.getPath());
+        GraphSnapshot.write(graphTiny, source, snapshot);
+        long length = snapshot.length();
+        //Cut in the header, in the fixed-size sections, and in the string tables.
+        for (long cut : new long[]{20, length / 2, length - 3}) {
+            GraphSnapshot.write(graphTiny, source, snapshot);
+            try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+                file.setLength(cut);
+            }
+            boolean rejected = false;
+            try {
+                GraphSnapshot.open(snapshot);
+            } catch (IOException e) {
+                rejected = true;
+            }
+            assertTrue(rejected);
+            GraphDB g = new GraphDB(source.getPath());
+            HashSet<Long> expected = new HashSet<>();
+            HashSet<Long> actual = new HashSet<>();
+            for (long v : graphTiny.vertices()) {
+                expected.add(v);
+            }
+            for (long v : g.vertices()) {
+                actual.add(v);
+            }
+            assertEquals(expected, actual);
+        }
+        //Writing leaves nothing but the snapshot behind.
+        GraphSnapshot.write(graphTiny, source, snapshot);
+        assertEquals(2, dir.listFiles().length);
+        snapshot.delete();
+        source.delete();
+        dir.delete();
+    }
+}
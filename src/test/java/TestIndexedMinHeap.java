@@ -0,0 +1,66 @@
+import org.junit.Test;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the indexed heap used by the route searches against a sorted reference, including
+ * priorities lowered while vertices are in the heap.
+ */
+public class TestIndexedMinHeap {
+    @Test
+    public void testDecreaseKey() {
+        IndexedMinHeap heap = new IndexedMinHeap(4);
+        heap.push(0, 5);
+        heap.push(1, 3);
+        heap.push(2, 4);
+        heap.push(0, 1);
+        heap.push(1, 10);
+        assertEquals(3, heap.size());
+        assertEquals(1.0, heap.minKey(), 0.0);
+        assertEquals(0, heap.poll());
+        assertFalse(heap.contains(0));
+        assertEquals(1, heap.poll());
+        assertEquals(2, heap.poll());
+        assertTrue(heap.isEmpty());
+        assertEquals(7, heap.operations());
+    }
+
+    @Test
+    public void testRandomOperations() {
+        Random random = new Random(61);
+        int n = 500;
+        IndexedMinHeap heap = new IndexedMinHeap(n);
+        double[] keys = new double[n];
+        PriorityQueue<double[]> reference = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        for (int i = 0; i < 5000; i += 1) {
+            int v = random.nextInt(n);
+            double key = random.nextDouble();
+            if (!heap.contains(v) || key < keys[v]) {
+                keys[v] = key;
+                reference.add(new double[]{key, v});
+            }
+            heap.push(v, key);
+            if (random.nextInt(3) == 0) {
+                //Skip reference entries made stale by a later decrease-key or an earlier poll.
+                while (!heap.contains((int) reference.peek()[1])
+                        || reference.peek()[0] != keys[(int) reference.peek()[1]]) {
+                    reference.poll();
+                }
+                double expected = reference.peek()[0];
+                assertEquals(expected, heap.minKey(), 0.0);
+                int polled = heap.poll();
+                assertEquals(expected, keys[polled], 0.0);
+            }
+        }
+        heap.clear();
+        assertTrue(heap.isEmpty());
+        for (int v = 0; v < n; v += 1) {
+            assertFalse(heap.contains(v));
+        }
+    }
+}
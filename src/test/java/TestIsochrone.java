@@ -0,0 +1,82 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks isochrones on the small Berkeley graph: they reach exactly the vertices whose shortest
+ * distance from the origin is within the budget, and their boundary goes around all of them.
+ */
+public class TestIsochrone {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final long SEED = 2018;
+    private static final double[] BUDGETS = {0, 0.1, 0.5, 1.5};
+    private static GraphDB graphSmall;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphSmall = new GraphDB(OSM_DB_PATH_SMALL);
+        initialized = true;
+    }
+
+    @Test
+    public void testReachedVertices() {
+        CompactGraph graph = graphSmall.compact();
+        int[] all = new int[graph.size()];
+        for (int v = 0; v < all.length; v += 1) {
+            all[v] = v;
+        }
+        Random random = new Random(SEED);
+        for (int i = 0; i < 20; i += 1) {
+            int origin = random.nextInt(graph.size());
+            double[] expected = graphSmall.hierarchy().distances(new int[]{origin}, all);
+            for (double budget : BUDGETS) {
+                Isochrone isochrone = Isochrone.compute(graph, origin, budget);
+                boolean[] reached = new boolean[graph.size()];
+                for (int k = 0; k < isochrone.size(); k += 1) {
+                    int v = isochrone.vertex(k);
+                    reached[v] = true;
+                    assertEquals(expected[v], isochrone.distance(k), 1e-9);
+                    assertTrue(contains(isochrone, graph.lon(v), graph.lat(v)));
+                }
+                for (int v = 0; v < graph.size(); v += 1) {
+                    if (Math.abs(expected[v] - budget) > 1e-9) {
+                        assertEquals(expected[v] <= budget, reached[v]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        Isochrone isochrone = Isochrone.compute(graphSmall.compact(), -1, 1);
+        assertEquals(0, isochrone.size());
+        assertEquals(0, isochrone.boundarySize());
+    }
+
+    /** Returns whether a point is inside the boundary of an isochrone, by counting crossings. */
+    private static boolean contains(Isochrone isochrone, double lon, double lat) {
+        boolean inside = false;
+        int n = isochrone.boundarySize();
+        for (int i = 0, j = n - 1; i < n; j = i, i += 1) {
+            double lonI = isochrone.boundaryLon(i);
+            double latI = isochrone.boundaryLat(i);
+            double lonJ = isochrone.boundaryLon(j);
+            double latJ = isochrone.boundaryLat(j);
+            if ((latI > lat) != (latJ > lat)
+                    && lon < lonJ + (lat - latJ) / (latI - latJ) * (lonI - lonJ)) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+}
@@ -0,0 +1,71 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the ALT landmarks of the small Berkeley graph: they are distinct, their bounds never
+ * exceed the length of the shortest path, and A* with them finds exactly the routes A* with the
+ * great-circle heuristic finds.
+ */
+public class TestLandmarks {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final long SEED = 2018;
+    private static GraphDB graphSmall;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphSmall = new GraphDB(OSM_DB_PATH_SMALL);
+        initialized = true;
+    }
+
+    @Test
+    public void testDistinctLandmarks() {
+        Landmarks landmarks = graphSmall.landmarks();
+        assertEquals(Landmarks.COUNT, landmarks.count());
+        Set<Integer> vertices = new HashSet<>();
+        for (int i = 0; i < landmarks.count(); i += 1) {
+            vertices.add(landmarks.vertex(i));
+        }
+        assertEquals(landmarks.count(), vertices.size());
+    }
+
+    @Test
+    public void testRandomRoutes() {
+        CompactGraph graph = graphSmall.compact();
+        Landmarks landmarks = graphSmall.landmarks();
+        Random random = new Random(SEED);
+        for (int i = 0; i < 500; i += 1) {
+            int start = random.nextInt(graph.size());
+            int end = i % 10 == 0 ? start : random.nextInt(graph.size());
+            int[] expected = Router.aStar(graph, start, end, null);
+            assertArrayEquals(expected, Router.altAStar(graph, landmarks, start, end, null));
+            if (expected.length > 0) {
+                int[] active = new int[Landmarks.ACTIVE];
+                landmarks.active(start, end, active);
+                double bound = landmarks.lowerBound(start, end, active);
+                assertTrue(bound <= length(graph, expected));
+            }
+        }
+    }
+
+    private static double length(CompactGraph graph, int[] path) {
+        double length = 0;
+        for (int i = 1; i < path.length; i += 1) {
+            length += GraphDB.distance(graph.lon(path[i - 1]), graph.lat(path[i - 1]),
+                    graph.lon(path[i]), graph.lat(path[i]));
+        }
+        return length;
+    }
+}
@@ -0,0 +1,135 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the different importers build the same graph: a gzip compressed copy of the tiny
+ * OSM file against the uncompressed file, OsmXmlScanner against the SAX handler on XML that uses
+ * the less common parts of the syntax, and the two-pass import against the single pass one. It
+ * also checks that every edge refers to the street dictionary and has a highway class.
+ */
+public class TestOsmImporter {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static GraphDB graphTinyGzip;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY, false);
+
+        File compressed = File.createTempFile("tiny-clean", ".osm.xml.gz");
+        compressed.deleteOnExit();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed))) {
+            out.write(Files.readAllBytes(Paths.get(OSM_DB_PATH_TINY)));
+        }
+        graphTinyGzip = new GraphDB(compressed.getPath(), false);
+        initialized = true;
+    }
+
+    @Test
+    public void testGzipGraph() {
+        HashSet<Long> expected = new HashSet<>();
+        HashSet<Long> actual = new HashSet<>();
+        for (long v : graphTiny.vertices()) {
+            expected.add(v);
+            assertEquals(graphTiny.lon(v), graphTinyGzip.lon(v), 0.0);
+            assertEquals(graphTiny.lat(v), graphTinyGzip.lat(v), 0.0);
+        }
+        for (long v : graphTinyGzip.vertices()) {
+            actual.add(v);
+        }
+        assertEquals(expected, actual);
+        assertEquals(graphTiny.locationKey, graphTinyGzip.locationKey);
+    }
+
+    @Test
+    public void testEdgeAttributes() {
+        CompactGraph graph = graphTiny.compact();
+        HashSet<String> names = new HashSet<>();
+        for (int street = 0; street < graph.streetCount(); street += 1) {
+            names.add(graph.streetName(street));
+        }
+        assertEquals(graph.streetCount(), names.size());
+        for (int e = 0; e < graph.edgeCount(); e += 1) {
+            assertEquals(graph.street(e), graph.streetName(graph.streetId(e)));
+            assertTrue(graph.highway(e) >= 0);
+            assertTrue(GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(
+                    GraphBuildingHandler.HIGHWAY_TYPES[graph.highway(e)]));
+        }
+    }
+
+    @Test
+    public void testScannerMatchesSax() throws Exception {
+        String xml = "<?xml version='1.0' encoding='UTF-8'?>\n"
+                + "<osm version=\"0.6\">\n"
+                + "  <!-- a comment with <node> inside -->\n"
+                + "  <bounds minlat=\"38\" minlon=\"0\" maxlat=\"39\" maxlon=\"1\"/>\n"
+                + "  <node id='1' lat='38.1' lon='0.1'/>\n"
+                + "  <node lon=\"0.2\" lat=\"38.2\" id=\"2\" version=\"3\">\n"
+                + "    <tag k=\"name\" v=\"Caf&#233; &amp; Bar &gt; Pub\"/>\n"
+                + "  </node>\n"
+                + "  <node id=\"3\" lat=\"-38.25000000000000001\" lon=\"-0.3\" />\n"
+                + "  <way id=\"10\">\n"
+                + "    <nd ref=\"1\"/>\n    <nd ref=\"2\"/>\n    <nd ref=\"3\"/>\n"
+                + "    <tag k=\"highway\" v=\"residential\"/>\n"
+                + "    <tag k=\"name\" v=\"Main &quot;Street&quot;\"/>\n"
+                + "  </way>\n"
+                + "  <way id=\"11\"><nd ref=\"1\"/><nd ref=\"3\"/>"
+                + "<tag k=\"highway\" v=\"footway\"/></way>\n"
+                + "</osm>\n";
+        File file = File.createTempFile("syntax", ".osm.xml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), xml.getBytes("UTF-8"));
+
+        GraphDB sax = new GraphDB();
+        new XmlOsmImporter().importInto(file, sax);
+        GraphDB scanned = new GraphDB();
+        new OsmXmlScanner().importInto(file, scanned);
+
+        assertEquals(sax.nameKey, scanned.nameKey);
+        assertEquals(sax.locationKey, scanned.locationKey);
+        assertEquals("Caf\u00e9 & Bar > Pub", scanned.nameKey.get("cafbarpub"));
+    }
+
+    @Test
+    public void testRoutableOnly() {
+        GraphDB routable = new GraphDB(OSM_DB_PATH_TINY,
+                OsmImporter.routableOnly(OsmImporter.forPath(OSM_DB_PATH_TINY)), false);
+        HashSet<Long> expected = new HashSet<>();
+        HashSet<Long> actual = new HashSet<>();
+        for (long v : graphTiny.vertices()) {
+            expected.add(v);
+        }
+        for (long v : routable.vertices()) {
+            actual.add(v);
+        }
+        assertEquals(expected, actual);
+        /* The 7 road nodes and the named cafe, which is only on a footway. */
+        assertEquals(8, routable.nodeIds().limit());
+        assertEquals(0.9, routable.lon(99L), 0.00001);
+        assertEquals(graphTiny.locationKey, routable.locationKey);
+    }
+
+    @Test
+    public void testProtobufVarints() {
+        byte[] bytes = {(byte) 0x96, 0x01, 0x03, 0x04};
+        PbfOsmImporter.ProtobufReader r = new PbfOsmImporter.ProtobufReader(bytes, 0, 4);
+        assertEquals(150L, r.readVarint());
+        assertEquals(-2L, r.readSignedVarint());
+        assertEquals(2L, r.readSignedVarint());
+    }
+}
@@ -0,0 +1,192 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that closing roads and slowing them down changes the weights every algorithm routes on
+ * at once, that all of them still find routes as short as Dijkstra's algorithm does on the new
+ * weights and never along a closed road, and that a bad batch changes nothing.
+ */
+public class TestRoadFactors {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final long SEED = 2018;
+    private static final int ROUTES = 100;
+    private static final int ROADS = 60;
+    private static final double CONGESTION = 3;
+    private static GraphDB graphSmall;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            graphSmall.resetRoadFactors();
+            return;
+        }
+        graphSmall = new GraphDB(OSM_DB_PATH_SMALL);
+        initialized = true;
+    }
+
+    @Test
+    public void testRoutesOnChangedWeights() {
+        CompactGraph before = graphSmall.compact();
+        Random random = new Random(SEED);
+        int[][] routes = randomRoutes(before, random);
+        changeRoadsOnRoutes(before, routes, random);
+        CompactGraph graph = graphSmall.compact();
+        assertNotSame(before, graph);
+        assertTrue(graph.hasChangedWeights());
+        assertTrue(!before.hasChangedWeights());
+
+        int changed = 0;
+        for (int[] route : routes) {
+            double expected = GraphTestUtils.dijkstra(graph, route[0], route[1]);
+            if (expected != GraphTestUtils.dijkstra(before, route[0], route[1])) {
+                changed += 1;
+            }
+            for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+                int[] path = Router.shortestPathVertices(graphSmall, route[0], route[1],
+                        algorithm, null);
+                if (expected == Double.POSITIVE_INFINITY) {
+                    assertEquals(algorithm.toString(), 0, path.length);
+                    continue;
+                }
+                assertEquals(route[0], path[0]);
+                assertEquals(route[1], path[path.length - 1]);
+                assertEquals(algorithm.toString(), expected, GraphTestUtils.weight(graph, path),
+                        1e-9);
+            }
+        }
+        assertTrue(changed > 0);
+    }
+
+    @Test
+    public void testDistanceTableOnChangedWeights() {
+        CompactGraph before = graphSmall.compact();
+        Random random = new Random(SEED);
+        changeRoadsOnRoutes(before, randomRoutes(before, random), random);
+        CompactGraph graph = graphSmall.compact();
+        int[] vertices = new int[20];
+        double[] lons = new double[vertices.length];
+        double[] lats = new double[vertices.length];
+        for (int i = 0; i < vertices.length; i += 1) {
+            vertices[i] = random.nextInt(graph.size());
+            lons[i] = graph.lon(vertices[i]);
+            lats[i] = graph.lat(vertices[i]);
+        }
+        double[] table = Router.distanceTable(graphSmall, lons, lats, lons, lats);
+        double[] durations = Router.durationTable(graphSmall, lons, lats, lons, lats);
+        CompactGraph times = graphSmall.compact(Router.Weighting.TIME);
+        for (int i = 0; i < vertices.length; i += 1) {
+            for (int j = 0; j < vertices.length; j += 1) {
+                assertEquals(GraphTestUtils.dijkstra(graph, vertices[i], vertices[j]),
+                        table[i * vertices.length + j], 1e-9);
+                assertEquals(GraphTestUtils.dijkstra(times, vertices[i], vertices[j]),
+                        durations[i * vertices.length + j], 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testReset() {
+        CompactGraph before = graphSmall.compact();
+        Random random = new Random(SEED);
+        int[][] routes = randomRoutes(before, random);
+        int[][] expected = new int[routes.length][];
+        for (int i = 0; i < routes.length; i += 1) {
+            expected[i] = Router.shortestPathVertices(graphSmall, routes[i][0], routes[i][1],
+                    Router.Algorithm.CH, null);
+        }
+        changeRoadsOnRoutes(before, routes, random);
+        graphSmall.resetRoadFactors();
+        assertTrue(!graphSmall.compact().hasChangedWeights());
+        for (int i = 0; i < routes.length; i += 1) {
+            assertArrayEquals(expected[i], Router.shortestPathVertices(graphSmall, routes[i][0],
+                    routes[i][1], Router.Algorithm.CH, null));
+        }
+    }
+
+    @Test
+    public void testBadBatchChangesNothing() {
+        CompactGraph graph = graphSmall.compact();
+        int e = graph.firstEdge(0);
+        long from = graph.id(0);
+        long to = graph.id(graph.target(e));
+        long missing = graph.id(0) == 1 ? 2 : 1;
+        assertTrue(rejects(new long[]{from, from}, new long[]{to, to},
+                new double[]{GraphDB.CLOSED, 0.5}));
+        assertTrue(rejects(new long[]{from, from}, new long[]{to, to},
+                new double[]{GraphDB.CLOSED, Double.NaN}));
+        assertTrue(rejects(new long[]{from, from}, new long[]{to, missing},
+                new double[]{GraphDB.CLOSED, 2}));
+        assertTrue(rejects(new long[]{from}, new long[]{to}, new double[0]));
+        assertSame(graph, graphSmall.compact());
+    }
+
+    @Test
+    public void testChangesInvalidateCachedRoutes() {
+        RouteCache cache = graphSmall.routeCache();
+        CompactGraph graph = graphSmall.compact();
+        long generation = cache.generation();
+        cache.put(1, 2, 0, generation, new int[]{1, 2}, "");
+        int e = graph.firstEdge(0);
+        graphSmall.setRoadFactors(new long[]{graph.id(0)},
+                new long[]{graph.id(graph.target(e))}, new double[]{CONGESTION});
+        assertNull(cache.get(1, 2));
+        assertTrue(cache.generation() > generation);
+        //A route found before the change but put after it is not kept.
+        cache.put(1, 2, 0, generation, new int[]{1, 2}, "");
+        assertNull(cache.get(1, 2));
+    }
+
+    /** Returns whether a batch of changes is rejected. */
+    private static boolean rejects(long[] from, long[] to, double[] factors) {
+        try {
+            graphSmall.setRoadFactors(from, to, factors);
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    private static int[][] randomRoutes(CompactGraph graph, Random random) {
+        int[][] routes = new int[ROUTES][];
+        for (int i = 0; i < routes.length; i += 1) {
+            routes[i] = new int[]{random.nextInt(graph.size()), random.nextInt(graph.size())};
+        }
+        return routes;
+    }
+
+    /**
+     * Closes or slows down ROADS roads on the shortest routes, so that most routes have to
+     * change.
+     */
+    private static void changeRoadsOnRoutes(CompactGraph graph, int[][] routes, Random random) {
+        long[] from = new long[ROADS];
+        long[] to = new long[ROADS];
+        double[] factors = new double[ROADS];
+        int count = 0;
+        for (int i = 0; count < ROADS; i += 1) {
+            int[] route = routes[i % routes.length];
+            int[] path = Router.shortestPathVertices(graphSmall, route[0], route[1],
+                    Router.Algorithm.ASTAR, null);
+            if (path.length < 2) {
+                continue;
+            }
+            int j = random.nextInt(path.length - 1);
+            from[count] = graph.id(path[j]);
+            to[count] = graph.id(path[j + 1]);
+            factors[count] = count % 2 == 0 ? GraphDB.CLOSED : CONGESTION;
+            count += 1;
+        }
+        graphSmall.setRoadFactors(from, to, factors);
+    }
+}
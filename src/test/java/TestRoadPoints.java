@@ -0,0 +1,283 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the segment index finds the same nearest point on a road as checking every road
+ * does, that routes between points on roads are as light as the best way through either end of
+ * both roads, and that their directions start on the start's road.
+ */
+public class TestRoadPoints {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final long SEED = 2018;
+    private static final int POINTS = 2000;
+    private static final int ROUTES = 100;
+    private static GraphDB graphSmall;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            graphSmall.resetRoadFactors();
+            return;
+        }
+        graphSmall = new GraphDB(OSM_DB_PATH_SMALL);
+        initialized = true;
+    }
+
+    @Test
+    public void testNearestRoadPoint() {
+        CompactGraph graph = graphSmall.compact();
+        Random random = new Random(SEED);
+        for (int i = 0; i < POINTS; i += 1) {
+            double[] point = randomPoint(graph, random, 0.01);
+            RoadPoint found = graphSmall.closestRoadPoint(point[0], point[1]);
+            RoadPoint expected = nearestByScan(graph, point[0], point[1]);
+            assertEquals(expected.edge, found.edge);
+            assertEquals(expected.fraction, found.fraction, 1e-12);
+            assertEquals(graph.target(found.edge), found.to);
+            assertEquals(graph.reverse(found.from, found.edge), found.backEdge);
+            assertTrue(found.from < found.to);
+            assertEquals(GraphDB.distance(point[0], point[1], found.lon, found.lat),
+                    found.distance, 1e-12);
+            //Never farther than the nearest vertex.
+            int v = graphSmall.closestVertex(point[0], point[1]);
+            assertTrue(found.distance <= GraphDB.distance(point[0], point[1], graph.lon(v),
+                    graph.lat(v)) + 1e-6);
+        }
+    }
+
+    @Test
+    public void testReverseEdgesPairUp() {
+        CompactGraph graph = graphSmall.compact();
+        boolean[] paired = new boolean[graph.edgeCount()];
+        for (int v = 0; v < graph.size(); v += 1) {
+            for (int e = graph.firstEdge(v); e < graph.endEdge(v); e += 1) {
+                int back = graph.reverse(v, e);
+                assertEquals(v, graph.target(back));
+                assertEquals(e, graph.reverse(graph.target(e), back));
+                //Parallel roads each get a reverse of their own.
+                assertTrue(!paired[back]);
+                paired[back] = true;
+            }
+        }
+    }
+
+    @Test
+    public void testPointAtVertex() {
+        CompactGraph graph = graphSmall.compact();
+        int v = graph.target(graph.firstEdge(0));
+        RoadPoint point = graphSmall.closestRoadPoint(graph.lon(v), graph.lat(v));
+        assertEquals(0, point.distance, 1e-12);
+        assertTrue(point.fraction == 0 && point.from == v || point.fraction == 1 && point.to == v);
+    }
+
+    @Test
+    public void testRoutes() {
+        checkRoutes(Router.Weighting.DISTANCE);
+        checkRoutes(Router.Weighting.TIME);
+    }
+
+    @Test
+    public void testRoutesOnChangedWeights() {
+        CompactGraph before = graphSmall.compact();
+        Random random = new Random(SEED);
+        int roads = 40;
+        long[] from = new long[roads];
+        long[] to = new long[roads];
+        double[] factors = new double[roads];
+        for (int i = 0; i < roads; i += 1) {
+            int v = random.nextInt(before.size());
+            while (before.firstEdge(v) == before.endEdge(v)) {
+                v = random.nextInt(before.size());
+            }
+            from[i] = before.id(v);
+            to[i] = before.id(before.target(before.firstEdge(v)));
+            factors[i] = i % 2 == 0 ? GraphDB.CLOSED : 3;
+        }
+        graphSmall.setRoadFactors(from, to, factors);
+        checkRoutes(Router.Weighting.DISTANCE);
+        checkRoutes(Router.Weighting.TIME);
+    }
+
+    @Test
+    public void testDirectRouteOnOneRoad() {
+        CompactGraph graph = graphSmall.compact();
+        int[] road = longestRoad(graph);
+        int v = road[0];
+        int e = road[1];
+        int w = graph.target(e);
+        double[] a = along(graph, v, w, 0.2);
+        double[] b = along(graph, v, w, 0.7);
+        for (double[][] ends : new double[][][]{{a, b}, {b, a}}) {
+            RoadPoint start = graphSmall.closestRoadPoint(ends[0][0], ends[0][1]);
+            RoadPoint end = graphSmall.closestRoadPoint(ends[1][0], ends[1][1]);
+            assertTrue(start.sameRoad(end));
+            SnappedRoute route = Router.roadPointRoute(graphSmall, start, end,
+                    Router.Weighting.DISTANCE, null);
+            assertTrue(route.direct());
+            assertEquals(0.5 * graph.length(e), route.cost(graph), 1e-6);
+            List<Router.NavigationDirection> directions = Router.routeDirections(graphSmall,
+                    route);
+            assertEquals(1, directions.size());
+            assertEquals(Router.NavigationDirection.START, directions.get(0).direction);
+            assertEquals(0.5 * graph.length(e), directions.get(0).distance, 1e-6);
+        }
+    }
+
+    /**
+     * Checks routes between random points on roads against Dijkstra's algorithm from both ends
+     * of the start's road.
+     */
+    private static void checkRoutes(Router.Weighting weighting) {
+        CompactGraph graph = graphSmall.compact(weighting);
+        CompactGraph distances = graphSmall.compact(Router.Weighting.DISTANCE);
+        Random random = new Random(SEED);
+        for (int i = 0; i < ROUTES; i += 1) {
+            double[] a = randomPoint(graph, random, 0.001);
+            double[] b = randomPoint(graph, random, 0.001);
+            RoadPoint start = graphSmall.closestRoadPoint(a[0], a[1]);
+            RoadPoint end = graphSmall.closestRoadPoint(b[0], b[1]);
+            SnappedRoute route = Router.roadPointRoute(graphSmall, start, end, weighting, null);
+            double expected = lightestRoute(graph, start, end);
+            assertEquals(expected, route.weight, 1e-6);
+            if (!route.found()) {
+                continue;
+            }
+            assertEquals(route.weight, weight(graph, route), 1e-6);
+            if (!graph.hasChangedWeights()) {
+                assertEquals(route.weight, route.cost(graph), 1e-6);
+            }
+            List<Router.NavigationDirection> directions = Router.routeDirections(graphSmall,
+                    route);
+            double length = 0;
+            for (Router.NavigationDirection direction : directions) {
+                length += direction.distance;
+            }
+            assertEquals(route.cost(distances), length, 1e-6);
+            if (route.startFraction() > 0) {
+                assertEquals(distances.streetName(distances.streetId(start.edge)),
+                        directions.get(0).way);
+            }
+        }
+    }
+
+    /** Returns the weight of a route, found again from its parts. */
+    private static double weight(CompactGraph graph, SnappedRoute route) {
+        double weight = RoadPoint.part(route.startFraction(), graph.weight(route.startEdge()));
+        if (route.direct()) {
+            return weight;
+        }
+        for (int i = 1; i < route.vertices.length; i += 1) {
+            int e = graph.findEdge(route.vertices[i - 1], route.vertices[i]);
+            assertTrue(e >= 0);
+            weight += graph.weight(e);
+        }
+        return weight + RoadPoint.part(route.endFraction(), graph.weight(route.endEdge()));
+    }
+
+    /** The weight of the lightest route between two points on roads, through either end. */
+    private static double lightestRoute(CompactGraph graph, RoadPoint start, RoadPoint end) {
+        double best = Double.POSITIVE_INFINITY;
+        if (start.sameRoad(end)) {
+            best = end.fraction >= start.fraction
+                    ? RoadPoint.part(end.fraction - start.fraction, graph.weight(start.edge))
+                    : RoadPoint.part(start.fraction - end.fraction, graph.weight(start.backEdge));
+        }
+        int[] sources = {start.from, start.to};
+        double[] leaving = {start.weightToFrom(graph), start.weightToTo(graph)};
+        for (int i = 0; i < 2; i += 1) {
+            double[] distance = GraphTestUtils.dijkstra(graph, sources[i]);
+            best = Math.min(best, leaving[i] + distance[end.from] + end.weightFromFrom(graph));
+            best = Math.min(best, leaving[i] + distance[end.to] + end.weightFromTo(graph));
+        }
+        return best;
+    }
+
+    /**
+     * Finds the nearest point on a road by checking every road, in the projection the segment
+     * index uses and with the same arithmetic, so that even near ties come out the same.
+     */
+    private static RoadPoint nearestByScan(CompactGraph graph, double lon, double lat) {
+        double minLat = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        for (int v = 0; v < graph.size(); v += 1) {
+            minLat = Math.min(minLat, graph.lat(v));
+            maxLat = Math.max(maxLat, graph.lat(v));
+        }
+        double cosLat = Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        double x = lon * cosLat;
+        int bestEdge = -1;
+        int bestFrom = -1;
+        double bestFraction = 0;
+        double bestSquared = Double.MAX_VALUE;
+        for (int v = 0; v < graph.size(); v += 1) {
+            for (int e = graph.firstEdge(v); e < graph.endEdge(v); e += 1) {
+                int w = graph.target(e);
+                if (v > w) {
+                    continue;
+                }
+                double vx = graph.lon(v) * cosLat;
+                double dx = graph.lon(w) * cosLat - vx;
+                double dy = graph.lat(w) - graph.lat(v);
+                double squaredLength = dx * dx + dy * dy;
+                double fraction = squaredLength == 0 ? 0
+                        : ((x - vx) * dx + (lat - graph.lat(v)) * dy) / squaredLength;
+                fraction = Math.max(0, Math.min(1, fraction));
+                double ex = vx + fraction * dx - x;
+                double ey = graph.lat(v) + fraction * dy - lat;
+                if (ex * ex + ey * ey < bestSquared) {
+                    bestEdge = e;
+                    bestFrom = v;
+                    bestFraction = fraction;
+                    bestSquared = ex * ex + ey * ey;
+                }
+            }
+        }
+        return new RoadPoint(bestFrom, graph.target(bestEdge), bestEdge, -1, bestFraction, 0, 0,
+                Math.sqrt(bestSquared));
+    }
+
+    /** Returns a random point within a margin in degrees of the bounds of a graph. */
+    private static double[] randomPoint(CompactGraph graph, Random random, double margin) {
+        double minLon = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE;
+        double minLat = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        for (int v = 0; v < graph.size(); v += 1) {
+            minLon = Math.min(minLon, graph.lon(v));
+            maxLon = Math.max(maxLon, graph.lon(v));
+            minLat = Math.min(minLat, graph.lat(v));
+            maxLat = Math.max(maxLat, graph.lat(v));
+        }
+        return new double[]{minLon - margin + random.nextDouble() * (maxLon - minLon + 2 * margin),
+            minLat - margin + random.nextDouble() * (maxLat - minLat + 2 * margin)};
+    }
+
+    /** Returns the lower vertex of the longest road and its edge to the higher one. */
+    private static int[] longestRoad(CompactGraph graph) {
+        int[] longest = {-1, -1};
+        for (int v = 0; v < graph.size(); v += 1) {
+            for (int e = graph.firstEdge(v); e < graph.endEdge(v); e += 1) {
+                if (v < graph.target(e)
+                        && (longest[1] < 0 || graph.length(e) > graph.length(longest[1]))) {
+                    longest[0] = v;
+                    longest[1] = e;
+                }
+            }
+        }
+        return longest;
+    }
+
+    /** Returns the point a fraction of the way from v to w. */
+    private static double[] along(CompactGraph graph, int v, int w, double fraction) {
+        return new double[]{graph.lon(v) + fraction * (graph.lon(w) - graph.lon(v)),
+            graph.lat(v) + fraction * (graph.lat(w) - graph.lat(v))};
+    }
+}
@@ -0,0 +1,77 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that the route cache finds what was put into it, drops the least recently used route
+ * when full and routes past their time to live, and counts all of it.
+ */
+public class TestRouteCache {
+    private long now = 0;
+
+    @Test
+    public void testHitsAndMisses() {
+        RouteCache cache = new RouteCache(4, 100, () -> now);
+        assertNull(cache.get(1, 2));
+        cache.put(1, 2, new int[]{1, 5, 2}, "1. Start on a <br>");
+        RouteCache.Route route = cache.get(1, 2);
+        assertArrayEquals(new int[]{1, 5, 2}, route.vertices);
+        assertEquals("1. Start on a <br>", route.directions);
+        assertNull(cache.get(2, 1));
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(1.0 / 3, cache.hitRate(), 1e-12);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        //A single segment, so that every route competes for the same room.
+        RouteCache cache = new RouteCache(1, 100, () -> now);
+        cache.put(1, 2, new int[]{1, 2}, "");
+        cache.put(3, 4, new int[]{3, 4}, "");
+        assertNull(cache.get(1, 2));
+        assertEquals(1, cache.evictions());
+        assertEquals(1, cache.size());
+
+        RouteCache bigger = new RouteCache(2, 100, () -> now);
+        for (int i = 0; i < 1000; i += 1) {
+            bigger.put(i, i + 1, new int[]{i, i + 1}, "");
+        }
+        assertEquals(2, bigger.size());
+        assertEquals(998, bigger.evictions());
+    }
+
+    @Test
+    public void testExpiry() {
+        RouteCache cache = new RouteCache(10, 100, () -> now);
+        cache.put(1, 2, new int[]{1, 2}, "");
+        now = 100;
+        assertEquals(2, cache.get(1, 2).vertices.length);
+        now = 101;
+        assertNull(cache.get(1, 2));
+        assertEquals(1, cache.expirations());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        RouteCache cache = new RouteCache(10, 100, () -> now);
+        cache.put(1, 2, new int[]{1, 2}, "");
+        cache.put(2, 3, new int[]{2, 3}, "");
+        cache.invalidate();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(1, 2));
+    }
+
+    @Test
+    public void testNewGraphNewCache() {
+        String path = "../library-sp18/data/tiny-clean.osm.xml";
+        GraphDB graph = new GraphDB(path);
+        assertSame(graph.routeCache(), graph.routeCache());
+        assertNotSame(graph.routeCache(), new GraphDB(path).routeCache());
+    }
+}
@@ -44,6 +44,29 @@ public class TestRouter {
         }
     }
 
+    /**
+     * Cross-checks the bidirectional search against the expected results and against the
+     * unidirectional A* search on the same fixtures.
+     */
+    @Test
+    public void testBidirectionalShortestPath() throws Exception {
+        List<Map<String, Double>> testParams = paramsFromFile();
+        List<List<Long>> expectedResults = resultsFromFile();
+
+        for (int i = 0; i < NUM_TESTS; i++) {
+            Map<String, Double> params = testParams.get(i);
+            List<Long> actual = Router.shortestPath(graph,
+                    params.get("start_lon"), params.get("start_lat"),
+                    params.get("end_lon"), params.get("end_lat"), Router.Algorithm.BIDIRECTIONAL);
+            List<Long> unidirectional = Router.shortestPath(graph,
+                    params.get("start_lon"), params.get("start_lat"),
+                    params.get("end_lon"), params.get("end_lat"), Router.Algorithm.ASTAR);
+            assertEquals("Bidirectional search did not match the expected results",
+                    expectedResults.get(i), actual);
+            assertEquals("Bidirectional search did not match A*", unidirectional, actual);
+        }
+    }
+
     private List<Map<String, Double>> paramsFromFile() throws Exception {
         List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
         List<Map<String, Double>> testParams = new ArrayList<>();
@@ -0,0 +1,56 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a thread's search workspace is reused between searches, and that starting a new
+ * search forgets everything the previous one reached and settled.
+ */
+public class TestSearchWorkspace {
+    @Test
+    public void testReuse() throws Exception {
+        //In a thread of its own, since other tests may have left a bigger workspace in this one.
+        AssertionError[] failure = new AssertionError[1];
+        Thread thread = new Thread(() -> {
+            try {
+                SearchWorkspace workspace = SearchWorkspace.forThread(100);
+                assertSame(workspace, SearchWorkspace.forThread(50));
+                assertSame(workspace, SearchWorkspace.forThread(100));
+                assertNotSame(workspace, SearchWorkspace.forThread(101));
+            } catch (AssertionError e) {
+                failure[0] = e;
+            }
+        });
+        thread.start();
+        thread.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    @Test
+    public void testNewSearchForgetsVertices() {
+        SearchWorkspace workspace = SearchWorkspace.forThread(10);
+        SearchWorkspace.Side backward = workspace.backward();
+        assertFalse(backward.isReached(3));
+        workspace.forward().reach(3, 1.5, 2);
+        workspace.forward().settle(3);
+        workspace.forward().fringe.push(4, 2.0);
+        backward.reach(5, 2.5, -1);
+        assertTrue(workspace.forward().isReached(3));
+        assertTrue(workspace.forward().isSettled(3));
+        assertEquals(1.5, workspace.forward().distance(3), 0.0);
+
+        workspace = SearchWorkspace.forThread(10);
+        assertFalse(workspace.forward().isReached(3));
+        assertFalse(workspace.forward().isSettled(3));
+        assertTrue(workspace.forward().fringe.isEmpty());
+        assertEquals(Double.POSITIVE_INFINITY, workspace.forward().distance(3), 0.0);
+        assertFalse(workspace.backward().isReached(5));
+        assertEquals(0, workspace.forward().operations());
+    }
+}
@@ -0,0 +1,84 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the spatial index finds exactly the vertex a linear scan of the small Berkeley
+ * graph finds, for random points in and around the map and on top of the vertices themselves,
+ * both one point at a time and in a batch.
+ */
+public class TestSpatialIndex {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final long SEED = 2018;
+    private static GraphDB graphSmall;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphSmall = new GraphDB(OSM_DB_PATH_SMALL);
+        initialized = true;
+    }
+
+    @Test
+    public void testRandomPoints() {
+        CompactGraph graph = graphSmall.compact();
+        double minLon = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE;
+        double minLat = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        for (int v = 0; v < graph.size(); v += 1) {
+            minLon = Math.min(minLon, graph.lon(v));
+            maxLon = Math.max(maxLon, graph.lon(v));
+            minLat = Math.min(minLat, graph.lat(v));
+            maxLat = Math.max(maxLat, graph.lat(v));
+        }
+        double padLon = maxLon - minLon;
+        double padLat = maxLat - minLat;
+
+        Random random = new Random(SEED);
+        for (int i = 0; i < 2000; i += 1) {
+            double lon = minLon - padLon + random.nextDouble() * 3 * padLon;
+            double lat = minLat - padLat + random.nextDouble() * 3 * padLat;
+            assertEquals(graphSmall.closestVertexByScan(lon, lat),
+                    graphSmall.closestVertex(lon, lat));
+        }
+    }
+
+    @Test
+    public void testBatch() {
+        CompactGraph graph = graphSmall.compact();
+        Random random = new Random(SEED);
+        int n = 3000;
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        for (int i = 0; i < n; i += 1) {
+            int v = random.nextInt(graph.size());
+            lons[i] = graph.lon(v) + (random.nextDouble() - 0.5) * 0.01;
+            lats[i] = graph.lat(v) + (random.nextDouble() - 0.5) * 0.01;
+        }
+        double[] distances = new double[n];
+        long[] closest = graphSmall.closest(lons, lats, distances);
+        for (int i = 0; i < n; i += 1) {
+            long expected = graphSmall.closest(lons[i], lats[i]);
+            assertEquals(expected, closest[i]);
+            assertEquals(GraphDB.distance(lons[i], lats[i], graphSmall.lon(expected),
+                    graphSmall.lat(expected)), distances[i], 0.0);
+        }
+    }
+
+    @Test
+    public void testVertexPoints() {
+        CompactGraph graph = graphSmall.compact();
+        for (int v = 0; v < graph.size(); v += 1) {
+            assertEquals(graphSmall.closestVertexByScan(graph.lon(v), graph.lat(v)),
+                    graphSmall.closestVertex(graph.lon(v), graph.lat(v)));
+        }
+    }
+}
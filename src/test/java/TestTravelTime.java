@@ -0,0 +1,186 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that speed limits are read the same by both XML importers and survive a snapshot, that
+ * every algorithm finds routes as quick as Dijkstra's algorithm does on travel times, also with
+ * changed weights, and that directions say how long every step takes.
+ */
+public class TestTravelTime {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    /**
+     * A residential street from node 1 straight east to node 3 through node 2, and a detour from
+     * node 1 round by node 4 to node 3 along a primary road with a speed limit of 50 mph, which
+     * is longer but quicker.
+     */
+    private static final String SPEEDS_XML = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osm version=\"0.6\">\n"
+            + "  <node id=\"1\" lat=\"38.000\" lon=\"-122.002\"/>\n"
+            + "  <node id=\"2\" lat=\"38.000\" lon=\"-122.001\"/>\n"
+            + "  <node id=\"3\" lat=\"38.000\" lon=\"-122.000\"/>\n"
+            + "  <node id=\"4\" lat=\"38.001\" lon=\"-122.001\"/>\n"
+            + "  <way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Slow Street\"/></way>\n"
+            + "  <way id=\"11\"><nd ref=\"1\"/><nd ref=\"4\"/><nd ref=\"3\"/>"
+            + "<tag k=\"highway\" v=\"primary\"/><tag k=\"maxspeed\" v=\"50 mph\"/>"
+            + "<tag k=\"name\" v=\"Fast Road\"/></way>\n"
+            + "</osm>\n";
+    private static final long SEED = 2018;
+    private static final int ROUTES = 100;
+    private static GraphDB sax;
+    private static GraphDB scanned;
+    private static GraphDB graphSmall;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            graphSmall.resetRoadFactors();
+            return;
+        }
+        File file = File.createTempFile("speeds", ".osm.xml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), SPEEDS_XML.getBytes("UTF-8"));
+        sax = new GraphDB(file.getPath(), new XmlOsmImporter(), false);
+        scanned = new GraphDB(file.getPath(), new OsmXmlScanner(), false);
+        graphSmall = new GraphDB(OSM_DB_PATH_SMALL);
+        initialized = true;
+    }
+
+    @Test
+    public void testMaxspeedParsing() {
+        assertEquals(25, GraphBuildingHandler.maxspeedMph("25 mph"));
+        assertEquals(25, GraphBuildingHandler.maxspeedMph("25mph"));
+        assertEquals(31, GraphBuildingHandler.maxspeedMph("50"));
+        assertEquals(31, GraphBuildingHandler.maxspeedMph("50 km/h"));
+        assertEquals(12, GraphBuildingHandler.maxspeedMph("10 knots"));
+        assertEquals(0, GraphBuildingHandler.maxspeedMph(null));
+        assertEquals(0, GraphBuildingHandler.maxspeedMph("none"));
+        assertEquals(0, GraphBuildingHandler.maxspeedMph("US:urban"));
+        assertEquals(0, GraphBuildingHandler.maxspeedMph("30;50"));
+        assertEquals(0, GraphBuildingHandler.maxspeedMph("0"));
+        assertEquals(255, GraphBuildingHandler.maxspeedMph("999 mph"));
+    }
+
+    @Test
+    public void testSpeedsImported() throws Exception {
+        CompactGraph graph = scanned.compact();
+        int[] vertices = GraphTestUtils.vertices(graph, 1, 2, 4);
+        int fast = graph.findEdge(vertices[0], vertices[2]);
+        int slow = graph.findEdge(vertices[0], vertices[1]);
+        assertEquals(50, graph.maxspeed(fast));
+        assertEquals(0, graph.maxspeed(slow));
+        assertEquals(50, graph.speed(fast), 0);
+        assertEquals(GraphBuildingHandler.defaultSpeed(GraphBuildingHandler.highwayClass(
+                "residential")), graph.speed(slow), 0);
+        assertEquals(graph.length(fast) * 3600 / 50, graph.time(fast), 1e-9);
+        assertArrayEquals(maxspeeds(sax.compact()), maxspeeds(graph));
+
+        File snapshot = File.createTempFile("speeds", GraphSnapshot.SUFFIX);
+        snapshot.deleteOnExit();
+        File source = File.createTempFile("speeds", ".osm.xml");
+        source.deleteOnExit();
+        GraphSnapshot.write(scanned, source, snapshot);
+        assertArrayEquals(maxspeeds(graph), maxspeeds(GraphSnapshot.open(snapshot).compact()));
+    }
+
+    @Test
+    public void testQuickestIsNotShortest() {
+        CompactGraph graph = scanned.compact();
+        int start = GraphTestUtils.vertex(graph, 1);
+        int end = GraphTestUtils.vertex(graph, 3);
+        for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+            assertArrayEquals(GraphTestUtils.vertices(graph, 1, 2, 3), Router.shortestPathVertices(
+                    scanned, start, end, algorithm, Router.Weighting.DISTANCE, null));
+            assertArrayEquals(GraphTestUtils.vertices(graph, 1, 4, 3), Router.shortestPathVertices(
+                    scanned, start, end, algorithm, Router.Weighting.TIME, null));
+        }
+    }
+
+    @Test
+    public void testQuickestRoutes() {
+        CompactGraph graph = graphSmall.compact(Router.Weighting.TIME);
+        assertEquals(Router.Weighting.TIME, graph.weighting());
+        Random random = new Random(SEED);
+        for (int i = 0; i < ROUTES; i += 1) {
+            checkQuickest(graph, random.nextInt(graph.size()), random.nextInt(graph.size()));
+        }
+    }
+
+    @Test
+    public void testQuickestRoutesOnChangedWeights() {
+        CompactGraph before = graphSmall.compact();
+        Random random = new Random(SEED);
+        int roads = 40;
+        long[] from = new long[roads];
+        long[] to = new long[roads];
+        double[] factors = new double[roads];
+        for (int i = 0; i < roads; i += 1) {
+            int v = random.nextInt(before.size());
+            while (before.firstEdge(v) == before.endEdge(v)) {
+                v = random.nextInt(before.size());
+            }
+            from[i] = before.id(v);
+            to[i] = before.id(before.target(before.firstEdge(v)));
+            factors[i] = i % 2 == 0 ? GraphDB.CLOSED : 2;
+        }
+        graphSmall.setRoadFactors(from, to, factors);
+        CompactGraph graph = graphSmall.compact(Router.Weighting.TIME);
+        assertTrue(graph.hasChangedWeights());
+        for (int i = 0; i < ROUTES; i += 1) {
+            checkQuickest(graph, random.nextInt(graph.size()), random.nextInt(graph.size()));
+        }
+    }
+
+    @Test
+    public void testDirectionDurations() {
+        CompactGraph graph = graphSmall.compact();
+        Random random = new Random(SEED);
+        for (int i = 0; i < ROUTES; i += 1) {
+            int[] route = Router.shortestPathVertices(graphSmall, random.nextInt(graph.size()),
+                    random.nextInt(graph.size()), Router.Algorithm.CH, Router.Weighting.TIME, null);
+            List<Router.NavigationDirection> directions = Router.routeDirections(graphSmall, route);
+            double duration = 0;
+            for (Router.NavigationDirection direction : directions) {
+                assertTrue(direction.duration > 0);
+                duration += direction.duration;
+            }
+            assertEquals(Router.routeCost(graphSmall.compact(Router.Weighting.TIME), route),
+                    duration, 1e-6);
+        }
+    }
+
+    /** Checks that every algorithm finds a route from start to end as quick as Dijkstra's. */
+    private static void checkQuickest(CompactGraph graph, int start, int end) {
+        double expected = GraphTestUtils.dijkstra(graph, start, end);
+        for (Router.Algorithm algorithm : Router.Algorithm.values()) {
+            int[] path = Router.shortestPathVertices(graphSmall, start, end, algorithm,
+                    Router.Weighting.TIME, null);
+            if (expected == Double.POSITIVE_INFINITY) {
+                assertEquals(algorithm.toString(), 0, path.length);
+                continue;
+            }
+            assertEquals(start, path[0]);
+            assertEquals(end, path[path.length - 1]);
+            assertEquals(algorithm.toString(), expected, GraphTestUtils.weight(graph, path), 1e-6);
+        }
+    }
+
+    private static int[] maxspeeds(CompactGraph graph) {
+        int[] maxspeeds = new int[graph.edgeCount()];
+        for (int e = 0; e < maxspeeds.length; e += 1) {
+            maxspeeds[e] = graph.maxspeed(e);
+        }
+        return maxspeeds;
+    }
+}
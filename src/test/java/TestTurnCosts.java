@@ -0,0 +1,240 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that turn restrictions are read the same by both XML importers and survive a snapshot,
+ * that turn-aware routes never make a forbidden turn, and that their costs match a plain
+ * Dijkstra over the edges of the graph, whether it is weighted by distance or by time.
+ */
+public class TestTurnCosts {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    /**
+     * Main Street runs east from node 1 through the crossing at node 2 to node 4, First Street
+     * north from node 6 through the crossing to node 3, and Loop Road from node 4 round by node 5
+     * to node 3. Both streets are split into two ways at the crossing. Turning left from Main
+     * Street onto First Street is forbidden, so is any turn but going straight on when arriving
+     * at the crossing along First Street from the south, and so is turning around at node 5.
+     */
+    private static final String RESTRICTED_XML = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osm version=\"0.6\">\n"
+            + "  <node id=\"1\" lat=\"38.000\" lon=\"-122.002\"/>\n"
+            + "  <node id=\"2\" lat=\"38.000\" lon=\"-122.001\"/>\n"
+            + "  <node id=\"3\" lat=\"38.001\" lon=\"-122.001\"/>\n"
+            + "  <node id=\"4\" lat=\"38.000\" lon=\"-122.000\"/>\n"
+            + "  <node id=\"5\" lat=\"38.001\" lon=\"-122.000\"/>\n"
+            + "  <node id=\"6\" lat=\"37.999\" lon=\"-122.001\"/>\n"
+            + "  <way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Main Street\"/></way>\n"
+            + "  <way id=\"13\"><nd ref=\"2\"/><nd ref=\"4\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Main Street\"/></way>\n"
+            + "  <way id=\"11\"><nd ref=\"6\"/><nd ref=\"2\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"First Street\"/></way>\n"
+            + "  <way id=\"14\"><nd ref=\"2\"/><nd ref=\"3\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"First Street\"/></way>\n"
+            + "  <way id=\"12\"><nd ref=\"4\"/><nd ref=\"5\"/><nd ref=\"3\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/><tag k=\"name\" v=\"Loop Road\"/></way>\n"
+            + "  <relation id=\"20\">\n"
+            + "    <member type=\"way\" ref=\"10\" role=\"from\"/>\n"
+            + "    <member type=\"node\" ref=\"2\" role=\"via\"/>\n"
+            + "    <member type=\"way\" ref=\"14\" role=\"to\"/>\n"
+            + "    <tag k=\"type\" v=\"restriction\"/>\n"
+            + "    <tag k=\"restriction\" v=\"no_left_turn\"/>\n"
+            + "  </relation>\n"
+            + "  <relation id=\"21\">\n"
+            + "    <member type=\"way\" ref=\"11\" role=\"from\"/>\n"
+            + "    <member type=\"node\" ref=\"2\" role=\"via\"/>\n"
+            + "    <member type=\"way\" ref=\"14\" role=\"to\"/>\n"
+            + "    <tag k=\"restriction:motorcar\" v=\"only_straight_on\"/>\n"
+            + "    <tag k=\"type\" v=\"restriction\"/>\n"
+            + "  </relation>\n"
+            + "  <relation id=\"22\">\n"
+            + "    <member type=\"way\" ref=\"12\" role=\"from\"/>\n"
+            + "    <member type=\"node\" ref=\"5\" role=\"via\"/>\n"
+            + "    <member type=\"way\" ref=\"12\" role=\"to\"/>\n"
+            + "    <tag k=\"type\" v=\"restriction\"/>\n"
+            + "    <tag k=\"restriction\" v=\"no_u_turn\"/>\n"
+            + "  </relation>\n"
+            + "  <relation id=\"23\">\n"
+            + "    <member type=\"way\" ref=\"13\" role=\"from\"/>\n"
+            + "    <member type=\"node\" ref=\"4\" role=\"via\"/>\n"
+            + "    <member type=\"way\" ref=\"12\" role=\"to\"/>\n"
+            + "    <tag k=\"type\" v=\"multipolygon\"/>\n"
+            + "    <tag k=\"restriction\" v=\"no_left_turn\"/>\n"
+            + "  </relation>\n"
+            + "</osm>\n";
+    private static GraphDB sax;
+    private static GraphDB scanned;
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        File file = File.createTempFile("restrictions", ".osm.xml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), RESTRICTED_XML.getBytes("UTF-8"));
+        sax = new GraphDB(file.getPath(), new XmlOsmImporter(), false);
+        scanned = new GraphDB(file.getPath(), new OsmXmlScanner(), false);
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY, false);
+        initialized = true;
+    }
+
+    @Test
+    public void testRestrictionsImported() {
+        CompactGraph graph = scanned.compact();
+        assertArrayEquals(forbiddenTurns(sax.compact()), forbiddenTurns(graph));
+        //Main Street onto First Street to the north, from the south onto Main Street both ways
+        //and back south, and back both ways at node 5. The relation that is not a restriction
+        //forbids nothing.
+        assertEquals(6, graph.forbiddenTurnCount());
+        int crossing = GraphTestUtils.vertex(graph, 2);
+        int back = graph.findEdge(crossing, GraphTestUtils.vertex(graph, 1));
+        assertTrue(graph.isForbiddenTurn(back,
+                graph.findEdge(crossing, GraphTestUtils.vertex(graph, 3))));
+        assertTrue(!graph.isForbiddenTurn(back,
+                graph.findEdge(crossing, GraphTestUtils.vertex(graph, 4))));
+        assertTrue(!graph.isForbiddenTurn(back,
+                graph.findEdge(crossing, GraphTestUtils.vertex(graph, 6))));
+        int south = graph.findEdge(crossing, GraphTestUtils.vertex(graph, 6));
+        assertTrue(!graph.isForbiddenTurn(south,
+                graph.findEdge(crossing, GraphTestUtils.vertex(graph, 3))));
+        assertTrue(graph.isForbiddenTurn(south, south));
+        int bend = GraphTestUtils.vertex(graph, 5);
+        int loop = graph.findEdge(bend, GraphTestUtils.vertex(graph, 4));
+        assertTrue(graph.isForbiddenTurn(loop, loop));
+        assertTrue(!graph.isForbiddenTurn(loop,
+                graph.findEdge(bend, GraphTestUtils.vertex(graph, 3))));
+    }
+
+    @Test
+    public void testRouteAvoidsForbiddenTurn() {
+        CompactGraph graph = scanned.compact();
+        int start = GraphTestUtils.vertex(graph, 1);
+        int end = GraphTestUtils.vertex(graph, 3);
+        int[] route = Router.turnAwarePathVertices(scanned, start, end, null);
+        assertArrayEquals(GraphTestUtils.vertices(graph, 1, 2, 4, 5, 3), route);
+        int[] plain = Router.shortestPathVertices(scanned, start, end, Router.Algorithm.ASTAR,
+                null);
+        assertArrayEquals(GraphTestUtils.vertices(graph, 1, 2, 3), plain);
+        //Going the other way is allowed, and the first turn is to the right.
+        assertArrayEquals(GraphTestUtils.vertices(graph, 3, 2, 1),
+                Router.turnAwarePathVertices(scanned, end, start, null));
+    }
+
+    @Test
+    public void testSnapshotKeepsRestrictions() throws Exception {
+        File snapshot = File.createTempFile("restrictions", GraphSnapshot.SUFFIX);
+        snapshot.deleteOnExit();
+        File source = File.createTempFile("restrictions", ".osm.xml");
+        source.deleteOnExit();
+        GraphSnapshot.write(scanned, source, snapshot);
+        GraphDB read = GraphSnapshot.open(snapshot);
+        assertArrayEquals(forbiddenTurns(scanned.compact()), forbiddenTurns(read.compact()));
+    }
+
+    @Test
+    public void testCostsMatchEdgeDijkstra() {
+        for (GraphDB g : new GraphDB[]{scanned, graphTiny}) {
+            for (Router.Weighting weighting : Router.Weighting.values()) {
+                CompactGraph graph = g.compact(weighting);
+                TurnCosts turns = g.turnCosts(weighting);
+                for (int start = 0; start < graph.size(); start += 1) {
+                    for (int end = 0; end < graph.size(); end += 1) {
+                        double expected = edgeDijkstra(graph, turns, start, end);
+                        int[] route = Router.turnAwarePathVertices(g, start, end, weighting, null);
+                        if (expected == Double.POSITIVE_INFINITY) {
+                            assertEquals(0, route.length);
+                            continue;
+                        }
+                        assertEquals(start, route[0]);
+                        assertEquals(end, route[route.length - 1]);
+                        assertEquals(expected, cost(graph, turns, route), 1e-9);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTimePenaltiesInSeconds() {
+        CompactGraph graph = scanned.compact();
+        TurnCosts miles = scanned.turnCosts();
+        TurnCosts seconds = scanned.turnCosts(Router.Weighting.TIME);
+        double scale = CompactGraph.SECONDS_PER_HOUR / TurnCosts.TURN_SPEED;
+        for (int in = 0; in < graph.edgeCount(); in += 1) {
+            int v = graph.target(in);
+            for (int out = graph.firstEdge(v); out < graph.endEdge(v); out += 1) {
+                assertEquals(miles.cost(miles.row(in), out) * scale,
+                        seconds.cost(seconds.row(in), out), 1e-9);
+            }
+        }
+    }
+
+    /** Returns the length of a route plus the penalties of its turns. */
+    private static double cost(CompactGraph graph, TurnCosts turns, int[] route) {
+        double cost = 0;
+        int previous = -1;
+        for (int i = 1; i < route.length; i += 1) {
+            int e = graph.findEdge(route[i - 1], route[i]);
+            cost += graph.weight(e);
+            if (previous >= 0) {
+                cost += turns.cost(turns.row(previous), e);
+            }
+            previous = e;
+        }
+        return cost;
+    }
+
+    /** The cost of the best route from start to end, by Dijkstra's algorithm over edges. */
+    private static double edgeDijkstra(CompactGraph graph, TurnCosts turns, int start, int end) {
+        if (start == end) {
+            return 0;
+        }
+        double[] distance = new double[graph.edgeCount()];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        PriorityQueue<double[]> fringe = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        for (int e = graph.firstEdge(start); e < graph.endEdge(start); e += 1) {
+            distance[e] = graph.weight(e);
+            fringe.add(new double[]{distance[e], e});
+        }
+        double best = Double.POSITIVE_INFINITY;
+        while (!fringe.isEmpty()) {
+            double[] entry = fringe.poll();
+            int e = (int) entry[1];
+            if (entry[0] > distance[e]) {
+                continue;
+            }
+            int v = graph.target(e);
+            if (v == end) {
+                best = Math.min(best, distance[e]);
+            }
+            for (int f = graph.firstEdge(v); f < graph.endEdge(v); f += 1) {
+                double length = distance[e] + turns.cost(turns.row(e), f) + graph.weight(f);
+                if (length < distance[f]) {
+                    distance[f] = length;
+                    fringe.add(new double[]{length, f});
+                }
+            }
+        }
+        return best;
+    }
+
+    private static long[] forbiddenTurns(CompactGraph graph) {
+        long[] keys = new long[graph.forbiddenTurnCount()];
+        for (int i = 0; i < keys.length; i += 1) {
+            keys[i] = graph.forbiddenTurn(i);
+        }
+        return keys;
+    }
+}